@@ -0,0 +1,285 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.util.ArrayList;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>Writes run log messages to the runlog table from a single background
+ * thread so that logging no longer costs the caller a database round 
+ * trip.  Logger hands each message to add(), which places it in a bounded
+ * ring buffer and returns.  The writer thread drains up to BATCH_SIZE 
+ * messages at a time and sends them with RecordStore.insertLogMessages() 
+ * as one batched, multi-row insert.</p>
+ * 
+ * <p>When the buffer holds logbuffersize messages the logoverflow option
+ * decides what happens to the next one.  dropdebug, the default, drops a
+ * new DEBUG message, or makes room for an ERROR or INFO message by 
+ * dropping the oldest waiting DEBUG message and only waits if there is 
+ * none.  block always waits for room and drop discards the new message.
+ * The number of dropped messages is written to the log once there is 
+ * room again.</p>
+ * 
+ * <p>The writer is started by Listener.main() and stopped by Listener 
+ * after every other service, so that all waiting messages are written 
+ * before the connection pool is shut down.</p>
+ */
+public class AsyncLogWriter implements Runnable {
+	
+	public static final String DROP_DEBUG = "dropdebug";
+	public static final String BLOCK = "block";
+	public static final String DROP = "drop";
+	
+	static final int BATCH_SIZE = 500;
+	static final long IDLE_WAIT = 1000;
+	
+	private static AsyncLogWriter sharedWriter = null;
+	private static boolean stopped = false;
+	
+	/**
+	 * <p>One waiting runlog row.</p>
+	 */
+	static class LogEntry {
+		int type;
+		String file;
+		int line;
+		String message;
+		
+		LogEntry(int messageType, String fileName, int lineNumber, String messageText) {
+			type = messageType;
+			file = fileName;
+			line = lineNumber;
+			message = messageText;
+		}
+	}
+	
+	RecordStore sqlObj;
+	String overflow;
+	LogEntry[] ring;
+	int head = 0;
+	int count = 0;
+	int droppedDebug = 0;
+	int droppedOther = 0;
+	boolean stopping = false;
+	Thread worker;
+	
+	/**
+	 * <p>Constructor class that sizes the buffer and sets the overflow 
+	 * policy from the passed Config object.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 */
+	public AsyncLogWriter(Conf config) {
+		sqlObj = RecordStoreFactory.open(config);
+		ring = new LogEntry[Math.max(1, config.logbuffersize)];
+		overflow = config.logoverflow;
+		if (!BLOCK.equals(overflow) && !DROP.equals(overflow)) {
+			overflow = DROP_DEBUG;
+		}
+	}
+	
+	/**
+	 * <p>Creates and starts the application wide writer.  Calling this 
+	 * more than once returns the writer that already exists.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @return			 the shared writer
+	 */
+	public static synchronized AsyncLogWriter init(Conf config) {
+		if (sharedWriter == null) {
+			sharedWriter = new AsyncLogWriter(config);
+			sharedWriter.worker = new Thread(sharedWriter, "runlog-writer");
+			sharedWriter.worker.setDaemon(true);
+			sharedWriter.worker.start();
+			stopped = false;
+		}
+		return sharedWriter;
+	}
+	
+	/**
+	 * <p>Returns the application wide writer, starting it if Listener has
+	 * not done so already.  Returns null once the writer has been shut
+	 * down, in which case Logger writes messages directly.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @return			 the shared writer, or null after shutdown
+	 */
+	public static synchronized AsyncLogWriter getWriter(Conf config) {
+		if (stopped) {
+			return null;
+		}
+		return init(config);
+	}
+	
+	/**
+	 * <p>Writes every waiting message and stops the writer thread.  Called
+	 * by Listener before the connection pool is shut down.</p>
+	 */
+	public static synchronized void shutdownWriter() {
+		if (sharedWriter != null) {
+			sharedWriter.shutdown();
+			sharedWriter = null;
+		}
+		stopped = true;
+	}
+	
+	/**
+	 * <p>Queues a message for the runlog table, applying the overflow 
+	 * policy if the buffer is full.</p>
+	 *
+	 * @param  	messageType    	[1] = error, [2] = info, [3] = debug
+	 * @param 	fileName		the filename of the file making the call
+	 * @param 	lineNumber		the line number of the call
+	 * @param 	messageText		the message to log
+	 * @return					false if the message was dropped
+	 */
+	public synchronized boolean add(int messageType, String fileName, int lineNumber, String messageText) {
+		while (count == ring.length) {
+			if (stopping || DROP.equals(overflow) || (DROP_DEBUG.equals(overflow) && messageType == 3)) {
+				dropped(messageType);
+				return false;
+			}
+			if (DROP_DEBUG.equals(overflow) && evictOldestDebug()) {
+				droppedDebug++;
+				break;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped(messageType);
+				return false;
+			}
+		}
+		ring[(head + count) % ring.length] = new LogEntry(messageType, fileName, lineNumber, messageText);
+		count++;
+		if (count == 1 || count >= BATCH_SIZE) {
+			notifyAll();
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>Drains the buffer until the writer is shut down and the buffer 
+	 * is empty.</p>
+	 */
+	public void run() {
+		ArrayList<LogEntry> batch = new ArrayList<LogEntry>(BATCH_SIZE + 1);
+		while (true) {
+			boolean done;
+			synchronized (this) {
+				if (count == 0 && !stopping) {
+					try {
+						wait(IDLE_WAIT);
+					} catch (InterruptedException e) {
+						stopping = true;
+					}
+				}
+				while (count > 0 && batch.size() < BATCH_SIZE) {
+					batch.add(ring[head]);
+					ring[head] = null;
+					head = (head + 1) % ring.length;
+					count--;
+				}
+				if (droppedDebug + droppedOther > 0) {
+					batch.add(new LogEntry(2, "AsyncLogWriter.java", 0, "Run log buffer was full; dropped " + droppedDebug + " DEBUG and " + droppedOther + " other messages"));
+					droppedDebug = 0;
+					droppedOther = 0;
+				}
+				done = stopping && count == 0;
+				notifyAll();
+			}
+			if (!batch.isEmpty()) {
+				write(batch);
+				batch.clear();
+			}
+			if (done) {
+				break;
+			}
+		}
+		sqlObj.closeConnection();
+	}
+	
+	/**
+	 * <p>Sends one batch to the store, printing it to the console if it 
+	 * cannot be written.</p>
+	 */
+	private void write(ArrayList<LogEntry> batch) {
+		if (!sqlObj.insertLogMessages(batch)) {
+			for (LogEntry entry : batch) {
+				System.out.println("ERROR:\t" + entry.file + "\t" + entry.line + "\tLogger has no active SQL connection.  Original message [" + entry.message + "]");
+			}
+		}
+	}
+	
+	/**
+	 * <p>Asks the writer thread to finish and waits for it.</p>
+	 */
+	private void shutdown() {
+		synchronized (this) {
+			stopping = true;
+			notifyAll();
+		}
+		try {
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void dropped(int messageType) {
+		if (messageType == 3) {
+			droppedDebug++;
+		} else {
+			droppedOther++;
+		}
+	}
+	
+	/**
+	 * <p>Removes the oldest waiting DEBUG message, moving the messages
+	 * behind it up one slot.</p>
+	 */
+	private boolean evictOldestDebug() {
+		for (int i=0; i < count; i++) {
+			if (ring[(head + i) % ring.length].type == 3) {
+				for (int j=i; j < count - 1; j++) {
+					ring[(head + j) % ring.length] = ring[(head + j + 1) % ring.length];
+				}
+				ring[(head + count - 1) % ring.length] = null;
+				count--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
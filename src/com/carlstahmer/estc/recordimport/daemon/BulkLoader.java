@@ -0,0 +1,454 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.marc4j.MarcException;
+import org.marc4j.MarcPermissiveStreamReader;
+import org.marc4j.MarcReader;
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>A fast path for rebuilding the working database from scratch.  Instead
+ * of inserting row by row, MARC files are parsed into tab separated staging
+ * files for the records, records_has_fields, and fields_has_subfields tables
+ * with ids assigned here on the client, and each table is then filled with
+ * a single LOAD DATA LOCAL INFILE.</p>
+ * 
+ * <p>Records are classified and de-duplicated with the same rules LoadMarc
+ * and RecordUtils.duplicateRecordCheck() apply, using an in-memory index in
+ * place of database lookups.  When a newer copy of a record turns up later 
+ * in the load, the record keeps its id and the field and subfield id ranges
+ * of the older copy are deleted once the files have been loaded.  Only used
+ * when the working tables are empty.</p>
+ */
+public class BulkLoader {
+	
+	Conf config;
+	SqlModel sqlObj;
+	Logger logger;
+	File recordsFile;
+	File fieldsFile;
+	File subfieldsFile;
+	Writer fieldsOut;
+	Writer subfieldsOut;
+	int nextRecordId = 1;
+	int nextFieldId = 1;
+	int nextSubfieldId = 1;
+	HashMap<String,StagedRecord> recordIndex = new HashMap<String,StagedRecord>();
+	ArrayList<StagedRecord> stagedRecords = new ArrayList<StagedRecord>();
+	ArrayList<int[]> discardedFields = new ArrayList<int[]>();
+	ArrayList<int[]> discardedSubfields = new ArrayList<int[]>();
+	ArrayList<Integer> stagedFiles = new ArrayList<Integer>();
+	
+	/**
+	 * <p>A records row waiting to be written along with the id ranges of
+	 * the fields and subfields staged for it.</p>
+	 */
+	static class StagedRecord {
+		int id;
+		int fileId;
+		int type;
+		String control;
+		double moddate;
+		int firstField;
+		int lastField;
+		int firstSubfield;
+		int lastSubfield;
+	}
+	
+	/**
+	 * <p>Constructor class that assigns passed Config object and SqlModel to 
+	 * class instances.</p>
+	 *
+	 * @param  configObj    an instance of the Conf class
+	 * @param  sqlModObj  	an instance of the sqlModel class
+	 */
+	public BulkLoader(Conf configObj, SqlModel sqlModObj) {
+		config = configObj;
+		sqlObj = sqlModObj;
+		logger = new Logger(config);
+	}
+	
+	/**
+	 * <p>Checks that the working tables are empty and opens the staging 
+	 * files.  If this returns false the caller should fall back to the
+	 * normal LoadMarc import.</p>
+	 *
+	 * @return		true if the bulk load can go ahead
+	 */
+	public boolean begin() {
+		if (!sqlObj.workingTablesEmpty()) {
+			logger.info("Bulk load requires empty records tables; using normal import");
+			return false;
+		}
+		try {
+			File stageDir = new File(config.stagedir);
+			recordsFile = File.createTempFile("records_", ".tsv", stageDir);
+			fieldsFile = File.createTempFile("fields_", ".tsv", stageDir);
+			subfieldsFile = File.createTempFile("subfields_", ".tsv", stageDir);
+			fieldsOut = openStageFile(fieldsFile);
+			subfieldsOut = openStageFile(subfieldsFile);
+		} catch (IOException e) {
+			logger.error("Unable to create bulk load staging files in {}: {}", config.stagedir, e.getMessage());
+			cleanUp();
+			return false;
+		}
+		logger.info("Bulk load staging files created in {}", config.stagedir);
+		return true;
+	}
+	
+	/**
+	 * <p>Parses a MARC file and stages all of its records.</p>
+	 *
+	 * @param  strFile    	The full file path to the marc file to load
+	 * @param  curCode  	The MARC institutional code for the organization that created the record
+	 * @param  fileRecordId The id of the files row for this file
+	 * @return				true on success, false if the file could not be staged
+	 */
+	public boolean stageMarcFile(String strFile, String curCode, int fileRecordId) {
+		InputStream input = null;
+		try {
+			input = new FileInputStream(strFile);
+			MarcReader reader = new MarcPermissiveStreamReader(input, true, true);
+			while (reader.hasNext()) {
+				Record record = reader.next();
+				stageRecord(record, curCode, fileRecordId);
+			}
+			stagedFiles.add(fileRecordId);
+			return true;
+		} catch (IOException e) {
+			logger.error("Failed to stage MARC file {}: {}", strFile, e.getMessage());
+			return false;
+		} catch (MarcException e) {
+			logger.error("Stopped staging MARC file {}: {}", strFile, e.getMessage());
+			return false;
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) { } // ignore
+			}
+		}
+	}
+	
+	/**
+	 * <p>Returns the ids of the files that were staged in full.</p>
+	 */
+	public List<Integer> getStagedFiles() {
+		return stagedFiles;
+	}
+	
+	/**
+	 * <p>Writes the records staging file, loads all three staging files, 
+	 * removes the fields of records that were replaced during the load, 
+	 * and deletes the staging files.  If any table fails to load, the 
+	 * tables are emptied again so that the files can be imported afresh.</p>
+	 *
+	 * @return		true if every table loaded successfully
+	 */
+	public boolean finish() {
+		boolean success = false;
+		try {
+			fieldsOut.close();
+			subfieldsOut.close();
+			Writer recordsOut = openStageFile(recordsFile);
+			try {
+				for (StagedRecord rec : stagedRecords) {
+					recordsOut.write(rec.id + "\t" + rec.fileId + "\t" + escape(rec.control) + "\t" + rec.type + "\t" + rec.moddate + "\n");
+				}
+			} finally {
+				recordsOut.close();
+			}
+			
+			sqlObj.setBulkLoadChecks(false);
+			int records = sqlObj.loadStagedRecords(recordsFile.getAbsolutePath());
+			int fields = sqlObj.loadStagedFields(fieldsFile.getAbsolutePath());
+			int subfields = sqlObj.loadStagedSubfields(subfieldsFile.getAbsolutePath());
+			sqlObj.setBulkLoadChecks(true);
+			
+			if (records < 0 || fields < 0 || subfields < 0) {
+				logger.error("Bulk load failed; check that local_infile is enabled on the server");
+				if (!sqlObj.clearStagedTables()) {
+					logger.error("Unable to empty the working tables after the failed bulk load");
+				}
+			} else {
+				logger.info("Bulk loaded {} records, {} fields, and {} subfields", records, fields, subfields);
+				for (int[] range : discardedFields) {
+					sqlObj.discardFieldRange(range[0], range[1]);
+				}
+				for (int[] range : discardedSubfields) {
+					sqlObj.discardSubfieldRange(range[0], range[1]);
+				}
+				
+				// LOAD DATA bypasses insertFieldBatch(), so build the
+				// holding links from the loaded fields
+				if (!sqlObj.rebuildRecordLinks()) {
+					logger.error("Failed to rebuild record_links after the bulk load");
+				}
+				success = true;
+			}
+		} catch (IOException e) {
+			logger.error("Failed to write bulk load staging files: {}", e.getMessage());
+		} finally {
+			cleanUp();
+		}
+		return success;
+	}
+	
+	/**
+	 * <p>Classifies a record, checks it against the records already staged,
+	 * and stages its rows along with any ESTC holding records built from 
+	 * its 852 fields.</p>
+	 */
+	private void stageRecord(Record record, String curCode, int fileRecordId) throws IOException {
+		List<ControlField> controlFields = record.getControlFields();
+		String strControlNumKey = "";
+		String strLastChange = "";
+		boolean blnHasControlIdent = false;
+		for (int i=0;i<controlFields.size();i++) {
+			ControlField thisControl = controlFields.get(i);
+			if (thisControl.getTag().equals("001")) {
+				strControlNumKey = thisControl.getData();
+			}
+			if (thisControl.getTag().equals("003")) {
+				blnHasControlIdent = true;
+			}
+			if (thisControl.getTag().equals("005")) {
+				strLastChange = thisControl.getData();
+			}
+		}
+		
+		if (strControlNumKey.length() < 1) {
+			logger.error("Unable to process record due to missing or blank control field [001]");
+			return;
+		}
+		
+		int recType = LoadMarc.classifyRecord(strControlNumKey, blnHasControlIdent);
+		double moddate;
+		try {
+			moddate = parseModdate(strLastChange);
+		} catch (NumberFormatException e) {
+			logger.error("Unable to process record {} due to a malformed modification date [005]: {}", strControlNumKey, strLastChange);
+			return;
+		}
+		boolean written = stageRows(record, curCode, curCode, strControlNumKey, moddate, recType, fileRecordId, !blnHasControlIdent);
+		
+		if (written) {
+			ArrayList<String> estcHoldingItems = LoadMarc.collectHoldingCodes(record, curCode);
+			for (int ihi = 0; ihi < estcHoldingItems.size(); ihi++) {
+				stageRows(record, estcHoldingItems.get(ihi), curCode, strControlNumKey, moddate, 3, fileRecordId, true);
+			}
+		}
+	}
+	
+	/**
+	 * <p>Stages one records row and its fields unless an equal or newer copy 
+	 * has already been staged.  A newer copy of an already staged record 
+	 * keeps the existing id and replaces its fields.</p>
+	 *
+	 * @param  record    	The MARC record to stage
+	 * @param  lookupCode	The institutional code used to look for an existing copy
+	 * @param  fileCode		The institutional code of the file the record is stored under
+	 * @return				true if rows were staged, false if the record was skipped
+	 */
+	private boolean stageRows(Record record, String lookupCode, String fileCode, String strControlNumKey, 
+			double moddate, int recType, int fileRecordId, boolean addControlIdent) throws IOException {
+		
+		StagedRecord rec = findStaged(lookupCode, strControlNumKey, recType);
+		if (rec == null) {
+			rec = new StagedRecord();
+			rec.id = nextRecordId++;
+			rec.fileId = fileRecordId;
+			rec.type = recType;
+			rec.control = strControlNumKey;
+			rec.moddate = moddate;
+			stagedRecords.add(rec);
+			recordIndex.put(indexKey(fileCode, recType, strControlNumKey), rec);
+		} else if (rec.moddate < moddate) {
+			if (rec.lastField >= rec.firstField) {
+				discardedFields.add(new int[] {rec.firstField, rec.lastField});
+			}
+			if (rec.lastSubfield >= rec.firstSubfield) {
+				discardedSubfields.add(new int[] {rec.firstSubfield, rec.lastSubfield});
+			}
+			rec.moddate = moddate;
+		} else {
+			logger.debug("Skipping duplicate record with control {} and modification datetimestamp {}", strControlNumKey, moddate);
+			return false;
+		}
+		
+		rec.firstField = nextFieldId;
+		rec.firstSubfield = nextSubfieldId;
+		
+		List<ControlField> controlFieldsAll = record.getControlFields();
+		for (int ivf=0;ivf<controlFieldsAll.size();ivf++) {
+			ControlField thisControlField = controlFieldsAll.get(ivf);
+			stageField(rec.id, thisControlField.getTag(), thisControlField.getData(), 1);
+		}
+		// add a 003 control identifer if there isn't one
+		if (addControlIdent) {
+			stageField(rec.id, "003", lookupCode, 1);
+		}
+		
+		List<DataField> dataFieldsAll = record.getDataFields();
+		for (int idf=0;idf<dataFieldsAll.size();idf++) {
+			DataField thisDataField = dataFieldsAll.get(idf);
+			int fieldId = stageField(rec.id, thisDataField.getTag(), thisDataField.toString(), 2);
+			List<Subfield> subFields = thisDataField.getSubfields();
+			for (int isf=0;isf<subFields.size();isf++) {
+				Subfield thisSubfield = subFields.get(isf);
+				subfieldsOut.write(nextSubfieldId++ + "\t" + fieldId + "\t" + escape(Character.toString(thisSubfield.getCode())) + "\t" + escape(thisSubfield.getData()) + "\n");
+			}
+		}
+		
+		rec.lastField = nextFieldId - 1;
+		rec.lastSubfield = nextSubfieldId - 1;
+		return true;
+	}
+	
+	/**
+	 * <p>Writes one records_has_fields row and returns the id given to it.</p>
+	 */
+	private int stageField(int recordId, String tag, String value, int fieldType) throws IOException {
+		int fieldId = nextFieldId++;
+		fieldsOut.write(fieldId + "\t" + recordId + "\t" + escape(tag) + "\t" + escape(value) + "\t" + fieldType + "\n");
+		return fieldId;
+	}
+	
+	/**
+	 * <p>Finds an already staged record using the same type rules as 
+	 * RecordUtils.duplicateRecordCheck(): bib and holding records only
+	 * match their own type, anything else matches a bib and then a 
+	 * holding record.</p>
+	 */
+	private StagedRecord findStaged(String code, String control, int recType) {
+		if (recType == 1 || recType == 2) {
+			return recordIndex.get(indexKey(code, recType, control));
+		}
+		StagedRecord found = recordIndex.get(indexKey(code, 1, control));
+		if (found == null) {
+			found = recordIndex.get(indexKey(code, 2, control));
+		}
+		return found;
+	}
+	
+	/**
+	 * <p>Builds the index key for a record.  Codes and control numbers are
+	 * compared case-insensitively, as the LIKE lookups in SqlModel do.</p>
+	 */
+	private String indexKey(String code, int recType, String control) {
+		return code.toLowerCase() + "|" + recType + "|" + control.toLowerCase();
+	}
+	
+	private double parseModdate(String strLastChange) {
+		if (strLastChange.length() < 1) {
+			strLastChange = "0";
+		}
+		return Double.parseDouble(strLastChange);
+	}
+	
+	/**
+	 * <p>Escapes a value for a LOAD DATA file using the default backslash 
+	 * escape character.  Nulls are written as \N.</p>
+	 */
+	private String escape(String value) {
+		if (value == null) {
+			return "\\N";
+		}
+		StringBuilder escaped = new StringBuilder(value.length() + 8);
+		for (int i=0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '\\':
+					escaped.append("\\\\");
+					break;
+				case '\t':
+					escaped.append("\\t");
+					break;
+				case '\n':
+					escaped.append("\\n");
+					break;
+				case '\r':
+					escaped.append("\\r");
+					break;
+				case '\0':
+					escaped.append("\\0");
+					break;
+				default:
+					escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+	
+	private Writer openStageFile(File stageFile) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(stageFile), "UTF-8"), 1 << 16);
+	}
+	
+	/**
+	 * <p>Closes and deletes the staging files.</p>
+	 */
+	private void cleanUp() {
+		if (fieldsOut != null) {
+			try {
+				fieldsOut.close();
+			} catch (IOException e) { } // ignore
+		}
+		if (subfieldsOut != null) {
+			try {
+				subfieldsOut.close();
+			} catch (IOException e) { } // ignore
+		}
+		File[] stageFiles = {recordsFile, fieldsFile, subfieldsFile};
+		for (File stageFile : stageFiles) {
+			if (stageFile != null) {
+				stageFile.delete();
+			}
+		}
+	}
+
+}
@@ -64,6 +64,25 @@ public class Conf {
 	String dbname;
 	String dbuser;
 	String dbpass;
+	int dbpoolsize;
+	boolean bulkload;
+	String stagedir;
+	int flagbatchsize;
+	int flagflushinterval;
+	String storage;
+	String storedir;
+	int logbuffersize;
+	String logoverflow;
+	int progressinterval;
+	int progresssample;
+	int importworkers;
+	int importwriters;
+	int importqueuesize;
+	int importchunksize;
+	String marcreader;
+	int parsethreads;
+	boolean dedupindex;
+	boolean dedupoffheap;
 	String langscope;
 	ArrayList<String> languageScope = new ArrayList<String>();
 	boolean debug;
@@ -89,6 +108,25 @@ public class Conf {
 		dbname = "";
 		dbuser = "";
 		dbpass = "";
+		dbpoolsize = 8;
+		bulkload = false;
+		stagedir = System.getProperty("java.io.tmpdir");
+		flagbatchsize = 500;
+		flagflushinterval = 5000;
+		storage = "mysql";
+		storedir = "estcstore";
+		logbuffersize = 8192;
+		logoverflow = "dropdebug";
+		progressinterval = 10000;
+		progresssample = 1000;
+		importworkers = 1;
+		importwriters = 2;
+		importqueuesize = 1000;
+		importchunksize = 100;
+		marcreader = "stream";
+		parsethreads = 1;
+		dedupindex = true;
+		dedupoffheap = false;
 		langscope = "eng,enm";
 		debug = false;
 		console = false;
@@ -128,6 +166,60 @@ public class Conf {
 			dbname = (String) map.get("dbname");
 			dbuser = (String) map.get("dbuser");
 			dbpass = (String) map.get("dbpass");
+			if (map.get("dbpoolsize") != null) {
+				dbpoolsize = (Integer) map.get("dbpoolsize");
+			}
+			if (map.get("stagedir") != null) {
+				stagedir = (String) map.get("stagedir");
+			}
+			if (map.get("flagbatchsize") != null) {
+				flagbatchsize = (Integer) map.get("flagbatchsize");
+			}
+			if (map.get("flagflushinterval") != null) {
+				flagflushinterval = (Integer) map.get("flagflushinterval");
+			}
+			if (map.get("storage") != null) {
+				storage = (String) map.get("storage");
+			}
+			if (map.get("storedir") != null) {
+				storedir = (String) map.get("storedir");
+			}
+			if (map.get("logbuffersize") != null) {
+				logbuffersize = (Integer) map.get("logbuffersize");
+			}
+			if (map.get("logoverflow") != null) {
+				logoverflow = (String) map.get("logoverflow");
+			}
+			if (map.get("progressinterval") != null) {
+				progressinterval = (Integer) map.get("progressinterval");
+			}
+			if (map.get("progresssample") != null) {
+				progresssample = (Integer) map.get("progresssample");
+			}
+			if (map.get("importworkers") != null) {
+				importworkers = (Integer) map.get("importworkers");
+			}
+			if (map.get("importwriters") != null) {
+				importwriters = (Integer) map.get("importwriters");
+			}
+			if (map.get("importqueuesize") != null) {
+				importqueuesize = (Integer) map.get("importqueuesize");
+			}
+			if (map.get("importchunksize") != null) {
+				importchunksize = (Integer) map.get("importchunksize");
+			}
+			if (map.get("marcreader") != null) {
+				marcreader = (String) map.get("marcreader");
+			}
+			if (map.get("parsethreads") != null) {
+				parsethreads = (Integer) map.get("parsethreads");
+			}
+			if (map.get("dedupindex") != null) {
+				dedupindex = (Boolean) map.get("dedupindex");
+			}
+			if (map.get("dedupoffheap") != null) {
+				dedupoffheap = (Boolean) map.get("dedupoffheap");
+			}
 			String tempLangscope = (String) map.get("langscope");
 			if (tempLangscope.length() > 0) {
 				langscope = tempLangscope;
@@ -178,6 +270,25 @@ public class Conf {
 			options.addOption("dbname", true, "the sql server database name");
 			options.addOption("dbuser", true, "the sql user");
 			options.addOption("dbpass", true, "the sql user");
+			options.addOption("dbpoolsize", true, "the maximum number of open sql connections");
+			options.addOption("bulkload", false, "load an empty database from staged files with LOAD DATA LOCAL INFILE");
+			options.addOption("stagedir", true, "full directory path for bulk load staging files");
+			options.addOption("flagbatchsize", true, "the number of record flag changes to hold before writing them");
+			options.addOption("flagflushinterval", true, "the longest time in milliseconds to hold record flag changes");
+			options.addOption("storage", true, "storage backend, mysql or embedded");
+			options.addOption("storedir", true, "full directory path for the embedded store");
+			options.addOption("logbuffersize", true, "the number of run log messages held for the background writer");
+			options.addOption("logoverflow", true, "what to do when the run log buffer is full: dropdebug, block, or drop");
+			options.addOption("progressinterval", true, "milliseconds between import, scope, and export progress reports");
+			options.addOption("progresssample", true, "log per-record debug messages for one record in this many");
+			options.addOption("importworkers", true, "the number of files imported at once");
+			options.addOption("importwriters", true, "the number of writer threads used to load each MARC file");
+			options.addOption("importqueuesize", true, "the number of records each MARC load stage may hold waiting for the next");
+			options.addOption("importchunksize", true, "the number of records each MARC writer commits in one transaction");
+			options.addOption("marcreader", true, "the MARC file reader, stream or mapped");
+			options.addOption("parsethreads", true, "the number of threads that parse chunks of one MARC file at once");
+			options.addOption("nodedupindex", false, "check incoming records for duplicates in the database rather than against an in-memory index");
+			options.addOption("dedupoffheap", false, "keep the duplicate index outside of the Java heap");
 			options.addOption("langscope", true, "a csv list of MARC language codes for in-scope languages");
 			options.addOption("debug", false, "run in debug mode - verbose logging");
 			options.addOption("console", false, "write log to console instead of database");
@@ -246,6 +357,111 @@ public class Conf {
 					dbpass = dbpassVal;
 				}
 			}
+			if (cmd.hasOption("dbpoolsize")) {
+				String dbpoolsizeVal = cmd.getOptionValue("dbpoolsize");
+				if(dbpoolsizeVal != null) {
+					dbpoolsize = Integer.parseInt(dbpoolsizeVal);
+				}
+			}
+			if (cmd.hasOption("bulkload")) {
+				bulkload = true;
+			}
+			if (cmd.hasOption("stagedir")) {
+				String stagedirVal = cmd.getOptionValue("stagedir");
+				if(stagedirVal != null) {
+					stagedir = stagedirVal;
+				}
+			}
+			if (cmd.hasOption("flagbatchsize")) {
+				String flagbatchsizeVal = cmd.getOptionValue("flagbatchsize");
+				if(flagbatchsizeVal != null) {
+					flagbatchsize = Integer.parseInt(flagbatchsizeVal);
+				}
+			}
+			if (cmd.hasOption("flagflushinterval")) {
+				String flagflushintervalVal = cmd.getOptionValue("flagflushinterval");
+				if(flagflushintervalVal != null) {
+					flagflushinterval = Integer.parseInt(flagflushintervalVal);
+				}
+			}
+			if (cmd.hasOption("storage")) {
+				String storageVal = cmd.getOptionValue("storage");
+				if(storageVal != null) {
+					storage = storageVal;
+				}
+			}
+			if (cmd.hasOption("storedir")) {
+				String storedirVal = cmd.getOptionValue("storedir");
+				if(storedirVal != null) {
+					storedir = storedirVal;
+				}
+			}
+			if (cmd.hasOption("logbuffersize")) {
+				String logbuffersizeVal = cmd.getOptionValue("logbuffersize");
+				if(logbuffersizeVal != null) {
+					logbuffersize = Integer.parseInt(logbuffersizeVal);
+				}
+			}
+			if (cmd.hasOption("logoverflow")) {
+				String logoverflowVal = cmd.getOptionValue("logoverflow");
+				if(logoverflowVal != null) {
+					logoverflow = logoverflowVal;
+				}
+			}
+			if (cmd.hasOption("progressinterval")) {
+				String progressintervalVal = cmd.getOptionValue("progressinterval");
+				if(progressintervalVal != null) {
+					progressinterval = Integer.parseInt(progressintervalVal);
+				}
+			}
+			if (cmd.hasOption("progresssample")) {
+				String progresssampleVal = cmd.getOptionValue("progresssample");
+				if(progresssampleVal != null) {
+					progresssample = Integer.parseInt(progresssampleVal);
+				}
+			}
+			if (cmd.hasOption("importworkers")) {
+				String importworkersVal = cmd.getOptionValue("importworkers");
+				if(importworkersVal != null) {
+					importworkers = Integer.parseInt(importworkersVal);
+				}
+			}
+			if (cmd.hasOption("importwriters")) {
+				String importwritersVal = cmd.getOptionValue("importwriters");
+				if(importwritersVal != null) {
+					importwriters = Integer.parseInt(importwritersVal);
+				}
+			}
+			if (cmd.hasOption("importqueuesize")) {
+				String importqueuesizeVal = cmd.getOptionValue("importqueuesize");
+				if(importqueuesizeVal != null) {
+					importqueuesize = Integer.parseInt(importqueuesizeVal);
+				}
+			}
+			if (cmd.hasOption("importchunksize")) {
+				String importchunksizeVal = cmd.getOptionValue("importchunksize");
+				if(importchunksizeVal != null) {
+					importchunksize = Integer.parseInt(importchunksizeVal);
+				}
+			}
+			if (cmd.hasOption("marcreader")) {
+				String marcreaderVal = cmd.getOptionValue("marcreader");
+				if(marcreaderVal != null) {
+					marcreader = marcreaderVal;
+				}
+			}
+			if (cmd.hasOption("parsethreads")) {
+				String parsethreadsVal = cmd.getOptionValue("parsethreads");
+				if(parsethreadsVal != null) {
+					parsethreads = Integer.parseInt(parsethreadsVal);
+				}
+			}
+			if (cmd.hasOption("nodedupindex")) {
+				dedupindex = false;
+			}
+			if (cmd.hasOption("dedupoffheap")) {
+				dedupoffheap = true;
+			}
 			if (cmd.hasOption("debug")) {
 				debug = true;
 			}
@@ -285,6 +501,25 @@ public class Conf {
 					HelpString = HelpString + "-dbname [the sql database name]\n";
 					HelpString = HelpString + "-dbuser [the sql database user]\n";
 					HelpString = HelpString + "-dbpass [the sql database password]\n";
+					HelpString = HelpString + "-dbpoolsize [the maximum number of open sql connections]\n";
+					HelpString = HelpString + "-bulkload [load an empty database from staged files in one pass per table]\n";
+					HelpString = HelpString + "-stagedir [/directory/path/for/bulk/load/staging/files]\n";
+					HelpString = HelpString + "-flagbatchsize [the number of record flag changes to hold before writing them]\n";
+					HelpString = HelpString + "-flagflushinterval [the longest time in milliseconds to hold record flag changes]\n";
+					HelpString = HelpString + "-storage [mysql|embedded]\n";
+					HelpString = HelpString + "-storedir [path]\n";
+					HelpString = HelpString + "-logbuffersize [count]\n";
+					HelpString = HelpString + "-logoverflow [dropdebug|block|drop]\n";
+					HelpString = HelpString + "-progressinterval [milliseconds]\n";
+					HelpString = HelpString + "-progresssample [count]\n";
+					HelpString = HelpString + "-importworkers [count]\n";
+					HelpString = HelpString + "-importwriters [count]\n";
+					HelpString = HelpString + "-importqueuesize [records]\n";
+					HelpString = HelpString + "-importchunksize [records]\n";
+					HelpString = HelpString + "-marcreader [stream|mapped]\n";
+					HelpString = HelpString + "-parsethreads [count]\n";
+					HelpString = HelpString + "-nodedupindex [check records for duplicates in the database rather than in memory]\n";
+					HelpString = HelpString + "-dedupoffheap [keep the duplicate index outside of the Java heap]\n";
 					HelpString = HelpString + "-debug [runs application in debug mode - verbose logging]\n";
 					HelpString = HelpString + "-console [writes log output to console instead of database]\n";
 					HelpString = HelpString + "-help [runs this help message]\n\n";
@@ -0,0 +1,399 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>A bounded pool of database connections shared by every SqlModel in 
+ * the application.  Each thread that talks to the database leases exactly
+ * one connection from the pool and keeps it until the thread releases it,
+ * so worker threads never share a connection and individual queries no
+ * longer pay for a full MySQL handshake.  Connections that have been sitting
+ * unused are validated before they are handed out again.</p>
+ * 
+ * <p>The pool is created and shut down by Listener.main().  Any SqlModel
+ * created before that point will lazily create the pool from its Conf.</p>
+ */
+public class ConnectionPool {
+	
+	private static ConnectionPool sharedPool = null;
+	
+	String connString;
+	int maxSize;
+	int statementCacheSize = 256;
+	int validateTimeout = 5;
+	long validateAfterIdle = 30000;
+	long acquireTimeout = 30000;
+	int created = 0;
+	boolean shutDown = false;
+	LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+	ArrayList<PooledConnection> leased = new ArrayList<PooledConnection>();
+	ThreadLocal<PooledConnection> threadLease = new ThreadLocal<PooledConnection>();
+	
+	/**
+	 * <p>A single physical connection managed by the pool along with
+	 * the time it was last handed out and its prepared statement cache.
+	 * The cache evicts and closes its least recently used statement 
+	 * once it grows past the configured size.</p>
+	 */
+	static class PooledConnection {
+		Connection conn;
+		long lastUsed;
+		LinkedHashMap<String,PreparedStatement> statements;
+		
+		PooledConnection(Connection connection, final int cacheSize) {
+			conn = connection;
+			lastUsed = System.currentTimeMillis();
+			statements = new LinkedHashMap<String,PreparedStatement>(64, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+					if (size() > cacheSize) {
+						try {
+							eldest.getValue().close();
+						} catch (SQLException ex) {
+							// ignore
+						}
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+	}
+	
+	/**
+	 * <p>Constructor class that builds the JDBC connection string from
+	 * the passed Config object.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 */
+	public ConnectionPool(Conf config) {
+		connString = "jdbc:mysql://" + config.dbserver + "/" + config.dbname + 
+				"?user=" + config.dbuser + "&password=" + config.dbpass +
+				"&useServerPrepStmts=true&rewriteBatchedStatements=true" +
+				"&allowLoadLocalInfile=true";
+		maxSize = config.dbpoolsize;
+		if (maxSize < 1) {
+			maxSize = 1;
+		}
+	}
+	
+	/**
+	 * <p>Creates the application wide pool.  Calling this more than once
+	 * returns the pool that already exists.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @return			 the shared connection pool
+	 */
+	public static synchronized ConnectionPool init(Conf config) {
+		if (sharedPool == null || sharedPool.shutDown) {
+			sharedPool = new ConnectionPool(config);
+		}
+		return sharedPool;
+	}
+	
+	/**
+	 * <p>Returns the application wide pool, creating it from the passed 
+	 * Config object if Listener has not done so already.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @return			 the shared connection pool
+	 */
+	public static synchronized ConnectionPool getPool(Conf config) {
+		if (sharedPool == null || sharedPool.shutDown) {
+			sharedPool = new ConnectionPool(config);
+		}
+		return sharedPool;
+	}
+	
+	/**
+	 * <p>Closes every connection in the shared pool.  Called by Listener
+	 * once all processing is complete.</p>
+	 */
+	public static synchronized void shutdownPool() {
+		if (sharedPool != null) {
+			sharedPool.shutdown();
+			sharedPool = null;
+		}
+	}
+	
+	/**
+	 * <p>Returns the connection leased to the calling thread, leasing one
+	 * from the pool if the thread does not yet hold one.  Blocks while the 
+	 * pool is exhausted.</p>
+	 *
+	 * @return		a validated, open connection owned by the calling thread
+	 */
+	public Connection acquire() throws SQLException {
+		PooledConnection pc = threadLease.get();
+		if (pc != null) {
+			long now = System.currentTimeMillis();
+			if (now - pc.lastUsed > validateAfterIdle && !isUsable(pc)) {
+				discard(pc);
+				pc = null;
+			} else {
+				pc.lastUsed = now;
+				return pc.conn;
+			}
+		}
+		pc = checkOut();
+		threadLease.set(pc);
+		return pc.conn;
+	}
+	
+	/**
+	 * <p>Returns the connection leased to the calling thread, if any, 
+	 * to the pool so that another thread may use it.</p>
+	 */
+	public void release() {
+		PooledConnection pc = threadLease.get();
+		if (pc == null) {
+			return;
+		}
+		threadLease.remove();
+		synchronized (this) {
+			leased.remove(pc);
+			if (shutDown) {
+				closeQuietly(pc);
+			} else {
+				pc.lastUsed = System.currentTimeMillis();
+				idle.addFirst(pc);
+			}
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * <p>Returns a prepared statement for the passed SQL on the calling 
+	 * thread's connection, preparing it on the server the first time the 
+	 * shape is seen.  Statements belong to the cache and must not be 
+	 * closed by the caller.</p>
+	 *
+	 * @param  strSql		SQL text using ? placeholders for every value
+	 * @param  returnKeys	whether generated keys should be available after execution
+	 * @return				a cached prepared statement with cleared parameters
+	 */
+	public PreparedStatement prepare(String strSql, boolean returnKeys) throws SQLException {
+		acquire();
+		PooledConnection pc = threadLease.get();
+		String cacheKey = (returnKeys ? "K|" : "N|") + strSql;
+		PreparedStatement stmt = pc.statements.get(cacheKey);
+		if (stmt == null) {
+			if (returnKeys) {
+				stmt = pc.conn.prepareStatement(strSql, Statement.RETURN_GENERATED_KEYS);
+			} else {
+				stmt = pc.conn.prepareStatement(strSql);
+			}
+			pc.statements.put(cacheKey, stmt);
+		} else {
+			stmt.clearParameters();
+		}
+		return stmt;
+	}
+	
+	/**
+	 * <p>Drops a statement from the calling thread's cache after it 
+	 * has failed so that the next call prepares it afresh.</p>
+	 *
+	 * @param  strSql		the SQL text the statement was prepared from
+	 * @param  returnKeys	whether it was prepared to return generated keys
+	 */
+	public void evict(String strSql, boolean returnKeys) {
+		PooledConnection pc = threadLease.get();
+		if (pc != null) {
+			PreparedStatement stmt = pc.statements.remove((returnKeys ? "K|" : "N|") + strSql);
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException ex) {
+					// ignore
+				}
+			}
+		}
+	}
+	
+	/**
+	 * <p>Opens a connection that is not tracked by the pool or leased to
+	 * any thread.  Used by services such as IdAllocator that must commit
+	 * their own work independently of the transaction the calling thread
+	 * may have open.  The caller is responsible for closing it.</p>
+	 *
+	 * @return		a new connection to the working database
+	 */
+	public Connection openDedicated() throws SQLException {
+		return DriverManager.getConnection(connString);
+	}
+
+	/**
+	 * <p>Closes all idle and leased connections and refuses further leases.</p>
+	 */
+	public synchronized void shutdown() {
+		shutDown = true;
+		for (PooledConnection pc : idle) {
+			closeQuietly(pc);
+		}
+		idle.clear();
+		for (PooledConnection pc : leased) {
+			closeQuietly(pc);
+		}
+		leased.clear();
+		created = 0;
+		notifyAll();
+	}
+	
+	/**
+	 * <p>Takes an idle connection, opens a new one if the pool has not
+	 * reached its size limit, or waits for another thread to release one.
+	 * An idle connection that needs checking is taken off the idle list 
+	 * under the pool lock and checked outside of it, so that a dead server
+	 * does not hold up every other acquire and release.</p>
+	 */
+	private PooledConnection checkOut() throws SQLException {
+		long deadline = System.currentTimeMillis() + acquireTimeout;
+		while (true) {
+			PooledConnection candidate = null;
+			boolean mayCreate = false;
+			synchronized (this) {
+				while (candidate == null && !mayCreate) {
+					if (shutDown) {
+						throw new SQLException("Connection pool has been shut down");
+					}
+					if (!idle.isEmpty()) {
+						candidate = idle.removeFirst();
+						leased.add(candidate);
+						if (System.currentTimeMillis() - candidate.lastUsed <= validateAfterIdle) {
+							candidate.lastUsed = System.currentTimeMillis();
+							return candidate;
+						}
+						break;
+					}
+					if (created < maxSize) {
+						created++;
+						mayCreate = true;
+						break;
+					}
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						throw new SQLException("Timed out waiting for a pooled connection (pool size " + maxSize + ")");
+					}
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a pooled connection");
+					}
+				}
+			}
+			
+			if (candidate != null) {
+				if (isUsable(candidate)) {
+					candidate.lastUsed = System.currentTimeMillis();
+					return candidate;
+				}
+				closeQuietly(candidate);
+				synchronized (this) {
+					leased.remove(candidate);
+					created--;
+					notifyAll();
+				}
+				continue;
+			}
+			
+			// open the new connection outside of the pool lock so that
+			// other threads are not held up by the handshake
+			PooledConnection pc;
+			try {
+				pc = new PooledConnection(DriverManager.getConnection(connString), statementCacheSize);
+			} catch (SQLException ex) {
+				synchronized (this) {
+					created--;
+					notifyAll();
+				}
+				throw ex;
+			}
+			synchronized (this) {
+				leased.add(pc);
+			}
+			return pc;
+		}
+	}
+	
+	/**
+	 * <p>Removes a broken connection from the pool.</p>
+	 */
+	private void discard(PooledConnection pc) {
+		threadLease.remove();
+		closeQuietly(pc);
+		synchronized (this) {
+			leased.remove(pc);
+			created--;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * <p>Checks that a connection is still alive.</p>
+	 */
+	private boolean isUsable(PooledConnection pc) {
+		try {
+			return !pc.conn.isClosed() && pc.conn.isValid(validateTimeout);
+		} catch (SQLException ex) {
+			return false;
+		}
+	}
+	
+	private void closeQuietly(PooledConnection pc) {
+		for (PreparedStatement stmt : pc.statements.values()) {
+			try {
+				stmt.close();
+			} catch (SQLException ex) {
+				// ignore
+			}
+		}
+		pc.statements.clear();
+		try {
+			pc.conn.close();
+		} catch (SQLException ex) {
+			// ignore
+		}
+	}
+
+}
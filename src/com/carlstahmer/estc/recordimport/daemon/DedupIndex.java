@@ -0,0 +1,416 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>An in-memory index of the bib and holding records in the working 
+ * database used by RecordUtils.duplicateRecordCheck() in place of the 
+ * selectRecordRecord() and selectRecordMod() lookups.  It maps an 
+ * institution code, control identifier, and record type to the record's
+ * id, moddate, and content hash, and is loaded once per import from the 
+ * records table and then kept current as records are inserted and 
+ * replaced.</p>
+ * 
+ * <p>Keys are not stored.  Each is reduced to a 128 bit fingerprint of 
+ * its lower-cased code and control identifier, so that they compare 
+ * case-insensitively as the LIKE lookups do, and the fingerprint, id, 
+ * moddate, and content hash are packed into a 48 byte slot of an open 
+ * addressing table held in a single ByteBuffer.  The table doubles from 
+ * MIN_SLOTS as it fills, so a million records take 96MB, up to 
+ * MAX_SLOTS slots or 1.5GB, which holds about 23 million records.  The 
+ * buffer is allocated outside of the Java heap when dedupoffheap is 
+ * set.</p>
+ * 
+ * <p>Only types 1 and 2 are indexed, as those are the only types 
+ * duplicateRecordCheck() looks for.  The index is shared by every import
+ * thread, so all of its methods are synchronized.</p>
+ */
+public class DedupIndex {
+	
+	static final int SLOT_BYTES = 48;
+	static final int HI = 0;
+	static final int LO = 8;
+	static final int MODDATE = 16;
+	static final int ID = 24;
+	static final int HAS_HASH = 28;
+	static final int HASH = 32;
+	static final int HASH_BYTES = 16;
+	static final int MIN_SLOTS = 1 << 16;
+	static final int MAX_SLOTS = 1 << 25;
+	static final double LOAD_FACTOR = 0.7;
+	
+	private static DedupIndex sharedIndex = null;
+	private static boolean loadFailed = false;
+	
+	Logger logger;
+	boolean offHeap;
+	ByteBuffer table;
+	int slots;
+	int mask;
+	int size = 0;
+	boolean full = false;
+	
+	/**
+	 * <p>The id, moddate, and content hash stored for a key.  The hash is 
+	 * null for records loaded before hashes were kept.</p>
+	 */
+	static class Hit {
+		int id;
+		double moddate;
+		byte[] hash;
+		
+		Hit(int recordId, double recordModdate, byte[] recordHash) {
+			id = recordId;
+			moddate = recordModdate;
+			hash = recordHash;
+		}
+	}
+	
+	/**
+	 * <p>Constructor class that creates an empty index.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 */
+	public DedupIndex(Conf config) {
+		logger = new Logger(config);
+		offHeap = config.dedupoffheap;
+		allocate(MIN_SLOTS);
+	}
+	
+	/**
+	 * <p>Returns the application wide index, loading it through the passed
+	 * store the first time it is asked for.  Returns null if the index is
+	 * turned off, could not be loaded, or has filled up since, in which 
+	 * case the caller should query the store instead.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @param  store     the calling thread's store, used to load the index
+	 * @return			 the shared index, or null
+	 */
+	public static synchronized DedupIndex getIndex(Conf config, RecordStore store) {
+		if (sharedIndex == null && !loadFailed && config.dedupindex) {
+			long started = System.currentTimeMillis();
+			DedupIndex index = new DedupIndex(config);
+			if (store.selectRecordKeys(index) && index.usable()) {
+				sharedIndex = index;
+				index.logger.info("Loaded {} records into the duplicate index in {} ms", index.size(), System.currentTimeMillis() - started);
+			} else {
+				loadFailed = true;
+				index.logger.error("Unable to load the duplicate index; checking records against the database instead");
+			}
+		} else if (sharedIndex != null && !sharedIndex.usable()) {
+			
+			// records added since the table filled up are missing from it,
+			// so it is dropped until the next import loads it afresh
+			loadFailed = true;
+			sharedIndex.logger.error("The duplicate index is full; checking records against the database instead");
+			sharedIndex = null;
+		}
+		return sharedIndex;
+	}
+	
+	/**
+	 * <p>Discards the shared index so that the next call to getIndex() 
+	 * loads it again.  Called by ProcessManager at the end of each import
+	 * and by Listener at shutdown.</p>
+	 */
+	public static synchronized void shutdownIndex() {
+		sharedIndex = null;
+		loadFailed = false;
+	}
+	
+	/**
+	 * <p>Adds a record while loading the index.  If more than one record 
+	 * has the same key the first one added is kept, so records should be 
+	 * added in id order.</p>
+	 *
+	 * @param  	code		the institution code of the record's file
+	 * @param  	control		the record's control identifier
+	 * @param  	type		the record type
+	 * @param  	id			the record id
+	 * @param  	moddate		the record's moddate
+	 * @param  	hash		the record's content hash, or null
+	 */
+	public synchronized void add(String code, String control, int type, int id, double moddate, byte[] hash) {
+		if (!indexed(type)) {
+			return;
+		}
+		String key = keyText(code, control, type);
+		long hi = hashHi(key);
+		long lo = hashLo(key);
+		if (table.getInt(find(hi, lo) + ID) == 0) {
+			insert(hi, lo, id, moddate, hash);
+		}
+	}
+	
+	/**
+	 * <p>Looks up a record.</p>
+	 *
+	 * @param  	code		the institution code
+	 * @param  	control		the control identifier
+	 * @param  	type		the record type
+	 * @return				the record's id, moddate, and hash, or null if there is no such record
+	 */
+	public synchronized Hit get(String code, String control, int type) {
+		if (!indexed(type)) {
+			return null;
+		}
+		int slot = find(code, control, type);
+		int id = table.getInt(slot + ID);
+		if (id == 0) {
+			return null;
+		}
+		return hitAt(slot);
+	}
+	
+	/**
+	 * <p>Sets the id, moddate, and content hash of a record that has just
+	 * been inserted or updated.</p>
+	 *
+	 * @param  	code		the institution code of the record's file
+	 * @param  	control		the record's control identifier
+	 * @param  	type		the record type
+	 * @param  	id			the record id
+	 * @param  	moddate		the record's new moddate
+	 * @param  	hash		the record's new content hash, or null
+	 * @return				what was stored for the key before, or null
+	 */
+	public synchronized Hit put(String code, String control, int type, int id, double moddate, byte[] hash) {
+		if (!indexed(type)) {
+			return null;
+		}
+		String key = keyText(code, control, type);
+		long hi = hashHi(key);
+		long lo = hashLo(key);
+		int slot = find(hi, lo);
+		int oldId = table.getInt(slot + ID);
+		if (oldId == 0) {
+			insert(hi, lo, id, moddate, hash);
+			return null;
+		}
+		Hit previous = hitAt(slot);
+		table.putInt(slot + ID, id);
+		table.putDouble(slot + MODDATE, moddate);
+		putHash(slot, hash);
+		return previous;
+	}
+	
+	/**
+	 * <p>Puts back what was stored for a key before a put() whose write 
+	 * has since been rolled back.</p>
+	 *
+	 * @param  	code		the institution code
+	 * @param  	control		the control identifier
+	 * @param  	type		the record type
+	 * @param  	previous	the value put() returned
+	 */
+	public synchronized void restore(String code, String control, int type, Hit previous) {
+		if (previous != null) {
+			put(code, control, type, previous.id, previous.moddate, previous.hash);
+		} else if (indexed(type)) {
+			int slot = find(code, control, type);
+			if (table.getInt(slot + ID) != 0) {
+				delete(slot / SLOT_BYTES);
+			}
+		}
+	}
+	
+	/**
+	 * <p>The number of records in the index.</p>
+	 */
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * <p>Whether the index still holds every record added to it.  Once 
+	 * the table cannot grow any further new records are dropped and the 
+	 * index must no longer be trusted, so getIndex() stops handing it 
+	 * out.</p>
+	 */
+	public synchronized boolean usable() {
+		return !full;
+	}
+	
+	private boolean indexed(int type) {
+		return type == 1 || type == 2;
+	}
+	
+	/**
+	 * <p>Returns the byte offset of the slot holding a fingerprint, or of 
+	 * the empty slot where it would go.</p>
+	 */
+	private int find(String code, String control, int type) {
+		String key = keyText(code, control, type);
+		return find(hashHi(key), hashLo(key));
+	}
+	
+	private int find(long hi, long lo) {
+		int i = (int) hi & mask;
+		while (true) {
+			int slot = i * SLOT_BYTES;
+			if (table.getInt(slot + ID) == 0 || (table.getLong(slot + HI) == hi && table.getLong(slot + LO) == lo)) {
+				return slot;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+	
+	private void insert(long hi, long lo, int id, double moddate, byte[] hash) {
+		if (size + 1 > slots * LOAD_FACTOR) {
+			if (slots >= MAX_SLOTS) {
+				if (size + 1 >= slots) {
+					if (!full) {
+						logger.error("The duplicate index is full at {} records", size);
+					}
+					full = true;
+					return;
+				}
+			} else {
+				grow();
+			}
+		}
+		int slot = find(hi, lo);
+		table.putLong(slot + HI, hi);
+		table.putLong(slot + LO, lo);
+		table.putDouble(slot + MODDATE, moddate);
+		table.putInt(slot + ID, id);
+		putHash(slot, hash);
+		size++;
+	}
+	
+	private Hit hitAt(int slot) {
+		byte[] hash = null;
+		if (table.getInt(slot + HAS_HASH) != 0) {
+			hash = new byte[HASH_BYTES];
+			for (int i=0; i < HASH_BYTES; i++) {
+				hash[i] = table.get(slot + HASH + i);
+			}
+		}
+		return new Hit(table.getInt(slot + ID), table.getDouble(slot + MODDATE), hash);
+	}
+	
+	private void putHash(int slot, byte[] hash) {
+		boolean valid = hash != null && hash.length == HASH_BYTES;
+		table.putInt(slot + HAS_HASH, valid ? 1 : 0);
+		for (int i=0; i < HASH_BYTES; i++) {
+			table.put(slot + HASH + i, valid ? hash[i] : 0);
+		}
+	}
+	
+	private void copySlot(ByteBuffer from, int fromSlot, int toSlot) {
+		for (int i=0; i < SLOT_BYTES; i += 8) {
+			table.putLong(toSlot + i, from.getLong(fromSlot + i));
+		}
+	}
+	
+	/**
+	 * <p>Empties slot i, shifting back any entries after it in the same
+	 * run that could no longer be found.</p>
+	 */
+	private void delete(int i) {
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			int from = j * SLOT_BYTES;
+			if (table.getInt(from + ID) == 0) {
+				break;
+			}
+			int home = (int) table.getLong(from + HI) & mask;
+			boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+			if (stays) {
+				continue;
+			}
+			copySlot(table, from, i * SLOT_BYTES);
+			i = j;
+		}
+		table.putInt(i * SLOT_BYTES + ID, 0);
+		size--;
+	}
+	
+	private void allocate(int slotCount) {
+		slots = slotCount;
+		mask = slotCount - 1;
+		table = offHeap ? ByteBuffer.allocateDirect(slotCount * SLOT_BYTES) : ByteBuffer.allocate(slotCount * SLOT_BYTES);
+		table.order(ByteOrder.nativeOrder());
+	}
+	
+	private void grow() {
+		ByteBuffer old = table;
+		int oldSlots = slots;
+		allocate(slots * 2);
+		for (int i=0; i < oldSlots; i++) {
+			int from = i * SLOT_BYTES;
+			if (old.getInt(from + ID) != 0) {
+				copySlot(old, from, find(old.getLong(from + HI), old.getLong(from + LO)));
+			}
+		}
+	}
+	
+	/**
+	 * <p>The two halves of a key's fingerprint: an FNV-1a hash and a 
+	 * multiplicative hash over the same characters, each finished with 
+	 * the MurmurHash3 mixer.</p>
+	 */
+	static long hashHi(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i=0; i < key.length(); i++) {
+			h = (h ^ key.charAt(i)) * 0x100000001b3L;
+		}
+		return mix(h);
+	}
+	
+	static long hashLo(String key) {
+		long h = 0x9e3779b97f4a7c15L;
+		for (int i=0; i < key.length(); i++) {
+			h = Long.rotateLeft(h ^ key.charAt(i), 29) * 0xc2b2ae3d27d4eb4fL;
+		}
+		return mix(h ^ key.length());
+	}
+	
+	static String keyText(String code, String control, int type) {
+		return code.toLowerCase() + "\u0000" + control.toLowerCase() + "\u0000" + type;
+	}
+	
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb93fe53a87cdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
@@ -0,0 +1,1068 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>A RecordStore that keeps the files, records, fields, subfields, 
+ * subject terms, agents, holding links, and raw records in memory inside
+ * the running process, so that single node imports, exports, and 
+ * benchmarks need no database server.  Lookups the pipeline makes once per record or field 
+ * are served from hash indexes.  LIKE matches behave as they do in 
+ * MySQL: case-insensitive, with % and _ as wildcards.</p>
+ * 
+ * <p>The tables are saved to the storedir directory when the store is 
+ * shut down and at most once a minute while it is being written to.  
+ * Each save is written to a temporary file, forced to disk, and renamed
+ * over the previous one so that a crash always leaves a whole copy 
+ * behind.  Run log messages are appended to runlog.txt in the same 
+ * directory.  Ids are never reused.</p>
+ * 
+ * <p>Every method is synchronized, so a single store is shared by all
+ * threads.  It is created by RecordStoreFactory and closed by Listener.</p>
+ */
+public class EmbeddedRecordStore implements RecordStore {
+	
+	static final String DATA_FILE = "records.ser";
+	static final String LOG_FILE = "runlog.txt";
+	static final long SAVE_INTERVAL = 60000;
+	
+	private static EmbeddedRecordStore sharedStore = null;
+	
+	File storeDir;
+	Tables tables;
+	boolean dirty = false;
+	long lastSave;
+	BufferedWriter logWriter = null;
+	
+	/**
+	 * <p>A files row.</p>
+	 */
+	static class StoredFile implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int id;
+		String institutionCode;
+		String filename;
+		long modificationDate;
+		int type;
+	}
+	
+	/**
+	 * <p>A records row.</p>
+	 */
+	static class StoredRecord implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int id;
+		int fileId;
+		String controlIdentifier;
+		int type;
+		double moddate;
+		byte[] contentHash;
+		int processed = 0;
+		int scoped = 0;
+		int exported = 0;
+	}
+	
+	/**
+	 * <p>A records_has_fields row.</p>
+	 */
+	static class StoredField implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int id;
+		int recordId;
+		String tag;
+		String value;
+		int type;
+		byte[] contentHash;
+	}
+	
+	/**
+	 * <p>A fields_has_subfields row.</p>
+	 */
+	static class StoredSubfield implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int id;
+		int fieldId;
+		String code;
+		String value;
+	}
+	
+	/**
+	 * <p>Everything that is saved to disk: the tables, the indexes over
+	 * them, and the next id for each table.</p>
+	 */
+	static class Tables implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int nextFileId = 1;
+		int nextRecordId = 1;
+		int nextFieldId = 1;
+		int nextSubfieldId = 1;
+		int nextTermId = 1;
+		int nextAgentId = 1;
+		int nextLogId = 1;
+		HashMap<String,Integer> fileTypes = new HashMap<String,Integer>();
+		TreeMap<Integer,StoredFile> files = new TreeMap<Integer,StoredFile>();
+		TreeMap<Integer,StoredRecord> records = new TreeMap<Integer,StoredRecord>();
+		HashMap<String,ArrayList<Integer>> recordsByControl = new HashMap<String,ArrayList<Integer>>();
+		HashMap<Integer,StoredField> fields = new HashMap<Integer,StoredField>();
+		HashMap<Integer,ArrayList<Integer>> fieldsByRecord = new HashMap<Integer,ArrayList<Integer>>();
+		HashMap<Integer,StoredSubfield> subfields = new HashMap<Integer,StoredSubfield>();
+		HashMap<Integer,ArrayList<Integer>> subfieldsByField = new HashMap<Integer,ArrayList<Integer>>();
+		HashMap<String,Integer> subjectTerms = new HashMap<String,Integer>();
+		HashMap<String,Integer> agents = new HashMap<String,Integer>();
+		HashMap<String,TreeMap<Integer,ArrayList<Integer>>> holdingLinks = new HashMap<String,TreeMap<Integer,ArrayList<Integer>>>();
+		HashMap<Integer,String> linkKeys = new HashMap<Integer,String>();
+		HashMap<Integer,byte[]> rawRecords = new HashMap<Integer,byte[]>();
+		HashMap<Integer,long[]> checkpoints = new HashMap<Integer,long[]>();
+	}
+	
+	/**
+	 * <p>Constructor class that loads the store saved in the directory 
+	 * named by the passed Config object, or starts an empty one.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 */
+	public EmbeddedRecordStore(Conf config) {
+		storeDir = new File(config.storedir);
+		if (!storeDir.isDirectory() && !storeDir.mkdirs()) {
+			System.out.println("Unable to create embedded store directory " + storeDir.getAbsolutePath());
+		}
+		tables = load();
+		if (tables == null) {
+			tables = new Tables();
+			tables.fileTypes.put("mrc", 1);
+			tables.fileTypes.put("txt", 2);
+			tables.fileTypes.put("xls", 3);
+			tables.fileTypes.put("xlsx", 3);
+			tables.fileTypes.put("csv", 4);
+			tables.fileTypes.put("xml", 5);
+		}
+		if (tables.rawRecords == null) {
+			// saved before raw records were kept
+			tables.rawRecords = new HashMap<Integer,byte[]>();
+		}
+		if (tables.checkpoints == null) {
+			// saved before file checkpoints were kept
+			tables.checkpoints = new HashMap<Integer,long[]>();
+		}
+		lastSave = System.currentTimeMillis();
+	}
+	
+	/**
+	 * <p>Returns the application wide store, loading it from the directory
+	 * named by the passed Config object the first time it is asked for.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @return			 the shared store
+	 */
+	public static synchronized EmbeddedRecordStore getStore(Conf config) {
+		if (sharedStore == null) {
+			sharedStore = new EmbeddedRecordStore(config);
+		}
+		return sharedStore;
+	}
+	
+	/**
+	 * <p>Saves and closes the shared store if one was opened.  Called by 
+	 * Listener once all processing is complete.</p>
+	 */
+	public static synchronized void shutdownStore() {
+		if (sharedStore != null) {
+			sharedStore.close();
+			sharedStore = null;
+		}
+	}
+	
+	/**
+	 * <p>Nothing needs to be opened for an in-process store.</p>
+	 */
+	public boolean openConnection() {
+		return true;
+	}
+	
+	public boolean tryOpenConnection() {
+		return true;
+	}
+	
+	/**
+	 * <p>Saves any unsaved changes.</p>
+	 */
+	public synchronized boolean closeConnection() {
+		if (dirty) {
+			return save();
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>Writes are applied in memory at once and saved as a whole, so 
+	 * there is nothing to group.</p>
+	 */
+	public boolean beginTransaction() {
+		return true;
+	}
+	
+	public boolean beginRecord() {
+		return true;
+	}
+	
+	/**
+	 * <p>Writes cannot be taken back, so a failed record is left as far as
+	 * it was written.</p>
+	 */
+	public boolean endRecord(boolean keep) {
+		return keep;
+	}
+	
+	public boolean commitTransaction() {
+		return true;
+	}
+	
+	public void rollbackTransaction() {
+	}
+	
+	/////////////////////////////////////////////////////////////////
+	//                   FILE FUNCTIONS                            //
+	/////////////////////////////////////////////////////////////////
+	
+	public synchronized int selectFileTypeID(String suffix) {
+		for (Map.Entry<String,Integer> entry : tables.fileTypes.entrySet()) {
+			if (like(entry.getKey(), suffix)) {
+				return entry.getValue();
+			}
+		}
+		return 0;
+	}
+	
+	public synchronized int selectFileRecordStrict(String currCode, String fileName, long modDate) {
+		for (StoredFile file : tables.files.values()) {
+			if (like(file.institutionCode, currCode) && like(file.filename, fileName) 
+					&& file.modificationDate >= modDate) {
+				return file.id;
+			}
+		}
+		return 0;
+	}
+	
+	public synchronized int selectFileRecord(String currCode, String fileName) {
+		for (StoredFile file : tables.files.values()) {
+			if (like(file.institutionCode, currCode) && like(file.filename, fileName)) {
+				return file.id;
+			}
+		}
+		return 0;
+	}
+	
+	public synchronized int insertFileRecord(String currCode, String fileName, long modDate, int fileType) {
+		StoredFile file = new StoredFile();
+		file.id = tables.nextFileId++;
+		file.institutionCode = currCode;
+		file.filename = fileName;
+		file.modificationDate = modDate;
+		file.type = fileType;
+		tables.files.put(file.id, file);
+		changed();
+		return file.id;
+	}
+	
+	public synchronized boolean updateFileModDate(int intFileId, long fileModDate) {
+		StoredFile file = tables.files.get(intFileId);
+		if (file != null) {
+			file.modificationDate = fileModDate;
+			changed();
+		}
+		return true;
+	}
+	
+	public synchronized ArrayList<HashMap<String,String>> selectFileInfoById(int fileId) {
+		ArrayList<HashMap<String,String>> rows = new ArrayList<HashMap<String,String>>();
+		StoredFile file = tables.files.get(fileId);
+		if (file != null) {
+			HashMap<String,String> row = new HashMap<String,String>();
+			row.put("institution_code", file.institutionCode);
+			row.put("filename", file.filename);
+			rows.add(row);
+		}
+		return rows;
+	}
+	
+	public synchronized long[] selectFileCheckpoint(int fileId) {
+		long[] checkpoint = tables.checkpoints.get(fileId);
+		if (checkpoint == null) {
+			return null;
+		}
+		return checkpoint.clone();
+	}
+	
+	/**
+	 * <p>The checkpoint is saved along with the records it covers, so 
+	 * after a crash the two always agree.</p>
+	 */
+	public synchronized boolean saveFileCheckpoint(int fileId, long modDate, long offset, int ordinal) {
+		tables.checkpoints.put(fileId, new long[] {modDate, offset, ordinal});
+		changed();
+		return true;
+	}
+	
+	public synchronized boolean deleteFileCheckpoint(int fileId) {
+		if (tables.checkpoints.remove(fileId) != null) {
+			changed();
+		}
+		return true;
+	}
+	
+	/////////////////////////////////////////////////////////////////
+	//                   RECORD FUNCTIONS                          //
+	/////////////////////////////////////////////////////////////////
+	
+	public synchronized int selectRecordRecord(String currCode, int recType, String controlIdentifier) {
+		Iterable<Integer> candidates;
+		if (hasWildcard(controlIdentifier)) {
+			candidates = tables.records.keySet();
+		} else {
+			candidates = tables.recordsByControl.get(controlIdentifier.toLowerCase());
+			if (candidates == null) {
+				return 0;
+			}
+		}
+		for (Integer id : candidates) {
+			StoredRecord record = tables.records.get(id);
+			if (record.type != recType || !like(record.controlIdentifier, controlIdentifier)) {
+				continue;
+			}
+			StoredFile file = tables.files.get(record.fileId);
+			if (file != null && like(file.institutionCode, currCode)) {
+				return record.id;
+			}
+		}
+		return 0;
+	}
+	
+	public synchronized double selectRecordMod(int recordId) {
+		StoredRecord record = tables.records.get(recordId);
+		return record == null ? 0 : record.moddate;
+	}
+	
+	public synchronized byte[] selectRecordHash(int recordId) {
+		StoredRecord record = tables.records.get(recordId);
+		return record == null ? null : record.contentHash;
+	}
+	
+	public synchronized boolean selectRecordKeys(DedupIndex index) {
+		for (StoredRecord record : tables.records.values()) {
+			StoredFile file = tables.files.get(record.fileId);
+			if (file != null && record.controlIdentifier != null) {
+				index.add(file.institutionCode, record.controlIdentifier, record.type, record.id, record.moddate, record.contentHash);
+			}
+		}
+		return true;
+	}
+	
+	public synchronized int insertRecordRecord(int fileId, int recType, String controlIdentifier, double moddate, byte[] contentHash) {
+		StoredRecord record = new StoredRecord();
+		record.id = tables.nextRecordId++;
+		record.fileId = fileId;
+		record.type = recType;
+		record.controlIdentifier = controlIdentifier;
+		record.moddate = moddate;
+		record.contentHash = contentHash;
+		tables.records.put(record.id, record);
+		if (controlIdentifier != null) {
+			indexAdd(tables.recordsByControl, controlIdentifier.toLowerCase(), record.id);
+		}
+		changed();
+		return record.id;
+	}
+	
+	/**
+	 * <p>Writes the rows of a batch and links each 852 to the 001 of the
+	 * batch, as SqlModel.insertFieldBatch() does.  The whole batch is 
+	 * added while the store is locked, so readers never see part of it.</p>
+	 */
+	public synchronized boolean insertFieldBatch(MarcFieldBatch batch) {
+		String control = null;
+		for (MarcFieldBatch.FieldRow row : batch.fields) {
+			if (row.tag.equals("001") && row.value != null && row.value.length() > 0) {
+				control = row.value;
+				break;
+			}
+		}
+		for (MarcFieldBatch.FieldRow row : batch.fields) {
+			StoredField field = new StoredField();
+			field.id = tables.nextFieldId++;
+			field.recordId = row.recordId;
+			tables.fields.put(field.id, field);
+			indexAdd(tables.fieldsByRecord, field.recordId, field.id);
+			row.id = field.id;
+			storeFieldRow(field, row);
+			if (control != null && row.tag.equals("852")) {
+				addLink(control, row.recordId, field.id);
+			}
+		}
+		changed();
+		return true;
+	}
+	
+	/**
+	 * <p>Matches the batch against the record's fields as 
+	 * SqlModel.updateRecordData() does, rewriting only the fields whose
+	 * hash differs, and relinks the record's 852s.</p>
+	 */
+	public synchronized boolean updateRecordData(int recordId, double moddate, MarcFieldBatch batch) {
+		batch.setRecordId(recordId);
+		byte[] recordHash = batch.contentHash();
+		ArrayList<MarcFieldBatch.StoredRow> stored = new ArrayList<MarcFieldBatch.StoredRow>();
+		ArrayList<Integer> fieldIds = tables.fieldsByRecord.get(recordId);
+		if (fieldIds != null) {
+			for (Integer fieldId : fieldIds) {
+				StoredField field = tables.fields.get(fieldId);
+				stored.add(new MarcFieldBatch.StoredRow(field.id, field.tag, field.contentHash));
+			}
+		}
+		ArrayList<Integer> dropped = batch.matchStoredFields(stored);
+		for (Integer fieldId : dropped) {
+			tables.fields.remove(fieldId);
+			removeSubfields(fieldId);
+			fieldIds.remove(fieldId);
+		}
+		String control = null;
+		for (MarcFieldBatch.FieldRow row : batch.fields) {
+			if (row.tag.equals("001") && row.value != null && row.value.length() > 0) {
+				control = row.value;
+				break;
+			}
+		}
+		removeLinks(recordId);
+		for (MarcFieldBatch.FieldRow row : batch.fields) {
+			StoredField field;
+			if (row.id == 0) {
+				field = new StoredField();
+				field.id = tables.nextFieldId++;
+				field.recordId = recordId;
+				tables.fields.put(field.id, field);
+				indexAdd(tables.fieldsByRecord, recordId, field.id);
+				row.id = field.id;
+				storeFieldRow(field, row);
+			} else if (!row.unchanged) {
+				field = tables.fields.get(row.id);
+				removeSubfields(field.id);
+				storeFieldRow(field, row);
+			}
+			if (control != null && row.tag.equals("852")) {
+				addLink(control, recordId, row.id);
+			}
+		}
+		StoredRecord record = tables.records.get(recordId);
+		if (record != null) {
+			record.moddate = moddate;
+			record.contentHash = recordHash;
+			record.processed = 0;
+			record.scoped = 0;
+			record.exported = 0;
+		}
+		changed();
+		return true;
+	}
+	
+	public synchronized boolean updateRecordTimestamp(int recordId, double moddate, MarcFieldBatch batch, byte[] raw) {
+		batch.contentHash();
+		MarcFieldBatch.FieldRow stamp = batch.timestampRow();
+		StoredRecord record = tables.records.get(recordId);
+		ArrayList<Integer> fieldIds = tables.fieldsByRecord.get(recordId);
+		if (stamp == null || record == null || fieldIds == null) {
+			return false;
+		}
+		StoredField stored = null;
+		for (Integer fieldId : fieldIds) {
+			StoredField field = tables.fields.get(fieldId);
+			if ("005".equals(field.tag)) {
+				if (stored != null) {
+					return false;
+				}
+				stored = field;
+			}
+		}
+		if (stored == null) {
+			return false;
+		}
+		stored.value = stamp.value;
+		stored.contentHash = stamp.hash;
+		record.moddate = moddate;
+		if (raw != null) {
+			tables.rawRecords.put(recordId, raw);
+		}
+		changed();
+		return true;
+	}
+	
+	public synchronized boolean replaceRecordData(int recordId, double moddate) {
+		StoredRecord record = tables.records.get(recordId);
+		removeFields(recordId);
+		tables.rawRecords.remove(recordId);
+		if (record != null) {
+			record.moddate = moddate;
+			record.processed = 0;
+			record.scoped = 0;
+			record.exported = 0;
+		}
+		changed();
+		return true;
+	}
+	
+	public synchronized int[] selectRecordIdPage(int source, int afterId, int limit) {
+		int[] page = new int[limit];
+		int count = 0;
+		for (StoredRecord record : tables.records.tailMap(afterId, false).values()) {
+			if (count >= limit) {
+				break;
+			}
+			if (inSource(record, source)) {
+				page[count++] = record.id;
+			}
+		}
+		int[] ids = new int[count];
+		System.arraycopy(page, 0, ids, 0, count);
+		return ids;
+	}
+	
+	public synchronized int selectRecordCount(int source) {
+		int count = 0;
+		for (StoredRecord record : tables.records.values()) {
+			if (inSource(record, source)) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	public synchronized MarcRecordModel selectRecordModel(int recordId) {
+		StoredRecord record = tables.records.get(recordId);
+		if (record == null) {
+			return null;
+		}
+		MarcRecordModel.Builder builder = new MarcRecordModel.Builder(record.id, record.fileId, 
+				record.type, record.controlIdentifier, (long) record.moddate);
+		ArrayList<Integer> fieldIds = tables.fieldsByRecord.get(recordId);
+		if (fieldIds != null) {
+			for (Integer fieldId : fieldIds) {
+				StoredField field = tables.fields.get(fieldId);
+				ArrayList<Integer> subfieldIds = tables.subfieldsByField.get(fieldId);
+				if (subfieldIds == null || subfieldIds.isEmpty()) {
+					builder.addRow(field.id, field.tag, field.value, field.type, null, null);
+					continue;
+				}
+				for (Integer subfieldId : subfieldIds) {
+					StoredSubfield subfield = tables.subfields.get(subfieldId);
+					builder.addRow(field.id, field.tag, field.value, field.type, subfield.code, subfield.value);
+				}
+			}
+		}
+		return builder.build();
+	}
+	
+	public synchronized ArrayList<MarcRecordModel> selectRecordModels(int[] recordIds) {
+		int[] sorted = recordIds.clone();
+		Arrays.sort(sorted);
+		ArrayList<MarcRecordModel> models = new ArrayList<MarcRecordModel>();
+		for (int i=0; i < sorted.length; i++) {
+			if (i > 0 && sorted[i] == sorted[i - 1]) {
+				continue;
+			}
+			MarcRecordModel model = selectRecordModel(sorted[i]);
+			if (model != null) {
+				models.add(model);
+			}
+		}
+		return models;
+	}
+	
+	public synchronized boolean saveRawRecord(int recordId, byte[] raw) {
+		tables.rawRecords.put(recordId, raw);
+		changed();
+		return true;
+	}
+	
+	public synchronized byte[] selectRawRecord(int recordId) {
+		return tables.rawRecords.get(recordId);
+	}
+	
+	public synchronized ArrayList<HashMap<String,String>> selectHoldingRecords() {
+		ArrayList<HashMap<String,String>> rows = new ArrayList<HashMap<String,String>>();
+		for (StoredRecord record : tables.records.values()) {
+			if (record.type == 2) {
+				HashMap<String,String> row = new HashMap<String,String>();
+				row.put("id", String.valueOf(record.id));
+				row.put("file_id", String.valueOf(record.fileId));
+				row.put("control_identifier", record.controlIdentifier);
+				row.put("type", String.valueOf(record.type));
+				rows.add(row);
+			}
+		}
+		return rows;
+	}
+	
+	public synchronized ArrayList<Integer> selectAssocfieldIds(int recordId) {
+		ArrayList<Integer> fieldIds = tables.fieldsByRecord.get(recordId);
+		if (fieldIds == null) {
+			return new ArrayList<Integer>();
+		}
+		return new ArrayList<Integer>(fieldIds);
+	}
+	
+	/////////////////////////////////////////////////////////////////
+	//                   DELETE FUNCTIONS                          //
+	/////////////////////////////////////////////////////////////////
+	
+	public synchronized boolean deleteSubFields(int fieldId) {
+		ArrayList<Integer> subfieldIds = tables.subfieldsByField.remove(fieldId);
+		if (subfieldIds != null) {
+			for (Integer subfieldId : subfieldIds) {
+				tables.subfields.remove(subfieldId);
+			}
+			changed();
+		}
+		return true;
+	}
+	
+	public synchronized boolean deleteRecordFields(int recordId) {
+		ArrayList<Integer> fieldIds = tables.fieldsByRecord.remove(recordId);
+		if (fieldIds != null) {
+			for (Integer fieldId : fieldIds) {
+				tables.fields.remove(fieldId);
+			}
+		}
+		removeLinks(recordId);
+		changed();
+		return true;
+	}
+	
+	public synchronized boolean deleteRecordRecord(int recordId) {
+		StoredRecord record = tables.records.remove(recordId);
+		tables.rawRecords.remove(recordId);
+		if (record != null && record.controlIdentifier != null) {
+			String key = record.controlIdentifier.toLowerCase();
+			ArrayList<Integer> ids = tables.recordsByControl.get(key);
+			if (ids != null) {
+				ids.remove(Integer.valueOf(recordId));
+				if (ids.isEmpty()) {
+					tables.recordsByControl.remove(key);
+				}
+			}
+			changed();
+		}
+		return true;
+	}
+	
+	/////////////////////////////////////////////////////////////////
+	//                   EXPORT LOOKUP FUNCTIONS                   //
+	/////////////////////////////////////////////////////////////////
+	
+	public synchronized String selectSubjectID(String subjectLiteral) {
+		return lookupOrAdd(tables.subjectTerms, subjectLiteral, true);
+	}
+	
+	public synchronized String selectAgentID(String agentLiteral) {
+		return lookupOrAdd(tables.agents, agentLiteral, false);
+	}
+	
+	/**
+	 * <p>Image paths are not loaded into the embedded store.</p>
+	 */
+	public String selectImageRecord(int record_id) {
+		return "";
+	}
+	
+	public synchronized ArrayList<HashMap<String,String>> selectHoldingLinks(String estcID) {
+		ArrayList<HashMap<String,String>> rows = new ArrayList<HashMap<String,String>>();
+		TreeMap<Integer,ArrayList<Integer>> links = tables.holdingLinks.get(estcID);
+		if (links != null) {
+			for (Map.Entry<Integer,ArrayList<Integer>> entry : links.entrySet()) {
+				for (Integer fieldId : entry.getValue()) {
+					HashMap<String,String> row = new HashMap<String,String>();
+					row.put("record_id", String.valueOf(entry.getKey()));
+					row.put("field_id", String.valueOf(fieldId));
+					rows.add(row);
+				}
+			}
+		}
+		return rows;
+	}
+	
+	public synchronized ArrayList<HashMap<String,String>> selectAllSubfields(int feildID) {
+		ArrayList<HashMap<String,String>> rows = new ArrayList<HashMap<String,String>>();
+		ArrayList<Integer> subfieldIds = tables.subfieldsByField.get(feildID);
+		if (subfieldIds != null) {
+			for (Integer subfieldId : subfieldIds) {
+				StoredSubfield subfield = tables.subfields.get(subfieldId);
+				HashMap<String,String> row = new HashMap<String,String>();
+				row.put("id", String.valueOf(subfield.id));
+				row.put("field_id", String.valueOf(subfield.fieldId));
+				row.put("subfield", subfield.code);
+				row.put("value", subfield.value);
+				rows.add(row);
+			}
+		}
+		return rows;
+	}
+	
+	/////////////////////////////////////////////////////////////////
+	//                   UPDATE FUNCTIONS                          //
+	/////////////////////////////////////////////////////////////////
+	
+	public synchronized boolean updateRecordFlag(String column, int value, List<Integer> recordIds) {
+		if (!column.equals("exported") && !column.equals("processed") && !column.equals("scoped")) {
+			throw new IllegalArgumentException("Unknown record flag " + column);
+		}
+		for (Integer recordId : recordIds) {
+			StoredRecord record = tables.records.get(recordId);
+			if (record == null) {
+				continue;
+			}
+			if (column.equals("exported")) {
+				record.exported = value;
+			} else if (column.equals("processed")) {
+				record.processed = value;
+			} else {
+				record.scoped = value;
+			}
+		}
+		changed();
+		return true;
+	}
+	
+	/**
+	 * <p>Appends a message to runlog.txt in the store directory.</p>
+	 */
+	public synchronized int insertLogMessage(int messageType, String fileName, int lineNumber, String messageText) {
+		ArrayList<AsyncLogWriter.LogEntry> entries = new ArrayList<AsyncLogWriter.LogEntry>();
+		entries.add(new AsyncLogWriter.LogEntry(messageType, fileName, lineNumber, messageText));
+		if (!insertLogMessages(entries)) {
+			return 0;
+		}
+		return tables.nextLogId++;
+	}
+	
+	/**
+	 * <p>Appends a batch of messages to runlog.txt with one write.</p>
+	 */
+	public synchronized boolean insertLogMessages(List<AsyncLogWriter.LogEntry> entries) {
+		try {
+			if (logWriter == null) {
+				logWriter = new BufferedWriter(new OutputStreamWriter(
+						new FileOutputStream(new File(storeDir, LOG_FILE), true), "UTF-8"));
+			}
+			String stamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+			for (AsyncLogWriter.LogEntry entry : entries) {
+				logWriter.write(stamp + "\t" + entry.type + "\t" + entry.file + "\t" + entry.line + "\t" + entry.message);
+				logWriter.newLine();
+			}
+			logWriter.flush();
+		} catch (IOException ex) {
+			System.out.println("IOException EmbeddedRecordStore.java insertLogMessages: " + ex.getMessage());
+			return false;
+		}
+		return true;
+	}
+	
+	/////////////////////////////////////////////////////////////////
+	//                   STORAGE HELPERS                           //
+	/////////////////////////////////////////////////////////////////
+	
+	/**
+	 * <p>Marks the tables as changed and saves them if the last save was
+	 * longer ago than SAVE_INTERVAL.</p>
+	 */
+	private void changed() {
+		dirty = true;
+		if (System.currentTimeMillis() - lastSave > SAVE_INTERVAL) {
+			save();
+		}
+	}
+	
+	/**
+	 * <p>Writes the tables to a temporary file, forces it to disk, and 
+	 * renames it over the previous copy.</p>
+	 */
+	private boolean save() {
+		File target = new File(storeDir, DATA_FILE);
+		File temp = new File(storeDir, DATA_FILE + ".tmp");
+		FileOutputStream fileOut = null;
+		ObjectOutputStream out = null;
+		boolean success = false;
+		try {
+			fileOut = new FileOutputStream(temp);
+			out = new ObjectOutputStream(new BufferedOutputStream(fileOut, 65536));
+			out.writeObject(tables);
+			out.flush();
+			fileOut.getFD().sync();
+			out.close();
+			out = null;
+			if (target.exists() && !target.delete()) {
+				throw new IOException("unable to replace " + target.getAbsolutePath());
+			}
+			if (!temp.renameTo(target)) {
+				throw new IOException("unable to rename " + temp.getAbsolutePath());
+			}
+			dirty = false;
+			success = true;
+		} catch (IOException ex) {
+			System.out.println("IOException EmbeddedRecordStore.java save: " + ex.getMessage());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ex) { } // ignore
+			}
+			lastSave = System.currentTimeMillis();
+		}
+		return success;
+	}
+	
+	/**
+	 * <p>Reads the tables saved by a previous run, or returns null if 
+	 * there are none.</p>
+	 */
+	private Tables load() {
+		File source = new File(storeDir, DATA_FILE);
+		if (!source.exists()) {
+			return null;
+		}
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(source), 65536));
+			return (Tables) in.readObject();
+		} catch (IOException ex) {
+			System.out.println("IOException EmbeddedRecordStore.java load: " + ex.getMessage());
+		} catch (ClassNotFoundException ex) {
+			System.out.println("ClassNotFoundException EmbeddedRecordStore.java load: " + ex.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ex) { } // ignore
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * <p>Saves the tables and closes the run log.</p>
+	 */
+	private synchronized void close() {
+		if (dirty) {
+			save();
+		}
+		if (logWriter != null) {
+			try {
+				logWriter.close();
+			} catch (IOException ex) { } // ignore
+			logWriter = null;
+		}
+	}
+	
+	/**
+	 * <p>Removes every field, subfield, and holding link of a record.</p>
+	 */
+	private void removeFields(int recordId) {
+		ArrayList<Integer> fieldIds = tables.fieldsByRecord.remove(recordId);
+		if (fieldIds != null) {
+			for (Integer fieldId : fieldIds) {
+				tables.fields.remove(fieldId);
+				removeSubfields(fieldId);
+			}
+		}
+		removeLinks(recordId);
+	}
+	
+	private void removeSubfields(int fieldId) {
+		ArrayList<Integer> subfieldIds = tables.subfieldsByField.remove(fieldId);
+		if (subfieldIds != null) {
+			for (Integer subfieldId : subfieldIds) {
+				tables.subfields.remove(subfieldId);
+			}
+		}
+	}
+	
+	/**
+	 * <p>Copies the content of a batch row, and its subfields, to a 
+	 * stored field.</p>
+	 */
+	private void storeFieldRow(StoredField field, MarcFieldBatch.FieldRow row) {
+		field.tag = row.tag;
+		field.value = row.value;
+		field.type = row.type;
+		field.contentHash = row.hash;
+		for (int i=0; i < row.subfieldCodes.size(); i++) {
+			StoredSubfield subfield = new StoredSubfield();
+			subfield.id = tables.nextSubfieldId++;
+			subfield.fieldId = field.id;
+			subfield.code = row.subfieldCodes.get(i);
+			subfield.value = row.subfieldValues.get(i);
+			tables.subfields.put(subfield.id, subfield);
+			indexAdd(tables.subfieldsByField, field.id, subfield.id);
+		}
+	}
+	
+	private void addLink(String control, int recordId, int fieldId) {
+		TreeMap<Integer,ArrayList<Integer>> links = tables.holdingLinks.get(control);
+		if (links == null) {
+			links = new TreeMap<Integer,ArrayList<Integer>>();
+			tables.holdingLinks.put(control, links);
+		}
+		ArrayList<Integer> fieldIds = links.get(recordId);
+		if (fieldIds == null) {
+			fieldIds = new ArrayList<Integer>();
+			links.put(recordId, fieldIds);
+		}
+		fieldIds.add(fieldId);
+		tables.linkKeys.put(recordId, control);
+	}
+	
+	private void removeLinks(int recordId) {
+		String control = tables.linkKeys.remove(recordId);
+		if (control != null) {
+			TreeMap<Integer,ArrayList<Integer>> links = tables.holdingLinks.get(control);
+			if (links != null) {
+				links.remove(recordId);
+				if (links.isEmpty()) {
+					tables.holdingLinks.remove(control);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * <p>Returns the id of a term, adding it if no term matches.  Terms
+	 * are indexed in lower case, which matches a LIKE without wildcards.</p>
+	 */
+	private String lookupOrAdd(HashMap<String,Integer> terms, String literal, boolean subject) {
+		Integer id = null;
+		if (hasWildcard(literal)) {
+			for (Map.Entry<String,Integer> entry : terms.entrySet()) {
+				if (like(entry.getKey(), literal)) {
+					id = entry.getValue();
+					break;
+				}
+			}
+		} else {
+			id = terms.get(literal.toLowerCase());
+		}
+		if (id == null) {
+			id = subject ? tables.nextTermId++ : tables.nextAgentId++;
+			terms.put(literal.toLowerCase(), id);
+			changed();
+		}
+		return String.valueOf(id);
+	}
+	
+	private static <K> void indexAdd(HashMap<K,ArrayList<Integer>> index, K key, int id) {
+		ArrayList<Integer> ids = index.get(key);
+		if (ids == null) {
+			ids = new ArrayList<Integer>();
+			index.put(key, ids);
+		}
+		ids.add(id);
+	}
+	
+	/**
+	 * <p>Whether a record is waiting in a RecordCursor work source.</p>
+	 */
+	private static boolean inSource(StoredRecord record, int source) {
+		if (source == RecordCursor.TO_SCOPE) {
+			return record.scoped == 0;
+		} else if (source == RecordCursor.UNPROCESSED_BIBS) {
+			return record.processed == 0 && record.type == 1;
+		}
+		return record.exported == 0 && (record.type == 1 || record.type == 3);
+	}
+	
+	private static boolean hasWildcard(String pattern) {
+		return pattern.indexOf('%') >= 0 || pattern.indexOf('_') >= 0;
+	}
+	
+	/**
+	 * <p>Case-insensitive SQL LIKE, where % matches any run of characters
+	 * and _ matches any one character.</p>
+	 */
+	static boolean like(String value, String pattern) {
+		if (value == null || pattern == null) {
+			return false;
+		}
+		if (!hasWildcard(pattern)) {
+			return value.equalsIgnoreCase(pattern);
+		}
+		String v = value.toLowerCase();
+		String p = pattern.toLowerCase();
+		int vi = 0;
+		int pi = 0;
+		int starP = -1;
+		int starV = 0;
+		while (vi < v.length()) {
+			if (pi < p.length() && (p.charAt(pi) == '_' || p.charAt(pi) == v.charAt(vi))) {
+				vi++;
+				pi++;
+			} else if (pi < p.length() && p.charAt(pi) == '%') {
+				starP = pi++;
+				starV = vi;
+			} else if (starP >= 0) {
+				pi = starP + 1;
+				vi = ++starV;
+			} else {
+				return false;
+			}
+		}
+		while (pi < p.length() && p.charAt(pi) == '%') {
+			pi++;
+		}
+		return pi == p.length();
+	}
+
+}
@@ -29,11 +29,10 @@
 
 package com.carlstahmer.estc.recordimport.daemon;
 
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * @author cstahmer
@@ -45,28 +44,44 @@ import java.util.HashMap;
 public class ExportJenaRDF {
 	
 	Conf configObj;
-	SqlModel sqlObj;
+	RecordStore sqlObj;
+	RecordLoader recordLoader;
+	FlagBuffer flags;
 	Logger logger;
+	ProgressReporter progress;
 	String rdfHeader;
 	String rdfAbout;
 	String rdfString;
 	String rdfFooter;
 
-	public ExportJenaRDF(Conf config, SqlModel sqlModObj) {
+	public ExportJenaRDF(Conf config, RecordStore sqlModObj) {
 		configObj = config;
 		sqlObj = sqlModObj;
+		recordLoader = new RecordLoader(sqlModObj);
+		flags = FlagBuffer.getBuffer(config);
 		logger = new Logger(config);
+		progress = new ProgressReporter(config, "Jena RDF export");
 	}
 	
 	public boolean makeJenaRDFAllBibs(String domainURI) {
 		boolean success = false;
 		
 		// Get all records for this domain and process
-		ArrayList<Integer> recordsQueue = sqlObj.selectUnExportedBibs();
-		for (int i=0;i < recordsQueue.size();i++) {
-			int workingRecordID = recordsQueue.get(i);
-			makeJennaRDF(workingRecordID, domainURI);
+		RecordCursor recordsQueue = new RecordCursor(sqlObj, RecordCursor.UNEXPORTED_BIBS, RecordLoader.BLOCK_SIZE);
+		progress.begin(sqlObj.selectRecordCount(RecordCursor.UNEXPORTED_BIBS), false);
+		int[] batch;
+		while ((batch = recordsQueue.nextBatch()).length > 0) {
+			List<MarcRecordModel> records = recordLoader.loadBlock(batch);
+			int waiting = records.size();
+			for (MarcRecordModel workingRecord : records) {
+				progress.setQueueDepth(--waiting);
+				progress.nextRecord();
+				makeJennaRDF(workingRecord, domainURI);
+				progress.recordDone(workingRecord.fields().size());
+			}
 		}
+		flags.flush();
+		progress.finish();
 		
 		return success;
 	}
@@ -74,7 +89,21 @@ public class ExportJenaRDF {
 	// create an RDF representation of a resource and write it 
 	// to a file
 	public boolean makeJennaRDF(int recordID, String domainURI) {
+		
+		// load the whole record, its fields, and subfields in one query
+		MarcRecordModel marc = recordLoader.load(recordID);
+		if (marc == null) {
+			logger.error("Record {} not found", recordID);
+			return false;
+		}
+		return makeJennaRDF(marc, domainURI);
+	}
+	
+	// create an RDF representation of a record that has already been
+	// loaded and write it to a file
+	public boolean makeJennaRDF(MarcRecordModel marc, String domainURI) {
 		boolean ret = false;
+		int recordID = marc.id();
 		
 		// set the id for the item.  Right now we're using the record control
 		// id as the id.  Before we are done we'll convert this to an
@@ -83,10 +112,10 @@ public class ExportJenaRDF {
 		// bit of code in the near future to load a different field in the
 		// itemID variable.)
 		String itemID;
-		itemID = sqlObj.selectRecordControlId(recordID);
+		itemID = marc.controlIdentifier();
 
 		
-		System.out.println("Processing record " + recordID + " item " + itemID);
+		progress.debug("Processing record {} item {}", recordID, itemID);
 
 		// construct unique identifier (URI) for the item
 		String uniqueRI = "http://" + domainURI + "/" + itemID;
@@ -117,18 +146,16 @@ public class ExportJenaRDF {
 		 */
 		
 		// Get all of the fields associated with this record
-		ArrayList<Integer> fieldsArray = sqlObj.selectRecordFieldIds(recordID);
-		for (int ix=0;ix < fieldsArray.size();ix++) {
+		for (MarcRecordModel.Field field : marc.fields()) {
 			// loop through the fields and process
-			Integer fieldID = fieldsArray.get(ix);
-			String fieldType = sqlObj.selectFieldType(fieldID);
+			String fieldType = field.tag();
 			
 			int i = 0;
 			
 			if (fieldType.equals("008")) { 
 				// if 008 date
 				// get raw value
-				String rawZeroZeroEight = sqlObj.getFieldByNumber(recordID, "008");
+				String rawZeroZeroEight = marc.fieldValue("008");
 				if (rawZeroZeroEight != null && rawZeroZeroEight.length() > 13 ) {
 					String one = String.valueOf(rawZeroZeroEight.charAt(7));
 					String two = String.valueOf(rawZeroZeroEight.charAt(8));
@@ -156,7 +183,7 @@ public class ExportJenaRDF {
 				// if 041 or 765 - Language Code - ArrayList<String> languageCode = new ArrayList<String>(); //   dc:language
 				// get subfields
 				String fCode = "";
-				ArrayList<String> subFieldAl = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAl = field.subfieldValues("a");
 				for (i=0;i < subFieldAl.size();i++) {
 					fCode = fixCarrots(fixAmper(subFieldAl.get(i)));
 				}
@@ -167,7 +194,7 @@ public class ExportJenaRDF {
 				// if 100 author or 700
 				String thisAuthor = "";
 				// get raw value
-				String rawValue = sqlObj.getFieldByID(fieldID);;
+				String rawValue = field.value();
 				// get subfields
 				String subA = "";
 				String subB = "";
@@ -177,23 +204,23 @@ public class ExportJenaRDF {
 				
 				ArrayList<String> retVal = new ArrayList<String>();
 				
-				ArrayList<String> subFieldA = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldA = field.subfieldValues("a");
 				for (i=0;i < subFieldA.size();i++) {
 					subA = subFieldA.get(i);
 				}
-				ArrayList<String> subFieldB = sqlObj.selectSubFieldValuesByID(fieldID, "b");
+				ArrayList<String> subFieldB = field.subfieldValues("b");
 				for (i=0;i < subFieldB.size();i++) {
 					subB =  subFieldB.get(i);
 				}
-				ArrayList<String> subFieldC = sqlObj.selectSubFieldValuesByID(fieldID, "c");
+				ArrayList<String> subFieldC = field.subfieldValues("c");
 				for (i=0;i < subFieldC.size();i++) {
 					subC =  subFieldC.get(i);
 				}
-				ArrayList<String> subFieldD = sqlObj.selectSubFieldValuesByID(fieldID, "d");
+				ArrayList<String> subFieldD = field.subfieldValues("d");
 				for (i=0;i < subFieldD.size();i++) {
 					subD =  subFieldD.get(i);
 				}
-				ArrayList<String> subFieldE = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldE = field.subfieldValues("e");
 				for (i=0;i < subFieldE.size();i++) {
 					subE =  subFieldE.get(i);
 				}
@@ -245,11 +272,11 @@ public class ExportJenaRDF {
 				ArrayList<String> retValc = new ArrayList<String>();
 				String subAc = "";
 				String subEc = "";
-				ArrayList<String> subFieldAc = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAc = field.subfieldValues("a");
 				for (i=0;i < subFieldAc.size();i++) {
 					subAc = fixCarrots(subFieldAc.get(i));
 				}
-				ArrayList<String> subFieldEc = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldEc = field.subfieldValues("e");
 				for (i=0;i < subFieldEc.size();i++) {
 					subEc =  subFieldEc.get(i);
 				}
@@ -268,23 +295,23 @@ public class ExportJenaRDF {
 				String subJm = "";
 				ArrayList<String> retValm = new ArrayList<String>();
 				
-				ArrayList<String> subFieldAm = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAm = field.subfieldValues("a");
 				for (i=0;i < subFieldAm.size();i++) {
 					subAm = subFieldAm.get(i);
 				}
-				ArrayList<String> subFieldBm = sqlObj.selectSubFieldValuesByID(fieldID, "b");
+				ArrayList<String> subFieldBm = field.subfieldValues("b");
 				for (i=0;i < subFieldBm.size();i++) {
 					subBm =  subFieldBm.get(i);
 				}
-				ArrayList<String> subFieldCm = sqlObj.selectSubFieldValuesByID(fieldID, "c");
+				ArrayList<String> subFieldCm = field.subfieldValues("c");
 				for (i=0;i < subFieldCm.size();i++) {
 					subCm =  subFieldCm.get(i);
 				}
-				ArrayList<String> subFieldDm = sqlObj.selectSubFieldValuesByID(fieldID, "d");
+				ArrayList<String> subFieldDm = field.subfieldValues("d");
 				for (i=0;i < subFieldDm.size();i++) {
 					subDm =  subFieldDm.get(i);
 				}
-				ArrayList<String> subFieldJm = sqlObj.selectSubFieldValuesByID(fieldID, "j");
+				ArrayList<String> subFieldJm = field.subfieldValues("j");
 				for (i=0;i < subFieldJm.size();i++) {
 					subJm =  subFieldJm.get(i);
 				}
@@ -320,15 +347,15 @@ public class ExportJenaRDF {
 				// if 245 title
 				
 				// get raw value
-				String rawValue = sqlObj.getFieldByID(fieldID);;
+				String rawValue = field.value();
 				// get subfields
 				String titleA = "";
 				String titleB = "";
-				ArrayList<String> subFieldA = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldA = field.subfieldValues("a");
 				for (i=0;i < subFieldA.size();i++) {
 					titleA = fixCarrots(fixAmper(subFieldA.get(i)));
 				}
-				ArrayList<String> subFieldB = sqlObj.selectSubFieldValuesByID(fieldID, "b");
+				ArrayList<String> subFieldB = field.subfieldValues("b");
 				for (i=0;i < subFieldB.size();i++) {
 					titleB =  fixCarrots(fixAmper(subFieldB.get(i)));
 				}
@@ -348,7 +375,7 @@ public class ExportJenaRDF {
 				// IF Field 336 - Content Type - ArrayList<String> contentCarrierTypes // dct:type
 				// get subfields
 				String subAct = "";
-				ArrayList<String> subFieldAct = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAct = field.subfieldValues("a");
 				for (i=0;i < subFieldAct.size();i++) {
 					subAct = subFieldAct.get(i);
 					if (subAct  != null && subAct.length() > 0) {
@@ -361,8 +388,8 @@ public class ExportJenaRDF {
 				
 				// get subfields
 				String seqNote = "";
-				ArrayList<String> subFieldAsq = sqlObj.selectSubFieldValuesByID(fieldID, "a");
-				ArrayList<String> subFieldZsq = sqlObj.selectSubFieldValuesByID(fieldID, "z");
+				ArrayList<String> subFieldAsq = field.subfieldValues("a");
+				ArrayList<String> subFieldZsq = field.subfieldValues("z");
 				for (i=0;i < subFieldAsq.size();i++) {
 					seqNote = "Date Sequence: " + subFieldAsq.get(i) + ".";
 					if (subFieldZsq.size() >= subFieldAsq.size()) {
@@ -383,31 +410,31 @@ public class ExportJenaRDF {
 				String subTap = "";
 				String subVap = "";
 
-				ArrayList<String> subFieldCap = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldCap = field.subfieldValues("a");
 				for (i=0;i < subFieldCap.size();i++) {
 					subCap = subFieldCap.get(i);
 				}
-				ArrayList<String> subFieldFap = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldFap = field.subfieldValues("e");
 				for (i=0;i < subFieldFap.size();i++) {
 					subFap =  subFieldFap.get(i);
 				}
-				ArrayList<String> subFieldGap = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldGap = field.subfieldValues("e");
 				for (i=0;i < subFieldGap.size();i++) {
 					subGap =  subFieldGap.get(i);
 				}
-				ArrayList<String> subFieldIap = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldIap = field.subfieldValues("e");
 				for (i=0;i < subFieldIap.size();i++) {
 					subIap =  subFieldIap.get(i);
 				}
-				ArrayList<String> subFieldSap = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldSap = field.subfieldValues("a");
 				for (i=0;i < subFieldSap.size();i++) {
 					subSap = subFieldSap.get(i);
 				}
-				ArrayList<String> subFieldTap = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldTap = field.subfieldValues("e");
 				for (i=0;i < subFieldTap.size();i++) {
 					subTap =  subFieldTap.get(i);
 				}
-				ArrayList<String> subFieldVap = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldVap = field.subfieldValues("a");
 				for (i=0;i < subFieldVap.size();i++) {
 					subVap = subFieldVap.get(i);
 				}
@@ -476,7 +503,7 @@ public class ExportJenaRDF {
 				// If Field 388 - Time Period of Creation - String creationEpoch = ""; // dct:created
 				
 				String thisTPC = "";
-				ArrayList<String> subFielAtpc = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFielAtpc = field.subfieldValues("a");
 				for (i=0;i < subFielAtpc.size();i++) {
 					thisTPC = subFielAtpc.get(i);
 				}
@@ -488,7 +515,7 @@ public class ExportJenaRDF {
 				
 				// get subfields
 				String note = "";
-				ArrayList<String> subFieldA = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldA = field.subfieldValues("a");
 				for (i=0;i < subFieldA.size();i++) {
 					note = subFieldA.get(i);
 				}
@@ -604,7 +631,7 @@ public class ExportJenaRDF {
 				subFieldsToInclude.add("a");
 				subFieldsToInclude.add("c");
 				subFieldsToInclude.add("d");
-				String thisSubjectString = getSubject(recordID, "600", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "600", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -614,7 +641,7 @@ public class ExportJenaRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "610", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "610", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -626,7 +653,7 @@ public class ExportJenaRDF {
 				subFieldsToInclude.add("a");
 				subFieldsToInclude.add("b");
 				subFieldsToInclude.add("c");
-				String thisSubjectString = getSubject(recordID, "611", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "611", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -636,7 +663,7 @@ public class ExportJenaRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "630", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "630", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -646,7 +673,7 @@ public class ExportJenaRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "648", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "648", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -659,7 +686,7 @@ public class ExportJenaRDF {
 				subFieldsToInclude.add("b");
 				subFieldsToInclude.add("c");
 				subFieldsToInclude.add("d");
-				String thisSubjectString = getSubject(recordID, "650", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "650", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -669,7 +696,7 @@ public class ExportJenaRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "651", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "651", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 					// coverage.add(fixPeriods(fixAmper(thisSubjectString)));
@@ -680,7 +707,7 @@ public class ExportJenaRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "653", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "653", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -691,7 +718,7 @@ public class ExportJenaRDF {
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
 				subFieldsToInclude.add("b");
-				String thisSubjectString = getSubject(recordID, "654", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "654", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -701,7 +728,7 @@ public class ExportJenaRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "656", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "656", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -711,7 +738,7 @@ public class ExportJenaRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "657", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "657", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -722,7 +749,7 @@ public class ExportJenaRDF {
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
 				subFieldsToInclude.add("b");
-				String thisSubjectString = getSubject(recordID, "658", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "658", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -738,7 +765,7 @@ public class ExportJenaRDF {
 				subFieldsToInclude.add("f");
 				subFieldsToInclude.add("g");
 				subFieldsToInclude.add("h");
-				String thisSubjectString = getSubject(recordID, "662", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "662", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -747,10 +774,10 @@ public class ExportJenaRDF {
 				
 				String workingValue = "";
 				// get raw value
-				String rawValue = sqlObj.getFieldByID(fieldID);;
+				String rawValue = field.value();
 				// get subfields
 				String subA = "";
-				ArrayList<String> subFieldA = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldA = field.subfieldValues("a");
 				for (i=0;i < subFieldA.size();i++) {
 					subA = subFieldA.get(i);
 				}
@@ -771,31 +798,31 @@ public class ExportJenaRDF {
 				String subF = "";
 				String subG = "";
 				String subH = "";
-				ArrayList<String> subFieldA = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldA = field.subfieldValues("a");
 				for (i=0;i < subFieldA.size();i++) {
 					subA = subFieldA.get(i);
 				}
-				ArrayList<String> subFieldB = sqlObj.selectSubFieldValuesByID(fieldID, "b");
+				ArrayList<String> subFieldB = field.subfieldValues("b");
 				for (i=0;i < subFieldB.size();i++) {
 					subB = subFieldB.get(i);
 				}
-				ArrayList<String> subFieldC = sqlObj.selectSubFieldValuesByID(fieldID, "c");
+				ArrayList<String> subFieldC = field.subfieldValues("c");
 				for (i=0;i < subFieldC.size();i++) {
 					subC = subFieldC.get(i);
 				}	
-				ArrayList<String> subFieldD = sqlObj.selectSubFieldValuesByID(fieldID, "d");
+				ArrayList<String> subFieldD = field.subfieldValues("d");
 				for (i=0;i < subFieldD.size();i++) {
 					subD = subFieldD.get(i);
 				}
-				ArrayList<String> subFieldF = sqlObj.selectSubFieldValuesByID(fieldID, "f");
+				ArrayList<String> subFieldF = field.subfieldValues("f");
 				for (i=0;i < subFieldF.size();i++) {
 					subF = subFieldF.get(i);
 				}
-				ArrayList<String> subFieldG = sqlObj.selectSubFieldValuesByID(fieldID, "g");
+				ArrayList<String> subFieldG = field.subfieldValues("g");
 				for (i=0;i < subFieldG.size();i++) {
 					subG = subFieldG.get(i);
 				}
-				ArrayList<String> subFieldH = sqlObj.selectSubFieldValuesByID(fieldID, "h");
+				ArrayList<String> subFieldH = field.subfieldValues("h");
 				for (i=0;i < subFieldH.size();i++) {
 					subH = subFieldH.get(i);
 				}
@@ -825,7 +852,7 @@ public class ExportJenaRDF {
 			
 			else if (fieldType.equals("856")) {
 				// digital surrogates
-				surrogateSub = sqlObj.selectSubFieldValuesByID(fieldID, "u");
+				surrogateSub = field.subfieldValues("u");
 				
 			}
 
@@ -936,26 +963,23 @@ public class ExportJenaRDF {
 		/*
 		 * As a debug function I've currently commented out the 
 		 * code that writes the actual file to disk, and I'm just
-		 * printing the rdf output to the console for viewing.  Once
-		 * it's working you'll want to delete the system.write and 
-		 * uncomment the codet to save to file.
+		 * printing the rdf output to the debug log, for one record in
+		 * every progresssample, for viewing.  Once it's working you'll 
+		 * want to delete the debug call and uncomment the codet to 
+		 * save to file.
 		 */
 		
-		System.out.println(bibRDF);
+		progress.debug("{}", bibRDF);
 		
 		/*
 		
 		try {
-			PrintWriter bibWriter = new PrintWriter( configObj.writeDir + "/bib_" + itemID + ".rdf", "UTF-8");
-			bibWriter.print(bibRDF);
-			bibWriter.close();
-			// mark the record as exported
-			sqlObj.updateExported(recordID);
-		} catch (FileNotFoundException e) {
-			System.out.println("Error exporting record " + recordID + " holding item " + itemID);
-			e.printStackTrace();
-		} catch (UnsupportedEncodingException e) {
-			System.out.println("Error exporting record " + recordID + " holding item " + itemID);
+			FileUtils.writeFileDurably(configObj.writeDir + "/bib_" + itemID + ".rdf", bibRDF);
+			// mark the record as exported now that the file is on disk
+			flags.mark(FlagBuffer.EXPORTED, true, recordID);
+		} catch (IOException e) {
+			logger.error("Error exporting record {} holding item {}", recordID, itemID);
+			progress.error();
 			e.printStackTrace();
 		}
 		
@@ -963,32 +987,29 @@ public class ExportJenaRDF {
 		
 		
 		// System.out.println(bibRDF);
-		System.out.println("Processed bib record " + recordID + " item " + itemID);
+		progress.debug("Processed bib record {} item {}", recordID, itemID);
 		
 		return ret;
 	}
 	
 	// create an RDF string for a resource
-	public String getSubject(int recordID, String field, ArrayList<String> subFields, String separator) {
+	public String getSubject(MarcRecordModel marc, String field, ArrayList<String> subFields, String separator) {
 		String ret = "";
 		String workingString = "";
 		
-		// get raw value and field id
-		String rawValue = sqlObj.getFieldByNumber(recordID, field);
-		ArrayList<HashMap<String,String>> RetInfo = sqlObj.getFieldInfo(recordID, field);
-		String FieldID = "";
-		for (int sfa=0;sfa < RetInfo.size();sfa++) {
-			HashMap<String,String> thisHash = RetInfo.get(sfa); 
-			FieldID = thisHash.get("id");
+		// get raw value and the last field with this tag
+		String rawValue = marc.fieldValue(field);
+		List<MarcRecordModel.Field> matchingFields = marc.fieldsByTag(field);
+		MarcRecordModel.Field subjectField = null;
+		for (int sfa=0;sfa < matchingFields.size();sfa++) {
+			subjectField = matchingFields.get(sfa);
 		}
 		
-		if (FieldID != null && FieldID.length() > 0) {
-			
-			int FieldIdAsInt = Integer.parseInt(FieldID);
+		if (subjectField != null) {
 			
 			for (int ia=0;ia < subFields.size();ia++) {
 				String localWorking = "";
-				ArrayList<String> subFieldIt = sqlObj.selectSubFieldValuesByID(FieldIdAsInt, subFields.get(ia));
+				ArrayList<String> subFieldIt = subjectField.subfieldValues(subFields.get(ia));
 				for (int iab=0;iab < subFieldIt.size();iab++) {
 					localWorking = subFieldIt.get(iab);
 				}
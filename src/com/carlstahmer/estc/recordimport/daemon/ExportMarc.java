@@ -47,7 +47,7 @@ package com.carlstahmer.estc.recordimport.daemon;
 public class ExportMarc {
 	
 	Conf configObj;
-	SqlModel sqlObj;
+	RecordStore sqlObj;
 	Logger logger;
 
 	/**
@@ -57,7 +57,7 @@ public class ExportMarc {
 	 * @param  config    an instance of the Conf class
 	 * @param  sqlModObj  	an instance of the sqlModel class
 	 */
-	public ExportMarc(Conf config, SqlModel sqlModObj) {
+	public ExportMarc(Conf config, RecordStore sqlModObj) {
 		configObj = config;
 		sqlObj = sqlModObj;
 		logger = new Logger(config);
@@ -29,11 +29,10 @@
 
 package com.carlstahmer.estc.recordimport.daemon;
 
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * @author cstahmer
@@ -45,17 +44,23 @@ import java.util.HashMap;
 public class ExportRDF {
 	
 	Conf configObj;
-	SqlModel sqlObj;
+	RecordStore sqlObj;
+	RecordLoader recordLoader;
+	FlagBuffer flags;
 	Logger logger;
+	ProgressReporter progress;
 	String rdfHeader;
 	String rdfAbout;
 	String rdfString;
 	String rdfFooter;
 
-	public ExportRDF(Conf config, SqlModel sqlModObj) {
+	public ExportRDF(Conf config, RecordStore sqlModObj) {
 		configObj = config;
 		sqlObj = sqlModObj;
+		recordLoader = new RecordLoader(sqlModObj);
+		flags = FlagBuffer.getBuffer(config);
 		logger = new Logger(config);
+		progress = new ProgressReporter(config, "RDF export");
 	}
 	
 	public boolean makeRDFAllBibs(String domainURI) {
@@ -63,34 +68,57 @@ public class ExportRDF {
 		
 		// loop through all bib records and send to makeRDF for each
 		
-		ArrayList<Integer> recordsQueue = sqlObj.selectUnExportedBibs();
-		for (int i=0;i < recordsQueue.size();i++) {
-			int workingRecordID = recordsQueue.get(i);
-			makeRDF(workingRecordID, domainURI);
+		RecordCursor recordsQueue = new RecordCursor(sqlObj, RecordCursor.UNEXPORTED_BIBS, RecordLoader.BLOCK_SIZE);
+		progress.begin(sqlObj.selectRecordCount(RecordCursor.UNEXPORTED_BIBS), false);
+		int[] batch;
+		while ((batch = recordsQueue.nextBatch()).length > 0) {
+			List<MarcRecordModel> records = recordLoader.loadBlock(batch);
+			int waiting = records.size();
+			for (MarcRecordModel workingRecord : records) {
+				progress.setQueueDepth(--waiting);
+				progress.nextRecord();
+				makeRDF(workingRecord, domainURI);
+				progress.recordDone(workingRecord.fields().size());
+			}
 		}
+		flags.flush();
+		progress.finish();
 		
 		return success;
 	}
 	
 	// create an RDF string for a resource
 	public boolean makeRDF(int recordID, String domainURI) {
+		
+		// load the whole record, its fields, and subfields in one query
+		MarcRecordModel marc = recordLoader.load(recordID);
+		if (marc == null) {
+			logger.error("Record {} not found", recordID);
+			return false;
+		}
+		return makeRDF(marc, domainURI);
+	}
+	
+	// create an RDF string for a record that has already been loaded
+	public boolean makeRDF(MarcRecordModel marc, String domainURI) {
 		boolean ret = false;
+		int recordID = marc.id();
 		
 		// get the record type holding/bib
-		int recordType = sqlObj.getRecordType(recordID);
+		int recordType = marc.type();
 		
 		// set the id for the item.  ESTCID for bibs and record IDs for holdings
 		String itemID;
 		if (recordType == 1) {
-			itemID = sqlObj.selectRecordControlId(recordID);
+			itemID = marc.controlIdentifier();
 		} else {
 			itemID = String.valueOf(recordID);
 		}
 		
-		System.out.println("Processing record " + recordID + " item " + itemID);
+		progress.debug("Processing record {} item {}", recordID, itemID);
 
 		// get the library code for the record
-		ArrayList<HashMap<String,String>> tableResults = sqlObj.selectFileInfoById(sqlObj.selectRecordFileId(recordID));
+		ArrayList<HashMap<String,String>> tableResults = sqlObj.selectFileInfoById(marc.fileId());
 		HashMap<String,String> recordInfoRecord = tableResults.get(0);
 		String instCode = recordInfoRecord.get("institution_code");
 	
@@ -165,18 +193,16 @@ public class ExportRDF {
 		
 		
 		// Get all of the fields associated with this record
-		ArrayList<Integer> fieldsArray = sqlObj.selectRecordFieldIds(recordID);
-		for (int ix=0;ix < fieldsArray.size();ix++) {
+		for (MarcRecordModel.Field field : marc.fields()) {
 			// loop through the fields and process
-			Integer fieldID = fieldsArray.get(ix);
-			String fieldType = sqlObj.selectFieldType(fieldID);
+			String fieldType = field.tag();
 			
 			int i = 0;
 			
 			if (fieldType.equals("008")) { 
 				// if 008 date
 				// get raw value
-				String rawZeroZeroEight = sqlObj.getFieldByNumber(recordID, "008");
+				String rawZeroZeroEight = marc.fieldValue("008");
 				if (rawZeroZeroEight != null && rawZeroZeroEight.length() > 13 ) {
 					String one = String.valueOf(rawZeroZeroEight.charAt(7));
 					String two = String.valueOf(rawZeroZeroEight.charAt(8));
@@ -204,7 +230,7 @@ public class ExportRDF {
 				// if 041 or 765 - Language Code - ArrayList<String> languageCode = new ArrayList<String>(); //   dc:language
 				// get subfields
 				String fCode = "";
-				ArrayList<String> subFieldAl = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAl = field.subfieldValues("a");
 				for (i=0;i < subFieldAl.size();i++) {
 					fCode = fixCarrots(fixAmper(subFieldAl.get(i)));
 				}
@@ -215,7 +241,7 @@ public class ExportRDF {
 				// if 100 author or 700
 				String thisAuthor = "";
 				// get raw value
-				String rawValue = sqlObj.getFieldByID(fieldID);;
+				String rawValue = field.value();
 				// get subfields
 				String subA = "";
 				String subB = "";
@@ -225,23 +251,23 @@ public class ExportRDF {
 				
 				ArrayList<String> retVal = new ArrayList<String>();
 				
-				ArrayList<String> subFieldA = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldA = field.subfieldValues("a");
 				for (i=0;i < subFieldA.size();i++) {
 					subA = subFieldA.get(i);
 				}
-				ArrayList<String> subFieldB = sqlObj.selectSubFieldValuesByID(fieldID, "b");
+				ArrayList<String> subFieldB = field.subfieldValues("b");
 				for (i=0;i < subFieldB.size();i++) {
 					subB =  subFieldB.get(i);
 				}
-				ArrayList<String> subFieldC = sqlObj.selectSubFieldValuesByID(fieldID, "c");
+				ArrayList<String> subFieldC = field.subfieldValues("c");
 				for (i=0;i < subFieldC.size();i++) {
 					subC =  subFieldC.get(i);
 				}
-				ArrayList<String> subFieldD = sqlObj.selectSubFieldValuesByID(fieldID, "d");
+				ArrayList<String> subFieldD = field.subfieldValues("d");
 				for (i=0;i < subFieldD.size();i++) {
 					subD =  subFieldD.get(i);
 				}
-				ArrayList<String> subFieldE = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldE = field.subfieldValues("e");
 				for (i=0;i < subFieldE.size();i++) {
 					subE =  subFieldE.get(i);
 				}
@@ -293,11 +319,11 @@ public class ExportRDF {
 				ArrayList<String> retValc = new ArrayList<String>();
 				String subAc = "";
 				String subEc = "";
-				ArrayList<String> subFieldAc = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAc = field.subfieldValues("a");
 				for (i=0;i < subFieldAc.size();i++) {
 					subAc = fixCarrots(subFieldAc.get(i));
 				}
-				ArrayList<String> subFieldEc = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldEc = field.subfieldValues("e");
 				for (i=0;i < subFieldEc.size();i++) {
 					subEc =  subFieldEc.get(i);
 				}
@@ -316,23 +342,23 @@ public class ExportRDF {
 				String subJm = "";
 				ArrayList<String> retValm = new ArrayList<String>();
 				
-				ArrayList<String> subFieldAm = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAm = field.subfieldValues("a");
 				for (i=0;i < subFieldAm.size();i++) {
 					subAm = subFieldAm.get(i);
 				}
-				ArrayList<String> subFieldBm = sqlObj.selectSubFieldValuesByID(fieldID, "b");
+				ArrayList<String> subFieldBm = field.subfieldValues("b");
 				for (i=0;i < subFieldBm.size();i++) {
 					subBm =  subFieldBm.get(i);
 				}
-				ArrayList<String> subFieldCm = sqlObj.selectSubFieldValuesByID(fieldID, "c");
+				ArrayList<String> subFieldCm = field.subfieldValues("c");
 				for (i=0;i < subFieldCm.size();i++) {
 					subCm =  subFieldCm.get(i);
 				}
-				ArrayList<String> subFieldDm = sqlObj.selectSubFieldValuesByID(fieldID, "d");
+				ArrayList<String> subFieldDm = field.subfieldValues("d");
 				for (i=0;i < subFieldDm.size();i++) {
 					subDm =  subFieldDm.get(i);
 				}
-				ArrayList<String> subFieldJm = sqlObj.selectSubFieldValuesByID(fieldID, "j");
+				ArrayList<String> subFieldJm = field.subfieldValues("j");
 				for (i=0;i < subFieldJm.size();i++) {
 					subJm =  subFieldJm.get(i);
 				}
@@ -366,7 +392,7 @@ public class ExportRDF {
 				authorArray.add(retValm);
 			} else if (fieldType.equals("130") || fieldType.equals("730") || fieldType.equals("240")) {
 				// if 130 & 730 & 240 - Uniform Title - uniformTitle - rdau:titleOfResource
-				ArrayList<String> subFieldAut = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAut = field.subfieldValues("a");
 				for (i=0;i < subFieldAut.size();i++) {
 					uniformTitle.add(fixCarrots(fixAmper(subFieldAut.get(i))));
 				}
@@ -374,10 +400,10 @@ public class ExportRDF {
 				// if 210  abbreviated title - rdau:abbreviatedTitle
 				
 				// get raw value
-				String rawAbrevTitleValue = sqlObj.getFieldByID(fieldID);;
+				String rawAbrevTitleValue = field.value();
 				// get subfields
 				String abrevTitleA = "";
-				ArrayList<String> subFieldA = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldA = field.subfieldValues("a");
 				for (i=0;i < subFieldA.size();i++) {
 					abrevTitleA = fixCarrots(fixAmper(subFieldA.get(i)));
 				}
@@ -389,7 +415,7 @@ public class ExportRDF {
 			} else if (fieldType.equals("243")) {
 				// if 243 - Collective Uniform Title - String seriesUniformTitle = ""; // rdau:titleProperOfSeries
 				
-				ArrayList<String> subFieldtps = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldtps = field.subfieldValues("a");
 				for (i=0;i < subFieldtps.size();i++) {
 					seriesUniformTitle = fixCarrots(fixAmper(subFieldtps.get(i)));
 				}
@@ -397,15 +423,15 @@ public class ExportRDF {
 				// if 245 title
 				
 				// get raw value
-				String rawValue = sqlObj.getFieldByID(fieldID);;
+				String rawValue = field.value();
 				// get subfields
 				String titleA = "";
 				String titleB = "";
-				ArrayList<String> subFieldA = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldA = field.subfieldValues("a");
 				for (i=0;i < subFieldA.size();i++) {
 					titleA = fixCarrots(fixAmper(subFieldA.get(i)));
 				}
-				ArrayList<String> subFieldB = sqlObj.selectSubFieldValuesByID(fieldID, "b");
+				ArrayList<String> subFieldB = field.subfieldValues("b");
 				for (i=0;i < subFieldB.size();i++) {
 					titleB =  fixCarrots(fixAmper(subFieldB.get(i)));
 				}
@@ -428,11 +454,11 @@ public class ExportRDF {
 				String varTitleA = "";
 				String varTitleB = "";
 				String finalVTitle = "";
-				ArrayList<String> subFieldAv = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAv = field.subfieldValues("a");
 				for (i=0;i < subFieldAv.size();i++) {
 					varTitleA = fixCarrots(fixAmper(subFieldAv.get(i)));
 				}
-				ArrayList<String> subFielBv = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFielBv = field.subfieldValues("a");
 				for (i=0;i < subFielBv.size();i++) {
 					varTitleB = fixCarrots(fixAmper(subFielBv.get(i)));
 				}
@@ -450,11 +476,11 @@ public class ExportRDF {
 				String fTitleA = "";
 				String fTitleB = "";
 				String finalFTitle = "";
-				ArrayList<String> subFieldAf = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAf = field.subfieldValues("a");
 				for (i=0;i < subFieldAf.size();i++) {
 					fTitleA = fixCarrots(fixAmper(subFieldAf.get(i)));
 				}
-				ArrayList<String> subFielBf = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFielBf = field.subfieldValues("a");
 				for (i=0;i < subFielBf.size();i++) {
 					fTitleB = fixCarrots(fixAmper(subFielBf.get(i)));
 				}
@@ -468,7 +494,7 @@ public class ExportRDF {
 			} else if (fieldType.equals("250")) {
 				// if FIELD 250 - Edition Statement - String editionStatement = ""; // rdau:editionStatement
 				
-				ArrayList<String> subFieldAes = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAes = field.subfieldValues("a");
 				for (int iales=0;iales < subFieldAes.size();iales++) {
 					editionStatement = fixCarrots(fixAmper(subFieldAes.get(iales)));
 				}
@@ -478,15 +504,15 @@ public class ExportRDF {
 				String impSubA = "";
 				String impSubB = "";
 				String impSubC = "";
-				ArrayList<String> subFieldAimp = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAimp = field.subfieldValues("a");
 				for (int imp=0;imp < subFieldAimp.size();imp++) {
 					impSubA = fixAmper(subFieldAimp.get(imp));
 				}
-				ArrayList<String> subFieldBimp = sqlObj.selectSubFieldValuesByID(fieldID, "b");
+				ArrayList<String> subFieldBimp = field.subfieldValues("b");
 				for (int impb=0;impb < subFieldBimp.size();impb++) {
 					impSubB = fixAmper(subFieldBimp.get(impb));
 				}
-				ArrayList<String> subFieldCimp = sqlObj.selectSubFieldValuesByID(fieldID, "c");
+				ArrayList<String> subFieldCimp = field.subfieldValues("c");
 				for (int impc=0;impc < subFieldCimp.size();impc++) {
 					impSubC = fixAmper(subFieldCimp.get(impc));
 				}
@@ -525,11 +551,11 @@ public class ExportRDF {
 				// if FIELD 264 - Production info (like imprint for manufactured goods) - String prodInfo = ""; // dct:publisher
 				
 				ArrayList<String> retValman = new ArrayList<String>();
-				ArrayList<String> subFieldAman = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAman = field.subfieldValues("a");
 				for (int impman=0;impman < subFieldAman.size();impman++) {
 					prodInfo = fixCarrots(fixAmper(subFieldAman.get(impman)));
 				}
-				ArrayList<String> subFieldBman = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldBman = field.subfieldValues("a");
 				for (int impmanb=0;impmanb < subFieldBman.size();impmanb++) {
 					String manSubB = "";
 					manSubB = fixCarrots(fixAmper(subFieldBman.get(impmanb)));
@@ -553,27 +579,27 @@ public class ExportRDF {
 				String subFpd = "";
 				String subGpd = "";
 				
-				ArrayList<String> subFieldApd = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldApd = field.subfieldValues("a");
 				for (i=0;i < subFieldApd.size();i++) {
 					subApd = subFieldApd.get(i);
 				}
-				ArrayList<String> subFieldBpd = sqlObj.selectSubFieldValuesByID(fieldID, "b");
+				ArrayList<String> subFieldBpd = field.subfieldValues("b");
 				for (i=0;i < subFieldBpd.size();i++) {
 					subBpd =  subFieldBpd.get(i);
 				}
-				ArrayList<String> subFieldCpd = sqlObj.selectSubFieldValuesByID(fieldID, "c");
+				ArrayList<String> subFieldCpd = field.subfieldValues("c");
 				for (i=0;i < subFieldCpd.size();i++) {
 					subCpd =  subFieldCpd.get(i);
 				}
-				ArrayList<String> subFieldEpd = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldEpd = field.subfieldValues("e");
 				for (i=0;i < subFieldEpd.size();i++) {
 					subEpd =  subFieldEpd.get(i);
 				}
-				ArrayList<String> subFieldFpd = sqlObj.selectSubFieldValuesByID(fieldID, "f");
+				ArrayList<String> subFieldFpd = field.subfieldValues("f");
 				for (i=0;i < subFieldFpd.size();i++) {
 					subFpd =  subFieldFpd.get(i);
 				}
-				ArrayList<String> subFieldGpd = sqlObj.selectSubFieldValuesByID(fieldID, "g");
+				ArrayList<String> subFieldGpd = field.subfieldValues("g");
 				for (i=0;i < subFieldGpd.size();i++) {
 					subGpd =  subFieldGpd.get(i);
 				}
@@ -629,7 +655,7 @@ public class ExportRDF {
 			} else if (fieldType.equals("321")) {
 				// if FIELD 321 - Former Publication Frequency - String formerPubFreq = ""; // rdau:noteOnFrequency
 				
-				ArrayList<String> subFieldAps = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAps = field.subfieldValues("a");
 				for (i=0;i < subFieldAps.size();i++) {
 					formerPubFreq = fixCarrots(fixAmper(subFieldAps.get(i)));
 				}
@@ -637,7 +663,7 @@ public class ExportRDF {
 				// IF Field 336 - Content Type - ArrayList<String> contentCarrierTypes // dct:type
 				// get subfields
 				String subAct = "";
-				ArrayList<String> subFieldAct = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAct = field.subfieldValues("a");
 				for (i=0;i < subFieldAct.size();i++) {
 					subAct = subFieldAct.get(i);
 					if (subAct  != null && subAct.length() > 0) {
@@ -650,8 +676,8 @@ public class ExportRDF {
 				
 				// get subfields
 				String seqNote = "";
-				ArrayList<String> subFieldAsq = sqlObj.selectSubFieldValuesByID(fieldID, "a");
-				ArrayList<String> subFieldZsq = sqlObj.selectSubFieldValuesByID(fieldID, "z");
+				ArrayList<String> subFieldAsq = field.subfieldValues("a");
+				ArrayList<String> subFieldZsq = field.subfieldValues("z");
 				for (i=0;i < subFieldAsq.size();i++) {
 					seqNote = "Date Sequence: " + subFieldAsq.get(i) + ".";
 					if (subFieldZsq.size() >= subFieldAsq.size()) {
@@ -672,31 +698,31 @@ public class ExportRDF {
 				String subTap = "";
 				String subVap = "";
 
-				ArrayList<String> subFieldCap = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldCap = field.subfieldValues("a");
 				for (i=0;i < subFieldCap.size();i++) {
 					subCap = subFieldCap.get(i);
 				}
-				ArrayList<String> subFieldFap = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldFap = field.subfieldValues("e");
 				for (i=0;i < subFieldFap.size();i++) {
 					subFap =  subFieldFap.get(i);
 				}
-				ArrayList<String> subFieldGap = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldGap = field.subfieldValues("e");
 				for (i=0;i < subFieldGap.size();i++) {
 					subGap =  subFieldGap.get(i);
 				}
-				ArrayList<String> subFieldIap = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldIap = field.subfieldValues("e");
 				for (i=0;i < subFieldIap.size();i++) {
 					subIap =  subFieldIap.get(i);
 				}
-				ArrayList<String> subFieldSap = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldSap = field.subfieldValues("a");
 				for (i=0;i < subFieldSap.size();i++) {
 					subSap = subFieldSap.get(i);
 				}
-				ArrayList<String> subFieldTap = sqlObj.selectSubFieldValuesByID(fieldID, "e");
+				ArrayList<String> subFieldTap = field.subfieldValues("e");
 				for (i=0;i < subFieldTap.size();i++) {
 					subTap =  subFieldTap.get(i);
 				}
-				ArrayList<String> subFieldVap = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldVap = field.subfieldValues("a");
 				for (i=0;i < subFieldVap.size();i++) {
 					subVap = subFieldVap.get(i);
 				}
@@ -765,7 +791,7 @@ public class ExportRDF {
 				// If Field 388 - Time Period of Creation - String creationEpoch = ""; // dct:created
 				
 				String thisTPC = "";
-				ArrayList<String> subFielAtpc = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFielAtpc = field.subfieldValues("a");
 				for (i=0;i < subFielAtpc.size();i++) {
 					thisTPC = subFielAtpc.get(i);
 				}
@@ -780,19 +806,19 @@ public class ExportRDF {
 				String subVss = "";
 				String subXss = "";
 
-				ArrayList<String> subFieldAss = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldAss = field.subfieldValues("a");
 				for (i=0;i < subFieldAss.size();i++) {
 					subAss = subFieldAss.get(i);
 				}
-				ArrayList<String> subFieldLss = sqlObj.selectSubFieldValuesByID(fieldID, "l");
+				ArrayList<String> subFieldLss = field.subfieldValues("l");
 				for (i=0;i < subFieldLss.size();i++) {
 					subLss =  subFieldLss.get(i);
 				}
-				ArrayList<String> subFieldVss = sqlObj.selectSubFieldValuesByID(fieldID, "v");
+				ArrayList<String> subFieldVss = field.subfieldValues("v");
 				for (i=0;i < subFieldVss.size();i++) {
 					subVss =  subFieldVss.get(i);
 				}
-				ArrayList<String> subFieldXss = sqlObj.selectSubFieldValuesByID(fieldID, "x");
+				ArrayList<String> subFieldXss = field.subfieldValues("x");
 				for (i=0;i < subFieldXss.size();i++) {
 					subXss =  subFieldXss.get(i);
 				}
@@ -839,7 +865,7 @@ public class ExportRDF {
 				
 				// get subfields
 				String note = "";
-				ArrayList<String> subFieldA = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldA = field.subfieldValues("a");
 				for (i=0;i < subFieldA.size();i++) {
 					note = subFieldA.get(i);
 				}
@@ -960,7 +986,7 @@ public class ExportRDF {
 				subFieldsToInclude.add("a");
 				subFieldsToInclude.add("c");
 				subFieldsToInclude.add("d");
-				String thisSubjectString = getSubject(recordID, "600", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "600", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -970,7 +996,7 @@ public class ExportRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "610", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "610", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -982,7 +1008,7 @@ public class ExportRDF {
 				subFieldsToInclude.add("a");
 				subFieldsToInclude.add("b");
 				subFieldsToInclude.add("c");
-				String thisSubjectString = getSubject(recordID, "611", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "611", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -992,7 +1018,7 @@ public class ExportRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "630", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "630", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -1002,7 +1028,7 @@ public class ExportRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "648", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "648", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -1015,7 +1041,7 @@ public class ExportRDF {
 				subFieldsToInclude.add("b");
 				subFieldsToInclude.add("c");
 				subFieldsToInclude.add("d");
-				String thisSubjectString = getSubject(recordID, "650", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "650", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -1025,7 +1051,7 @@ public class ExportRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "651", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "651", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 					// coverage.add(fixPeriods(fixAmper(thisSubjectString)));
@@ -1036,7 +1062,7 @@ public class ExportRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "653", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "653", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -1047,7 +1073,7 @@ public class ExportRDF {
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
 				subFieldsToInclude.add("b");
-				String thisSubjectString = getSubject(recordID, "654", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "654", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -1057,10 +1083,10 @@ public class ExportRDF {
 				
 				String workingValue = "";
 				// get raw value
-				String rawValue = sqlObj.getFieldByID(fieldID);;
+				String rawValue = field.value();
 				// get subfields
 				String subA = "";
-				ArrayList<String> subFieldA = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldA = field.subfieldValues("a");
 				for (i=0;i < subFieldA.size();i++) {
 					subA = subFieldA.get(i);
 				}
@@ -1077,7 +1103,7 @@ public class ExportRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "656", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "656", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -1087,7 +1113,7 @@ public class ExportRDF {
 				
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
-				String thisSubjectString = getSubject(recordID, "657", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "657", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -1098,7 +1124,7 @@ public class ExportRDF {
 				ArrayList<String> subFieldsToInclude = new ArrayList<String>();
 				subFieldsToInclude.add("a");
 				subFieldsToInclude.add("b");
-				String thisSubjectString = getSubject(recordID, "658", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "658", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -1114,7 +1140,7 @@ public class ExportRDF {
 				subFieldsToInclude.add("f");
 				subFieldsToInclude.add("g");
 				subFieldsToInclude.add("h");
-				String thisSubjectString = getSubject(recordID, "662", subFieldsToInclude, " ");
+				String thisSubjectString = getSubject(marc, "662", subFieldsToInclude, " ");
 				if (thisSubjectString != null && thisSubjectString.length() > 0) {
 					subjectTerms.add(thisSubjectString);
 				}
@@ -1123,10 +1149,10 @@ public class ExportRDF {
 				
 				String workingValue = "";
 				// get raw value
-				String rawValue = sqlObj.getFieldByID(fieldID);;
+				String rawValue = field.value();
 				// get subfields
 				String subA = "";
-				ArrayList<String> subFieldA = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldA = field.subfieldValues("a");
 				for (i=0;i < subFieldA.size();i++) {
 					subA = subFieldA.get(i);
 				}
@@ -1147,31 +1173,31 @@ public class ExportRDF {
 				String subF = "";
 				String subG = "";
 				String subH = "";
-				ArrayList<String> subFieldA = sqlObj.selectSubFieldValuesByID(fieldID, "a");
+				ArrayList<String> subFieldA = field.subfieldValues("a");
 				for (i=0;i < subFieldA.size();i++) {
 					subA = subFieldA.get(i);
 				}
-				ArrayList<String> subFieldB = sqlObj.selectSubFieldValuesByID(fieldID, "b");
+				ArrayList<String> subFieldB = field.subfieldValues("b");
 				for (i=0;i < subFieldB.size();i++) {
 					subB = subFieldB.get(i);
 				}
-				ArrayList<String> subFieldC = sqlObj.selectSubFieldValuesByID(fieldID, "c");
+				ArrayList<String> subFieldC = field.subfieldValues("c");
 				for (i=0;i < subFieldC.size();i++) {
 					subC = subFieldC.get(i);
 				}	
-				ArrayList<String> subFieldD = sqlObj.selectSubFieldValuesByID(fieldID, "d");
+				ArrayList<String> subFieldD = field.subfieldValues("d");
 				for (i=0;i < subFieldD.size();i++) {
 					subD = subFieldD.get(i);
 				}
-				ArrayList<String> subFieldF = sqlObj.selectSubFieldValuesByID(fieldID, "f");
+				ArrayList<String> subFieldF = field.subfieldValues("f");
 				for (i=0;i < subFieldF.size();i++) {
 					subF = subFieldF.get(i);
 				}
-				ArrayList<String> subFieldG = sqlObj.selectSubFieldValuesByID(fieldID, "g");
+				ArrayList<String> subFieldG = field.subfieldValues("g");
 				for (i=0;i < subFieldG.size();i++) {
 					subG = subFieldG.get(i);
 				}
-				ArrayList<String> subFieldH = sqlObj.selectSubFieldValuesByID(fieldID, "h");
+				ArrayList<String> subFieldH = field.subfieldValues("h");
 				for (i=0;i < subFieldH.size();i++) {
 					subH = subFieldH.get(i);
 				}
@@ -1201,7 +1227,7 @@ public class ExportRDF {
 			
 			else if (fieldType.equals("856")) {
 				// digital surrogates
-				surrogateSub = sqlObj.selectSubFieldValuesByID(fieldID, "u");
+				surrogateSub = field.subfieldValues("u");
 				
 			}
 			String rawThumbnail = sqlObj.selectImageRecord(recordID);
@@ -1356,15 +1382,20 @@ public class ExportRDF {
 		
 		// put loop to build holding records here
 		ArrayList<String> children = new ArrayList<String>();
-		ArrayList<HashMap<String,String>> holdingRecords = sqlObj.selectHoldingRecordIDs(itemID);
+		ArrayList<HashMap<String,String>> holdingLinks = sqlObj.selectHoldingLinks(itemID);
 		int ihr = 0;
-		while (ihr < holdingRecords.size()) {
+		while (ihr < holdingLinks.size()) {
 			String uniqueHoldingID = "";
-			HashMap<String,String> holdingRecordResults = holdingRecords.get(ihr);
+			HashMap<String,String> holdingRecordResults = holdingLinks.get(ihr);
 			int holdingRecordID = Integer.parseInt(holdingRecordResults.get("record_id"));
-			//String holdingRecordID = holdingRecordResults.get("id");
-			// now get all the 852 fields for the record
-			ArrayList<Integer> eightFiftyTwos = sqlObj.selectEightFiftyTwoFields(holdingRecordID);
+			// now gather all the 852 fields for the record, which are
+			// next to each other in the link rows
+			ArrayList<Integer> eightFiftyTwos = new ArrayList<Integer>();
+			boolean holdingWritten = true;
+			while (ihr < holdingLinks.size() && Integer.parseInt(holdingLinks.get(ihr).get("record_id")) == holdingRecordID) {
+				eightFiftyTwos.add(Integer.valueOf(holdingLinks.get(ihr).get("field_id")));
+				ihr++;
+			}
 			int ihf = 0;
 			while (ihf < eightFiftyTwos.size()) {
 				int eightFiftyTwofieldID = eightFiftyTwos.get(ihf);
@@ -1406,29 +1437,28 @@ public class ExportRDF {
 				try {
 					// write out the rdf
 					String writeFileName = configObj.writeDir + "/hold_" + uniqueHoldingID + ".rdf";
-					System.out.println("File Write Directory: " + writeFileName);
-					PrintWriter holdingWriter = new PrintWriter( configObj.writeDir + "/hold_" + uniqueHoldingID + ".rdf", "UTF-8");
-					holdingWriter.print(holdingRDF);
-					holdingWriter.close();
+					progress.debug("File Write Directory: {}", writeFileName);
+					FileUtils.writeFileDurably(writeFileName, holdingRDF);
 					
-				} catch (FileNotFoundException e) {
-					System.out.println("Error exporting record " + holdingRecordID + " holding item " + uniqueHoldingID);
-					e.printStackTrace();
-				} catch (UnsupportedEncodingException e) {
-					System.out.println("Error exporting record " + holdingRecordID + " holding item " + uniqueHoldingID);
+				} catch (IOException e) {
+					holdingWritten = false;
+					logger.error("Error exporting record {} holding item {}", holdingRecordID, uniqueHoldingID);
+					progress.error();
 					e.printStackTrace();
 				}
 				
 				//System.out.println(holdingRDF);
-				System.out.println("Processed holding record " + holdingRecordID + " item " + uniqueHoldingID);
+				progress.debug("Processed holding record {} item {}", holdingRecordID, uniqueHoldingID);
 
 				// need to keep this so that the loop works right
 				ihf++;
 			}
 			
-			// mark the holding record as exported
-			sqlObj.updateExported(holdingRecordID);
-			ihr++;
+			// mark the holding record as exported once all of its
+			// files are on disk
+			if (holdingWritten) {
+				flags.mark(FlagBuffer.EXPORTED, true, holdingRecordID);
+			}
 		
 		}
 		
@@ -1456,47 +1486,40 @@ public class ExportRDF {
 		String bibRDF = rdfHeader + rdfAbout + rdfString + rdfFooter;
 		
 		try {
-			PrintWriter bibWriter = new PrintWriter( configObj.writeDir + "/bib_" + itemID + ".rdf", "UTF-8");
-			bibWriter.print(bibRDF);
-			bibWriter.close();
-			// mark the record as exported
-			sqlObj.updateExported(recordID);
-		} catch (FileNotFoundException e) {
-			System.out.println("Error exporting record " + recordID + " holding item " + itemID);
-			e.printStackTrace();
-		} catch (UnsupportedEncodingException e) {
-			System.out.println("Error exporting record " + recordID + " holding item " + itemID);
+			FileUtils.writeFileDurably(configObj.writeDir + "/bib_" + itemID + ".rdf", bibRDF);
+			// mark the record as exported now that the file is on disk
+			flags.mark(FlagBuffer.EXPORTED, true, recordID);
+		} catch (IOException e) {
+			logger.error("Error exporting record {} holding item {}", recordID, itemID);
+			progress.error();
 			e.printStackTrace();
 		}
 		
 		
 		// System.out.println(bibRDF);
-		System.out.println("Processed bib record " + recordID + " item " + itemID);
+		progress.debug("Processed bib record {} item {}", recordID, itemID);
 		
 		return ret;
 	}
 	
 	// create an RDF string for a resource
-	public String getSubject(int recordID, String field, ArrayList<String> subFields, String separator) {
+	public String getSubject(MarcRecordModel marc, String field, ArrayList<String> subFields, String separator) {
 		String ret = "";
 		String workingString = "";
 		
-		// get raw value and field id
-		String rawValue = sqlObj.getFieldByNumber(recordID, field);
-		ArrayList<HashMap<String,String>> RetInfo = sqlObj.getFieldInfo(recordID, field);
-		String FieldID = "";
-		for (int sfa=0;sfa < RetInfo.size();sfa++) {
-			HashMap<String,String> thisHash = RetInfo.get(sfa); 
-			FieldID = thisHash.get("id");
+		// get raw value and the last field with this tag
+		String rawValue = marc.fieldValue(field);
+		List<MarcRecordModel.Field> matchingFields = marc.fieldsByTag(field);
+		MarcRecordModel.Field subjectField = null;
+		for (int sfa=0;sfa < matchingFields.size();sfa++) {
+			subjectField = matchingFields.get(sfa);
 		}
 		
-		if (FieldID != null && FieldID.length() > 0) {
-			
-			int FieldIdAsInt = Integer.parseInt(FieldID);
+		if (subjectField != null) {
 			
 			for (int ia=0;ia < subFields.size();ia++) {
 				String localWorking = "";
-				ArrayList<String> subFieldIt = sqlObj.selectSubFieldValuesByID(FieldIdAsInt, subFields.get(ia));
+				ArrayList<String> subFieldIt = subjectField.subfieldValues(subFields.get(ia));
 				for (int iab=0;iab < subFieldIt.size();iab++) {
 					localWorking = subFieldIt.get(iab);
 				}
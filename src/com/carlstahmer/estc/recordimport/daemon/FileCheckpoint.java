@@ -0,0 +1,163 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.util.TreeMap;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>Tracks how far an import of a MARC file has committed, so that a 
+ * load cut short by a crash can go on from there instead of starting 
+ * over.  LoadMarc numbers the records of the file in order as they are 
+ * read, and each is reported done once the transaction holding it has 
+ * committed, or as soon as it is clear that it will not be written.  The
+ * writers commit independently, so records are done out of order; the 
+ * checkpoint is the last record before which every record is done, 
+ * together with the byte offset at which the record after it starts.</p>
+ * 
+ * <p>Not every record's end offset is known, so the saved checkpoint is 
+ * the last such record whose end offset is.  Resuming from an earlier 
+ * point than necessary only means a few records are checked against the
+ * database again.  The checkpoint is written to the store by the writers
+ * at most once a second.</p>
+ */
+public class FileCheckpoint {
+	
+	static final long SAVE_INTERVAL = 1000;
+	
+	int fileId;
+	long modDate;
+	long startOffset;
+	int startOrdinal;
+	int lastOrdinal;
+	int doneOrdinal;
+	long safeOffset;
+	int safeOrdinal;
+	int savedOrdinal;
+	long lastSave = 0;
+	TreeMap<Integer,Long> doneAhead = new TreeMap<Integer,Long>();
+	
+	/**
+	 * <p>Constructor class for an import of a file that starts at a byte 
+	 * offset, past a number of records already loaded.</p>
+	 *
+	 * @param  fileId    	the system id of the file
+	 * @param  modDate    	the system last modified time stamp of the file
+	 * @param  offset  		the byte offset the import starts at
+	 * @param  ordinal  	the number of records before that offset
+	 */
+	public FileCheckpoint(int fileId, long modDate, long offset, int ordinal) {
+		this.fileId = fileId;
+		this.modDate = modDate;
+		restart(offset, ordinal);
+	}
+	
+	/**
+	 * <p>Moves the start of the import, as when a saved offset turns out 
+	 * not to be a record boundary.</p>
+	 */
+	public synchronized void restart(long offset, int ordinal) {
+		startOffset = offset;
+		startOrdinal = ordinal;
+		lastOrdinal = ordinal;
+		doneOrdinal = ordinal;
+		safeOffset = offset;
+		safeOrdinal = ordinal;
+		savedOrdinal = ordinal;
+		doneAhead.clear();
+	}
+	
+	public long getStartOffset() {
+		return startOffset;
+	}
+	
+	public int getStartOrdinal() {
+		return startOrdinal;
+	}
+	
+	/**
+	 * <p>Numbers the next record read from the file.</p>
+	 */
+	public synchronized int nextOrdinal() {
+		lastOrdinal++;
+		return lastOrdinal;
+	}
+	
+	/**
+	 * <p>Marks a record done.</p>
+	 *
+	 * @param  ordinal    	the record's number from nextOrdinal()
+	 * @param  endOffset  	the byte offset just past the record, or -1 if
+	 * 						it is not known
+	 */
+	public synchronized void recordDone(int ordinal, long endOffset) {
+		if (ordinal <= doneOrdinal) {
+			return;
+		}
+		doneAhead.put(ordinal, endOffset);
+		while (!doneAhead.isEmpty() && doneAhead.firstKey() == doneOrdinal + 1) {
+			long end = doneAhead.remove(doneAhead.firstKey());
+			doneOrdinal++;
+			if (end >= 0) {
+				safeOffset = end;
+				safeOrdinal = doneOrdinal;
+			}
+		}
+	}
+	
+	/**
+	 * <p>Saves the checkpoint if it has moved and the last save was at 
+	 * least SAVE_INTERVAL ago.  Called by a writer after it commits, with
+	 * its own store.</p>
+	 */
+	public synchronized boolean saveIfDue(RecordStore store) {
+		if (System.currentTimeMillis() - lastSave < SAVE_INTERVAL) {
+			return true;
+		}
+		return save(store);
+	}
+	
+	/**
+	 * <p>Saves the checkpoint if it has moved since it was last saved.</p>
+	 */
+	public synchronized boolean save(RecordStore store) {
+		if (safeOrdinal == savedOrdinal) {
+			return true;
+		}
+		lastSave = System.currentTimeMillis();
+		if (!store.saveFileCheckpoint(fileId, modDate, safeOffset, safeOrdinal)) {
+			return false;
+		}
+		savedOrdinal = safeOrdinal;
+		return true;
+	}
+
+}
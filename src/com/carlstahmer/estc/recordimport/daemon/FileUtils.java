@@ -29,6 +29,10 @@
 package com.carlstahmer.estc.recordimport.daemon;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
@@ -41,7 +45,7 @@ import java.util.regex.Matcher;
 public class FileUtils {
 	
 	Conf config;
-	SqlModel sqlObj;
+	RecordStore sqlObj;
 	Logger logger;
 	public ArrayList<String> fileList = new ArrayList<String>();
 	public ArrayList<String> directoryList = new ArrayList<String>();
@@ -53,7 +57,7 @@ public class FileUtils {
 	 * @param  configObj    an instance of the Conf class
 	 * @param  sqlModObj  	an instance of the sqlModel class
 	 */
-	public FileUtils(Conf configObj, SqlModel sqlModObj) {
+	public FileUtils(Conf configObj, RecordStore sqlModObj) {
 		config = configObj;
 		sqlObj = sqlModObj;
 		logger = new Logger(config);
@@ -111,7 +115,7 @@ public class FileUtils {
 	        	}
 	        }
 	    }
-	    logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Size of directoryList array: "+String.valueOf(directoryList.size()));
+	    logger.debug("Size of directoryList array: {}", String.valueOf(directoryList.size()));
 	}
 	
 	/**
@@ -149,9 +153,9 @@ public class FileUtils {
 		String fileSuffix = parts[(sizeParts - 1)];
 		if (fileSuffix.length() > 0) {
 			
-			logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "SQL connection opened");
+			logger.debug("SQL connection opened");
 			intRet = sqlObj.selectFileTypeID(fileSuffix);
-			logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Retrieving File Type");
+			logger.debug("Retrieving File Type");
 			if (fileSuffix.equals("mrc")) {
 				intRet = 1;
 			}
@@ -179,5 +183,23 @@ public class FileUtils {
 		return blnMatch;
 	}
 	
+	/**
+	 * <p>Writes a UTF-8 text file and forces it to disk before returning,
+	 * so that work recorded as done once this returns survives a crash.</p>
+	 *
+	 * @param  filePath    	The full path of the file to write
+	 * @param  content		The text to write
+	 */
+	public static void writeFileDurably(String filePath, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(filePath);
+		try {
+			Writer writer = new OutputStreamWriter(out, "UTF-8");
+			writer.write(content);
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
 
 }
@@ -0,0 +1,206 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>A write-behind buffer for the exported, processed, and scoped flags 
+ * on the records table.  Flag changes are collected in memory and written
+ * as one UPDATE ... WHERE id IN (...) per flag value once flagbatchsize 
+ * changes are waiting or flagflushinterval milliseconds have passed since
+ * the last write, whenever flush() is called, and at shutdown.  If the 
+ * same record's flag is changed more than once before a flush only the 
+ * last change is written.</p>
+ * 
+ * <p>Callers must only mark a record once the work the flag stands for is
+ * complete; the exporters mark a record exported after its RDF file has 
+ * been synced to disk.  A crash before a flush leaves the flag unset, so
+ * the record is simply exported again on the next run.</p>
+ * 
+ * <p>The buffer is created by Listener.main() and flushed by 
+ * Listener before the connection pool is shut down.</p>
+ */
+public class FlagBuffer {
+	
+	public static final int EXPORTED = 0;
+	public static final int PROCESSED = 1;
+	public static final int SCOPED = 2;
+	
+	static final String[] COLUMNS = new String[] {"exported", "processed", "scoped"};
+	
+	private static FlagBuffer sharedBuffer = null;
+	
+	RecordStore sqlObj;
+	Logger logger;
+	int batchSize;
+	long flushInterval;
+	long lastFlush;
+	int pendingCount = 0;
+	ArrayList<LinkedHashMap<Integer,Integer>> pending = new ArrayList<LinkedHashMap<Integer,Integer>>();
+	
+	/**
+	 * <p>Constructor class that reads the flush thresholds from the passed
+	 * Config object.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 */
+	public FlagBuffer(Conf config) {
+		sqlObj = RecordStoreFactory.open(config);
+		logger = new Logger(config);
+		batchSize = Math.max(1, config.flagbatchsize);
+		flushInterval = config.flagflushinterval;
+		lastFlush = System.currentTimeMillis();
+		for (int i=0; i < COLUMNS.length; i++) {
+			pending.add(new LinkedHashMap<Integer,Integer>());
+		}
+	}
+	
+	/**
+	 * <p>Creates the application wide buffer.  Calling this more than once
+	 * returns the buffer that already exists.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @return			 the shared buffer
+	 */
+	public static synchronized FlagBuffer init(Conf config) {
+		if (sharedBuffer == null) {
+			sharedBuffer = new FlagBuffer(config);
+		}
+		return sharedBuffer;
+	}
+	
+	/**
+	 * <p>Returns the application wide buffer, creating it from the passed 
+	 * Config object if Listener has not done so already.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @return			 the shared buffer
+	 */
+	public static synchronized FlagBuffer getBuffer(Conf config) {
+		return init(config);
+	}
+	
+	/**
+	 * <p>Writes every pending flag change and discards the shared buffer.
+	 * Called by Listener before the connection pool is shut down.</p>
+	 */
+	public static synchronized void shutdownBuffer() {
+		if (sharedBuffer != null) {
+			sharedBuffer.flush();
+			sharedBuffer = null;
+		}
+	}
+	
+	/**
+	 * <p>Queues a flag change for a record, writing the queue if a flush
+	 * threshold has been reached.</p>
+	 *
+	 * @param  flag			EXPORTED, PROCESSED, or SCOPED
+	 * @param  set			true to set the flag to 1, false to clear it
+	 * @param  recordId		the records.id to change
+	 */
+	public void mark(int flag, boolean set, int recordId) {
+		boolean due;
+		synchronized (this) {
+			if (pending.get(flag).put(recordId, set ? 1 : 0) == null) {
+				pendingCount++;
+			}
+			due = pendingCount >= batchSize || System.currentTimeMillis() - lastFlush >= flushInterval;
+		}
+		if (due) {
+			flush();
+		}
+	}
+	
+	/**
+	 * <p>Writes every pending flag change.  Changes that fail to write are
+	 * put back in the queue, unless the record was marked again in the 
+	 * meantime, and retried on the next flush.</p>
+	 *
+	 * @return		true if every change was written
+	 */
+	public boolean flush() {
+		ArrayList<LinkedHashMap<Integer,Integer>> writing = new ArrayList<LinkedHashMap<Integer,Integer>>();
+		synchronized (this) {
+			for (int i=0; i < COLUMNS.length; i++) {
+				writing.add(pending.get(i));
+				pending.set(i, new LinkedHashMap<Integer,Integer>());
+			}
+			pendingCount = 0;
+			lastFlush = System.currentTimeMillis();
+		}
+		
+		boolean success = true;
+		for (int flag=0; flag < COLUMNS.length; flag++) {
+			LinkedHashMap<Integer,Integer> changes = writing.get(flag);
+			if (changes.isEmpty()) {
+				continue;
+			}
+			ArrayList<Integer> setIds = new ArrayList<Integer>();
+			ArrayList<Integer> clearIds = new ArrayList<Integer>();
+			for (Map.Entry<Integer,Integer> change : changes.entrySet()) {
+				if (change.getValue() == 1) {
+					setIds.add(change.getKey());
+				} else {
+					clearIds.add(change.getKey());
+				}
+			}
+			if (!write(flag, 1, setIds) || !write(flag, 0, clearIds)) {
+				success = false;
+				logger.error("Failed to write {} {} flag changes; they will be retried", changes.size(), COLUMNS[flag]);
+				synchronized (this) {
+					for (Map.Entry<Integer,Integer> change : changes.entrySet()) {
+						if (!pending.get(flag).containsKey(change.getKey())) {
+							pending.get(flag).put(change.getKey(), change.getValue());
+							pendingCount++;
+						}
+					}
+				}
+			}
+		}
+		return success;
+	}
+	
+	/**
+	 * <p>Writes one flag value for a list of records.</p>
+	 */
+	private boolean write(int flag, int value, ArrayList<Integer> recordIds) {
+		if (recordIds.isEmpty()) {
+			return true;
+		}
+		return sqlObj.updateRecordFlag(COLUMNS[flag], value, recordIds);
+	}
+
+}
@@ -0,0 +1,259 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>Hands out recycled primary keys for the records, records_has_fields,
+ * and fields_has_subfields tables.  Free ids are claimed from the 
+ * recycled_fields table in blocks and held in a lock-free queue per table
+ * type, so an insert no longer has to query and delete from the recycle 
+ * bin first.  When no recycled id is available the allocator returns 0 and
+ * the caller lets MySQL assign an auto-increment key.</p>
+ * 
+ * <p>Claimed ids are deleted from recycled_fields on a dedicated connection
+ * and committed before they enter a queue, independently of any transaction
+ * the inserting thread has open, so no two writers, in this process or 
+ * another, can ever be handed the same id.  Ids still queued at shutdown 
+ * are written back to the recycle bin.</p>
+ */
+public class IdAllocator {
+	
+	public static final int RECORD = 1;
+	public static final int FIELD = 2;
+	public static final int SUBFIELD = 3;
+	
+	private static IdAllocator sharedAllocator = null;
+	
+	ConnectionPool pool;
+	SqlModel sqlObj;
+	Connection conn = null;
+	int blockSize = 500;
+	long emptyRetryInterval = 30000;
+	ArrayList<ConcurrentLinkedQueue<Integer>> queues = new ArrayList<ConcurrentLinkedQueue<Integer>>();
+	ArrayList<AtomicBoolean> recycledSinceRefill = new ArrayList<AtomicBoolean>();
+	long[] retryAfter = new long[4];
+	boolean shutDown = false;
+	
+	/**
+	 * <p>Constructor class that creates an empty queue for each table type.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 */
+	public IdAllocator(Conf config) {
+		pool = ConnectionPool.getPool(config);
+		sqlObj = new SqlModel(config);
+		for (int i=0; i <= SUBFIELD; i++) {
+			queues.add(new ConcurrentLinkedQueue<Integer>());
+			recycledSinceRefill.add(new AtomicBoolean(true));
+		}
+	}
+	
+	/**
+	 * <p>Creates the application wide allocator and loads the first block 
+	 * of free ids for each table type.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @return			 the shared allocator
+	 */
+	public static synchronized IdAllocator init(Conf config) {
+		if (sharedAllocator == null || sharedAllocator.shutDown) {
+			sharedAllocator = new IdAllocator(config);
+			for (int type = RECORD; type <= SUBFIELD; type++) {
+				sharedAllocator.refill(type);
+			}
+		}
+		return sharedAllocator;
+	}
+	
+	/**
+	 * <p>Returns the application wide allocator, creating it from the passed
+	 * Config object if Listener has not done so already.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @return			 the shared allocator
+	 */
+	public static synchronized IdAllocator getAllocator(Conf config) {
+		if (sharedAllocator == null || sharedAllocator.shutDown) {
+			sharedAllocator = new IdAllocator(config);
+		}
+		return sharedAllocator;
+	}
+	
+	/**
+	 * <p>Returns unused ids to the recycle bin and closes the allocator's
+	 * connection.  Called by Listener before the connection pool is shut 
+	 * down.</p>
+	 */
+	public static synchronized void shutdownAllocator() {
+		if (sharedAllocator != null) {
+			sharedAllocator.shutdown();
+			sharedAllocator = null;
+		}
+	}
+	
+	/**
+	 * <p>Returns a recycled id for the given table type.</p>
+	 *
+	 * @param  type		RECORD, FIELD, or SUBFIELD
+	 * @return			a free id, or 0 if the caller should use auto-increment
+	 */
+	public int next(int type) {
+		Integer id = queues.get(type).poll();
+		if (id == null) {
+			refill(type);
+			id = queues.get(type).poll();
+		}
+		if (id == null) {
+			return 0;
+		}
+		return id.intValue();
+	}
+	
+	/**
+	 * <p>Returns up to count recycled ids for the given table type.  Any 
+	 * rows beyond the number of ids returned should use auto-increment.</p>
+	 *
+	 * @param  type		RECORD, FIELD, or SUBFIELD
+	 * @param  count	the number of ids wanted
+	 * @return			the free ids, possibly fewer than requested
+	 */
+	public ArrayList<Integer> next(int type, int count) {
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		ConcurrentLinkedQueue<Integer> queue = queues.get(type);
+		boolean refilled = false;
+		while (ids.size() < count) {
+			Integer id = queue.poll();
+			if (id == null) {
+				if (refilled) {
+					break;
+				}
+				refill(type);
+				refilled = true;
+				continue;
+			}
+			ids.add(id);
+		}
+		return ids;
+	}
+	
+	/**
+	 * <p>Puts ids that were handed out but never written, for instance 
+	 * because the insert was rolled back, back into the queue.</p>
+	 *
+	 * @param  type		RECORD, FIELD, or SUBFIELD
+	 * @param  ids		the unused ids
+	 */
+	public void giveBack(int type, List<Integer> ids) {
+		queues.get(type).addAll(ids);
+	}
+	
+	/**
+	 * <p>Notes that ids of the given type have been added to recycled_fields
+	 * so that the next empty queue is refilled right away instead of 
+	 * waiting out the retry interval.</p>
+	 *
+	 * @param  type		RECORD, FIELD, or SUBFIELD
+	 */
+	public void recycled(int type) {
+		recycledSinceRefill.get(type).set(true);
+	}
+	
+	/**
+	 * <p>Claims the next block of free ids for a table type from 
+	 * recycled_fields.  The rows are deleted and committed before the ids 
+	 * are queued.  When the bin is empty no further attempt is made until 
+	 * more ids are recycled or the retry interval has passed.</p>
+	 */
+	private synchronized void refill(int type) {
+		if (shutDown || !queues.get(type).isEmpty()) {
+			return;
+		}
+		boolean recycled = recycledSinceRefill.get(type).getAndSet(false);
+		if (!recycled && System.currentTimeMillis() < retryAfter[type]) {
+			return;
+		}
+		
+		ArrayList<Integer> claimed = new ArrayList<Integer>();
+		try {
+			if (conn == null || conn.isClosed()) {
+				conn = pool.openDedicated();
+			}
+			claimed = sqlObj.claimRecycledIds(conn, type, blockSize);
+		} catch (SQLException ex) {
+		    System.out.println("SQLException IdAllocator.java refill: " + ex.getMessage());
+		    System.out.println("SQLState: " + ex.getSQLState());
+		    System.out.println("VendorError: " + ex.getErrorCode());
+		}
+		queues.get(type).addAll(claimed);
+		
+		if (claimed.size() < blockSize) {
+			retryAfter[type] = System.currentTimeMillis() + emptyRetryInterval;
+		}
+	}
+	
+	/**
+	 * <p>Writes any ids still held in the queues back to recycled_fields in
+	 * a single batch and closes the allocator's connection.</p>
+	 */
+	public synchronized void shutdown() {
+		shutDown = true;
+		try {
+			if (conn == null || conn.isClosed()) {
+				conn = pool.openDedicated();
+			}
+			for (int type = RECORD; type <= SUBFIELD; type++) {
+				ArrayList<Integer> unused = new ArrayList<Integer>(queues.get(type));
+				queues.get(type).clear();
+				sqlObj.storeRecycledIds(conn, type, unused);
+			}
+		} catch (SQLException ex) {
+		    System.out.println("SQLException IdAllocator.java shutdown: " + ex.getMessage());
+		    System.out.println("SQLState: " + ex.getSQLState());
+		    System.out.println("VendorError: " + ex.getErrorCode());
+		} finally {
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException sqlEx) { } // ignore
+			}
+			conn = null;
+		}
+	}
+
+}
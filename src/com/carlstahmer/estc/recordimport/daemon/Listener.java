@@ -62,6 +62,25 @@ public class Listener {
 	 * @param 	-dbname			the database name
 	 * @param 	-dbuser			the database user
 	 * @param 	-dbpass			the database password
+	 * @param 	-dbpoolsize		the maximum number of open database connections
+	 * @param 	-bulkload		load an empty database from staged files with LOAD DATA LOCAL INFILE
+	 * @param 	-stagedir		the directory for bulk load staging files
+	 * @param 	-flagbatchsize	the number of record flag changes held before they are written
+	 * @param 	-flagflushinterval	the longest time in milliseconds record flag changes are held
+	 * @param 	-storage		the storage backend, mysql or embedded
+	 * @param 	-storedir		the directory the embedded store is saved in
+	 * @param 	-logbuffersize	the number of run log messages held for the background writer
+	 * @param 	-logoverflow	dropdebug, block, or drop when the run log buffer is full
+	 * @param 	-progressinterval	milliseconds between progress reports
+	 * @param 	-progresssample	log per-record debug messages for one record in this many
+	 * @param 	-importworkers	the number of files imported at once
+	 * @param 	-importwriters	the number of writer threads used to load each MARC file
+	 * @param 	-importqueuesize	the number of records each MARC load stage may hold waiting for the next
+	 * @param 	-importchunksize	the number of records each MARC writer commits in one transaction
+	 * @param 	-marcreader		the MARC file reader, stream or mapped
+	 * @param 	-parsethreads	the number of threads that parse chunks of one MARC file at once
+	 * @param 	-nodedupindex	check records for duplicates in the database instead of in memory
+	 * @param 	-dedupoffheap	allocate the duplicate index outside of the Java heap
 	 * @param	-debug			flag to run in debug mode
 	 * @param	-console		flag to run log output to console instead of database
 	 * @param 	-help			flag to return help text
@@ -81,30 +100,72 @@ public class Listener {
 			System.out.println("Configuration YML successfully loaded...");
 		}	
 		
+		// Override YML configuration with command line args if present.  This
+		// has to happen before the connection pool is built so that db
+		// overrides are honored.
+		boolean argsLoaded = config.checkArgs(args);
+		
+		// Build the shared connection pool used by every SqlModel
+		boolean embedded = RecordStoreFactory.isEmbedded(config);
+		if (!embedded) {
+			ConnectionPool.init(config);
+		}
+		
 	    // Instantiate db object and model
-	    SqlModel sqlObj = new SqlModel(config);
+	    RecordStore sqlObj = RecordStoreFactory.open(config);
 	    sqlObj.openConnection();
 	    System.out.println("DB object and model successfully intantiated...");
+	    if (embedded) {
+	    	System.out.println("Using embedded store in " + config.storedir);
+	    }
 	    
-	    // create a logger object
+	    // start the background run log writer and create a logger object
+	    if (!config.console) {
+	    	AsyncLogWriter.init(config);
+	    }
 	    logger = new Logger(config);
 	    System.out.println("Logger successfully initiated...");
 	    if (!config.console) {
 	    	System.out.println("Logging to database runlog...");
 	    }
-	    logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Application successfully loaded with config, sqlObj, and logger");
+	    logger.info("Application successfully loaded with config, sqlObj, and logger");
 	    
 	    
-		// Override YML configuration with command line args if present
-		if (!config.checkArgs(args)) {
-			logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Error  processing command line arguments");
-			logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Aborting applicaiton!");
+		if (!argsLoaded) {
+			logger.error("Error  processing command line arguments");
+			logger.error("Aborting applicaiton!");
 			System.out.println("Aborting operation!");
+			AsyncLogWriter.shutdownWriter();
+			ConnectionPool.shutdownPool();
+			EmbeddedRecordStore.shutdownStore();
 			System.exit(0);
 		} else {	
-			logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Command line overrides successfully processed");
+			logger.info("Command line overrides successfully processed");
+		}
+		
+		if (!embedded) {
+			// Bring the schema up to date and check the hot queries use their indexes
+			SchemaMigrator migrator = new SchemaMigrator(config, (SqlModel) sqlObj);
+			if (!migrator.migrate()) {
+				
+				// the import writes to the tables and columns the 
+				// migrations add, so it cannot run without them
+				logger.error("Database schema could not be brought up to date");
+				logger.error("Aborting applicaiton!");
+				System.out.println("Aborting operation!");
+				AsyncLogWriter.shutdownWriter();
+				ConnectionPool.shutdownPool();
+				System.exit(0);
+			}
+			migrator.reportFullScans();
+			
+			// Claim the first blocks of recycled record, field, and subfield ids
+			IdAllocator.init(config);
 		}
 		
+		// Start the write-behind buffer for record flag changes
+		FlagBuffer.init(config);
+		
 		// Check listen directory for proper formatting of trailing slash	
 	    if (config.listenDir.substring(config.listenDir.length() - 1).equals("/")) {
 	    	config.listenDir = config.listenDir.substring(0, config.listenDir.length() - 1);
@@ -119,7 +180,7 @@ public class Listener {
 
 	    // Start the process manager
 	    ProcessManager pm = new ProcessManager(config, sqlObj);
-	    logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Listening at: "+config.listenDir);
+	    logger.info("Listening at: {}", config.listenDir);
 		
 	    // I'm currently calling the runOnce() method.  I will ultimately
 	    // need to fix the actual daemon listener and change this.
@@ -141,8 +202,14 @@ public class Listener {
 			pm.runOnce(0);
 		}
 	    		
+		logger.info("Process Completed");
 		sqlObj.closeConnection();
-		logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Process Completed");
+		FlagBuffer.shutdownBuffer();
+		DedupIndex.shutdownIndex();
+		IdAllocator.shutdownAllocator();
+		AsyncLogWriter.shutdownWriter();
+		ConnectionPool.shutdownPool();
+		EmbeddedRecordStore.shutdownStore();
 		System.out.println("Goodby World!");	
 		
 	}
@@ -29,15 +29,26 @@
 
 package com.carlstahmer.estc.recordimport.daemon;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.marc4j.MarcException;
 import org.marc4j.MarcPermissiveStreamReader;
 import org.marc4j.MarcReader;
 import org.marc4j.MarcStreamReader;
 import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
 import org.marc4j.marc.Record;
 import org.marc4j.marc.ControlField;
 import org.marc4j.marc.Subfield;
@@ -47,13 +58,266 @@ import org.marc4j.marc.Subfield;
  * 
  * <p>A class that contains methods for loading marc files from the listen directory,
  * parsing data, and inserting it into the working database.</p>
+ * 
+ * <p>A file is loaded through a pipeline.  The calling thread reads and
+ * parses records.  A transform thread classifies each record and builds
+ * its field rows and raw copy.  A set of writer threads, each holding its 
+ * own connection, checks for duplicates and writes the rows.  Bounded 
+ * queues connect the stages, so a fast stage waits for a slow one instead 
+ * of filling memory.  Records are routed to writers by control number, so 
+ * every version of a record is checked and written by the same writer, in 
+ * file order.</p>
+ * 
+ * <p>With parsethreads above one, a large file is cut by MarcFileSplitter
+ * into chunks of whole records that a pool of threads parses and 
+ * transforms at once.  The calling thread takes the finished chunks in 
+ * file order and routes their jobs, so every writer still sees its 
+ * records in file order and duplicate resolution by 005 is the same as 
+ * for a sequential load.</p>
+ * 
+ * <p>Given a FileCheckpoint, a load starts at the checkpoint's byte 
+ * offset and keeps the checkpoint up to date as records are committed.
+ * The memory mapped reader gives the exact end of every record.  The 
+ * stream reader reads ahead, so the end of each record is taken from the
+ * record terminators that have passed through it, and a chunked load 
+ * only knows the end of the last record of each chunk.</p>
  */
 public class LoadMarc {
 	
 	Conf config;
-	SqlModel sqlObj;
+	RecordStore sqlObj;
 	RecordUtils recs;
 	Logger logger;
+	ProgressReporter progress;
+	FileCheckpoint checkpoint = null;
+	volatile boolean writerFailed = false;
+	
+	private static final ParsedRecord END_OF_RECORDS = new ParsedRecord(null, false);
+	private static final RecordJob END_OF_JOBS = new RecordJob();
+	private static final MarcFactory MARC_FACTORY = MarcFactory.newInstance();
+	private static final RecordKeyClaims KEY_CLAIMS = new RecordKeyClaims();
+	
+	/**
+	 * <p>A record handed from the reader to the transform stage.</p>
+	 */
+	static class ParsedRecord {
+		Record record;
+		boolean failed;
+		int ordinal;
+		long end = -1;
+		
+		ParsedRecord(Record marcRecord, boolean parseFailed) {
+			record = marcRecord;
+			failed = parseFailed;
+		}
+	}
+	
+	/**
+	 * <p>The jobs parsed from one chunk of a file, in file order.  A 
+	 * record that could not be read or has no control number is held as
+	 * null.  A chunk that could not be read to its end is stopped, and its
+	 * end is the end of the last record read, or -1 if that is not 
+	 * known.</p>
+	 */
+	static class ParsedChunk {
+		long end;
+		boolean stopped = false;
+		int fallbacks = 0;
+		ArrayList<RecordJob> jobs = new ArrayList<RecordJob>();
+		
+		ParsedChunk(long chunkEnd) {
+			end = chunkEnd;
+		}
+	}
+	
+	/**
+	 * <p>A record handed from the transform stage to a writer, holding 
+	 * everything needed to write it and the ESTC holding records made 
+	 * from it.</p>
+	 */
+	static class RecordJob {
+		String control;
+		double moddate;
+		int recType;
+		MarcFieldBatch batch;
+		byte[] raw;
+		ArrayList<String> holdingCodes = new ArrayList<String>();
+		ArrayList<MarcFieldBatch> holdingBatches = new ArrayList<MarcFieldBatch>();
+		ArrayList<byte[]> holdingRaws = new ArrayList<byte[]>();
+		int ordinal;
+		long end = -1;
+	}
+	
+	/**
+	 * <p>The control numbers held by writers in open transactions, shared
+	 * by every LoadMarc so that files imported at once cannot both insert
+	 * or update the same record.  Within a file every version of a record
+	 * goes to the same writer, but writers of different files share the 
+	 * one key space.  A writer claims a record's control number before 
+	 * checking it for duplicates and keeps the claim until its transaction
+	 * has committed, so the other writer then finds the committed row.  A
+	 * writer that has to wait for a claim first commits and gives up its
+	 * own, so a waiting writer never holds one and two can never wait on
+	 * each other.</p>
+	 */
+	static class RecordKeyClaims {
+		HashMap<String,Object> owners = new HashMap<String,Object>();
+		
+		/**
+		 * <p>Claims a key if it is free or already held by owner.</p>
+		 */
+		synchronized boolean tryClaim(String key, Object owner) {
+			Object held = owners.get(key);
+			if (held == null) {
+				owners.put(key, owner);
+				return true;
+			}
+			return held == owner;
+		}
+		
+		/**
+		 * <p>Claims a key, waiting while another owner holds it.</p>
+		 */
+		synchronized void claim(String key, Object owner) throws InterruptedException {
+			while (!tryClaim(key, owner)) {
+				wait();
+			}
+		}
+		
+		/**
+		 * <p>Gives up a set of keys held by owner.</p>
+		 */
+		synchronized void release(Collection<String> keys, Object owner) {
+			if (keys.isEmpty()) {
+				return;
+			}
+			for (String key : keys) {
+				if (owners.get(key) == owner) {
+					owners.remove(key);
+				}
+			}
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * <p>Notes the offset just past each 0x1D record terminator read 
+	 * through it, and where the record after each one starts.  The 
+	 * permissive reader reads ahead through a buffer of its own, so the 
+	 * position of the file says little about where the record it has just
+	 * returned ended; matching the length in each returned record's leader
+	 * against these offsets does.</p>
+	 *
+	 * <p>A record the reader could not parse, or recovered without 
+	 * reading its terminator, leaves the offsets out of step with the 
+	 * records.  From then on no end is known, so a checkpoint can only 
+	 * fall back to an earlier record, never skip ahead of one.</p>
+	 */
+	static class TerminatorTrackingStream extends FilterInputStream {
+		long position;
+		boolean betweenRecords = true;
+		boolean inStep = true;
+		long lastEnd;
+		ArrayDeque<Long> starts = new ArrayDeque<Long>();
+		ArrayDeque<Long> ends = new ArrayDeque<Long>();
+		
+		TerminatorTrackingStream(InputStream in, long start) {
+			super(in);
+			position = start;
+			lastEnd = start;
+		}
+		
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				track((byte) b, position);
+				position++;
+			}
+			return b;
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = in.read(b, off, len);
+			for (int i=0; i < count; i++) {
+				track(b[off + i], position + i);
+			}
+			if (count > 0) {
+				position += count;
+			}
+			return count;
+		}
+		
+		/**
+		 * <p>Notes the byte at offset if it starts or ends a record.</p>
+		 */
+		private void track(byte b, long offset) {
+			if (!inStep) {
+				return;
+			}
+			if (betweenRecords && !MarcFileSplitter.isPadding(b)) {
+				starts.add(offset);
+				betweenRecords = false;
+			}
+			if (b == MappedMarcReader.RECORD_TERMINATOR) {
+				ends.add(offset + 1);
+				betweenRecords = true;
+			}
+		}
+		
+		/**
+		 * <p>Skipped bytes are read so that no terminator is missed.</p>
+		 */
+		public long skip(long n) throws IOException {
+			if (n <= 0) {
+				return 0;
+			}
+			int count = read(new byte[(int) Math.min(n, 8192)]);
+			return Math.max(count, 0);
+		}
+		
+		public boolean markSupported() {
+			return false;
+		}
+		
+		/**
+		 * <p>Returns the end of the next record, or -1 if it is not known:
+		 * the record could not be parsed, its leader length does not end 
+		 * on a terminator, or an earlier record left the offsets out of 
+		 * step.</p>
+		 *
+		 * @param  record    	the record the reader returned, or null if
+		 * 						it could not parse one
+		 */
+		long nextEnd(Record record) {
+			if (!inStep) {
+				return -1;
+			}
+			Long start = starts.poll();
+			while (start != null && start < lastEnd) {
+				start = starts.poll();
+			}
+			if (record == null || start == null) {
+				return outOfStep();
+			}
+			long expected = start + record.getLeader().getRecordLength();
+			Long end = ends.poll();
+			while (end != null && end < expected) {
+				end = ends.poll();
+			}
+			if (end == null || end != expected) {
+				return outOfStep();
+			}
+			lastEnd = end;
+			return end;
+		}
+		
+		private long outOfStep() {
+			inStep = false;
+			starts.clear();
+			ends.clear();
+			return -1;
+		}
+	}
 
 	/**
 	 * <p>Constructor class that assigns passed Config object and SqlModel to 
@@ -62,302 +326,933 @@ public class LoadMarc {
 	 * @param  configObj    an instance of the Conf class
 	 * @param  sqlModObj  	an instance of the sqlModel class
 	 */
-	public LoadMarc(Conf configObj, SqlModel sqlModObj) {
+	public LoadMarc(Conf configObj, RecordStore sqlModObj) {
 		config = configObj;
 		sqlObj = sqlModObj;
 		recs = new RecordUtils(config, sqlObj);
 		logger = new Logger(config);
+		progress = new ProgressReporter(config, "Import");
 	}
 	
 	/**
 	 * <p>Loads a marc file from the file system and inserts the data into the working, local
-	 * mySql database.</p>
+	 * mySql database.  Progress through the file is reported by byte 
+	 * offset.  Returns once every record has been written.</p>
 	 *
 	 * @param  strFile    	The full file path to the marc file to load
 	 * @param  curCode  	The MARC institutional code for the organization that created the record
 	 */
 	public void loadMarcFile(String strFile, String curCode, int fileRecordId) {
+		loadMarcFile(strFile, curCode, fileRecordId, null);
+	}
+	
+	/**
+	 * <p>Loads a marc file from the offset of a checkpoint, keeping the 
+	 * checkpoint up to date as records are committed.  If the offset is 
+	 * not a record boundary of the file the whole file is loaded.</p>
+	 *
+	 * @param  strFile    	The full file path to the marc file to load
+	 * @param  curCode  	The MARC institutional code for the organization that created the record
+	 * @param  fileRecordId The system id of the file being loaded
+	 * @param  resume  		The checkpoint to start from and keep, or null
+	 * @return				true if the load ran to the end of the file, 
+	 * 						false if it could not be opened, could not be 
+	 * 						read to the end, was interrupted, or a writer 
+	 * 						could not get a connection
+	 */
+	public boolean loadMarcFile(String strFile, String curCode, int fileRecordId, FileCheckpoint resume) {
 		
-		try {			
-			
-			InputStream input = new FileInputStream(strFile);
-			//MarcReader reader = new MarcStreamReader(input);
-			MarcReader reader = new MarcPermissiveStreamReader(input, true, true);
-			
-			boolean blnHasControlIdent = false;
-	        while (reader.hasNext()) {
-	            Record record = reader.next();
-	            ArrayList<String> estcHoldingItems = new ArrayList<String>();
-	            List<ControlField> controlFields = record.getControlFields();
-	            String strControlNumKey = "";
-	            String strLastChange = "";
-	            boolean blnTypeIdentified = false;
-	            // int recType = 1;  // bib
-	            // int recType = 2; // hold
-	            // int recType = 3; // orphan
-	            int recType = 0;
-	            for (int i=0;i<controlFields.size();i++) {
-	            	
-	            	
-	            	
-	            	ControlField thisControl = controlFields.get(i);
-	            	
-	            	if (thisControl.getTag().equals("001")) {
-	            		strControlNumKey = thisControl.getData();
-	            	}
-	            	if (thisControl.getTag().equals("003")) {
-	            		blnHasControlIdent = true;
-	            	}		            	
-	            	if (thisControl.getTag().equals("005")) {
-	            		strLastChange = thisControl.getData();
-	            	}
-	            }
-	            
-	            	if (strControlNumKey.matches("^[S|N|R|W|T]\\d+")) {
-	            		// if here then this is an ESTC bib or holding record
-	            		if (blnHasControlIdent) {
-	            			recType = 1;
-	            			System.out.println("Processing Bib Record");
-	            		} else {
-	            			recType = 2;
-	            			System.out.println("Processing Holding Record");
-	            		}    	
-		            } else {
-		            	// if here, then this is an unmatched record
-		            	recType = 3;
-		            	System.out.println("Processing Un-Matched Record");
-		            }
-
-	            
-	            
-	            if (strLastChange.length() < 1) {
-	            	strLastChange = "0";
-	            }
-	            double moddate;
-	            moddate = Double.parseDouble(strLastChange);
-            
-	            // Now check and see if this record already exists if we got a control key
-	            if (strControlNumKey.length() > 0 || recType == 0) {
-	            	
-	            	int intRecordId = recs.duplicateRecordCheck(curCode, strControlNumKey, moddate, recType);
-	            	
-	            	if (intRecordId > -1) {
-	            	
-	            	
-		            	if (intRecordId == 0) {
-		            		intRecordId = sqlObj.insertRecordRecord(fileRecordId, recType, strControlNumKey, moddate);
-		            		logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Inserted New Record With Control Number "+strControlNumKey+" and System ID "+intRecordId); 
-		            	} else {
-		            		logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Modifying existing record with system ID "+intRecordId);
-		            	}
-		            	
-		            	// now here I write all of the field data for the record to the system
-		            	logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Writing new data for record "+intRecordId); 
+		checkpoint = resume;
+		writerFailed = false;
+		long start = resumeOffset(strFile);
+		if (config.parsethreads > 1) {
+			return loadMarcFileChunked(strFile, curCode, fileRecordId, config.parsethreads, start) && !writerFailed;
+		}
+		
+		// the memory mapped reader falls back to the permissive stream
+		// reader record by record, so either reads the same file
+		FileInputStream input = null;
+		TerminatorTrackingStream tracked = null;
+		MappedMarcReader mapped = null;
+		MarcReader reader;
+		try {
+			if (MappedMarcReader.MAPPED.equalsIgnoreCase(config.marcreader)) {
+				mapped = new MappedMarcReader(strFile, start, Long.MAX_VALUE);
+				reader = mapped;
+			} else {
+				input = new FileInputStream(strFile);
+				input.getChannel().position(start);
+				tracked = new TerminatorTrackingStream(input, start);
+				//MarcReader reader = new MarcStreamReader(input);
+				reader = new MarcPermissiveStreamReader(tracked, true, true);
+			}
+		} catch (IOException e) {
+			logger.error("Failed to load MARC file");
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException closeError) {
+					// ignore
+				}
+			}
+			return false;
+		}
+		File marcFile = new File(strFile);
+		progress = new ProgressReporter(config, "Import of " + marcFile.getName());
+		progress.begin(marcFile.length(), true);
+		
+		ArrayBlockingQueue<ParsedRecord> parsed = new ArrayBlockingQueue<ParsedRecord>(Math.max(1, config.importqueuesize));
+		ArrayList<ArrayBlockingQueue<RecordJob>> jobQueues = new ArrayList<ArrayBlockingQueue<RecordJob>>();
+		ArrayList<Thread> stages = startWriters(jobQueues, curCode, fileRecordId);
+		Thread transformer = new Thread(new RecordTransformer(parsed, jobQueues, curCode), "marc-transform");
+		transformer.start();
+		stages.add(transformer);
+		
+		boolean finished = true;
+		try {
+			try {
+				while (reader.hasNext()) {
+					ParsedRecord next;
+					try {
+						next = new ParsedRecord(reader.next(), false);
+					} catch (MarcException e) {
+						logger.error("Unable to parse record: {}", e.getMessage());
+						next = new ParsedRecord(null, true);
+					}
+					next.ordinal = nextOrdinal();
+					if (tracked != null) {
+						next.end = tracked.nextEnd(next.record);
+					} else if (!next.failed) {
+						next.end = mapped.getPosition();
+					}
+					parsed.put(next);
+					
+					if (mapped != null) {
+						progress.setPosition(mapped.getPosition());
+					} else {
+						try {
+							progress.setPosition(input.getChannel().position());
+						} catch (IOException e) {
+							// position is only used for the progress estimate
+						}
+					}
+					progress.setQueueDepth(parsed.size() + queueDepth(jobQueues));
+				}
+			} catch (MarcException e) {
+				// the rest of the file is still to be loaded, so the 
+				// checkpoint must be kept
+				logger.error("Stopped reading MARC file {}: {}", strFile, e.getMessage());
+				finished = false;
+			} finally {
+				parsed.put(END_OF_RECORDS);
+			}
+			for (int s=0; s < stages.size(); s++) {
+				stages.get(s).join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted while loading MARC file {}", strFile);
+			finished = false;
+		} finally {
+			if (mapped != null) {
+				if (mapped.getFallbackCount() > 0) {
+					logger.info("{} records in {} were read with the permissive reader", mapped.getFallbackCount(), strFile);
+				}
+				mapped.close();
+			} else {
+				try {
+					input.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		progress.finish();
+		return finished && !writerFailed;
+		
+	}
 	
-		            	List<ControlField> controlFieldsAll = record.getControlFields();
-			            for (int ivf=0;ivf<controlFieldsAll.size();ivf++) {
-			            	ControlField thisControlField = controlFieldsAll.get(ivf);
-			            	String thisControlTag = thisControlField.getTag();
-			            	String thisControlData = thisControlField.getData();
-			            	int fieldId = sqlObj.insertFieldRecord(intRecordId, thisControlTag, thisControlData, 1);	
-	            			if (fieldId > 0) {
-	            				logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Successfully saved field with id "+fieldId); 
+	/**
+	 * <p>Returns the offset to start loading a file at: the offset of the 
+	 * checkpoint if it is a record boundary of the file, else the start 
+	 * of the file.</p>
+	 */
+	private long resumeOffset(String strFile) {
+		if (checkpoint == null || checkpoint.getStartOffset() == 0) {
+			return 0;
+		}
+		long offset = checkpoint.getStartOffset();
+		MarcFileSplitter splitter = null;
+		try {
+			splitter = new MarcFileSplitter(strFile);
+			if (splitter.isBoundary(offset)) {
+				logger.info("Resuming {} at offset {} after {} records", strFile, offset, checkpoint.getStartOrdinal());
+				return offset;
+			}
+			logger.error("Checkpoint offset {} is not a record boundary of {}; loading the whole file", offset, strFile);
+		} catch (IOException e) {
+			logger.error("Unable to check checkpoint offset of {}: {}", strFile, e.getMessage());
+		} finally {
+			if (splitter != null) {
+				splitter.close();
+			}
+		}
+		checkpoint.restart(0, 0);
+		return 0;
+	}
 	
-	            			} else {
-	            				logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Error saving field"); 
-	            			}
-			            }
-			            // add a 003 control identifer if there isn't one
-			            if (!blnHasControlIdent) {
-			            	int insertControlIdent = sqlObj.insertFieldRecord(intRecordId, "003", curCode, 1);
-	            			if (insertControlIdent > 0) {
-	            				logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Successfully set missing institutional code in 003 field"); 
-	            			} else {
-	            				logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Error setting missing institutional code in 003 field"); 
-	            			}
-			            }
-			            
-			            List<DataField> dataFieldsAll = record.getDataFields();
-			            for (int idf=0;idf<dataFieldsAll.size();idf++) {
-			            	DataField thisDataField = dataFieldsAll.get(idf);
-			            	String thisDataTag = thisDataField.getTag();
-			            	String fieldToString = thisDataField.toString();
-			            	int datafieldId = sqlObj.insertFieldRecord(intRecordId, thisDataTag, fieldToString, 2);
-			            	if (datafieldId > 0) {
-			            		logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Successfully inserted Field " + thisDataTag + " into database with ID " + datafieldId); 
-			            	} else {
-			            		logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Failed to insert Field " + thisDataTag + " into database."); 
-			            	}
-			            	
-			            	// Handle Subfileds. 
-			            	List<Subfield> subFields = thisDataField.getSubfields();
-			            	if (subFields.size() > 0) {
-					            for (int isf=0;isf<subFields.size();isf++) {
-					            	Subfield thisSubfield = subFields.get(isf);
-					            	String thisSubfieldTag = Character.toString(thisSubfield.getCode());
-					            	String thisSubfieldData = thisSubfield.getData();
-					            	
-					            	// Add 852s to holdings stack if this is an ESTC record
-					            	// need to convert this to a hashmap that returns all the subfield values
-					            	if ((thisDataTag.equals("852")) && (curCode.equals("estc")) && (thisSubfieldTag.equals("a"))) {
-					            		estcHoldingItems.add(thisSubfieldData.toString());
-					            	}
-					            	
-					            	int intSubfieldId = sqlObj.insertSubfieldRecord(datafieldId, thisSubfieldTag, thisSubfieldData);
-			            			if (intSubfieldId > 0) {
-			            				logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Successfully saved subfield with id "+intSubfieldId); 
-			            			} else {
-			            				logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Failed to save subfield"); 
-			            			}
-					            }
-			            	}
-			            	
-			            	// Add 852s to holdings stack if this is an ESTC record
-			            	// need to convert this to a hashmap that returns all the subfield values
-			            	if ((thisDataTag.equals("852")) & (curCode.equals("estc"))) {
-			            		estcHoldingItems.add(fieldToString = thisDataField.toString());
-			            	}
-			            }
-	            		
-	            	} else {
-	            		String skipRecType = "holding";
-	            		if (recType == 1) {
-	            			skipRecType = "bibliographic";
-	            		}
-	            		logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Skipping duplicate " + skipRecType + " record with control " + strControlNumKey + " and modification datetimestamp " + moddate);
-	            	}
-	            	
-	            } else {
-	            	logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Unable to process record due to missing or blank control field [001]");
-	            }
-
-	            // now create the holdings records for held items
-	            for (int ihi = 0; ihi < estcHoldingItems.size(); ihi++) {
-	            	loadMarcESTCHoldingRecord(record, estcHoldingItems.get(ihi), fileRecordId);
-	            }
-	            
-	        }
-	        	
-		} catch (FileNotFoundException e) {
-			logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Failed to load MARC file");
+	/**
+	 * <p>Numbers the next record read, if the load is keeping a 
+	 * checkpoint.</p>
+	 */
+	private int nextOrdinal() {
+		if (checkpoint == null) {
+			return 0;
 		}
-		
+		return checkpoint.nextOrdinal();
 	}
 	
 	/**
-	 * <p>Loads a marc file from the file system and inserts the data into the working, local
-	 * mySql database.</p>
+	 * <p>Marks a record done in the checkpoint, if the load is keeping 
+	 * one.</p>
+	 */
+	private void recordDone(int ordinal, long end) {
+		if (checkpoint != null) {
+			checkpoint.recordDone(ordinal, end);
+		}
+	}
+	
+	/**
+	 * <p>Loads a marc file by parsing chunks of it on a pool of threads.
+	 * At most one more chunk than there are threads is parsed ahead of the
+	 * writers, so memory stays bounded however large the file is.</p>
 	 *
 	 * @param  strFile    	The full file path to the marc file to load
 	 * @param  curCode  	The MARC institutional code for the organization that created the record
+	 * @param  fileRecordId The system id of the file being loaded
+	 * @param  threads  	The number of parse threads
+	 * @param  offset  		The record boundary to start at
+	 * @return				true if the load ran to the end of the file,
+	 * 						false if a chunk could not be read to its end or
+	 * 						the load was interrupted
 	 */
-	public void loadMarcESTCHoldingRecord(Record record, String curCode, int fileRecordId) {		
-
-		System.out.println("Constructing Holding Record for " + curCode);
+	private boolean loadMarcFileChunked(String strFile, String curCode, int fileRecordId, int threads, long offset) {
+		
+		MarcFileSplitter splitter;
+		try {
+			splitter = new MarcFileSplitter(strFile);
+		} catch (IOException e) {
+			logger.error("Failed to load MARC file");
+			return false;
+		}
+		File marcFile = new File(strFile);
+		progress = new ProgressReporter(config, "Import of " + marcFile.getName());
+		progress.begin(splitter.size(), true);
+		
+		ArrayList<ArrayBlockingQueue<RecordJob>> jobQueues = new ArrayList<ArrayBlockingQueue<RecordJob>>();
+		ArrayList<Thread> writers = startWriters(jobQueues, curCode, fileRecordId);
+		ExecutorService parsers = Executors.newFixedThreadPool(threads);
+		LinkedList<Future<ParsedChunk>> inFlight = new LinkedList<Future<ParsedChunk>>();
+		int fallbacks = 0;
+		boolean finished = true;
+		
+		try {
+			try {
+				long start = offset;
+				while (start < splitter.size() || !inFlight.isEmpty()) {
+					while (start < splitter.size() && inFlight.size() <= threads) {
+						long end = splitter.chunkEnd(start);
+						inFlight.add(parsers.submit(new ChunkParser(strFile, splitter, start, end, curCode)));
+						start = end;
+					}
+					
+					// chunks are taken in the order they were cut, so jobs
+					// reach the writers in file order
+					ParsedChunk chunk = inFlight.removeFirst().get();
+					for (int i=0; i < chunk.jobs.size(); i++) {
+						progress.nextRecord();
+						int ordinal = nextOrdinal();
+						long end = (i == chunk.jobs.size() - 1) ? chunk.end : -1;
+						RecordJob job = chunk.jobs.get(i);
+						if (job == null) {
+							progress.error();
+							progress.recordDone(0);
+							recordDone(ordinal, end);
+						} else {
+							job.ordinal = ordinal;
+							job.end = end;
+							route(job, jobQueues);
+						}
+					}
+					fallbacks += chunk.fallbacks;
+					if (chunk.stopped) {
+						
+						// the records after the last one read are still to be
+						// loaded, so the checkpoint must be kept
+						finished = false;
+						break;
+					}
+					progress.setPosition(chunk.end);
+					progress.setQueueDepth(queueDepth(jobQueues));
+				}
+			} catch (IOException e) {
+				logger.error("Stopped reading MARC file {}: {}", strFile, e.getMessage());
+				finished = false;
+			} catch (ExecutionException e) {
+				logger.error("Stopped reading MARC file {}: {}", strFile, e.getCause().toString());
+				finished = false;
+			} finally {
+				parsers.shutdownNow();
+				for (int w=0; w < jobQueues.size(); w++) {
+					jobQueues.get(w).put(END_OF_JOBS);
+				}
+			}
+			for (int w=0; w < writers.size(); w++) {
+				writers.get(w).join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted while loading MARC file {}", strFile);
+			finished = false;
+		} finally {
+			splitter.close();
+		}
+		if (fallbacks > 0) {
+			logger.info("{} records in {} were read with the permissive reader", fallbacks, strFile);
+		}
+		progress.finish();
+		return finished;
+		
+	}
+	
+	/**
+	 * <p>Parses and transforms the records of one chunk.  Reads the chunk
+	 * with MappedMarcReader, or with the permissive stream reader over the
+	 * chunk's bytes, following the marcreader option.</p>
+	 */
+	class ChunkParser implements Callable<ParsedChunk> {
+		
+		String strFile;
+		MarcFileSplitter splitter;
+		long start;
+		long end;
+		String curCode;
+		
+		ChunkParser(String file, MarcFileSplitter fileSplitter, long chunkStart, long chunkEnd, String code) {
+			strFile = file;
+			splitter = fileSplitter;
+			start = chunkStart;
+			end = chunkEnd;
+			curCode = code;
+		}
+		
+		public ParsedChunk call() throws IOException {
+			ParsedChunk chunk = new ParsedChunk(end);
+			MappedMarcReader mapped = null;
+			TerminatorTrackingStream tracked = null;
+			MarcReader reader;
+			if (MappedMarcReader.MAPPED.equalsIgnoreCase(config.marcreader)) {
+				mapped = new MappedMarcReader(strFile, start, end);
+				reader = mapped;
+			} else {
+				tracked = new TerminatorTrackingStream(new ByteArrayInputStream(splitter.read(start, end)), start);
+				reader = new MarcPermissiveStreamReader(tracked, true, true);
+			}
+			
+			// the end of the last record read, in case the chunk cannot be 
+			// read to its end
+			long lastEnd = start;
+			try {
+				while (reader.hasNext()) {
+					Record record;
+					try {
+						record = reader.next();
+					} catch (MarcException e) {
+						logger.error("Unable to parse record: {}", e.getMessage());
+						chunk.jobs.add(null);
+						lastEnd = (tracked != null) ? tracked.nextEnd(null) : -1;
+						continue;
+					}
+					chunk.jobs.add(transformOrNull(record, curCode));
+					lastEnd = (tracked != null) ? tracked.nextEnd(record) : mapped.getPosition();
+				}
+			} catch (MarcException e) {
+				logger.error("Stopped reading MARC file {} at offset {}: {}", strFile, start, e.getMessage());
+				chunk.stopped = true;
+				chunk.end = lastEnd;
+			} finally {
+				if (mapped != null) {
+					chunk.fallbacks = mapped.getFallbackCount();
+					mapped.close();
+				}
+			}
+			return chunk;
+		}
+	}
+	
+	/**
+	 * <p>Creates a queue and starts a writer thread for each of the 
+	 * configured importwriters.</p>
+	 *
+	 * @param  jobQueues  	filled with one queue per writer
+	 * @return				the writer threads
+	 */
+	private ArrayList<Thread> startWriters(ArrayList<ArrayBlockingQueue<RecordJob>> jobQueues, String curCode, int fileRecordId) {
+		int queueSize = Math.max(1, config.importqueuesize);
+		int writerCount = Math.max(1, config.importwriters);
+		ArrayList<Thread> writers = new ArrayList<Thread>();
+		for (int w=0; w < writerCount; w++) {
+			ArrayBlockingQueue<RecordJob> jobs = new ArrayBlockingQueue<RecordJob>(queueSize);
+			jobQueues.add(jobs);
+			Thread writer = new Thread(new RecordWriter(jobs, curCode, fileRecordId), "marc-writer-" + (w + 1));
+			writer.start();
+			writers.add(writer);
+		}
+		return writers;
+	}
+	
+	/**
+	 * <p>Hands a job to its writer, chosen by control number so that every
+	 * version of a record goes to the same writer.  Blocks while that 
+	 * writer's queue is full.</p>
+	 */
+	private void route(RecordJob job, ArrayList<ArrayBlockingQueue<RecordJob>> jobQueues) throws InterruptedException {
+		int writer = (job.control.hashCode() & 0x7fffffff) % jobQueues.size();
+		jobQueues.get(writer).put(job);
+	}
+	
+	private static int queueDepth(ArrayList<ArrayBlockingQueue<RecordJob>> jobQueues) {
+		int depth = 0;
+		for (int w=0; w < jobQueues.size(); w++) {
+			depth += jobQueues.get(w).size();
+		}
+		return depth;
+	}
+	
+	/**
+	 * <p>Calls transformRecord(), logging and returning null for a record
+	 * that cannot be transformed.</p>
+	 */
+	private RecordJob transformOrNull(Record record, String curCode) {
+		try {
+			return transformRecord(record, curCode);
+		} catch (RuntimeException e) {
+			logger.error("Unable to process record: {}", e.toString());
+		}
+		return null;
+	}
+	
+	/**
+	 * <p>The transform stage.  Reads the control fields of each parsed 
+	 * record, classifies it, builds the field rows and raw copy for it and
+	 * for any ESTC holding records made from it, and routes the job to a 
+	 * writer by control number.</p>
+	 */
+	class RecordTransformer implements Runnable {
+		
+		ArrayBlockingQueue<ParsedRecord> parsed;
+		ArrayList<ArrayBlockingQueue<RecordJob>> jobQueues;
+		String curCode;
+		
+		RecordTransformer(ArrayBlockingQueue<ParsedRecord> parsedQueue, ArrayList<ArrayBlockingQueue<RecordJob>> writerQueues, String code) {
+			parsed = parsedQueue;
+			jobQueues = writerQueues;
+			curCode = code;
+		}
+		
+		public void run() {
+			try {
+				try {
+					while (true) {
+						ParsedRecord next = parsed.take();
+						if (next == END_OF_RECORDS) {
+							break;
+						}
+						progress.nextRecord();
+						if (next.failed) {
+							progress.error();
+							progress.recordDone(0);
+							recordDone(next.ordinal, next.end);
+							continue;
+						}
+						RecordJob job = transformOrNull(next.record, curCode);
+						if (job == null) {
+							progress.error();
+							progress.recordDone(0);
+							recordDone(next.ordinal, next.end);
+							continue;
+						}
+						job.ordinal = next.ordinal;
+						job.end = next.end;
+						route(job, jobQueues);
+					}
+				} finally {
+					for (int w=0; w < jobQueues.size(); w++) {
+						jobQueues.get(w).put(END_OF_JOBS);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * <p>A writer stage.  Holds its own RecordStore, and so its own 
+	 * connection, and writes the jobs routed to it in the order they 
+	 * arrive.</p>
+	 * 
+	 * <p>Records are written in transactions of up to importchunksize 
+	 * records, each record rolled back on its own if any of its writes 
+	 * fail.  A transaction is also committed whenever the writer has 
+	 * caught up with the transform stage, so it is never held open while
+	 * waiting.  If a commit fails, its records are written again one 
+	 * transaction each.</p>
+	 * 
+	 * <p>The control number of each record is claimed in KEY_CLAIMS until
+	 * the transaction holding it has committed.</p>
+	 * 
+	 * <p>A writer that cannot get a connection does not wait for one, as 
+	 * the whole load would stall behind its full queue.  It discards its
+	 * records instead and the load is reported as unfinished, so the 
+	 * file's checkpoint is kept for the next run.</p>
+	 */
+	class RecordWriter implements Runnable {
+		
+		ArrayBlockingQueue<RecordJob> jobs;
+		String curCode;
+		int fileRecordId;
+		HashSet<String> claimed = new HashSet<String>();
 		
+		RecordWriter(ArrayBlockingQueue<RecordJob> jobQueue, String code, int fileId) {
+			jobs = jobQueue;
+			curCode = code;
+			fileRecordId = fileId;
+		}
+		
+		public void run() {
+			RecordStore store = RecordStoreFactory.open(config);
+			if (!store.tryOpenConnection()) {
+				logger.error("A MARC writer could not get a database connection; its records will not be written");
+				writerFailed = true;
+				discardJobs();
+				return;
+			}
+			RecordUtils writerRecs = new RecordUtils(config, store);
+			int chunkSize = Math.max(1, config.importchunksize);
+			ArrayList<RecordJob> chunk = new ArrayList<RecordJob>();
+			boolean open = false;
+			try {
+				while (true) {
+					RecordJob job = jobs.poll();
+					if (job == null) {
+						if (open) {
+							commitChunk(store, writerRecs, chunk);
+							open = false;
+						}
+						job = jobs.take();
+					}
+					if (job == END_OF_JOBS) {
+						break;
+					}
+					String key = job.control.toLowerCase();
+					if (!KEY_CLAIMS.tryClaim(key, this)) {
+						// another file's writer has this record in an open
+						// transaction
+						if (open) {
+							commitChunk(store, writerRecs, chunk);
+							open = false;
+						}
+						KEY_CLAIMS.claim(key, this);
+					}
+					claimed.add(key);
+					if (!open) {
+						open = store.beginTransaction();
+					}
+					int fields = writeJob(store, writerRecs, job, curCode, fileRecordId);
+					if (fields < 0) {
+						progress.error();
+						fields = 0;
+						recordDone(job.ordinal, job.end);
+					} else {
+						chunk.add(job);
+					}
+					progress.recordDone(fields);
+					if (open && chunk.size() >= chunkSize) {
+						commitChunk(store, writerRecs, chunk);
+						open = false;
+					} else if (!open) {
+						releaseClaims();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				if (open) {
+					commitChunk(store, writerRecs, chunk);
+				}
+				releaseClaims();
+				if (checkpoint != null) {
+					checkpoint.save(store);
+				}
+				store.closeConnection();
+			}
+		}
+		
+		/**
+		 * <p>Commits the open transaction.  If that fails every record in it
+		 * is written again in a transaction of its own.  The records are 
+		 * then done as far as the checkpoint is concerned.</p>
+		 */
+		private void commitChunk(RecordStore store, RecordUtils writerRecs, ArrayList<RecordJob> chunk) {
+			boolean committed = store.commitTransaction();
+			writerRecs.transactionDone(committed);
+			if (!committed && chunk.size() > 0) {
+				logger.error("Failed to commit {} records; writing them one at a time", chunk.size());
+				for (int i=0; i < chunk.size(); i++) {
+					RecordJob job = chunk.get(i);
+					store.beginTransaction();
+					int fields = writeJob(store, writerRecs, job, curCode, fileRecordId);
+					committed = store.commitTransaction();
+					writerRecs.transactionDone(committed);
+					if (!committed || fields < 0) {
+						logger.error("Failed to write record {}", job.control);
+						progress.error();
+					}
+				}
+			}
+			if (checkpoint != null) {
+				for (int i=0; i < chunk.size(); i++) {
+					checkpoint.recordDone(chunk.get(i).ordinal, chunk.get(i).end);
+				}
+				checkpoint.saveIfDue(store);
+			}
+			chunk.clear();
+			releaseClaims();
+		}
+		
+		/**
+		 * <p>Takes and drops every job routed to this writer.</p>
+		 */
+		private void discardJobs() {
+			try {
+				while (jobs.take() != END_OF_JOBS) {
+					progress.error();
+					progress.recordDone(0);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		private void releaseClaims() {
+			KEY_CLAIMS.release(claimed, this);
+			claimed.clear();
+		}
+	}
+	
+	/**
+	 * <p>Writes a record and any ESTC holding records made from it as one
+	 * record of the writer's open transaction.</p>
+	 *
+	 * @param  store    		The store of the calling writer
+	 * @param  writerRecs  		The RecordUtils of the calling writer
+	 * @param  job  			The record to write
+	 * @param  curCode  		The MARC institutional code of the file being loaded
+	 * @param  fileRecordId  	The system id of the file being loaded
+	 * @return					The number of fields written, or -1 if the record was rolled back
+	 */
+	private int writeJob(RecordStore store, RecordUtils writerRecs, RecordJob job, String curCode, int fileRecordId) {
+		boolean ok = store.beginRecord();
+		int fields = 0;
+		try {
+			if (ok) {
+				fields = writeRecord(store, writerRecs, job.control, job.moddate, job.recType, curCode, fileRecordId, job.batch, job.raw);
+				
+				// now create the holdings records for held items
+				for (int ihi = 0; ihi < job.holdingCodes.size() && fields > -1; ihi++) {
+					int holdingFields = writeRecord(store, writerRecs, job.control, job.moddate, 3, job.holdingCodes.get(ihi), fileRecordId, job.holdingBatches.get(ihi), job.holdingRaws.get(ihi));
+					fields = holdingFields < 0 ? -1 : fields + holdingFields;
+				}
+				ok = fields > -1;
+			}
+		} catch (RuntimeException e) {
+			logger.error("Unable to write record {}: {}", job.control, e.toString());
+			ok = false;
+		}
+		boolean kept = store.endRecord(ok);
+		writerRecs.recordDone(kept);
+		if (!kept) {
+			logger.error("Rolled back record {}", job.control);
+			return -1;
+		}
+		return fields;
+	}
+	
+	/**
+	 * <p>Reads the control fields of a record, classifies it, and builds 
+	 * the field rows and raw copy that a writer needs for it and for each
+	 * ESTC holding record made from it.</p>
+	 *
+	 * @param  record    	The MARC record to transform
+	 * @param  curCode  	The MARC institutional code of the file being loaded
+	 * @return				The job to write, or null if the record has no control number
+	 */
+	RecordJob transformRecord(Record record, String curCode) {
+		
+        boolean blnHasControlIdent = false;
         List<ControlField> controlFields = record.getControlFields();
         String strControlNumKey = "";
         String strLastChange = "";
-        // manually set the type to 3, which will be the type for
-        // programmatically created child records
-        int recType = 3;
+        // int recType = 1;  // bib
+        // int recType = 2; // hold
+        // int recType = 3; // orphan
+        int recType = 0;
         for (int i=0;i<controlFields.size();i++) {
         	ControlField thisControl = controlFields.get(i);
         	if (thisControl.getTag().equals("001")) {
         		strControlNumKey = thisControl.getData();
-        	}	            	
+        	}
+        	if (thisControl.getTag().equals("003")) {
+        		blnHasControlIdent = true;
+        	}		            	
         	if (thisControl.getTag().equals("005")) {
         		strLastChange = thisControl.getData();
         	}
         }
         
+        recType = classifyRecord(strControlNumKey, blnHasControlIdent);
+        if (recType == 1) {
+        	progress.debug("Processing Bib Record");
+        } else if (recType == 2) {
+        	progress.debug("Processing Holding Record");
+        } else {
+        	progress.debug("Processing Un-Matched Record");
+        }
+        
+        if (strControlNumKey.length() < 1) {
+        	logger.error("Unable to process record due to missing or blank control field [001]");
+        	return null;
+        }
+        
         if (strLastChange.length() < 1) {
         	strLastChange = "0";
         }
-        double moddate;
-        moddate = Double.parseDouble(strLastChange);
-
         
-        // Now check and see if this record already exists if we got a control key
-        if (strControlNumKey.length() > 0) {
-        	
-        	int intRecordId = recs.duplicateRecordCheck(curCode, strControlNumKey, moddate, recType);
-        	
-        	if (intRecordId > -1) {
-        	
-        	
-            	if (intRecordId == 0) {
-            		intRecordId = sqlObj.insertRecordRecord(fileRecordId, recType, strControlNumKey, moddate);
-            		logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Inserted New Record With Control Number "+strControlNumKey+" and System ID "+intRecordId); 
-            	} else {
-            		logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Modifying existing record with system ID "+intRecordId);
-            	}
-            	
-            	// now here I write all of the field data for the record to the system
-            	logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Writing new data for record "+intRecordId); 
-
-            	List<ControlField> controlFieldsAll = record.getControlFields();
-	            for (int ivf=0;ivf<controlFieldsAll.size();ivf++) {
-	            	ControlField thisControlField = controlFieldsAll.get(ivf);
-	            	String thisControlTag = thisControlField.getTag();
-	            	String thisControlData = thisControlField.getData();
-	            	int fieldId = sqlObj.insertFieldRecord(intRecordId, thisControlTag, thisControlData, 1);	
-        			if (fieldId > 0) {
-        				logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Successfully saved field with id "+fieldId); 
-
-        			} else {
-        				logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Error saving field"); 
-        			}
-	            }
-	            // add a 003 control identifer if there isn't one
-            	int insertControlIdent = sqlObj.insertFieldRecord(intRecordId, "003", curCode, 1);
-    			if (insertControlIdent > 0) {
-    				logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Successfully set missing institutional code in 003 field"); 
-    			} else {
-    				logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Error setting missing institutional code in 003 field"); 
-    			}
-	            
-	            List<DataField> dataFieldsAll = record.getDataFields();
-	            for (int idf=0;idf<dataFieldsAll.size();idf++) {
-	            	DataField thisDataField = dataFieldsAll.get(idf);
-	            	String thisDataTag = thisDataField.getTag();
-	            	String fieldToString = thisDataField.toString();
-	            	int datafieldId = sqlObj.insertFieldRecord(intRecordId, thisDataTag, fieldToString, 2);
-	            	if (datafieldId > 0) {
-	            		logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Successfully inserted Field " + thisDataTag + " into database with ID " + datafieldId); 
-	            	} else {
-	            		logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Failed to insert Field " + thisDataTag + " into database."); 
-	            	}
-	            	
-	            	// Handle Subfileds. 
-	            	List<Subfield> subFields = thisDataField.getSubfields();
-	            	if (subFields.size() > 0) {
-			            for (int isf=0;isf<subFields.size();isf++) {
-			            	Subfield thisSubfield = subFields.get(isf);
-			            	String thisSubfieldTag = Character.toString(thisSubfield.getCode());
-			            	String thisSubfieldData = thisSubfield.getData();
-			            	int intSubfieldId = sqlObj.insertSubfieldRecord(datafieldId, thisSubfieldTag, thisSubfieldData);
-	            			if (intSubfieldId > 0) {
-	            				logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Successfully saved subfield with id "+intSubfieldId); 
-	            			} else {
-	            				logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Failed to save subfield"); 
-	            			}
-			            }
-	            	}
-	            }
-        		
+        RecordJob job = new RecordJob();
+        job.control = strControlNumKey;
+        job.moddate = Double.parseDouble(strLastChange);
+        job.recType = recType;
+        job.batch = buildFieldBatch(record, curCode, !blnHasControlIdent);
+        
+        // keep the raw record as well so that it can be read back in one fetch
+        job.raw = RawRecordReader.encode(record);
+        
+        // Add 852s to holdings stack if this is an ESTC record
+        job.holdingCodes = collectHoldingCodes(record, curCode);
+        for (int ihi = 0; ihi < job.holdingCodes.size(); ihi++) {
+        	progress.debug("Constructing Holding Record for {}", job.holdingCodes.get(ihi));
+        	job.holdingBatches.add(buildFieldBatch(record, job.holdingCodes.get(ihi), true));
+        	job.holdingRaws.add(RawRecordReader.encode(holdingRecord(record, job.holdingCodes.get(ihi))));
+        }
+        return job;
+	}
+	
+	/**
+	 * <p>Builds the ESTC holding record made from a record for one holding
+	 * code, so that its raw copy matches the rows buildFieldBatch() makes
+	 * for it: the record's fields with the holding code added as a 003
+	 * after the other control fields.</p>
+	 *
+	 * @param  record    	The record the holding is made from
+	 * @param  holdingCode  The MARC institutional code of the holding
+	 * @return				A new record sharing the source record's fields
+	 */
+	static Record holdingRecord(Record record, String holdingCode) {
+		Record holding = MARC_FACTORY.newRecord(MARC_FACTORY.newLeader(record.getLeader().marshal()));
+		List<ControlField> controlFields = record.getControlFields();
+		for (int i=0; i < controlFields.size(); i++) {
+			holding.addVariableField(controlFields.get(i));
+		}
+		holding.addVariableField(MARC_FACTORY.newControlField("003", holdingCode));
+		List<DataField> dataFields = record.getDataFields();
+		for (int i=0; i < dataFields.size(); i++) {
+			holding.addVariableField(dataFields.get(i));
+		}
+		return holding;
+	}
+	
+	/**
+	 * <p>Checks a record against the working database and, if it is new, 
+	 * writes its record row, field rows, and raw copy.  If it is newer than
+	 * the stored version and its content has changed, the changed fields 
+	 * are written by the duplicate check and the raw copy is saved 
+	 * here.</p>
+	 *
+	 * @param  store    			The store of the calling writer
+	 * @param  writerRecs  			The RecordUtils of the calling writer
+	 * @param  strControlNumKey  	The value of the 001 field
+	 * @param  moddate  			The value of the 005 field
+	 * @param  recType  			1 = bib, 2 = holding, 3 = un-matched or ESTC holding
+	 * @param  curCode  			The MARC institutional code of the record
+	 * @param  fileRecordId  		The system id of the file being loaded
+	 * @param  batch  				The field rows of the record
+	 * @param  raw  				The compressed raw record, or null
+	 * @return						The number of fields written, or -1 if a write failed
+	 */
+	private int writeRecord(RecordStore store, RecordUtils writerRecs, String strControlNumKey, double moddate, int recType, String curCode, int fileRecordId, MarcFieldBatch batch, byte[] raw) {
+		
+    	int intRecordId = writerRecs.duplicateRecordCheck(curCode, strControlNumKey, moddate, recType, batch, raw);
+    	
+    	if (intRecordId > -1) {
+    	
+        	if (intRecordId == 0) {
+        		intRecordId = writerRecs.insertRecord(fileRecordId, curCode, recType, strControlNumKey, moddate, batch.contentHash());
+        		if (intRecordId == 0) {
+        			logger.error("Failed to insert record with control number {}", strControlNumKey);
+        			return -1;
+        		}
+        		logger.debug("Inserted New Record With Control Number {} and System ID {}", strControlNumKey, intRecordId); 
         	} else {
-        		String skipRecType = "holding";
-        		if (recType == 1) {
-        			skipRecType = "bibliographic";
+        		logger.debug("Modified changed fields of existing record with system ID {}", intRecordId);
+        		if (raw == null || !store.saveRawRecord(intRecordId, raw)) {
+        			logger.error("Failed to save the raw copy of record {}", intRecordId); 
         		}
-        		logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Skipping duplicate " + skipRecType + " record with control " + strControlNumKey + " and modification datetimestamp " + moddate);
+        		return batch.fieldCount();
         	}
         	
-        } else {
-        	logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Unable to process record due to missing or blank conrole field [001]");
-        }
+        	// now here I write all of the field data for the record to the system
+        	logger.debug("Writing new data for record {}", intRecordId); 
+        	return writeRecordFields(store, intRecordId, batch, raw);
+    		
+    	} else {
+    		String skipRecType = "holding";
+    		if (recType == 1) {
+    			skipRecType = "bibliographic";
+    		}
+    		logger.debug("Skipping duplicate {} record with control {} and modification datetimestamp {}", skipRecType, strControlNumKey, moddate);
+    	}
+    	return 0;
+	}
+	
+	/**
+	 * <p>Determines the record type from the 001 control number and whether
+	 * the record carries a 003 control identifier.  ESTC control numbers
+	 * identify bib records when a 003 is present and holding records when
+	 * it is not.  Anything else is an un-matched record.</p>
+	 *
+	 * @param  strControlNumKey    	The value of the 001 field
+	 * @param  blnHasControlIdent  	Whether the record has a 003 field
+	 * @return						1 = bib, 2 = holding, 3 = un-matched
+	 */
+	static int classifyRecord(String strControlNumKey, boolean blnHasControlIdent) {
+		if (strControlNumKey.matches("^[S|N|R|W|T]\\d+")) {
+			// if here then this is an ESTC bib or holding record
+			if (blnHasControlIdent) {
+				return 1;
+			} else {
+				return 2;
+			}    	
+		}
+		// if here, then this is an unmatched record
+		return 3;
+	}
+	
+	/**
+	 * <p>Collects the holding institution values from the 852 fields of an
+	 * ESTC record.  A holding record is created for each value returned.
+	 * Records from other institutions have no holdings stack.</p>
+	 *
+	 * @param  record    	The MARC record to read
+	 * @param  curCode  	The MARC institutional code of the file being loaded
+	 * @return				The holding codes, empty if this is not an ESTC record
+	 */
+	static ArrayList<String> collectHoldingCodes(Record record, String curCode) {
+		ArrayList<String> estcHoldingItems = new ArrayList<String>();
+		// need to convert this to a hashmap that returns all the subfield values
+		if (curCode.equals("estc")) {
+			List<DataField> holdingFields = record.getDataFields();
+			for (int idf=0;idf<holdingFields.size();idf++) {
+				DataField thisDataField = holdingFields.get(idf);
+				if (thisDataField.getTag().equals("852")) {
+					List<Subfield> subFields = thisDataField.getSubfields();
+					for (int isf=0;isf<subFields.size();isf++) {
+						Subfield thisSubfield = subFields.get(isf);
+						if (thisSubfield.getCode() == 'a') {
+							estcHoldingItems.add(thisSubfield.getData());
+						}
+					}
+					estcHoldingItems.add(thisDataField.toString());
+				}
+			}
+		}
+		return estcHoldingItems;
+	}
 	
+	/**
+	 * <p>Collects all control fields, data fields, and subfields of a MARC 
+	 * record into a MarcFieldBatch.  The record id of the rows is set by 
+	 * the writer once the record row exists.</p>
+	 *
+	 * @param  record  			The MARC record to write
+	 * @param  curCode  		The MARC institutional code to store in a 003 field
+	 * @param  addControlIdent  Whether to add a 003 field containing curCode
+	 * @return					The field rows of the record
+	 */
+	static MarcFieldBatch buildFieldBatch(Record record, String curCode, boolean addControlIdent) {
+		
+		MarcFieldBatch batch = new MarcFieldBatch();
+		
+		List<ControlField> controlFieldsAll = record.getControlFields();
+		for (int ivf=0;ivf<controlFieldsAll.size();ivf++) {
+			ControlField thisControlField = controlFieldsAll.get(ivf);
+			batch.addField(0, thisControlField.getTag(), thisControlField.getData(), 1);
+		}
+		// add a 003 control identifer if there isn't one
+		if (addControlIdent) {
+			batch.addField(0, "003", curCode, 1);
+		}
+		
+		List<DataField> dataFieldsAll = record.getDataFields();
+		for (int idf=0;idf<dataFieldsAll.size();idf++) {
+			DataField thisDataField = dataFieldsAll.get(idf);
+			MarcFieldBatch.FieldRow fieldRow = batch.addField(0, thisDataField.getTag(), thisDataField.toString(), 2);
+			List<Subfield> subFields = thisDataField.getSubfields();
+			for (int isf=0;isf<subFields.size();isf++) {
+				Subfield thisSubfield = subFields.get(isf);
+				batch.addSubfield(fieldRow, Character.toString(thisSubfield.getCode()), thisSubfield.getData());
+			}
+		}
+		
+		// hash the rows here so the work is done by the transform stage
+		// rather than the writers
+		batch.contentHash();
+		return batch;
+	}
+	
+	/**
+	 * <p>Writes the field rows of a record in one transaction, then saves 
+	 * a compressed copy of the raw record for RawRecordReader.</p>
+	 *
+	 * @param  store    		The store of the calling writer
+	 * @param  intRecordId    	The system id of the record the fields belong to
+	 * @param  batch  			The field rows built by buildFieldBatch()
+	 * @param  raw  			The compressed raw record, or null if it could not be encoded
+	 * @return					The number of fields written, or -1 on failure
+	 */
+	private int writeRecordFields(RecordStore store, int intRecordId, MarcFieldBatch batch, byte[] raw) {
+		
+		batch.setRecordId(intRecordId);
+		if (store.insertFieldBatch(batch)) {
+			logger.debug("Successfully saved {} fields and {} subfields for record {}", batch.fieldCount(), batch.subfieldCount(), intRecordId); 
+			if (raw == null || !store.saveRawRecord(intRecordId, raw)) {
+				logger.error("Failed to save the raw copy of record {}", intRecordId); 
+			}
+			return batch.fieldCount();
+		} else {
+			logger.error("Failed to save fields for record {}", intRecordId); 
+		}
+		return -1;
 	}
 
 }
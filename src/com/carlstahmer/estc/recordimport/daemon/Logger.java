@@ -33,11 +33,18 @@ package com.carlstahmer.estc.recordimport.daemon;
  * @author cstahmer
  * 
  * <p>A logging object for handling system messaging.</p>
+ * 
+ * <p>Call error(), info(), or debug() with a message template in which
+ * each {} is replaced by the next argument.  The level is checked before
+ * anything else is done, so a DEBUG call costs almost nothing when debug
+ * mode is off.  The template is only filled in, and the calling file and
+ * line number only looked up, once the message is known to be 
+ * written.</p>
  */
 public class Logger {
 	
 	Conf config;
-	SqlModel sqlObj;
+	RecordStore sqlObj;
 	
 	/**
 	 * <p>Constructor class that assigns passed Config object and SqlModel to 
@@ -48,7 +55,7 @@ public class Logger {
 	 */
 	public Logger(Conf configObj) {
 		config = configObj;
-		sqlObj = new SqlModel(config);
+		sqlObj = RecordStoreFactory.open(config);
 	}
 	
 	/**
@@ -62,19 +69,185 @@ public class Logger {
 	 * @param 	message			the message to log
 	 */
 	public void log(int messagetype, String filename, int linenumber, String message) {
-		boolean shouldPrint = false;
+		if (isLoggable(messagetype)) {
+			write(messagetype, filename, linenumber, message);
+		}	
+	}
+	
+	/**
+	 * <p>Whether messages of a type are written.  ERROR and INFO messages
+	 * always are and DEBUG messages only in debug mode.</p>
+	 *
+	 * @param  	messagetype    	[1] = error, [2] = info, [3] = debug
+	 * @return					true if a message of this type would be written
+	 */
+	public boolean isLoggable(int messagetype) {
+		return config.debug || messagetype == 1 || messagetype == 2;
+	}
+	
+	/**
+	 * <p>Logs an ERROR message.</p>
+	 *
+	 * @param 	message			the message to log
+	 */
+	public void error(String message) {
+		emit(1, message, null);
+	}
+	
+	/**
+	 * <p>Logs an ERROR message built from a template.</p>
+	 *
+	 * @param 	template		the message, with a {} for each argument
+	 * @param 	arg				the value for the {}
+	 */
+	public void error(String template, Object arg) {
+		emit(1, template, new Object[] {arg});
+	}
+	
+	/**
+	 * <p>Logs an ERROR message built from a template.</p>
+	 *
+	 * @param 	template		the message, with a {} for each argument
+	 * @param 	args			the values for each {}, in order
+	 */
+	public void error(String template, Object... args) {
+		emit(1, template, args);
+	}
+	
+	/**
+	 * <p>Logs an INFO message.</p>
+	 *
+	 * @param 	message			the message to log
+	 */
+	public void info(String message) {
+		emit(2, message, null);
+	}
+	
+	/**
+	 * <p>Logs an INFO message built from a template.</p>
+	 *
+	 * @param 	template		the message, with a {} for each argument
+	 * @param 	arg				the value for the {}
+	 */
+	public void info(String template, Object arg) {
+		emit(2, template, new Object[] {arg});
+	}
+	
+	/**
+	 * <p>Logs an INFO message built from a template.</p>
+	 *
+	 * @param 	template		the message, with a {} for each argument
+	 * @param 	args			the values for each {}, in order
+	 */
+	public void info(String template, Object... args) {
+		emit(2, template, args);
+	}
+	
+	/**
+	 * <p>Logs a DEBUG message if debug mode is on.</p>
+	 *
+	 * @param 	message			the message to log
+	 */
+	public void debug(String message) {
+		if (config.debug) {
+			emit(3, message, null);
+		}
+	}
+	
+	/**
+	 * <p>Logs a DEBUG message built from a template if debug mode is on.</p>
+	 *
+	 * @param 	template		the message, with a {} for each argument
+	 * @param 	arg				the value for the {}
+	 */
+	public void debug(String template, Object arg) {
+		if (config.debug) {
+			emit(3, template, new Object[] {arg});
+		}
+	}
+	
+	/**
+	 * <p>Logs a DEBUG message built from a template if debug mode is on.</p>
+	 *
+	 * @param 	template		the message, with a {} for each argument
+	 * @param 	arg1			the value for the first {}
+	 * @param 	arg2			the value for the second {}
+	 */
+	public void debug(String template, Object arg1, Object arg2) {
+		if (config.debug) {
+			emit(3, template, new Object[] {arg1, arg2});
+		}
+	}
+	
+	/**
+	 * <p>Logs a DEBUG message built from a template if debug mode is on.</p>
+	 *
+	 * @param 	template		the message, with a {} for each argument
+	 * @param 	args			the values for each {}, in order
+	 */
+	public void debug(String template, Object... args) {
 		if (config.debug) {
-			shouldPrint = true;
-		} else if (messagetype == 1 || messagetype == 2) {
-			shouldPrint = true;
+			emit(3, template, args);
+		}
+	}
+	
+	/**
+	 * <p>Writes a message from one of the level methods.  The calling 
+	 * file and line are read from a single stack trace taken here, two
+	 * frames below the caller, only after the level check has passed.</p>
+	 */
+	private void emit(int messagetype, String template, Object[] args) {
+		if (!isLoggable(messagetype)) {
+			return;
+		}
+		StackTraceElement[] stack = new Throwable().getStackTrace();
+		String filename = "";
+		int linenumber = 0;
+		if (stack.length > 2) {
+			filename = stack[2].getFileName();
+			linenumber = stack[2].getLineNumber();
+		}
+		write(messagetype, filename, linenumber, format(template, args));
+	}
+	
+	/**
+	 * <p>Replaces each {} in a template with the next argument.  Extra 
+	 * arguments are ignored and extra {} are left as they are.</p>
+	 *
+	 * @param 	template		the message, with a {} for each argument
+	 * @param 	args			the values for each {}, in order, or null
+	 * @return					the finished message
+	 */
+	static String format(String template, Object[] args) {
+		if (args == null || args.length == 0) {
+			return template;
 		}
-		if (shouldPrint) {
-			if (config.console) {
-				printToConsole(messagetype, filename, linenumber, message);
-			} else {
-				printToSql(messagetype, filename, linenumber, message);
+		StringBuilder message = new StringBuilder(template.length() + 16 * args.length);
+		int start = 0;
+		int next = 0;
+		while (next < args.length) {
+			int at = template.indexOf("{}", start);
+			if (at < 0) {
+				break;
 			}
-		}	
+			message.append(template, start, at);
+			message.append(String.valueOf(args[next++]));
+			start = at + 2;
+		}
+		message.append(template, start, template.length());
+		return message.toString();
+	}
+	
+	/**
+	 * <p>Sends a message that has passed the level check to the console
+	 * or to sql.</p>
+	 */
+	private void write(int messagetype, String filename, int linenumber, String message) {
+		if (config.console) {
+			printToConsole(messagetype, filename, linenumber, message);
+		} else {
+			printToSql(messagetype, filename, linenumber, message);
+		}
 	}
 	
 	
@@ -101,7 +274,9 @@ public class Logger {
 	}
 	
 	/**
-	 * <p>Prints log message to sql</p>
+	 * <p>Prints log message to sql.  Messages are queued for the shared
+	 * AsyncLogWriter and only written directly once it has been shut 
+	 * down.</p>
 	 *
 	 * @param  	messagetype    	[1] = error, [2] = info, [3] = debug
 	 * @param 	filename		the filename of the file making the call
@@ -109,6 +284,11 @@ public class Logger {
 	 * @param 	message			the message to log
 	 */
 	private void printToSql(int messagetype, String filename, int linenumber, String message) {
+		AsyncLogWriter writer = AsyncLogWriter.getWriter(config);
+		if (writer != null) {
+			writer.add(messagetype, filename, linenumber, message);
+			return;
+		}
 		boolean submitSuccess = false;
 		int retID = sqlObj.insertLogMessage(messagetype, filename, linenumber, message);
 		if (retID > 0) {
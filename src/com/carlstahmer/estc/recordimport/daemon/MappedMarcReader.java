@@ -0,0 +1,550 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.marc4j.MarcException;
+import org.marc4j.MarcPermissiveStreamReader;
+import org.marc4j.MarcReader;
+import org.marc4j.marc.Leader;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+import org.marc4j.marc.VariableField;
+import org.marc4j.marc.impl.ControlFieldImpl;
+import org.marc4j.marc.impl.DataFieldImpl;
+import org.marc4j.marc.impl.LeaderImpl;
+import org.marc4j.marc.impl.RecordImpl;
+import org.marc4j.marc.impl.SubfieldImpl;
+import org.marc4j.marc.impl.Verifier;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>A MarcReader that memory maps a binary MARC file instead of 
+ * streaming it.  Each record is located from the length in its leader 
+ * and checked against its 0x1D terminator, and its directory is read in
+ * place.  The Record returned holds one field object per directory 
+ * entry, but the text of a field and its subfields is only decoded when
+ * the field is first read.  The bytes of a record are copied out of the 
+ * mapping once, on that first read.</p>
+ * 
+ * <p>Only well formed UTF-8 records (leader position 9 = 'a') are read
+ * this way.  MARC-8 records, and records whose leader or directory do 
+ * not check out, are handed to MarcPermissiveStreamReader, so they are 
+ * read just as the stream reader would read them.  A record whose 
+ * length cannot be trusted is cut at the next 0x1D.</p>
+ * 
+ * <p>The file is mapped in windows so that files over 2GB can be read.
+ * A Record may be handed to another thread once next() has returned it,
+ * but should only be read by one thread at a time.</p>
+ */
+public class MappedMarcReader implements MarcReader {
+	
+	public static final String MAPPED = "mapped";
+	
+	static final int WINDOW_SIZE = 64 * 1024 * 1024;
+	static final int MAX_RECORD_LENGTH = 99999;
+	static final int LEADER_LENGTH = 24;
+	static final byte RECORD_TERMINATOR = 0x1D;
+	static final byte FIELD_TERMINATOR = 0x1E;
+	static final byte SUBFIELD_DELIMITER = 0x1F;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String[] TAGS = new String[1000];
+	
+	RandomAccessFile file;
+	FileChannel channel;
+	long fileSize;
+	MappedByteBuffer window = null;
+	long windowStart = 0;
+	long windowEnd = 0;
+	long position = 0;
+	int fallbacks = 0;
+	
+	/**
+	 * <p>A record read from the mapping.  Keeps a view of its source 
+	 * bytes so that fields can be decoded on demand, and so that an 
+	 * unchanged record can be saved without being written out again.</p>
+	 */
+	static class MappedRecord extends RecordImpl {
+		private static final long serialVersionUID = 1L;
+		transient ByteBuffer view;
+		byte[] bytes = null;
+		boolean sealed = false;
+		boolean modified = false;
+		
+		MappedRecord(ByteBuffer recordView, Leader leader) {
+			view = recordView;
+			setLeader(leader);
+		}
+		
+		public void addVariableField(VariableField field) {
+			if (sealed) {
+				modified = true;
+			}
+			super.addVariableField(field);
+		}
+		
+		public void removeVariableField(VariableField field) {
+			modified = true;
+			super.removeVariableField(field);
+		}
+		
+		public void setLeader(Leader leader) {
+			if (sealed) {
+				modified = true;
+			}
+			super.setLeader(leader);
+		}
+		
+		/**
+		 * <p>The source bytes of the record, copied out of the mapping the
+		 * first time they are needed.</p>
+		 */
+		synchronized byte[] bytes() {
+			if (bytes == null) {
+				bytes = new byte[view.remaining()];
+				view.duplicate().get(bytes);
+				view = null;
+			}
+			return bytes;
+		}
+		
+		/**
+		 * <p>The source ISO 2709 bytes of the record, or null if the record
+		 * has been changed since it was read.</p>
+		 */
+		byte[] sourceBytes() {
+			if (modified) {
+				return null;
+			}
+			return bytes();
+		}
+	}
+	
+	/**
+	 * <p>A control field whose data is decoded on first access.</p>
+	 */
+	static class MappedControlField extends ControlFieldImpl {
+		private static final long serialVersionUID = 1L;
+		MappedRecord record;
+		int offset;
+		int length;
+		boolean decoded = false;
+		
+		MappedControlField(String tag, MappedRecord owner, int dataOffset, int dataLength) {
+			super(tag);
+			record = owner;
+			offset = dataOffset;
+			length = dataLength;
+		}
+		
+		private void decode() {
+			if (!decoded) {
+				decoded = true;
+				super.setData(new String(record.bytes(), offset, length, UTF8));
+			}
+		}
+		
+		public String getData() {
+			decode();
+			return super.getData();
+		}
+		
+		public void setData(String data) {
+			decoded = true;
+			record.modified = true;
+			super.setData(data);
+		}
+		
+		public boolean find(String pattern) {
+			decode();
+			return super.find(pattern);
+		}
+		
+		public String toString() {
+			decode();
+			return super.toString();
+		}
+	}
+	
+	/**
+	 * <p>A data field whose subfields are split out and decoded on first 
+	 * access.</p>
+	 */
+	static class MappedDataField extends DataFieldImpl {
+		private static final long serialVersionUID = 1L;
+		MappedRecord record;
+		int offset;
+		int length;
+		boolean decoded = false;
+		
+		MappedDataField(String tag, char ind1, char ind2, MappedRecord owner, int dataOffset, int dataLength) {
+			super(tag, ind1, ind2);
+			record = owner;
+			offset = dataOffset;
+			length = dataLength;
+		}
+		
+		private void decode() {
+			if (decoded) {
+				return;
+			}
+			decoded = true;
+			byte[] bytes = record.bytes();
+			int end = offset + length;
+			int pos = offset;
+			while (pos < end && bytes[pos] != SUBFIELD_DELIMITER) {
+				pos++;
+			}
+			while (pos < end) {
+				int codePos = pos + 1;
+				int next = codePos + 1;
+				while (next < end && bytes[next] != SUBFIELD_DELIMITER) {
+					next++;
+				}
+				if (codePos < end) {
+					char code = (char) (bytes[codePos] & 0xff);
+					String data = "";
+					if (next > codePos + 1) {
+						data = new String(bytes, codePos + 1, next - codePos - 1, UTF8);
+					}
+					super.addSubfield(new SubfieldImpl(code, data));
+				}
+				pos = next;
+			}
+		}
+		
+		public void addSubfield(Subfield subfield) {
+			decode();
+			record.modified = true;
+			super.addSubfield(subfield);
+		}
+		
+		public void addSubfield(int index, Subfield subfield) {
+			decode();
+			record.modified = true;
+			super.addSubfield(index, subfield);
+		}
+		
+		public void removeSubfield(Subfield subfield) {
+			decode();
+			record.modified = true;
+			super.removeSubfield(subfield);
+		}
+		
+		public List<Subfield> getSubfields() {
+			decode();
+			return super.getSubfields();
+		}
+		
+		public List<Subfield> getSubfields(char code) {
+			decode();
+			return super.getSubfields(code);
+		}
+		
+		public Subfield getSubfield(char code) {
+			decode();
+			return super.getSubfield(code);
+		}
+		
+		public boolean find(String pattern) {
+			decode();
+			return super.find(pattern);
+		}
+		
+		public String toString() {
+			decode();
+			return super.toString();
+		}
+	}
+	
+	/**
+	 * <p>Opens and maps the first window of a MARC file.</p>
+	 *
+	 * @param  strFile    	The full file path to the marc file to read
+	 */
+	public MappedMarcReader(String strFile) throws IOException {
+		file = new RandomAccessFile(strFile, "r");
+		channel = file.getChannel();
+		fileSize = channel.size();
+	}
+	
+	/**
+	 * <p>Opens a MARC file to read only the records in a byte range, as
+	 * cut by MarcFileSplitter.</p>
+	 *
+	 * @param  strFile    	The full file path to the marc file to read
+	 * @param  start    	The offset of the first record
+	 * @param  end    		The offset just past the last record
+	 */
+	public MappedMarcReader(String strFile, long start, long end) throws IOException {
+		this(strFile);
+		position = start;
+		fileSize = Math.min(end, fileSize);
+	}
+	
+	/**
+	 * <p>Whether another record follows.  Padding between records, such as
+	 * line breaks or a trailing end of file marker, is skipped.</p>
+	 */
+	public boolean hasNext() {
+		while (position < fileSize) {
+			ensure(position, 1);
+			if (MarcFileSplitter.isPadding(at(position))) {
+				position++;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * <p>Returns the next record.  A record that cannot be read throws a
+	 * MarcException, after which reading continues with the record that
+	 * follows it.</p>
+	 */
+	public Record next() {
+		if (!hasNext()) {
+			throw new MarcException("No more records in file");
+		}
+		long start = position;
+		ensure(start, (int) Math.min(MAX_RECORD_LENGTH, fileSize - start));
+		
+		int length = fileSize - start >= 5 ? digits(start, 5) : -1;
+		if (length >= LEADER_LENGTH && start + length <= fileSize && at(start + length - 1) == RECORD_TERMINATOR) {
+			position = start + length;
+			Record record = null;
+			if (at(start + 9) == 'a') {
+				record = parse(start, length);
+			}
+			if (record == null) {
+				record = parsePermissive(start, length);
+			}
+			return record;
+		}
+		
+		// the length cannot be trusted, so cut the record at the next terminator
+		long limit = Math.min(windowEnd, start + MAX_RECORD_LENGTH);
+		long end = start;
+		while (end < limit && at(end) != RECORD_TERMINATOR) {
+			end++;
+		}
+		if (end == limit) {
+			position = limit;
+			throw new MarcException("No record terminator within " + (limit - start) + " bytes of offset " + start);
+		}
+		position = end + 1;
+		return parsePermissive(start, (int) (position - start));
+	}
+	
+	/**
+	 * <p>The byte offset of the next record, used to report progress.</p>
+	 */
+	public long getPosition() {
+		return position;
+	}
+	
+	/**
+	 * <p>The number of records that were handed to the permissive 
+	 * reader.</p>
+	 */
+	public int getFallbackCount() {
+		return fallbacks;
+	}
+	
+	/**
+	 * <p>Closes the file.  The mapping is released once the records read
+	 * from it are no longer in use.</p>
+	 */
+	public void close() {
+		window = null;
+		try {
+			channel.close();
+			file.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+	
+	/**
+	 * <p>Reads a record from its leader and directory without copying it.
+	 * Returns null if anything does not check out, so that the record can
+	 * be handed to the permissive reader instead.</p>
+	 */
+	private Record parse(long start, int length) {
+		int base = digits(start + 12, 5);
+		int indicatorCount = digits(start + 10, 1);
+		int lengthOfLength = digits(start + 20, 1);
+		int lengthOfStart = digits(start + 21, 1);
+		if (base <= LEADER_LENGTH || base > length || indicatorCount < 0 || lengthOfLength < 1 || lengthOfStart < 1
+				|| at(start + base - 1) != FIELD_TERMINATOR) {
+			return null;
+		}
+		int entryLength = 3 + lengthOfLength + lengthOfStart;
+		if ((base - 1 - LEADER_LENGTH) % entryLength != 0) {
+			return null;
+		}
+		
+		char[] leaderChars = new char[LEADER_LENGTH];
+		for (int i=0; i < LEADER_LENGTH; i++) {
+			leaderChars[i] = (char) (at(start + i) & 0xff);
+		}
+		MappedRecord record;
+		try {
+			record = new MappedRecord(view(start, length), new LeaderImpl(new String(leaderChars)));
+		} catch (RuntimeException e) {
+			return null;
+		}
+		
+		for (int entry = LEADER_LENGTH; entry < base - 1; entry += entryLength) {
+			String tag = tag(start + entry);
+			int fieldLength = digits(start + entry + 3, lengthOfLength);
+			int fieldStart = digits(start + entry + 3 + lengthOfLength, lengthOfStart);
+			if (tag == null || fieldLength < 0 || fieldStart < 0 || base + fieldStart + fieldLength > length - 1) {
+				return null;
+			}
+			int offset = base + fieldStart;
+			int dataLength = fieldLength;
+			if (dataLength > 0 && at(start + offset + dataLength - 1) == FIELD_TERMINATOR) {
+				dataLength--;
+			}
+			if (Verifier.isControlField(tag)) {
+				record.addVariableField(new MappedControlField(tag, record, offset, dataLength));
+			} else {
+				if (dataLength < indicatorCount) {
+					return null;
+				}
+				char ind1 = indicatorCount > 0 ? (char) (at(start + offset) & 0xff) : ' ';
+				char ind2 = indicatorCount > 1 ? (char) (at(start + offset + 1) & 0xff) : ' ';
+				record.addVariableField(new MappedDataField(tag, ind1, ind2, record, offset + indicatorCount, dataLength - indicatorCount));
+			}
+		}
+		record.sealed = true;
+		return record;
+	}
+	
+	/**
+	 * <p>Reads one record with MarcPermissiveStreamReader.</p>
+	 */
+	private Record parsePermissive(long start, int length) {
+		fallbacks++;
+		byte[] bytes = new byte[length];
+		ByteBuffer slice = view(start, length);
+		slice.get(bytes);
+		MarcReader reader = new MarcPermissiveStreamReader(new ByteArrayInputStream(bytes), true, true);
+		if (!reader.hasNext()) {
+			throw new MarcException("Unable to read record at offset " + start);
+		}
+		return reader.next();
+	}
+	
+	/**
+	 * <p>Maps a new window if the requested bytes are not in the current 
+	 * one.  A failure to map ends the file.</p>
+	 */
+	private void ensure(long start, int length) {
+		if (start >= windowStart && start + length <= windowEnd) {
+			return;
+		}
+		long size = Math.min(WINDOW_SIZE, fileSize - start);
+		try {
+			window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		} catch (IOException e) {
+			position = fileSize;
+			throw new MarcException("Unable to map MARC file at offset " + start + ": " + e.getMessage());
+		}
+		windowStart = start;
+		windowEnd = start + size;
+	}
+	
+	private byte at(long pos) {
+		return window.get((int) (pos - windowStart));
+	}
+	
+	/**
+	 * <p>A view of bytes in the current window that shares its memory.</p>
+	 */
+	private ByteBuffer view(long start, int length) {
+		ByteBuffer view = window.duplicate();
+		view.position((int) (start - windowStart));
+		view.limit((int) (start - windowStart) + length);
+		return view.slice();
+	}
+	
+	/**
+	 * <p>Reads an unsigned ASCII number, or -1 if any byte is not a digit.</p>
+	 */
+	private int digits(long pos, int count) {
+		int value = 0;
+		for (int i=0; i < count; i++) {
+			byte b = at(pos + i);
+			if (b < '0' || b > '9') {
+				return -1;
+			}
+			value = value * 10 + (b - '0');
+		}
+		return value;
+	}
+	
+	/**
+	 * <p>Reads a three character tag.  Numeric tags share one String per 
+	 * tag.  Returns null for a tag that is not ASCII.</p>
+	 */
+	private String tag(long pos) {
+		int number = digits(pos, 3);
+		if (number >= 0) {
+			String tag = TAGS[number];
+			if (tag == null) {
+				tag = new String(new char[] {(char) at(pos), (char) at(pos + 1), (char) at(pos + 2)});
+				TAGS[number] = tag;
+			}
+			return tag;
+		}
+		char[] chars = new char[3];
+		for (int i=0; i < 3; i++) {
+			byte b = at(pos + i);
+			if (b < 0x20 || b > 0x7e) {
+				return null;
+			}
+			chars[i] = (char) b;
+		}
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,337 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>Holds the records_has_fields and fields_has_subfields rows for one
+ * or more MARC records so that they can be written to the database in a 
+ * single batched transaction.  Field ids are filled in by 
+ * SqlModel.insertFieldBatch() once the rows have been written.</p>
+ * 
+ * <p>Each row can also carry an MD5 hash of its content, which is stored
+ * with it so that a later version of the record can be compared field by 
+ * field.  See contentHash() and matchStoredFields().</p>
+ */
+public class MarcFieldBatch {
+	
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	ArrayList<FieldRow> fields = new ArrayList<FieldRow>();
+	int subfieldCount = 0;
+	byte[] recordHash = null;
+	
+	/**
+	 * <p>A pending records_has_fields row and its subfields.</p>
+	 */
+	static class FieldRow {
+		int id = 0;
+		int recordId;
+		String tag;
+		String value;
+		int type;
+		byte[] hash = null;
+		boolean unchanged = false;
+		ArrayList<String> subfieldCodes = new ArrayList<String>();
+		ArrayList<String> subfieldValues = new ArrayList<String>();
+		
+		FieldRow(int record, String fieldTag, String fieldValue, int fieldType) {
+			recordId = record;
+			tag = fieldTag;
+			value = fieldValue;
+			type = fieldType;
+		}
+	}
+	
+	/**
+	 * <p>A records_has_fields row already stored for the record a batch
+	 * replaces, as read back for matchStoredFields().</p>
+	 */
+	static class StoredRow {
+		int id;
+		String tag;
+		byte[] hash;
+		
+		StoredRow(int fieldId, String fieldTag, byte[] fieldHash) {
+			id = fieldId;
+			tag = fieldTag;
+			hash = fieldHash;
+		}
+	}
+	
+	/**
+	 * <p>Adds a field row to the batch.</p>
+	 *
+	 * @param  	recordId	the id of the associated record
+	 * @param  	tag			the marc tag for the field
+	 * @param  	value		the data contained in the field as string
+	 * @param  	fieldType	1 = control, 2 = data
+	 * @return				the pending row, used to attach subfields
+	 */
+	public FieldRow addField(int recordId, String tag, String value, int fieldType) {
+		FieldRow row = new FieldRow(recordId, tag, value, fieldType);
+		fields.add(row);
+		return row;
+	}
+	
+	/**
+	 * <p>Attaches a subfield to a pending field row.</p>
+	 *
+	 * @param  	field		the pending field row
+	 * @param  	code		the marc subfield code
+	 * @param  	value		the data contained in the sub-field as string
+	 */
+	public void addSubfield(FieldRow field, String code, String value) {
+		field.subfieldCodes.add(code);
+		field.subfieldValues.add(value);
+		subfieldCount++;
+	}
+	
+	/**
+	 * <p>Sets the record id of every pending field row.  Used when the
+	 * batch is built before the record row has been inserted.</p>
+	 *
+	 * @param  	recordId	the id of the associated record
+	 */
+	public void setRecordId(int recordId) {
+		for (int i=0;i<fields.size();i++) {
+			fields.get(i).recordId = recordId;
+		}
+	}
+
+	/**
+	 * <p>Returns the 005 row of the batch, or null if it has none.</p>
+	 */
+	public FieldRow timestampRow() {
+		for (FieldRow row : fields) {
+			if ("005".equals(row.tag)) {
+				return row;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * <p>The number of field rows waiting to be written.</p>
+	 */
+	public int fieldCount() {
+		return fields.size();
+	}
+	
+	/**
+	 * <p>The number of subfield rows waiting to be written.</p>
+	 */
+	public int subfieldCount() {
+		return subfieldCount;
+	}
+	
+	/**
+	 * <p>Hashes every field row and returns the hash of the record as a
+	 * whole, which is the MD5 of its field hashes in order.  The 005 is 
+	 * left out of the record hash so that a record that was only saved 
+	 * again hashes the same.  The hashes are worked out on the first call
+	 * and kept.</p>
+	 *
+	 * @return				the 16 byte record hash
+	 */
+	public byte[] contentHash() {
+		if (recordHash == null) {
+			MessageDigest fieldDigest = md5();
+			MessageDigest recordDigest = md5();
+			for (int i=0;i<fields.size();i++) {
+				FieldRow row = fields.get(i);
+				digestString(fieldDigest, row.tag);
+				digestString(fieldDigest, String.valueOf(row.type));
+				digestString(fieldDigest, row.value);
+				for (int k=0; k < row.subfieldCodes.size(); k++) {
+					digestString(fieldDigest, row.subfieldCodes.get(k));
+					digestString(fieldDigest, row.subfieldValues.get(k));
+				}
+				row.hash = fieldDigest.digest();
+				if (!"005".equals(row.tag)) {
+					recordDigest.update(row.hash);
+				}
+			}
+			recordHash = recordDigest.digest();
+		}
+		return recordHash;
+	}
+	
+	/**
+	 * <p>Matches the rows of the batch against the fields already stored 
+	 * for the record so that as few of them as possible are rewritten.  
+	 * A row whose hash matches a stored field takes that field's id and is
+	 * marked unchanged.  Any other row takes the id of the next unused 
+	 * stored field with the same tag, to be updated in place, or is left 
+	 * with id 0 to be inserted.  Stored fields without a hash, such as 
+	 * those written before hashes were kept, never match.</p>
+	 *
+	 * @param  	stored		the record's stored fields in id order
+	 * @return				the ids of the stored fields no row took, which 
+	 * 						are to be deleted
+	 */
+	public ArrayList<Integer> matchStoredFields(ArrayList<StoredRow> stored) {
+		contentHash();
+		boolean[] used = new boolean[stored.size()];
+		HashMap<ByteBuffer,ArrayList<Integer>> byHash = new HashMap<ByteBuffer,ArrayList<Integer>>();
+		for (int i=0; i < stored.size(); i++) {
+			if (stored.get(i).hash != null) {
+				listFor(byHash, ByteBuffer.wrap(stored.get(i).hash)).add(i);
+			}
+		}
+		for (FieldRow row : fields) {
+			row.id = 0;
+			row.unchanged = false;
+			int match = takeUnused(byHash.get(ByteBuffer.wrap(row.hash)), used);
+			if (match > -1) {
+				row.id = stored.get(match).id;
+				row.unchanged = true;
+			}
+		}
+		
+		HashMap<String,ArrayList<Integer>> byTag = new HashMap<String,ArrayList<Integer>>();
+		for (int i=0; i < stored.size(); i++) {
+			if (!used[i]) {
+				listFor(byTag, stored.get(i).tag).add(i);
+			}
+		}
+		for (FieldRow row : fields) {
+			if (row.id == 0) {
+				int match = takeUnused(byTag.get(row.tag), used);
+				if (match > -1) {
+					row.id = stored.get(match).id;
+				}
+			}
+		}
+		
+		ArrayList<Integer> dropped = new ArrayList<Integer>();
+		for (int i=0; i < stored.size(); i++) {
+			if (!used[i]) {
+				dropped.add(stored.get(i).id);
+			}
+		}
+		return dropped;
+	}
+	
+	/**
+	 * <p>Returns a batch holding the rows that matchStoredFields() did not
+	 * mark unchanged and that either have (update) or do not have 
+	 * (insert) a stored field to reuse.  The rows are shared, so ids 
+	 * assigned through the new batch show up in this one.</p>
+	 *
+	 * @param  	reused		true for rows updated in place, false for new rows
+	 * @return				the selected rows
+	 */
+	public MarcFieldBatch changedRows(boolean reused) {
+		return changedRows(reused ? 1 : 0);
+	}
+	
+	/**
+	 * <p>Returns a batch holding every row that matchStoredFields() did 
+	 * not mark unchanged.</p>
+	 */
+	public MarcFieldBatch changedRows() {
+		return changedRows(-1);
+	}
+	
+	private MarcFieldBatch changedRows(int reused) {
+		MarcFieldBatch changed = new MarcFieldBatch();
+		for (FieldRow row : fields) {
+			if (!row.unchanged && (reused < 0 || (row.id > 0) == (reused == 1))) {
+				changed.fields.add(row);
+				changed.subfieldCount += row.subfieldCodes.size();
+			}
+		}
+		return changed;
+	}
+	
+	/**
+	 * <p>Empties the batch so that it can be reused.</p>
+	 */
+	public void clear() {
+		fields.clear();
+		subfieldCount = 0;
+		recordHash = null;
+	}
+	
+	private static <K> ArrayList<Integer> listFor(HashMap<K,ArrayList<Integer>> map, K key) {
+		ArrayList<Integer> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<Integer>();
+			map.put(key, list);
+		}
+		return list;
+	}
+	
+	private static int takeUnused(ArrayList<Integer> candidates, boolean[] used) {
+		if (candidates != null) {
+			for (int i=0; i < candidates.size(); i++) {
+				int candidate = candidates.get(i);
+				if (!used[candidate]) {
+					used[candidate] = true;
+					return candidate;
+				}
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * <p>Adds a string to a digest with its length in front, so that the
+	 * boundaries between values are part of the hash.</p>
+	 */
+	private static void digestString(MessageDigest digest, String value) {
+		if (value == null) {
+			digest.update(new byte[] {-1, -1, -1, -1});
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		digest.update(new byte[] {(byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16), (byte) (bytes.length >>> 8), (byte) bytes.length});
+		digest.update(bytes);
+	}
+	
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support MD5
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,194 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>Cuts a binary MARC file into byte ranges that each hold whole 
+ * records, so that the ranges can be parsed in parallel.  A cut is made
+ * at the first 0x1D record terminator past the target offset whose next
+ * record begins with a five digit length that ends on another 0x1D.
+ * This keeps a 0x1D inside a damaged record from being taken for a 
+ * record boundary.  Only the bytes around each cut are read, so the file
+ * is not scanned twice.</p>
+ */
+public class MarcFileSplitter {
+	
+	static final long CHUNK_SIZE = 4L * 1024 * 1024;
+	static final int SCAN_WINDOW = 1024 * 1024;
+	
+	RandomAccessFile file;
+	FileChannel channel;
+	long fileSize;
+	
+	/**
+	 * <p>Opens a MARC file to be split.</p>
+	 *
+	 * @param  strFile    	The full file path to the marc file
+	 */
+	public MarcFileSplitter(String strFile) throws IOException {
+		file = new RandomAccessFile(strFile, "r");
+		channel = file.getChannel();
+		fileSize = channel.size();
+	}
+	
+	/**
+	 * <p>The length of the file in bytes.</p>
+	 */
+	public long size() {
+		return fileSize;
+	}
+	
+	/**
+	 * <p>Returns the end of the chunk that starts at start: the first 
+	 * confirmed record boundary at least CHUNK_SIZE bytes on, or the end 
+	 * of the file.</p>
+	 *
+	 * @param  start    	the offset the chunk starts at
+	 * @return				the offset just past the last record of the chunk
+	 */
+	public long chunkEnd(long start) throws IOException {
+		return boundaryAfter(start + CHUNK_SIZE);
+	}
+	
+	/**
+	 * <p>Returns the offset just past the first confirmed record 
+	 * terminator at or after from, or the end of the file if there is 
+	 * none.</p>
+	 *
+	 * @param  from    		the offset to start looking at
+	 * @return				the start of the next record
+	 */
+	public long boundaryAfter(long from) throws IOException {
+		long pos = from;
+		while (pos < fileSize) {
+			long size = Math.min(SCAN_WINDOW + MappedMarcReader.MAX_RECORD_LENGTH + 64, fileSize - pos);
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+			boolean toEnd = pos + size == fileSize;
+			int limit = toEnd ? (int) size : (int) Math.min(size, SCAN_WINDOW);
+			for (int i=0; i < limit; i++) {
+				if (buf.get(i) == MappedMarcReader.RECORD_TERMINATOR && confirmed(buf, i + 1, (int) size, toEnd)) {
+					return pos + i + 1;
+				}
+			}
+			pos += limit;
+		}
+		return fileSize;
+	}
+	
+	/**
+	 * <p>Whether offset is a record boundary: the start or end of the 
+	 * file, or just past a 0x1D that is followed by a record.</p>
+	 *
+	 * @param  offset    	the offset to check
+	 * @return				true if a record can be read from offset
+	 */
+	public boolean isBoundary(long offset) throws IOException {
+		if (offset == 0 || offset == fileSize) {
+			return true;
+		}
+		if (offset < 0 || offset > fileSize) {
+			return false;
+		}
+		return boundaryAfter(offset - 1) == offset;
+	}
+	
+	/**
+	 * <p>Reads a byte range of the file.  Safe to call from several 
+	 * threads at once.</p>
+	 *
+	 * @param  start    	the first byte to read
+	 * @param  end    		the offset just past the last byte to read
+	 * @return				the bytes
+	 */
+	public byte[] read(long start, long end) throws IOException {
+		byte[] bytes = new byte[(int) (end - start)];
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		while (buf.hasRemaining()) {
+			int count = channel.read(buf, start + buf.position());
+			if (count < 0) {
+				throw new IOException("Unexpected end of file at offset " + (start + buf.position()));
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * <p>Closes the file.</p>
+	 */
+	public void close() {
+		try {
+			channel.close();
+			file.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+	
+	/**
+	 * <p>Whether the bytes at next, after any padding, are the end of the
+	 * file or a record whose leader length ends on a 0x1D.</p>
+	 */
+	private boolean confirmed(MappedByteBuffer buf, int next, int size, boolean toEnd) {
+		while (next < size && isPadding(buf.get(next))) {
+			next++;
+		}
+		if (next >= size) {
+			return toEnd;
+		}
+		if (next + 5 > size) {
+			return false;
+		}
+		int length = 0;
+		for (int i=0; i < 5; i++) {
+			byte b = buf.get(next + i);
+			if (b < '0' || b > '9') {
+				return false;
+			}
+			length = length * 10 + (b - '0');
+		}
+		if (length < MappedMarcReader.LEADER_LENGTH || next + length > size) {
+			return false;
+		}
+		return buf.get(next + length - 1) == MappedMarcReader.RECORD_TERMINATOR;
+	}
+	
+	static boolean isPadding(byte b) {
+		return b == ' ' || b == '\r' || b == '\n' || b == '\t' || b == 0x00 || b == 0x1A;
+	}
+
+}
@@ -0,0 +1,312 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>An immutable, in-memory copy of one stored MARC record: the records 
+ * row, its fields in id order, and each field's subfields in id order. 
+ * Built by RecordLoader from a single query so that the exporters and 
+ * ScopeChecker can read everything they need about a record without going
+ * back to the database.</p>
+ * 
+ * <p>Tag and subfield code lookups are case-insensitive to match the LIKE
+ * comparisons the equivalent SqlModel methods use.</p>
+ */
+public class MarcRecordModel {
+	
+	private final int id;
+	private final int fileId;
+	private final int type;
+	private final String controlIdentifier;
+	private final double moddate;
+	private final List<Field> fields;
+	
+	/**
+	 * <p>One records_has_fields row and its subfields.</p>
+	 */
+	public static class Field {
+		
+		private final int id;
+		private final String tag;
+		private final String value;
+		private final int type;
+		private final String[] subfieldCodes;
+		private final String[] subfieldValues;
+		
+		Field(int fieldId, String fieldTag, String fieldValue, int fieldType, List<String> codes, List<String> values) {
+			id = fieldId;
+			tag = fieldTag;
+			value = fieldValue;
+			type = fieldType;
+			subfieldCodes = codes.toArray(new String[codes.size()]);
+			subfieldValues = values.toArray(new String[values.size()]);
+		}
+		
+		/**
+		 * @return		the records_has_fields id
+		 */
+		public int id() {
+			return id;
+		}
+		
+		/**
+		 * @return		the MARC tag, such as 245
+		 */
+		public String tag() {
+			return tag;
+		}
+		
+		/**
+		 * @return		the whole field as stored
+		 */
+		public String value() {
+			return value;
+		}
+		
+		/**
+		 * @return		1 = control field, 2 = data field
+		 */
+		public int type() {
+			return type;
+		}
+		
+		/**
+		 * @return		the number of subfields
+		 */
+		public int subfieldCount() {
+			return subfieldCodes.length;
+		}
+		
+		/**
+		 * @param  index	position of the subfield in the field
+		 * @return			the subfield code
+		 */
+		public String subfieldCode(int index) {
+			return subfieldCodes[index];
+		}
+		
+		/**
+		 * @param  index	position of the subfield in the field
+		 * @return			the subfield value
+		 */
+		public String subfieldValue(int index) {
+			return subfieldValues[index];
+		}
+		
+		/**
+		 * <p>Returns the values of every subfield with the given code, in
+		 * order.  The list is a new copy that the caller may change.</p>
+		 *
+		 * @param  code		the subfield code
+		 * @return			the matching values, empty if there are none
+		 */
+		public ArrayList<String> subfieldValues(String code) {
+			ArrayList<String> values = new ArrayList<String>();
+			for (int i=0; i < subfieldCodes.length; i++) {
+				if (subfieldCodes[i] != null && subfieldCodes[i].equalsIgnoreCase(code)) {
+					values.add(subfieldValues[i]);
+				}
+			}
+			return values;
+		}
+	}
+	
+	MarcRecordModel(int recordId, int recordFileId, int recordType, String control, double recordModdate, List<Field> recordFields) {
+		id = recordId;
+		fileId = recordFileId;
+		type = recordType;
+		controlIdentifier = control;
+		moddate = recordModdate;
+		fields = Collections.unmodifiableList(new ArrayList<Field>(recordFields));
+	}
+	
+	/**
+	 * @return		the records.id
+	 */
+	public int id() {
+		return id;
+	}
+	
+	/**
+	 * @return		the id of the file the record was loaded from
+	 */
+	public int fileId() {
+		return fileId;
+	}
+	
+	/**
+	 * @return		1 = bib, 2 = holding, 3 = un-matched
+	 */
+	public int type() {
+		return type;
+	}
+	
+	/**
+	 * @return		the record control identifier
+	 */
+	public String controlIdentifier() {
+		return controlIdentifier;
+	}
+	
+	/**
+	 * @return		the record's last modified datetimestamp
+	 */
+	public double moddate() {
+		return moddate;
+	}
+	
+	/**
+	 * @return		all fields of the record in id order
+	 */
+	public List<Field> fields() {
+		return fields;
+	}
+	
+	/**
+	 * <p>Returns every field with the given tag, in id order.</p>
+	 *
+	 * @param  tag		the MARC tag
+	 * @return			the matching fields, empty if there are none
+	 */
+	public List<Field> fieldsByTag(String tag) {
+		ArrayList<Field> matches = new ArrayList<Field>();
+		for (Field field : fields) {
+			if (field.tag != null && field.tag.equalsIgnoreCase(tag)) {
+				matches.add(field);
+			}
+		}
+		return matches;
+	}
+	
+	/**
+	 * <p>Returns the value of the first field with the given tag, the 
+	 * same value SqlModel.getFieldByNumber() returns.</p>
+	 *
+	 * @param  tag		the MARC tag
+	 * @return			the field value, or an empty string if the record has no such field
+	 */
+	public String fieldValue(String tag) {
+		for (Field field : fields) {
+			if (field.tag != null && field.tag.equalsIgnoreCase(tag)) {
+				return field.value;
+			}
+		}
+		return "";
+	}
+	
+	/**
+	 * <p>Returns the values of a subfield across every field with the 
+	 * given tag, the same values SqlModel.selectSubFieldValues() returns.</p>
+	 *
+	 * @param  tag		the MARC tag
+	 * @param  code		the subfield code
+	 * @return			the matching values, empty if there are none
+	 */
+	public ArrayList<String> subfieldValues(String tag, String code) {
+		ArrayList<String> values = new ArrayList<String>();
+		for (Field field : fields) {
+			if (field.tag != null && field.tag.equalsIgnoreCase(tag)) {
+				values.addAll(field.subfieldValues(code));
+			}
+		}
+		return values;
+	}
+	
+	/**
+	 * <p>Collects the rows of the hydration query for one record and 
+	 * builds the immutable model once every row has been read.  Rows must
+	 * arrive ordered by field id and then subfield id.</p>
+	 */
+	static class Builder {
+		
+		int recordId;
+		int recordFileId;
+		int recordType;
+		String control;
+		double recordModdate;
+		ArrayList<Field> builtFields = new ArrayList<Field>();
+		int currentFieldId = 0;
+		String currentTag;
+		String currentValue;
+		int currentType;
+		ArrayList<String> currentCodes = new ArrayList<String>();
+		ArrayList<String> currentValues = new ArrayList<String>();
+		
+		Builder(int id, int fileId, int type, String controlIdentifier, double moddate) {
+			recordId = id;
+			recordFileId = fileId;
+			recordType = type;
+			control = controlIdentifier;
+			recordModdate = moddate;
+		}
+		
+		/**
+		 * <p>Adds one joined row.  A field id of 0 means the record has no 
+		 * fields and a null subfield code means the field has no subfields.</p>
+		 */
+		void addRow(int fieldId, String tag, String value, int fieldType, String subfieldCode, String subfieldValue) {
+			if (fieldId == 0) {
+				return;
+			}
+			if (fieldId != currentFieldId) {
+				finishField();
+				currentFieldId = fieldId;
+				currentTag = tag;
+				currentValue = value;
+				currentType = fieldType;
+			}
+			if (subfieldCode != null) {
+				currentCodes.add(subfieldCode);
+				currentValues.add(subfieldValue);
+			}
+		}
+		
+		MarcRecordModel build() {
+			finishField();
+			return new MarcRecordModel(recordId, recordFileId, recordType, control, recordModdate, builtFields);
+		}
+		
+		private void finishField() {
+			if (currentFieldId != 0) {
+				builtFields.add(new Field(currentFieldId, currentTag, currentValue, currentType, currentCodes, currentValues));
+				currentCodes.clear();
+				currentValues.clear();
+				currentFieldId = 0;
+			}
+		}
+	}
+
+}
@@ -43,7 +43,7 @@ import java.util.HashMap;
 public class MergeHoldings {
 	
 	Conf config;
-	SqlModel sqlObj;
+	RecordStore sqlObj;
 	RecordUtils recs;
 	Logger logger;
 
@@ -54,7 +54,7 @@ public class MergeHoldings {
 	 * @param  configObj    an instance of the Conf class
 	 * @param  sqlModObj  	an instance of the sqlModel class
 	 */
-	public MergeHoldings(Conf configObj, SqlModel sqlModObj) {
+	public MergeHoldings(Conf configObj, RecordStore sqlModObj) {
 		config = configObj;
 		sqlObj = sqlModObj;
 		recs = new RecordUtils(config, sqlObj);
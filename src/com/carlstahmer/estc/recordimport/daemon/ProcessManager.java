@@ -30,6 +30,9 @@
 package com.carlstahmer.estc.recordimport.daemon;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 /**
@@ -40,9 +43,26 @@ import java.io.File;
 public class ProcessManager {
 	
 	Conf config;
-	SqlModel sqlObj;
+	RecordStore sqlObj;
 	Logger logger;
-
+	final Object fileLock = new Object();
+	
+	/**
+	 * <p>A file waiting to be imported.</p>
+	 */
+	static class ImportTask {
+		String curCode;
+		String fileName;
+		String path;
+		int fileType;
+		
+		ImportTask(String code, String name, String filePath, int type) {
+			curCode = code;
+			fileName = name;
+			path = filePath;
+			fileType = type;
+		}
+	}
 	
 	/**
 	 * <p>Constructor class that assigns passed Config object and SqlModel to 
@@ -51,7 +71,7 @@ public class ProcessManager {
 	 * @param  configObj    an instance of the Conf class
 	 * @param  sqlModObj  	an instance of the sqlModel class
 	 */
-	public ProcessManager(Conf configObj, SqlModel sqlModObj) {
+	public ProcessManager(Conf configObj, RecordStore sqlModObj) {
 		config = configObj;
 		sqlObj = sqlModObj;
 		logger = new Logger(config);
@@ -81,144 +101,74 @@ public class ProcessManager {
 			// This part of the code imports the marc
 			System.out.println("Start of Import");
 			
+			// when rebuilding an empty database, stage everything and
+			// load each table in one pass instead of row by row.  Bulk
+			// loading is MySQL only.
+			BulkLoader bulkLoader = null;
+			if (config.bulkload && sqlObj instanceof SqlModel) {
+				bulkLoader = new BulkLoader(config, (SqlModel) sqlObj);
+				if (!bulkLoader.begin()) {
+					bulkLoader = null;
+				}
+			}
+			
+			// load the duplicate index here rather than in whichever 
+			// writer needs it first
+			if (bulkLoader == null) {
+				DedupIndex.getIndex(config, sqlObj);
+			}
+			
 			FileUtils fileUts = new FileUtils(config, sqlObj);
 			fileUts.listFoldersRecursive();
 			if (fileUts.directoryList.size() > 0) {
 				
 				System.out.println("Found Files");
+				ArrayList<ImportTask> tasks = collectImportTasks(fileUts);
 				
-				for (int id=0;id<fileUts.directoryList.size();id++) {
-					String curCode = fileUts.directoryList.get(id);
-					//if (Arrays.asList(config.estcCodes).contains(curCode)) {
-						curCode = "estcstar";
-					//}
-					String curDir = config.listenDir+"/"+curCode;
-					logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Working in directory: "+curDir);
-					fileUts.listFilesForFolder(curDir);
-					if (fileUts.fileList.size() > 0) {
-						
-						for (int i=0; i < fileUts.fileList.size(); i++) {
-							
-	
-							// construct a filename
-							String fileToProcess = curDir + "/" + fileUts.fileList.get(i);
-							
-							
-							System.out.println("Processing File: " + fileToProcess);
-							
-							// get a file type and process accordingly
-							int intFileType = fileUts.fileType(fileUts.fileList.get(i));
-							
-							if (intFileType > 0) {
-								// instantiate file object to get last processed date
-								File fileInfo = new File(fileToProcess);
-								long fileModDate = fileInfo.lastModified();
-		
-								// now check to see if this is existing file that has not been modified.
-								// create or load SQL file record
-								// selectFileRecord(curCode, fileName, fileModDate)
-								logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Sql connection opened");
-								logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Checking whether file has been previously processed");
-								int fileRecordId = sqlObj.selectFileRecordStrict(curCode, fileUts.fileList.get(i), fileModDate);
-								if (fileRecordId == 0) {
-		
-									String fileName = fileInfo.getName();
-									logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Processing File "+fileName+" Last Modified "+fileModDate);
-									logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Current Institutional Code "+curCode);
-									
-									// create or load SQL file record
-									logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Sql connection opened");
-									int dupFileRecordId = sqlObj.selectFileRecord(curCode, fileName);	
-									boolean newFile = false;
-									if (dupFileRecordId == 0) {
-										newFile = true;
-										fileRecordId = sqlObj.insertFileRecord(curCode, fileName, fileModDate, 1);
-										logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "File " + fileName + " entered in system as new file with ID " + fileRecordId);
-									} else {
-										fileRecordId = dupFileRecordId;
-										logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "File " + fileName + " already exists in system with ID " + fileRecordId + ".  Timestamp will be updated at conclusion of record processing." );
-									}
-									
-									if (intFileType == 1) {
-										// this is a marc file
-										logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Processing MARC file "+fileToProcess);
-										LoadMarc myMarcInstance = new LoadMarc(config, sqlObj);
-										myMarcInstance.loadMarcFile(fileToProcess, curCode, fileRecordId);
-										
-									} else if (intFileType == 2) {
-										// this is a text file
-										logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Processing text file "+fileToProcess);
-									
-									
-									} else if (intFileType == 3) {
-										// this is an excel file
-										logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Processing Excel file "+fileToProcess);
-										
-										
-									} else if (intFileType == 4) {
-										// this is a csv file
-										logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Processing CSV file "+fileToProcess);
-										
-										
-									} else if (intFileType == 5) {
-										// this is an xml file
-										logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Processing XML file "+fileToProcess);
-										
-										
-									} else {
-										// this is an unrecognized file
-										logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Unable to process file "+fileToProcess+"--Unrecognized file type");
-									}
-									
-									if (!newFile) {
-							        	// update file modification date for file in db so that it reflects
-							        	// the latest mod date on system correctly
-							        	boolean dateUpdated = sqlObj.updateFileModDate(fileRecordId, fileModDate);
-							        	if (dateUpdated) {
-							        		logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Updated modification date of file " + fileName + " with system ID "+fileRecordId+" to "+fileModDate);
-							        	} else {
-							        		logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Unable to update modification date of file "+fileRecordId+" with system modification date of "+fileModDate);
-							        	}
-		
-							        }
-									
-									
-									
-								
-								} else {
-									logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Skipping file " + fileUts.fileList.get(i) + " -- already exists in system with last modification date of " + fileModDate + " -- file ID " + fileRecordId);
-								}
-									
-							} else {
-								logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Skipping file of unknown file type " + fileUts.fileList.get(i));
-								System.out.println("Skipping file of unknown file type " + fileUts.fileList.get(i));
-							}
-							// now that I'm here, whatever kind of file we started with,
-							// the data has been written to the system so now I can process
-							// it by checking if it is date and language relevant, if a holding
-							// record, does it have the correct association with a bib record
-							// does it have an ESTC number anywhere in the data that can 
-							// be extracted and placed in the proper place
-							
-							// need to do some more research here and figure out
-							// if I want to go to holding/bib record format or collapse
-							// everything to bib records.  
-							
-							
-							
-							
-						}
-					} else {
-						logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "No files found in folder");
-					}				
-				
+				// the bulk loader stages into one set of files, so it 
+				// always runs on this thread
+				int workers = config.importworkers;
+				if (bulkLoader != null || workers < 1) {
+					workers = 1;
+				}
+
+				if (sqlObj instanceof SqlModel && bulkLoader == null) {
+					workers = fitToPool(workers);
+				}
+				if (workers < 1) {
+					logger.error("A pool of {} connections is too small to import with; raise dbpoolsize", config.dbpoolsize);
+				} else if (workers > 1 && tasks.size() > 1) {
+					runImportWorkers(tasks, Math.min(workers, tasks.size()));
+				} else {
+					LoadMarc myMarcInstance = new LoadMarc(config, sqlObj);
+					for (ImportTask task : tasks) {
+						importFile(task, sqlObj, myMarcInstance, bulkLoader);
+					}
 				}
 				
 			} else {
 				System.out.println("Didn't find any files");
-				logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "No instituional folders found in read directory");
+				logger.debug("No instituional folders found in read directory");
+			}
+			
+			if (bulkLoader != null) {
+				System.out.println("Loading staged files");
+				
+				// a staged file keeps its checkpoint until its rows are 
+				// loaded, so a failed load is imported again next run
+				if (bulkLoader.finish()) {
+					for (Integer stagedFile : bulkLoader.getStagedFiles()) {
+						sqlObj.deleteFileCheckpoint(stagedFile);
+					}
+				} else {
+					logger.error("Bulk load failed; the staged files will be imported again on the next run");
+				}
 			}
 			
+			// records can be loaded in bulk or deleted by the scope check
+			// before the next import, so the index is loaded afresh for each
+			DedupIndex.shutdownIndex();
+			
 			System.out.println("End of Import");
 			
 			// THIS IS THE END OF THE IMPORT PART
@@ -237,8 +187,8 @@ public class ProcessManager {
 				ExportJenaRDF rdfExporter = new ExportJenaRDF(config, sqlObj);
 				rdfExporter.makeJenaRDFAllBibs(config.sitedomain);
 			} else {
-				logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Unrecognized Export Type.");
-				logger.log(1, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Aborting applicaiton!");
+				logger.error("Unrecognized Export Type.");
+				logger.error("Aborting applicaiton!");
 				System.out.println("Aborting operation for runType " + runType);
 				System.exit(0);
 			}
@@ -260,4 +210,292 @@ public class ProcessManager {
 	}
 	
 	
+	/**
+	 * <p>Cuts importwriters and the number of import workers down to what
+	 * the connection pool can serve.  Pool connections are leased per 
+	 * thread.  This thread keeps the one it leased at startup, and when 
+	 * logging to the database the runlog-writer thread keeps another.  
+	 * FlagBuffer flushes on the lease of whichever thread marks a record,
+	 * and IdAllocator claims ids on dedicated connections outside the 
+	 * pool, so neither needs one set aside.  A single worker imports on 
+	 * this thread and needs one more for each MARC writer; each of 
+	 * several workers needs one of its own as well.  A writer that cannot
+	 * get a connection would stall its whole load, so the limits are 
+	 * applied before any load starts.</p>
+	 *
+	 * @param  workers	the number of workers asked for
+	 * @return			the number of workers to use, or 0 if the pool 
+	 * 					cannot serve even one worker with one writer
+	 */
+	private int fitToPool(int workers) {
+		int reserved = 1;
+		if (!config.console) {
+			reserved++;
+		}
+		int available = config.dbpoolsize - reserved;
+		if (available < 1) {
+			return 0;
+		}
+		int writers = Math.max(1, config.importwriters);
+		int writerLimit = workers > 1 ? Math.max(1, available - 1) : available;
+		if (writers > writerLimit) {
+			logger.error("importwriters {} exceeds what a pool of {} connections can serve; using {} writers", config.importwriters, config.dbpoolsize, writerLimit);
+			writers = writerLimit;
+			config.importwriters = writers;
+		}
+		int perWorker = 1 + writers;
+		if (workers > 1 && workers * perWorker > available) {
+			int poolLimit = Math.max(1, available / perWorker);
+			logger.error("importworkers {} with importwriters {} exceeds what a pool of {} connections can serve; using {} workers", workers, writers, config.dbpoolsize, poolLimit);
+			workers = poolLimit;
+		}
+		return workers;
+	}
+	
+	/**
+	 * <p>Lists every file waiting in the institution folders of the listen
+	 * directory along with its file type.  Each file is listed once even 
+	 * if its folder is visited more than once, so no two workers are 
+	 * ever given the same file.  Files of unknown type are skipped 
+	 * here.</p>
+	 *
+	 * @param  fileUts	a FileUtils whose directoryList has been filled
+	 * @return			the files to import, in folder and file order
+	 */
+	private ArrayList<ImportTask> collectImportTasks(FileUtils fileUts) {
+		ArrayList<ImportTask> tasks = new ArrayList<ImportTask>();
+		LinkedHashSet<String> seen = new LinkedHashSet<String>();
+		for (int id=0;id<fileUts.directoryList.size();id++) {
+			String curCode = fileUts.directoryList.get(id);
+			//if (Arrays.asList(config.estcCodes).contains(curCode)) {
+				curCode = "estcstar";
+			//}
+			String curDir = config.listenDir+"/"+curCode;
+			logger.info("Working in directory: {}", curDir);
+			fileUts.listFilesForFolder(curDir);
+			if (fileUts.fileList.size() > 0) {
+				for (int i=0; i < fileUts.fileList.size(); i++) {
+					
+					// construct a filename
+					String fileToProcess = curDir + "/" + fileUts.fileList.get(i);
+					if (!seen.add(fileToProcess)) {
+						continue;
+					}
+					
+					// get a file type and process accordingly
+					int intFileType = fileUts.fileType(fileUts.fileList.get(i));
+					if (intFileType > 0) {
+						tasks.add(new ImportTask(curCode, fileUts.fileList.get(i), fileToProcess, intFileType));
+					} else {
+						logger.debug("Skipping file of unknown file type {}", fileUts.fileList.get(i));
+						System.out.println("Skipping file of unknown file type " + fileUts.fileList.get(i));
+					}
+				}
+			} else {
+				logger.debug("No files found in folder");
+			}
+		}
+		return tasks;
+	}
+	
+	/**
+	 * <p>Imports the listed files on a pool of worker threads.  Each 
+	 * worker opens its own RecordStore, and so holds its own pooled 
+	 * connection, keeps one LoadMarc, and takes files from a shared queue
+	 * until it is empty.  Returns once every worker has finished.</p>
+	 *
+	 * @param  tasks	the files to import
+	 * @param  workers	the number of worker threads
+	 */
+	private void runImportWorkers(ArrayList<ImportTask> tasks, int workers) {
+		final ConcurrentLinkedQueue<ImportTask> queue = new ConcurrentLinkedQueue<ImportTask>(tasks);
+		logger.info("Importing {} files with {} workers", tasks.size(), workers);
+		Thread[] threads = new Thread[workers];
+		for (int w=0; w < workers; w++) {
+			threads[w] = new Thread(new Runnable() {
+				public void run() {
+					RecordStore workerStore = RecordStoreFactory.open(config);
+					try {
+						workerStore.openConnection();
+						LoadMarc workerLoader = new LoadMarc(config, workerStore);
+						ImportTask task;
+						while ((task = queue.poll()) != null) {
+							try {
+								importFile(task, workerStore, workerLoader, null);
+							} catch (RuntimeException e) {
+								logger.error("Import of {} failed: {}", task.path, e.toString());
+							}
+						}
+					} finally {
+						workerStore.closeConnection();
+					}
+				}
+			}, "import-worker-" + (w + 1));
+			threads[w].start();
+		}
+		for (int w=0; w < workers; w++) {
+			try {
+				threads[w].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.error("Interrupted while waiting for import workers");
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * <p>Imports one file, first checking whether it has already been 
+	 * processed and creating or finding its files record.</p>
+	 *
+	 * @param  task			the file to import
+	 * @param  store		the store of the calling thread
+	 * @param  loader		the LoadMarc of the calling thread
+	 * @param  bulkLoader	the bulk loader to stage MARC files with, or null
+	 */
+	private void importFile(ImportTask task, RecordStore store, LoadMarc loader, BulkLoader bulkLoader) {
+		String fileToProcess = task.path;
+		String curCode = task.curCode;
+		int intFileType = task.fileType;
+		System.out.println("Processing File: " + fileToProcess);
+		
+		// instantiate file object to get last processed date
+		File fileInfo = new File(fileToProcess);
+		long fileModDate = fileInfo.lastModified();
+		String fileName = fileInfo.getName();
+		
+		// now check to see if this is existing file that has not been modified.
+		// create or load SQL file record.  The check and insert are made
+		// under one lock so that two workers can never both create a
+		// record for the same file.  A MARC file whose import was cut 
+		// short has a checkpoint, and is picked up from there instead.
+		int fileRecordId;
+		boolean newFile = false;
+		FileCheckpoint checkpoint = null;
+		synchronized (fileLock) {
+			logger.debug("Checking whether file has been previously processed");
+			fileRecordId = store.selectFileRecordStrict(curCode, task.fileName, fileModDate);
+			if (fileRecordId != 0) {
+				checkpoint = savedCheckpoint(store, fileRecordId, fileModDate);
+				if (checkpoint == null) {
+					logger.debug("Skipping file {} -- already exists in system with last modification date of {} -- file ID {}", task.fileName, fileModDate, fileRecordId);
+					return;
+				}
+				// the files row already has this modification date
+				newFile = true;
+				logger.info("Resuming unfinished import of file {} with ID {}", fileName, fileRecordId);
+			} else {
+				logger.info("Processing File {} Last Modified {}", fileName, fileModDate);
+				logger.debug("Current Institutional Code {}", curCode);
+				
+				int dupFileRecordId = store.selectFileRecord(curCode, fileName);	
+				if (dupFileRecordId == 0) {
+					newFile = true;
+					fileRecordId = store.insertFileRecord(curCode, fileName, fileModDate, 1);
+					logger.debug("File {} entered in system as new file with ID {}", fileName, fileRecordId);
+				} else {
+					fileRecordId = dupFileRecordId;
+					checkpoint = savedCheckpoint(store, fileRecordId, fileModDate);
+					logger.debug("File {} already exists in system with ID {}.  Timestamp will be updated at conclusion of record processing.", fileName, fileRecordId);
+				}
+			}
+			
+			// the files row is already in place, so mark the import as 
+			// unfinished until it is.  A bulk staged file is finished 
+			// once the staged tables have been loaded.
+			if (intFileType == 1 && fileRecordId != 0 && checkpoint == null) {
+				checkpoint = new FileCheckpoint(fileRecordId, fileModDate, 0, 0);
+				store.saveFileCheckpoint(fileRecordId, fileModDate, 0, 0);
+			}
+		}
+		
+		boolean finished = true;
+		if (intFileType == 1) {
+			// this is a marc file
+			logger.info("Processing MARC file {}", fileToProcess);
+			if (bulkLoader != null) {
+				if (!bulkLoader.stageMarcFile(fileToProcess, curCode, fileRecordId)) {
+					logger.error("Staging of {} did not finish; it will be imported again on the next run", fileToProcess);
+					return;
+				}
+			} else {
+				finished = loader.loadMarcFile(fileToProcess, curCode, fileRecordId, checkpoint);
+				if (finished) {
+					store.deleteFileCheckpoint(fileRecordId);
+				} else {
+					logger.error("Import of {} did not finish; it will be resumed on the next run", fileToProcess);
+					return;
+				}
+			}
+			
+		} else if (intFileType == 2) {
+			// this is a text file
+			logger.info("Processing text file {}", fileToProcess);
+		
+		
+		} else if (intFileType == 3) {
+			// this is an excel file
+			logger.info("Processing Excel file {}", fileToProcess);
+			
+			
+		} else if (intFileType == 4) {
+			// this is a csv file
+			logger.info("Processing CSV file {}", fileToProcess);
+			
+			
+		} else if (intFileType == 5) {
+			// this is an xml file
+			logger.info("Processing XML file {}", fileToProcess);
+			
+			
+		} else {
+			// this is an unrecognized file
+			logger.error("Unable to process file {}--Unrecognized file type", fileToProcess);
+		}
+		
+		if (!newFile) {
+        	// update file modification date for file in db so that it reflects
+        	// the latest mod date on system correctly
+        	boolean dateUpdated = store.updateFileModDate(fileRecordId, fileModDate);
+        	if (dateUpdated) {
+        		logger.debug("Updated modification date of file {} with system ID {} to {}", fileName, fileRecordId, fileModDate);
+        	} else {
+        		logger.error("Unable to update modification date of file {} with system modification date of {}", fileRecordId, fileModDate);
+        	}
+        }
+		
+		// now that I'm here, whatever kind of file we started with,
+		// the data has been written to the system so now I can process
+		// it by checking if it is date and language relevant, if a holding
+		// record, does it have the correct association with a bib record
+		// does it have an ESTC number anywhere in the data that can 
+		// be extracted and placed in the proper place
+		
+		// need to do some more research here and figure out
+		// if I want to go to holding/bib record format or collapse
+		// everything to bib records.  
+	}
+	
+	/**
+	 * <p>Returns the checkpoint of an unfinished import of a file, or null
+	 * if there is none.  A checkpoint taken against an earlier version of
+	 * the file is deleted, as the file is loaded again from the start.</p>
+	 *
+	 * @param  store		the store of the calling thread
+	 * @param  fileRecordId	the system id of the file
+	 * @param  fileModDate	the system last modified time stamp of the file
+	 */
+	private FileCheckpoint savedCheckpoint(RecordStore store, int fileRecordId, long fileModDate) {
+		long[] saved = store.selectFileCheckpoint(fileRecordId);
+		if (saved == null) {
+			return null;
+		}
+		if (saved[0] != fileModDate) {
+			logger.info("File {} has changed since its import was cut short; loading it from the start", fileRecordId);
+			store.deleteFileCheckpoint(fileRecordId);
+			return null;
+		}
+		return new FileCheckpoint(fileRecordId, fileModDate, saved[1], (int) saved[2]);
+	}
+	
 }
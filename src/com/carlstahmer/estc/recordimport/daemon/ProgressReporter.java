@@ -0,0 +1,223 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>Tracks the throughput of an import, scope, or export run and logs a
+ * one line INFO summary every progressinterval milliseconds and when the
+ * run finishes: records and fields processed and their rates, the work 
+ * queue depth, the error count, and, when the amount of work is known, 
+ * the percentage done and an estimated time remaining.  Work is measured
+ * either in records or, for file imports, in bytes read.</p>
+ * 
+ * <p>It also provides the sampled debug channel for per-record messages.
+ * nextRecord() marks one record in every progresssample as sampled and 
+ * debug() only writes for sampled records, so debug runs are no longer 
+ * dominated by per-record output.</p>
+ * 
+ * <p>Counters may be updated from several threads.</p>
+ */
+public class ProgressReporter {
+	
+	Logger logger;
+	String name;
+	long reportInterval;
+	int sampleEvery;
+	boolean debug;
+	
+	long total = 0;
+	boolean totalIsBytes = false;
+	long started;
+	volatile long nextReport;
+	volatile long position = 0;
+	volatile int queueDepth = 0;
+	volatile boolean sampled = false;
+	AtomicLong records = new AtomicLong();
+	AtomicLong fields = new AtomicLong();
+	AtomicLong errors = new AtomicLong();
+	AtomicLong begun = new AtomicLong();
+	
+	/**
+	 * <p>Constructor class that reads the report interval and sample rate
+	 * from the passed Config object.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @param  runName	 the name used at the start of each summary
+	 */
+	public ProgressReporter(Conf config, String runName) {
+		logger = new Logger(config);
+		name = runName;
+		reportInterval = Math.max(1, config.progressinterval);
+		sampleEvery = Math.max(1, config.progresssample);
+		debug = config.debug;
+		begin(0, false);
+	}
+	
+	/**
+	 * <p>Resets the counters for a new run.</p>
+	 *
+	 * @param  work		the number of records, or bytes, to process; 0 if unknown
+	 * @param  bytes	true if work is a byte count updated with setPosition()
+	 */
+	public synchronized void begin(long work, boolean bytes) {
+		total = work;
+		totalIsBytes = bytes;
+		started = System.currentTimeMillis();
+		nextReport = started + reportInterval;
+		position = 0;
+		queueDepth = 0;
+		records.set(0);
+		fields.set(0);
+		errors.set(0);
+		begun.set(0);
+	}
+	
+	/**
+	 * <p>Marks the start of a record and decides whether it is sampled.</p>
+	 *
+	 * @return		true if per-record debug messages are written for this record
+	 */
+	public boolean nextRecord() {
+		sampled = (begun.getAndIncrement() % sampleEvery) == 0;
+		return sampled;
+	}
+	
+	/**
+	 * <p>Whether the current record is sampled.</p>
+	 */
+	public boolean sampled() {
+		return sampled;
+	}
+	
+	/**
+	 * <p>Writes a DEBUG message built from a template if debug mode is on
+	 * and the current record is sampled.  The call site is only looked up
+	 * when the message is written.</p>
+	 *
+	 * @param 	template		the message, with a {} for each argument
+	 * @param 	args			the values for each {}, in order
+	 */
+	public void debug(String template, Object... args) {
+		if (debug && sampled) {
+			StackTraceElement caller = new Throwable().getStackTrace()[1];
+			logger.log(3, caller.getFileName(), caller.getLineNumber(), Logger.format(template, args));
+		}
+	}
+	
+	/**
+	 * <p>Counts a finished record and reports if the interval has passed.</p>
+	 *
+	 * @param  fieldCount	the number of fields the record had
+	 */
+	public void recordDone(int fieldCount) {
+		records.incrementAndGet();
+		fields.addAndGet(fieldCount);
+		if (System.currentTimeMillis() >= nextReport) {
+			report(false);
+		}
+	}
+	
+	/**
+	 * <p>Counts a record that failed.</p>
+	 */
+	public void error() {
+		errors.incrementAndGet();
+	}
+	
+	/**
+	 * <p>Sets how many bytes of the input have been read.</p>
+	 */
+	public void setPosition(long bytesRead) {
+		position = bytesRead;
+	}
+	
+	/**
+	 * <p>Sets the number of records waiting to be processed.</p>
+	 */
+	public void setQueueDepth(int depth) {
+		queueDepth = depth;
+	}
+	
+	/**
+	 * <p>Logs the final summary for the run.</p>
+	 */
+	public void finish() {
+		report(true);
+	}
+	
+	/**
+	 * <p>Logs a summary unless another thread has just done so.</p>
+	 */
+	private synchronized void report(boolean last) {
+		long now = System.currentTimeMillis();
+		if (!last && now < nextReport) {
+			return;
+		}
+		nextReport = now + reportInterval;
+		
+		long doneRecords = records.get();
+		long doneFields = fields.get();
+		double seconds = Math.max(0.001, (now - started) / 1000.0);
+		StringBuilder summary = new StringBuilder(160);
+		summary.append(name).append(last ? " finished: " : ": ");
+		summary.append(doneRecords).append(" records (").append(rate(doneRecords, seconds)).append("/s), ");
+		summary.append(doneFields).append(" fields (").append(rate(doneFields, seconds)).append("/s), ");
+		summary.append("queue ").append(queueDepth).append(", ");
+		summary.append(errors.get()).append(" errors");
+		
+		if (!last && total > 0) {
+			double fraction = (totalIsBytes ? position : doneRecords) / (double) total;
+			fraction = Math.min(1.0, fraction);
+			summary.append(", ").append(Math.round(fraction * 1000) / 10.0).append("% done");
+			if (fraction > 0) {
+				long remaining = (long) (seconds * (1 - fraction) / fraction);
+				summary.append(", ETA ").append(remaining / 3600).append(":")
+						.append(twoDigits((remaining / 60) % 60)).append(":").append(twoDigits(remaining % 60));
+			}
+		}
+		if (last) {
+			summary.append(" in ").append(Math.round(seconds * 10) / 10.0).append("s");
+		}
+		logger.info(summary.toString());
+	}
+	
+	private static String rate(long count, double seconds) {
+		return String.valueOf(Math.round(count * 10 / seconds) / 10.0);
+	}
+	
+	private static String twoDigits(long value) {
+		return value < 10 ? "0" + value : String.valueOf(value);
+	}
+
+}
@@ -0,0 +1,159 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.marc4j.MarcException;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.Record;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>Reads back the raw copy of a MARC record that LoadMarc saves in 
+ * the records_raw table, so that a consumer can rebuild the whole 
+ * marc4j Record with a single row fetch instead of hydrating it from 
+ * records_has_fields and fields_has_subfields.</p>
+ * 
+ * <p>The copy is the record as marc4j read it from the source file, 
+ * written as UTF-8 ISO 2709 and deflate compressed.  An unchanged UTF-8
+ * record read by MappedMarcReader is saved from its source bytes without
+ * being written out again.  The copy does not include the 003 LoadMarc
+ * adds to the field tables for records that have none.  Records loaded 
+ * with -bulkload, or before records_raw existed, have no copy and read()
+ * returns null for them.</p>
+ */
+public class RawRecordReader {
+	
+	RecordStore sqlObj;
+	Logger logger;
+	
+	/**
+	 * <p>Constructor class that assigns the passed Config object and 
+	 * RecordStore to the class instance.</p>
+	 *
+	 * @param  config    	an instance of the Conf class
+	 * @param  sqlModObj  	an instance of the sqlModel class
+	 */
+	public RawRecordReader(Conf config, RecordStore sqlModObj) {
+		sqlObj = sqlModObj;
+		logger = new Logger(config);
+	}
+	
+	/**
+	 * <p>Rebuilds a record from its saved raw copy.</p>
+	 *
+	 * @param	recordId	the records.id of the record
+	 * @return				the record, or null if no raw copy was saved
+	 */
+	public Record read(int recordId) {
+		byte[] raw = sqlObj.selectRawRecord(recordId);
+		if (raw == null) {
+			return null;
+		}
+		Record record = decode(raw);
+		if (record == null) {
+			logger.error("Unable to read the raw copy of record {}", recordId);
+		}
+		return record;
+	}
+	
+	/**
+	 * <p>Writes a record as compressed UTF-8 ISO 2709.</p>
+	 *
+	 * @param	record		the record to write
+	 * @return				the compressed record, or null if it could not be written
+	 */
+	static byte[] encode(Record record) {
+		if (record instanceof MappedMarcReader.MappedRecord) {
+			byte[] source = ((MappedMarcReader.MappedRecord) record).sourceBytes();
+			if (source != null) {
+				return deflate(source);
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		DeflaterOutputStream deflated = new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED));
+		MarcStreamWriter writer = new MarcStreamWriter(deflated, "UTF8");
+		try {
+			writer.write(record);
+			writer.close();
+		} catch (MarcException ex) {
+			System.out.println("MarcException RawRecordReader.java encode: " + ex.getMessage());
+			return null;
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * <p>Compresses an ISO 2709 record that is already UTF-8.</p>
+	 */
+	private static byte[] deflate(byte[] source) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(source);
+			deflater.finish();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(source.length / 2 + 64);
+			byte[] chunk = new byte[4096];
+			while (!deflater.finished()) {
+				int written = deflater.deflate(chunk);
+				bytes.write(chunk, 0, written);
+			}
+			return bytes.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	/**
+	 * <p>Reads a record written by encode().</p>
+	 *
+	 * @param	raw			the compressed record
+	 * @return				the record, or null if it could not be read
+	 */
+	static Record decode(byte[] raw) {
+		try {
+			MarcReader reader = new MarcStreamReader(new InflaterInputStream(new ByteArrayInputStream(raw)), "UTF8");
+			if (reader.hasNext()) {
+				return reader.next();
+			}
+		} catch (MarcException ex) {
+			System.out.println("MarcException RawRecordReader.java decode: " + ex.getMessage());
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,89 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>Streams the ids of records waiting for scope checking, processing, or
+ * export in fixed size batches instead of loading every id into memory 
+ * first.  Each batch is fetched with a keyset query on records.id, so work
+ * can start as soon as the first batch arrives and memory use stays the 
+ * same however many records are waiting.</p>
+ * 
+ * <p>Because each batch starts after the last id handed out, records that
+ * change state while the cursor is open are neither skipped nor returned 
+ * twice.</p>
+ */
+public class RecordCursor {
+	
+	public static final int TO_SCOPE = 1;
+	public static final int UNPROCESSED_BIBS = 2;
+	public static final int UNEXPORTED_BIBS = 3;
+	
+	RecordStore sqlObj;
+	int source;
+	int batchSize;
+	int lastId = 0;
+	boolean exhausted = false;
+	
+	/**
+	 * <p>Constructor class that sets the work source and batch size.</p>
+	 *
+	 * @param  sqlModObj  	an instance of the sqlModel class
+	 * @param  workSource	TO_SCOPE, UNPROCESSED_BIBS, or UNEXPORTED_BIBS
+	 * @param  batch		the number of ids to fetch per query
+	 */
+	public RecordCursor(RecordStore sqlModObj, int workSource, int batch) {
+		sqlObj = sqlModObj;
+		source = workSource;
+		batchSize = batch;
+	}
+	
+	/**
+	 * <p>Returns the next batch of record ids in ascending order.</p>
+	 *
+	 * @return		the next ids, or an empty array once every record has been returned
+	 */
+	public int[] nextBatch() {
+		if (exhausted) {
+			return new int[0];
+		}
+		int[] ids = sqlObj.selectRecordIdPage(source, lastId, batchSize);
+		if (ids.length < batchSize) {
+			exhausted = true;
+		}
+		if (ids.length > 0) {
+			lastId = ids[ids.length - 1];
+		}
+		return ids;
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.util.List;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>Loads stored records into MarcRecordModel objects.  Each record is
+ * fetched with a single query that joins records to records_has_fields
+ * and fields_has_subfields, replacing the query-per-field and 
+ * query-per-subfield pattern the exporters used to follow.  Workers that
+ * go through many records load them a block at a time so that a single
+ * round trip covers BLOCK_SIZE records.</p>
+ */
+public class RecordLoader {
+	
+	public static final int BLOCK_SIZE = SqlModel.RECORD_BLOCK_SIZE;
+	
+	RecordStore sqlObj;
+	
+	/**
+	 * <p>Constructor class that assigns the passed RecordStore to the class 
+	 * instance.</p>
+	 *
+	 * @param  sqlModObj  	an instance of the sqlModel class
+	 */
+	public RecordLoader(RecordStore sqlModObj) {
+		sqlObj = sqlModObj;
+	}
+	
+	/**
+	 * <p>Loads a whole record, its fields, and their subfields.</p>
+	 *
+	 * @param  recordId		the records.id of the record to load
+	 * @return				the record, or null if there is no such record
+	 */
+	public MarcRecordModel load(int recordId) {
+		return sqlObj.selectRecordModel(recordId);
+	}
+	
+	/**
+	 * <p>Loads a block of records with one query per BLOCK_SIZE ids.</p>
+	 *
+	 * @param  recordIds	the records.id(s) to load
+	 * @return				the records in ascending id order, leaving out
+	 * 						any id that no longer has a record
+	 */
+	public List<MarcRecordModel> loadBlock(int[] recordIds) {
+		return sqlObj.selectRecordModels(recordIds);
+	}
+
+}
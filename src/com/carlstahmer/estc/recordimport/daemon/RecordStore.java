@@ -0,0 +1,299 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>The data access methods used by the import, scope, and export 
+ * pipeline.  SqlModel implements them against MySQL and 
+ * EmbeddedRecordStore implements them in-process, so a pipeline can run 
+ * without a database server.  Use RecordStoreFactory to get the store 
+ * selected by the storage configuration option.</p>
+ */
+public interface RecordStore {
+	
+	/**
+	 * <p>Readies the store for use by the calling thread.</p>
+	 */
+	public boolean openConnection();
+	
+	/**
+	 * <p>Readies the store for use by the calling thread, returning false
+	 * instead of waiting on the store if it cannot.</p>
+	 */
+	public boolean tryOpenConnection();
+	
+	/**
+	 * <p>Releases whatever the calling thread holds in the store.</p>
+	 */
+	public boolean closeConnection();
+	
+	/**
+	 * <p>Starts a transaction grouping the writes of one or more records
+	 * made by the calling thread.</p>
+	 */
+	public boolean beginTransaction();
+	
+	/**
+	 * <p>Marks the start of a record within the open transaction.</p>
+	 */
+	public boolean beginRecord();
+	
+	/**
+	 * <p>Marks the end of a record, rolling back its writes alone if keep
+	 * is false or any of them failed.  Returns true if it was kept.</p>
+	 */
+	public boolean endRecord(boolean keep);
+	
+	/**
+	 * <p>Commits the open transaction.  Returns false if it had to be 
+	 * rolled back instead.</p>
+	 */
+	public boolean commitTransaction();
+	
+	/**
+	 * <p>Rolls back the open transaction.</p>
+	 */
+	public void rollbackTransaction();
+	
+	/**
+	 * <p>Selects a file type id based upon a filename suffix.  Returns 0
+	 * if the suffix is not known.</p>
+	 */
+	public int selectFileTypeID(String suffix);
+	
+	/**
+	 * <p>Selects the id of a file with the given institution code and 
+	 * filename that has not been modified since it was loaded, or 0.</p>
+	 */
+	public int selectFileRecordStrict(String currCode, String fileName, long modDate);
+	
+	/**
+	 * <p>Selects the id of a file with the given institution code and 
+	 * filename, or 0.</p>
+	 */
+	public int selectFileRecord(String currCode, String fileName);
+	
+	/**
+	 * <p>Adds a file and returns its id, or 0 on failure.</p>
+	 */
+	public int insertFileRecord(String currCode, String fileName, long modDate, int fileType);
+	
+	/**
+	 * <p>Updates the last modified date of a file.</p>
+	 */
+	public boolean updateFileModDate(int intFileId, long fileModDate);
+	
+	/**
+	 * <p>Selects the institution_code and filename of a file.</p>
+	 */
+	public ArrayList<HashMap<String,String>> selectFileInfoById(int fileId);
+	
+	/**
+	 * <p>Selects the checkpoint of an unfinished import of a file as its
+	 * modification date, byte offset, and record ordinal, or null.</p>
+	 */
+	public long[] selectFileCheckpoint(int fileId);
+	
+	/**
+	 * <p>Saves how far an import of a file has committed, replacing any 
+	 * earlier checkpoint for the file.</p>
+	 */
+	public boolean saveFileCheckpoint(int fileId, long modDate, long offset, int ordinal);
+	
+	/**
+	 * <p>Deletes the checkpoint of a file.</p>
+	 */
+	public boolean deleteFileCheckpoint(int fileId);
+	
+	/**
+	 * <p>Selects the id of a record matched on institution code, record 
+	 * type, and control identifier, or 0.</p>
+	 */
+	public int selectRecordRecord(String currCode, int recType, String controlIdentifier);
+	
+	/**
+	 * <p>Selects the last modified date of a record.</p>
+	 */
+	public double selectRecordMod(int recordId);
+	
+	/**
+	 * <p>Selects the content hash stored for a record, or null.</p>
+	 */
+	public byte[] selectRecordHash(int recordId);
+	
+	/**
+	 * <p>Adds the institution code, control identifier, type, id, 
+	 * moddate, and content hash of every bib and holding record to a 
+	 * DedupIndex, in id order.</p>
+	 */
+	public boolean selectRecordKeys(DedupIndex index);
+	
+	/**
+	 * <p>Adds a record and returns its id, or 0 on failure.</p>
+	 */
+	public int insertRecordRecord(int fileId, int recType, String controlIdentifier, double moddate, byte[] contentHash);
+	
+	/**
+	 * <p>Writes every field and subfield in a batch as one unit, filling
+	 * in the field ids.  Nothing is written if it fails.</p>
+	 */
+	public boolean insertFieldBatch(MarcFieldBatch batch);
+	
+	/**
+	 * <p>Removes the fields, subfields, and holding links of a record 
+	 * that is about to be replaced and resets its moddate and flags.</p>
+	 */
+	public boolean replaceRecordData(int recordId, double moddate);
+	
+	/**
+	 * <p>Brings the stored fields of a record in line with a newer 
+	 * version, rewriting only the fields whose content hash differs, and
+	 * resets its moddate, content hash, and flags.  Fields that are kept 
+	 * or rewritten keep their ids.</p>
+	 */
+	public boolean updateRecordData(int recordId, double moddate, MarcFieldBatch batch);
+	
+	/**
+	 * <p>Brings a record whose content has not changed up to the newer 
+	 * version's time stamp: advances its moddate, rewrites its 005 field
+	 * row, and saves the newer raw copy, leaving its other fields and its
+	 * flags alone.  Returns false without changing anything if the record
+	 * does not have exactly one stored 005 to rewrite.</p>
+	 */
+	public boolean updateRecordTimestamp(int recordId, double moddate, MarcFieldBatch batch, byte[] raw);
+	
+	/**
+	 * <p>Selects the next page of record ids from a RecordCursor work 
+	 * source, in ascending order after afterId.</p>
+	 */
+	public int[] selectRecordIdPage(int source, int afterId, int limit);
+	
+	/**
+	 * <p>Counts the records waiting in a RecordCursor work source.</p>
+	 */
+	public int selectRecordCount(int source);
+	
+	/**
+	 * <p>Loads a record with all of its fields and subfields, or null.</p>
+	 */
+	public MarcRecordModel selectRecordModel(int recordId);
+	
+	/**
+	 * <p>Loads a block of records in ascending id order.  Ids with no 
+	 * record are left out.</p>
+	 */
+	public ArrayList<MarcRecordModel> selectRecordModels(int[] recordIds);
+	
+	/**
+	 * <p>Saves the compressed ISO 2709 copy of a record, replacing any 
+	 * earlier copy.</p>
+	 */
+	public boolean saveRawRecord(int recordId, byte[] raw);
+	
+	/**
+	 * <p>Selects the compressed ISO 2709 copy of a record, or null.</p>
+	 */
+	public byte[] selectRawRecord(int recordId);
+	
+	/**
+	 * <p>Selects the id, file_id, control_identifier, and type of every
+	 * holding record.</p>
+	 */
+	public ArrayList<HashMap<String,String>> selectHoldingRecords();
+	
+	/**
+	 * <p>Selects the ids of every field of a record.</p>
+	 */
+	public ArrayList<Integer> selectAssocfieldIds(int recordId);
+	
+	/**
+	 * <p>Deletes all subfields of a field.</p>
+	 */
+	public boolean deleteSubFields(int fieldId);
+	
+	/**
+	 * <p>Deletes all fields of a record.</p>
+	 */
+	public boolean deleteRecordFields(int recordId);
+	
+	/**
+	 * <p>Deletes a record.</p>
+	 */
+	public boolean deleteRecordRecord(int recordId);
+	
+	/**
+	 * <p>Selects or creates the id of a subject term.</p>
+	 */
+	public String selectSubjectID(String subjectLiteral);
+	
+	/**
+	 * <p>Selects or creates the id of an agent.</p>
+	 */
+	public String selectAgentID(String agentLiteral);
+	
+	/**
+	 * <p>Selects the image path of a record, or an empty string.</p>
+	 */
+	public String selectImageRecord(int record_id);
+	
+	/**
+	 * <p>Selects the record_id and 852 field_id of every record whose 001 
+	 * matches an ESTC ID, ordered by record and then field.</p>
+	 */
+	public ArrayList<HashMap<String,String>> selectHoldingLinks(String estcID);
+	
+	/**
+	 * <p>Selects the id, field_id, subfield, and value of every subfield
+	 * of a field.</p>
+	 */
+	public ArrayList<HashMap<String,String>> selectAllSubfields(int feildID);
+	
+	/**
+	 * <p>Sets the exported, processed, or scoped flag on a list of records.</p>
+	 */
+	public boolean updateRecordFlag(String column, int value, List<Integer> recordIds);
+	
+	/**
+	 * <p>Writes a message to the run log and returns its id, or 0.</p>
+	 */
+	public int insertLogMessage(int messageType, String fileName, int lineNumber, String messageText);
+	
+	/**
+	 * <p>Writes a batch of run log messages in order.</p>
+	 */
+	public boolean insertLogMessages(List<AsyncLogWriter.LogEntry> entries);
+
+}
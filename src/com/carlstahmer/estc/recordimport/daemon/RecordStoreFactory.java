@@ -0,0 +1,67 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>Chooses the RecordStore implementation named by the storage 
+ * configuration option.  "embedded" returns the shared in-process 
+ * EmbeddedRecordStore; anything else returns a new SqlModel.</p>
+ */
+public class RecordStoreFactory {
+	
+	public static final String MYSQL = "mysql";
+	public static final String EMBEDDED = "embedded";
+	
+	/**
+	 * <p>Returns the configured store.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @return			 the store to read and write records through
+	 */
+	public static RecordStore open(Conf config) {
+		if (isEmbedded(config)) {
+			return EmbeddedRecordStore.getStore(config);
+		}
+		return new SqlModel(config);
+	}
+	
+	/**
+	 * <p>Whether the passed Config object selects the embedded store.</p>
+	 *
+	 * @param  config    an instance of the Conf class
+	 * @return			 true for the embedded store, false for MySQL
+	 */
+	public static boolean isEmbedded(Conf config) {
+		return EMBEDDED.equalsIgnoreCase(config.storage);
+	}
+
+}
@@ -30,19 +30,38 @@
 package com.carlstahmer.estc.recordimport.daemon;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 
 /**
  * @author cstahmer
  * 
  * <p>A utility class for performing various record based operations.</p>
+ * 
+ * <p>Duplicate checks are answered from the shared DedupIndex when it is
+ * turned on.  Each change this object makes to the index is remembered 
+ * until the writes behind it are committed, so that the change can be 
+ * undone if they are rolled back.  Callers that write in transactions 
+ * report their outcome through recordDone() and transactionDone().</p>
  */
 
 public class RecordUtils {
 
 	Conf config;
-	SqlModel sqlObj;
+	RecordStore sqlObj;
 	Logger logger;
+	ArrayList<IndexChange> recordChanges = new ArrayList<IndexChange>();
+	ArrayList<IndexChange> transactionChanges = new ArrayList<IndexChange>();
+	
+	/**
+	 * <p>A change made to the DedupIndex and what the key held before it.</p>
+	 */
+	static class IndexChange {
+		String code;
+		String control;
+		int type;
+		DedupIndex.Hit previous;
+	}
 	
 	/**
 	 * <p>Constructor class that assigns passed Config object and SqlModel to 
@@ -51,7 +70,7 @@ public class RecordUtils {
 	 * @param  configObj    an instance of the Conf class
 	 * @param  sqlModObj  	an instance of the sqlModel class
 	 */
-	public RecordUtils(Conf configObj, SqlModel sqlModObj) {
+	public RecordUtils(Conf configObj, RecordStore sqlModObj) {
 		config = configObj;
 		sqlObj = sqlModObj;
 		logger = new Logger(config);
@@ -61,64 +80,122 @@ public class RecordUtils {
 	 * <p>Determine if this record should be processed or not by 
 	 * determining whether it is completely new or newer than 
 	 * some version of the record that may exist in the system.</p>
+	 * 
+	 * <p>A newer version whose content hash matches the stored one, as
+	 * when a record has only been saved again, is skipped once the stored
+	 * moddate, 005 field, and raw copy have been brought up to its time 
+	 * stamp.  Otherwise the stored fields are brought in line with the 
+	 * batch, rewriting only those whose hash differs.  Without a batch 
+	 * every stored field is cleared for the caller to write again.</p>
 	 *
 	 * @param  	curCode    	The institutional code of the record originator
 	 * @param 	control		The record control code
 	 * @param	timeStamp	The timestamp for the record
 	 * @param	recordType	0 = any, 1 = bib, 2 = holding
-	 * @return				The ID of an oder found record, 0 = new record needs to be inserted, -1 = duplicate
+	 * @param	batch		The field rows of the incoming version, or null
+	 * @param	raw			The raw copy of the incoming version, or null
+	 * @return				The ID of an oder found record that has been updated (or cleared if there 
+	 * 						is no batch), 0 = new record needs to be inserted, -1 = duplicate
 	 */
-	public int duplicateRecordCheck(String currCode, String control, double timeStamp, int recordType) {
+	public int duplicateRecordCheck(String currCode, String control, double timeStamp, int recordType, MarcFieldBatch batch, byte[] raw) {
 		int retDup = 0;
+		int foundType = 0;
+		double dbmoddate = 0;
+		byte[] dbhash = null;
+		boolean hashKnown = false;
+		
+		// the index compares keys literally, so anything with a LIKE 
+		// wildcard in it is still looked up in the database
+		DedupIndex index = null;
+		if (!hasWildcard(currCode) && !hasWildcard(control)) {
+			index = DedupIndex.getIndex(config, sqlObj);
+		}
 		
-		if (recordType == 1) {
-			retDup = sqlObj.selectRecordRecord(currCode, 1, control);
-		} else if (recordType == 2) {
-			retDup = sqlObj.selectRecordRecord(currCode, 2, control);
+		if (index != null) {
+			DedupIndex.Hit hit = null;
+			if (recordType == 1 || recordType == 2) {
+				foundType = recordType;
+				hit = index.get(currCode, control, recordType);
+			} else {
+				foundType = 1;
+				hit = index.get(currCode, control, 1);
+				if (hit == null) {
+					foundType = 2;
+					hit = index.get(currCode, control, 2);
+				}
+			}
+			if (hit != null) {
+				retDup = hit.id;
+				dbmoddate = hit.moddate;
+				dbhash = hit.hash;
+				hashKnown = true;
+			}
 		} else {
-			int contId = sqlObj.selectRecordRecord(currCode, 1, control);
-			int bibId = sqlObj.selectRecordRecord(currCode, 2, control);
-			if (contId > 0 || bibId > 0) {
-				if (contId > 0) {
-					retDup = contId;
-				} else {
-					retDup = bibId;
+			if (recordType == 1) {
+				retDup = sqlObj.selectRecordRecord(currCode, 1, control);
+			} else if (recordType == 2) {
+				retDup = sqlObj.selectRecordRecord(currCode, 2, control);
+			} else {
+				int contId = sqlObj.selectRecordRecord(currCode, 1, control);
+				int bibId = sqlObj.selectRecordRecord(currCode, 2, control);
+				if (contId > 0 || bibId > 0) {
+					if (contId > 0) {
+						retDup = contId;
+					} else {
+						retDup = bibId;
+					}
 				}
 			}
+			if (retDup > 0) {
+				dbmoddate = sqlObj.selectRecordMod(retDup);
+			}
 		}
 		
 		if (retDup > 0) {
 			
-			logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Processing existing record with id : "+retDup);
+			logger.debug("Processing existing record with id : {}", retDup);
 			
-			double dbmoddate = sqlObj.selectRecordMod(retDup);
-			if (dbmoddate < timeStamp) {
+			if (dbmoddate < timeStamp && batch != null) {
+				
+				// if here, then the record in the db is older than the one in the file,
+				// but only the fields whose content has changed need to be written
+				if (!hashKnown) {
+					dbhash = sqlObj.selectRecordHash(retDup);
+				}
+				byte[] hash = batch.contentHash();
+				if (dbhash != null && Arrays.equals(dbhash, hash) && sqlObj.updateRecordTimestamp(retDup, timeStamp, batch, raw)) {
+					// the content is the same, but the time stamp still moves 
+					// forward so that the next run can skip this record on its 
+					// moddate alone.  A record without a single stored 005 to
+					// rewrite is updated in full below.
+					logger.debug("Skipping record because its content has not changed: {}", retDup);
+					if (index != null) {
+						indexRecord(index, currCode, control, foundType, retDup, timeStamp, dbhash);
+					}
+					retDup = -1;
+				} else if (!sqlObj.updateRecordData(retDup, timeStamp, batch)) {
+					logger.error("Skipping record because its existing data could not be updated: {}", retDup);
+					retDup = -1;
+				} else if (index != null) {
+					indexRecord(index, currCode, control, foundType, retDup, timeStamp, hash);
+				}
+			} else if (dbmoddate < timeStamp) {
 				
 				// if here, then the record in the db is older than the one in the file
 				// so we need to clear the one in the DB so that we can put the new
 				// data in place
 				
-				// select all fields for a record
-				ArrayList<Integer> assocFields = sqlObj.selectRecordFieldIds(retDup);
-				System.out.println("Size of Deletion Associated Fields Array: [" + assocFields.size() + "]");
-				
-				// For each field
-				if (assocFields.size() > 0) {
-					for (int iaf=0; iaf < assocFields.size(); iaf++) {
-						// delete all subfields
-						sqlObj.deleteSubFields(assocFields.get(iaf));
-					}
-					// delete the field
-					sqlObj.deleteRecordFields(retDup);
+				// recycle and delete all fields and subfields and reset the
+				// record's flags in one transaction
+				if (!sqlObj.replaceRecordData(retDup, timeStamp)) {
+					logger.error("Skipping record because its existing data could not be cleared: {}", retDup);
+					retDup = -1;
+				} else if (index != null) {
+					indexRecord(index, currCode, control, foundType, retDup, timeStamp, null);
 				}
-				
-				sqlObj.updateRecordRecordModdate(retDup, timeStamp);
-				sqlObj.setRecordRecordUnProcessed(retDup);
-				sqlObj.setRecordRecordUnScoped(retDup);
-				sqlObj.setRecordRecordNotExported(retDup);
 			} else {
 				retDup = -1;
-				logger.log(3, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), "Skipping record beacause db version is the same or newer than file version: "+retDup);
+				logger.debug("Skipping record beacause db version is the same or newer than file version: {}", retDup);
 			}
 			
 			
@@ -127,4 +204,86 @@ public class RecordUtils {
 		return retDup;
 	}
 	
+	/**
+	 * <p>Adds a record to the records table and to the duplicate index.</p>
+	 *
+	 * @param  	fileId    	The system id of the file the record came from
+	 * @param  	curCode    	The institutional code of the record originator
+	 * @param 	recType		1 = bib, 2 = holding, 3 = un-matched or ESTC holding
+	 * @param 	control		The record control code
+	 * @param	moddate		The timestamp for the record
+	 * @param	hash		The content hash of the record, or null
+	 * @return				The id of the new record, or 0 on failure
+	 */
+	public int insertRecord(int fileId, String curCode, int recType, String control, double moddate, byte[] hash) {
+		int recordId = sqlObj.insertRecordRecord(fileId, recType, control, moddate, hash);
+		if (recordId > 0 && !hasWildcard(curCode) && !hasWildcard(control)) {
+			// only bib and holding records are indexed, and those are 
+			// always written under the code of the file they came from
+			DedupIndex index = DedupIndex.getIndex(config, sqlObj);
+			if (index != null) {
+				indexRecord(index, curCode, control, recType, recordId, moddate, hash);
+			}
+		}
+		return recordId;
+	}
+	
+	/**
+	 * <p>Reports whether the record just written was kept or rolled back.
+	 * The index changes made for a rolled back record are undone.</p>
+	 *
+	 * @param  	kept    	true if the record's writes were kept
+	 */
+	public void recordDone(boolean kept) {
+		if (kept) {
+			transactionChanges.addAll(recordChanges);
+		} else {
+			undo(recordChanges);
+		}
+		recordChanges.clear();
+	}
+	
+	/**
+	 * <p>Reports whether the open transaction was committed or rolled 
+	 * back.  The index changes made for a rolled back transaction are 
+	 * undone.</p>
+	 *
+	 * @param  	committed   true if the transaction was committed
+	 */
+	public void transactionDone(boolean committed) {
+		if (!committed) {
+			undo(recordChanges);
+			undo(transactionChanges);
+		}
+		recordChanges.clear();
+		transactionChanges.clear();
+	}
+	
+	private void indexRecord(DedupIndex index, String code, String control, int type, int id, double moddate, byte[] hash) {
+		IndexChange change = new IndexChange();
+		change.code = code;
+		change.control = control;
+		change.type = type;
+		change.previous = index.put(code, control, type, id, moddate, hash);
+		recordChanges.add(change);
+	}
+	
+	/**
+	 * <p>Undoes index changes, newest first.</p>
+	 */
+	private void undo(ArrayList<IndexChange> changes) {
+		DedupIndex index = DedupIndex.getIndex(config, sqlObj);
+		if (index == null) {
+			return;
+		}
+		for (int i=changes.size() - 1; i >= 0; i--) {
+			IndexChange change = changes.get(i);
+			index.restore(change.code, change.control, change.type, change.previous);
+		}
+	}
+	
+	private boolean hasWildcard(String value) {
+		return value.indexOf('%') > -1 || value.indexOf('_') > -1;
+	}
+	
 }
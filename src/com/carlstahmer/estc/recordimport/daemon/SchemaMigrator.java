@@ -0,0 +1,214 @@
+/**
+ *	<p>Copyright (c) 2016, Carl Stahmer - <a href="http://www.carlstahmer.com">www.carlstahmer.com</a>.</p>
+ *	
+ *	<p>This file is part of the ESTC Record Importer package, a server 
+ *	daemon that processes incoming MARC cataloging data stored in binary
+ *	MARC, .csv, and .txt formats, checks the records for scope on date,
+ *	language, and place of publication, and exports the filtered
+ *	records as RDF suitable for linked data exchange.</p>
+ *
+ *	<p>The ESTC Record Importer is free software: you can redistribute it 
+ *	and/or modify it under the terms of the GNU General Public License 
+ *	as published by the Free Software Foundation, either version 3 of 
+ *	the License, or (at your option) any later version.</p>
+ *
+ *	<p>The ESTC Record Importer is distributed in the hope that it will 
+ *	be useful, but WITHOUT ANY WARRANTY; without even the implied warranty 
+ *	of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ *	GNU General Public License for more details.</p>
+ *
+ *	<p>You should have received a copy of the GNU General Public License  
+ *	along with the ESTC Record Importer distribution.  If not, 
+ *	see <a href="http://www.gnu.org/licenses/">http://www.gnu.org/licenses/</a>.</p>
+ *
+ *	<p>Development of this software was made possible through funding from 
+ *	the Andrew W. Mellon Foundation which maintains a nonexclusive, 
+ *  royalty-free, worldwide, perpetual, irrevocable license to distribute 
+ *  this software either in wholoe or in part for scholarly and educational purposes.</p>
+ */
+
+package com.carlstahmer.estc.recordimport.daemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author cstahmer
+ * 
+ * <p>Brings the working database schema up to the version this release
+ * expects and checks that the hot queries are using their indexes.  Each
+ * migration is a numbered list of secondary indexes.  A migration is only 
+ * recorded in the schema_version table once every index in it exists, so a
+ * migration that fails part way is simply retried on the next start.  
+ * Indexes are checked against information_schema before they are added, 
+ * so databases that were indexed by hand are left alone.</p>
+ * 
+ * <p>Called by Listener.main() at startup.  The import writes to the 
+ * tables and columns that migrations 2 to 5 add, so the application 
+ * stops if the schema cannot be brought up to date.  Full scans found 
+ * by reportFullScans() are only logged.</p>
+ */
+public class SchemaMigrator {
+	
+	/**
+	 * <p>Migrations in version order.  Each index row is the table, the 
+	 * index name, and the indexed columns.  Text columns are indexed on a
+	 * 255 character prefix.  Migrations that add tables or columns do so
+	 * in createTables() before their indexes are checked.</p>
+	 */
+	static final Object[][] MIGRATIONS = new Object[][] {
+		{1, "Indexes for field, subfield, record, recycle bin, and authority lookups", new String[][] {
+			{"records_has_fields", "idx_rhf_record_field", "record_id,field"},
+			{"fields_has_subfields", "idx_fhs_field_subfield", "field_id,subfield"},
+			{"records", "idx_records_type_exported", "type,exported"},
+			{"records", "idx_records_control_type", "control_identifier,type"},
+			{"recycled_fields", "idx_recycled_type", "type,foreign_key"},
+			{"estc_subject_terms", "idx_subject_term", "term"},
+			{"estc_agents", "idx_agents_label", "local_label"}
+		}},
+		{2, "record_links table of control identifiers to 852 fields", new String[][] {}},
+		{3, "records_raw table of compressed ISO 2709 records", new String[][] {}},
+		{4, "content_hash columns on records and records_has_fields", new String[][] {}},
+		{5, "file_checkpoints table of unfinished file imports", new String[][] {}}
+	};
+	
+	Conf configObj;
+	SqlModel sqlObj;
+	Logger logger;
+	
+	/**
+	 * <p>Constructor class that assigns values from passed Config object 
+	 * and SqlModel to the class instance.</p>
+	 *
+	 * @param  config    	an instance of the Conf class
+	 * @param  sqlModObj  	an instance of the sqlModel class
+	 */
+	public SchemaMigrator(Conf config, SqlModel sqlModObj) {
+		configObj = config;
+		sqlObj = sqlModObj;
+		logger = new Logger(config);
+	}
+	
+	/**
+	 * <p>Applies every migration newer than the recorded schema version.</p>
+	 *
+	 * @return		true if the schema is now at the latest version
+	 */
+	public boolean migrate() {
+		if (!sqlObj.createSchemaVersionTable()) {
+			logger.error("Unable to create the schema_version table; skipping schema migrations");
+			return false;
+		}
+		
+		int current = sqlObj.selectSchemaVersion();
+		for (int i=0; i < MIGRATIONS.length; i++) {
+			int version = (Integer) MIGRATIONS[i][0];
+			String description = (String) MIGRATIONS[i][1];
+			String[][] indexes = (String[][]) MIGRATIONS[i][2];
+			if (version <= current) {
+				continue;
+			}
+			
+			boolean applied = createTables(version);
+			for (String[] index : indexes) {
+				if (!ensureIndex(index[0], index[1], index[2])) {
+					applied = false;
+				}
+			}
+			if (!applied || !sqlObj.insertSchemaVersion(version, description)) {
+				logger.error("Schema migration {} did not complete; it will be retried at the next start", version);
+				return false;
+			}
+			current = version;
+			logger.info("Applied schema migration {}: {}", version, description);
+		}
+		
+		logger.info("Database schema is at version {}", current);
+		return true;
+	}
+	
+	/**
+	 * <p>Runs EXPLAIN for each hot query shape and logs an error for any 
+	 * table the optimizer would read with a full scan.</p>
+	 *
+	 * @return		the number of full scans found
+	 */
+	public int reportFullScans() {
+		int fullScans = 0;
+		LinkedHashMap<String,Object[]> queries = sqlObj.hotQueries();
+		for (Map.Entry<String,Object[]> query : queries.entrySet()) {
+			ArrayList<HashMap<String,String>> plan = sqlObj.explainQuery(query.getKey(), query.getValue());
+			for (HashMap<String,String> step : plan) {
+				if ("ALL".equalsIgnoreCase(step.get("type"))) {
+					fullScans++;
+					logger.error("Full scan of table {} (about {} rows) in query: {}", step.get("table"), step.get("rows"), query.getKey());
+				}
+			}
+		}
+		if (fullScans == 0) {
+			logger.info("All {} hot queries are using indexes", queries.size());
+		}
+		return fullScans;
+	}
+	
+	/**
+	 * <p>Creates and fills any tables, and adds any columns, a migration 
+	 * adds.</p>
+	 */
+	private boolean createTables(int version) {
+		if (version == 2) {
+			return sqlObj.createRecordLinksTable() && sqlObj.rebuildRecordLinks();
+		}
+		if (version == 3) {
+			return sqlObj.createRecordsRawTable();
+		}
+		if (version == 4) {
+			return ensureColumn("records", "content_hash", "BINARY(16) NULL") 
+					&& ensureColumn("records_has_fields", "content_hash", "BINARY(16) NULL");
+		}
+		if (version == 5) {
+			return sqlObj.createFileCheckpointsTable();
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>Adds a column unless the table already has one with that name.</p>
+	 */
+	private boolean ensureColumn(String table, String column, String definition) {
+		if (sqlObj.selectColumnType(table, column).length() > 0) {
+			return true;
+		}
+		logger.info("Adding column {} to {}", column, table);
+		return sqlObj.createColumn(table, column, definition);
+	}
+	
+	/**
+	 * <p>Adds an index unless one with the same name already exists.</p>
+	 */
+	private boolean ensureIndex(String table, String indexName, String columns) {
+		if (sqlObj.indexExists(table, indexName)) {
+			return true;
+		}
+		
+		// BLOB and TEXT columns can only be indexed on a prefix
+		String[] names = columns.split(",");
+		String columnList = "";
+		for (int i=0; i < names.length; i++) {
+			String type = sqlObj.selectColumnType(table, names[i]);
+			if (i > 0) {
+				columnList = columnList + ",";
+			}
+			columnList = columnList + "`" + names[i] + "`";
+			if (type.endsWith("text") || type.endsWith("blob")) {
+				columnList = columnList + "(255)";
+			}
+		}
+		
+		logger.info("Adding index {} on {} ({})", indexName, table, columnList);
+		return sqlObj.createIndex(table, indexName, columnList);
+	}
+
+}
@@ -32,6 +32,7 @@ package com.carlstahmer.estc.recordimport.daemon;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -53,8 +54,10 @@ import java.util.regex.Pattern;
 public class ScopeChecker {
 	
 	Conf configObj;
-	SqlModel sqlObj;
+	RecordStore sqlObj;
+	RecordLoader recordLoader;
 	Logger logger;
+	ProgressReporter progress;
 
 	/**
 	 * <p>Constructor class that assigns values from passed Config object 
@@ -63,10 +66,12 @@ public class ScopeChecker {
 	 * @param  config    an instance of the Conf class
 	 * @param  sqlModObj  	an instance of the sqlModel class
 	 */
-	public ScopeChecker(Conf config, SqlModel sqlModObj) {
+	public ScopeChecker(Conf config, RecordStore sqlModObj) {
 		configObj = config;
 		sqlObj = sqlModObj;
+		recordLoader = new RecordLoader(sqlModObj);
 		logger = new Logger(config);
+		progress = new ProgressReporter(config, "Scope check");
 	}
 	
 	
@@ -91,42 +96,44 @@ public class ScopeChecker {
 	public boolean applyScopeFilter() {
 		boolean ret = false;
 		
-		// first, do a select to get all records where scoped = 0 and load the ID's
-		// into a list
-		ArrayList<Integer> recordsToCheck = sqlObj.selectRecordsToScope();
-		if (recordsToCheck.size() > 10) {
-			
-			// This for loop temprarily limits
-			// the number of records being tested.
-			// When testing is complete, alter this loop
-			// to run on all records that should be processed
-			for (int i=0;i<(recordsToCheck.size()-1);i++) {
-			//for (int i=0;i<10;i++) {
-				
+		// page through all records where scoped = 0 in id order rather
+		// than loading every id into a list first
+		RecordCursor recordsToCheck = new RecordCursor(sqlObj, RecordCursor.TO_SCOPE, RecordLoader.BLOCK_SIZE);
+		progress.begin(sqlObj.selectRecordCount(RecordCursor.TO_SCOPE), false);
+		int[] batch;
+		while ((batch = recordsToCheck.nextBatch()).length > 0) {
+			// load the whole block of records at once and run every 
+			// check against the in-memory copies
+			List<MarcRecordModel> records = recordLoader.loadBlock(batch);
+			int waiting = records.size();
+			for (MarcRecordModel marc : records) {
+				int recordId = marc.id();
+				progress.setQueueDepth(--waiting);
+				progress.nextRecord();
 				
-				boolean languageCheck = languageScope(configObj.languageScope, recordsToCheck.get(i));
+				boolean languageCheck = languageScope(configObj.languageScope, marc);
 				if (languageCheck) {
-					System.out.println("Record " + recordsToCheck.get(i) + " passed language check.");
+					progress.debug("Record {} passed language check.", recordId);
 				} else {
 					
 				}
 				
-				boolean dateCheck = dateScope(recordsToCheck.get(i));
+				boolean dateCheck = dateScope(marc);
 				if (dateCheck) {
-					System.out.println("Record " + recordsToCheck.get(i) + " passed date check.");
+					progress.debug("Record {} passed date check.", recordId);
 				} else {
 					
 				}
 				
 				// get the information I need to write good log messages
-				String strRecordControlNumber = sqlObj.selectRecordControlId(recordsToCheck.get(i));
-				int recordFileId = sqlObj.selectRecordFileId(recordsToCheck.get(i));
+				String strRecordControlNumber = marc.controlIdentifier();
+				int recordFileId = marc.fileId();
 				ArrayList<HashMap<String,String>> fileInfo = sqlObj.selectFileInfoById(recordFileId);
 				HashMap<String,String> recordInfoRecord = fileInfo.get(0);
 				String instCode = recordInfoRecord.get("institution_code");
 				String recordFileName = recordInfoRecord.get("filename");
 				
-				String recordFileInfo = "Record with system ID " + recordsToCheck.get(i) +
+				String recordFileInfo = "Record with system ID " + recordId +
 						" from file " + instCode + " " + recordFileName + " local control number " +
 						strRecordControlNumber + " ";
 				
@@ -135,8 +142,8 @@ public class ScopeChecker {
 					
 					//TODO: UPDATE THE RECORD SO THAT 'scoped' = 1
 					
-					logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), recordFileInfo + " passed scope check for language and date.");
-					System.out.println("Record " + recordsToCheck.get(i) + " passed scope check.");
+					logger.info("{} passed scope check for language and date.", recordFileInfo);
+					progress.debug("Record {} passed scope check.", recordId);
 				} else {
 					// This is where I should write out to the log that the record was
 					// rejected on scope
@@ -152,26 +159,26 @@ public class ScopeChecker {
 						}
 					}
 					
-					logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), recordFileInfo + " failed scope check for " + failedScopeItem + ".");
+					logger.info("{} failed scope check for {}.", recordFileInfo, failedScopeItem);
 					
 					// first get all fields for the record than loop
 					// through and delete the sub-fields
-					ArrayList<Integer> fieldsToGo = sqlObj.selectAssocfieldIds(recordsToCheck.get(i));
+					ArrayList<Integer> fieldsToGo = sqlObj.selectAssocfieldIds(recordId);
 					for (int dr : fieldsToGo) {
 						sqlObj.deleteSubFields(dr);
 					}
 					
 					// then delete the fields
-					sqlObj.deleteRecordFields(recordsToCheck.get(i));
+					sqlObj.deleteRecordFields(recordId);
 					
 					// then delete the record
-					boolean recordgone = sqlObj.deleteRecordRecord(recordsToCheck.get(i));
+					boolean recordgone = sqlObj.deleteRecordRecord(recordId);
 					
 					//TODO: PUT CODE HERE TO ADD RECORD ID TO THE 
 					
 					
 					if (recordgone) {
-						logger.log(2, Thread.currentThread().getStackTrace()[1].getFileName(), Thread.currentThread().getStackTrace()[1].getLineNumber(), recordFileInfo + " was removed from db as out of scope.");
+						logger.info("{} was removed from db as out of scope.", recordFileInfo);
 					}
 
 					
@@ -184,11 +191,11 @@ public class ScopeChecker {
 				//	ret = true;
 				//}
 				
+				progress.recordDone(marc.fields().size());
 				
-				
-			// end temp for loop bracket
 			}
 		}
+		progress.finish();
 		return ret;
 	}
 	
@@ -225,28 +232,44 @@ public class ScopeChecker {
 	 * @return				Boolean true or false
 	 */
 	public boolean dateScope(int recordID) {
+		MarcRecordModel marc = recordLoader.load(recordID);
+		if (marc == null) {
+			return false;
+		}
+		return dateScope(marc);
+	}
+	
+	/**
+	 * <p>Runs the date scope check against a record that has already been 
+	 * loaded into memory.</p>
+	 *
+	 * @param  marc    	the loaded record to check
+	 * 
+	 * @return			Boolean true or false
+	 */
+	public boolean dateScope(MarcRecordModel marc) {
 		boolean ret = false;
 		
 		ArrayList<String> years = new ArrayList<String>();
 		ArrayList<String> returnedYears = new ArrayList<String>();
 		
-		int recordType = sqlObj.getRecordType(recordID);
+		int recordType = marc.type();
 		if (recordType == 1) {
 			
 			// check 008 for header lookups bibs
-			String zeroZeroEight = sqlObj.getZeroZeroEight(recordID);
+			String zeroZeroEight = marc.fieldValue("008");
 			if (zeroZeroEight.length() > 36) {
-				System.out.println("008: " + zeroZeroEight);
+				progress.debug("008: {}", zeroZeroEight);
 				String dateStringOne = extractCharacters(zeroZeroEight, 7, 10);
 				String dateStringTwo = extractCharacters(zeroZeroEight, 11, 14);
 				String dateStringOneFill = fillYear(dateStringOne);
 				String dateStringTwoFill = fillYear(dateStringTwo);
 				if (isYear(dateStringOneFill)) {
-					System.out.println("008a: " + dateStringOneFill);
+					progress.debug("008a: {}", dateStringOneFill);
 					years.add(dateStringOneFill);
 				}
 				if (isYear(dateStringTwoFill)) {
-					System.out.println("008b: " + dateStringTwoFill);
+					progress.debug("008b: {}", dateStringTwoFill);
 					years.add(dateStringTwoFill);
 				}
 			}
@@ -272,14 +295,14 @@ public class ScopeChecker {
 			singleFields.add("598");
 			singleFields.add("599");
 			for (String singfield : singleFields) {
-				String fieldVal = sqlObj.getFieldByNumber(recordID, singfield);
+				String fieldVal = marc.fieldValue(singfield);
 				if (fieldVal.length() > 3) {
 					returnedYears.clear();
-					System.out.println(singfield + ": " + fieldVal);
+					progress.debug("{}: {}", singfield, fieldVal);
 					returnedYears = extractYearString(fieldVal);				
 					for (String td : returnedYears) {
 						if (isYear(td)) {
-							System.out.println(singfield + ": " + td);
+							progress.debug("{}: {}", singfield, td);
 							years.add(td);
 						}
 					}
@@ -299,7 +322,7 @@ public class ScopeChecker {
 			Set<String> keys = sf.keySet();
 			for(String key: keys){
 				returnedYears.clear();
-				returnedYears = extractYearsFromSubFields(recordID, key, sf.get(key));
+				returnedYears = extractYearsFromSubFields(marc, key, sf.get(key));
 				if (!returnedYears.isEmpty()) {
 					years.addAll(returnedYears);			
 				}
@@ -310,7 +333,7 @@ public class ScopeChecker {
 			// it scopes, set ret = true
 			
 			for (String allyears : years) {
-				System.out.println("Record " + recordID + " has date " + allyears);
+				progress.debug("Record {} has date {}", marc.id(), allyears);
 				if (matchDateScope(configObj.lDateScopeBound, configObj.uDateScopebound, allyears)) {
 					//System.out.println("Found in scope date " + allyears);
 					ret = true;
@@ -347,22 +370,38 @@ public class ScopeChecker {
 	 * @param  	recordID    the records.id from the db for the record to check
 	 */
 	public boolean languageScope(ArrayList<String> langCodes, int recordID) {
+		MarcRecordModel marc = recordLoader.load(recordID);
+		if (marc == null) {
+			return false;
+		}
+		return languageScope(langCodes, marc);
+	}
+	
+	/**
+	 * <p>Runs the language scope check against a record that has already
+	 * been loaded into memory.</p>
+	 * 
+	 * @param	langCodes	a list of in-scope MARC language codes
+	 * @param  	marc    	the loaded record to check
+	 */
+	public boolean languageScope(ArrayList<String> langCodes, MarcRecordModel marc) {
 		boolean ret = false;
 		
+		int recordID = marc.id();
 		String langString;
-		String zeroZeroEight = sqlObj.getZeroZeroEight(recordID);
-		int recordType = sqlObj.getRecordType(recordID);
+		String zeroZeroEight = marc.fieldValue("008");
+		int recordType = marc.type();
 		if (recordType == 1) {
 			if (zeroZeroEight.length() > 36) {
 				langString = extractCharacters(zeroZeroEight, 35, 37);
 				ret = matchLangScope(langCodes, langString);
-				System.out.println("Record " + recordID + " has Bib Language: " + langString);
+				progress.debug("Record {} has Bib Language: {}", recordID, langString);
 			}		
 		} else if (recordType ==2) {
 			if (zeroZeroEight.length() > 23) {
 				langString = extractCharacters(zeroZeroEight, 22, 24);
 				ret = matchLangScope(langCodes, langString);
-				System.out.println("Record " + recordID + " has Holding Language: " + langString);
+				progress.debug("Record {} has Holding Language: {}", recordID, langString);
 			}
 		} else {
 			if (configObj.liberal) {
@@ -491,10 +530,10 @@ public class ScopeChecker {
 	 *
 	 * @param  	haystack   	The text string to search in
 	 */	
-	private ArrayList<String> extractYearsFromSubFields(int recordID, String mainfield, String subfield) {
+	private ArrayList<String> extractYearsFromSubFields(MarcRecordModel marc, String mainfield, String subfield) {
 		// check the 260 field (subfield c)
 		ArrayList<String> years = new ArrayList<String>();
-		ArrayList<String> rawValues = sqlObj.selectSubFieldValues(recordID, mainfield, subfield);
+		ArrayList<String> rawValues = marc.subfieldValues(mainfield, subfield);
 		if (!rawValues.isEmpty()) {
 			for (String x : rawValues) {
 				if (isYear(x)) {
@@ -30,16 +30,22 @@
 package com.carlstahmer.estc.recordimport.daemon;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.ResultSet;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.sql.Types;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 
@@ -50,14 +56,61 @@ import java.util.concurrent.TimeUnit;
  * for the entire application are constructed here.  There should be no SQL anywhere 
  * else in the application.</p>
  */
-public class SqlModel {
+public class SqlModel implements RecordStore {
 	
 	public Connection conn = null;
 	public boolean connOpen = false;
+
+	static final int RECORD_BLOCK_SIZE = 500;
+	static final String RECORD_MODEL_SELECT = "SELECT r.id, r.file_id, r.control_identifier, r.type, r.moddate," +
+			" f.id AS field_id, f.field, f.value, f.type AS field_type," +
+			" s.subfield, s.value AS subfield_value" +
+			" FROM records r" +
+			" LEFT JOIN records_has_fields f ON f.record_id = r.id" +
+			" LEFT JOIN fields_has_subfields s ON s.field_id = f.id";
+	
+	// Query shapes that run once per record, field, or subfield.  They are
+	// kept here so that SchemaMigrator can EXPLAIN exactly what is run.
+	static final String SQL_SUBJECT_BY_TERM = "SELECT id FROM estc_subject_terms" +
+			" WHERE term LIKE ?";
+	static final String SQL_AGENT_BY_LABEL = "SELECT id FROM estc_agents" +
+			" WHERE local_label LIKE ?";
+	static final String SQL_RECORD_BY_CONTROL = "SELECT records.id FROM records" +
+			" JOIN files ON files.id = records.file_id" +
+			" WHERE files.institution_code LIKE ?" +
+			" AND records.control_identifier LIKE ?" + 
+			" AND records.type = ?";
+	static final String SQL_FIELD_BY_NUMBER = "SELECT value FROM records_has_fields WHERE record_id = ? AND field LIKE ?";
+	static final String SQL_SUBFIELDS_BY_FIELD = "SELECT value FROM fields_has_subfields" +
+			" WHERE field_id = ? AND subfield LIKE ?";
+	static final String SQL_UNEXPORTED_PAGE = "SELECT records.id FROM records" +
+			" WHERE records.exported = 0" +
+			" AND records.type IN (1,3)" +
+			" AND records.id > ?" +
+			" ORDER BY records.id ASC LIMIT ?";
+	static final String SQL_CLAIM_RECYCLED = "SELECT foreign_key FROM recycled_fields WHERE type = ? LIMIT ? FOR UPDATE";
+	static final String SQL_HOLDING_LINKS = "SELECT record_id, field_id FROM record_links" +
+			" WHERE control_identifier = ?" +
+			" ORDER BY record_id, field_id";
+	
 	String dbserver;
 	String dbname;
 	String dbuser;
 	String dbpass;
+	ConnectionPool pool;
+	Conf config;
+	IdAllocator ids = null;
+	
+	// import transaction state, see beginTransaction()
+	boolean inTransaction = false;
+	boolean recordFailed = false;
+	boolean transactionFailed = false;
+	int recordsInTransaction = 0;
+	Savepoint recordSavepoint = null;
+	ArrayList<ArrayList<Integer>> recordClaimed = idLists();
+	ArrayList<ArrayList<Integer>> recordFreed = idLists();
+	ArrayList<ArrayList<Integer>> chunkClaimed = idLists();
+	ArrayList<ArrayList<Integer>> chunkFreed = idLists();
 	
 	/**
 	 * <p>Constructor class that assigns values from passed Config object 
@@ -70,6 +123,8 @@ public class SqlModel {
 		dbname = config.dbname;
 		dbuser = config.dbuser;
 		dbpass = config.dbpass;
+		pool = ConnectionPool.getPool(config);
+		this.config = config;
 	}
 	
 ////////////////////////////
@@ -77,7 +132,10 @@ public class SqlModel {
 ////////////////////////////
 	
 	/**
-	 * <p>Opens a SQL Connection.</p>
+	 * <p>Leases this thread's connection from the shared ConnectionPool.  
+	 * Once a thread holds a connection this is a cheap lookup, so every 
+	 * query helper calls it rather than tracking connection state itself.
+	 * Keeps retrying if the database cannot be reached.</p>
 	 */
 	public boolean openConnection() {
 		
@@ -85,14 +143,10 @@ public class SqlModel {
 		
 		do {
 			try {
-				//currentTime();
-				String strConnString = "jdbc:mysql://"+dbserver+"/"+dbname+"?user="+dbuser+"&password="+dbpass;
-		        conn = DriverManager.getConnection(strConnString);
+				conn = pool.acquire();
 		        connOpen = true;
-		        //currentTime();
 		    } catch (SQLException ex) {
 		        // handle any errors
-		    	System.out.println("pass: " + dbpass);
 		        System.out.println("SQLException SqlModel.java openConnection(): " + ex.getMessage());
 		        System.out.println("SQLState: " + ex.getSQLState());
 		        System.out.println("VendorError: " + ex.getErrorCode());
@@ -110,18 +164,261 @@ public class SqlModel {
 	}
 	
 	/**
-	 * <p>Closes a SQL Connection.</p>
+	 * <p>Leases this thread's connection as openConnection() does, but 
+	 * returns false once the pool's acquire timeout has passed instead of
+	 * retrying.  Used by threads that others wait on, such as the MARC 
+	 * writers.</p>
 	 */
-	public boolean closeConnection() {
+	public boolean tryOpenConnection() {
 		try {
-			conn.close();
+			conn = pool.acquire();
+			connOpen = true;
+		} catch (SQLException ex) {
+			System.out.println("SQLException SqlModel.java tryOpenConnection(): " + ex.getMessage());
+			System.out.println("SQLState: " + ex.getSQLState());
+			System.out.println("VendorError: " + ex.getErrorCode());
 			connOpen = false;
+		}
+		return connOpen;
+	}
+	
+	/**
+	 * <p>Returns this thread's connection to the shared ConnectionPool.
+	 * Worker threads must call this when they finish.</p>
+	 */
+	public boolean closeConnection() {
+		pool.release();
+		conn = null;
+		connOpen = false;
+		return true;
+	}
+	
+/////////////////////////
+// Transaction Methods //
+/////////////////////////
+	
+	/**
+	 * <p>Starts a transaction that groups the writes of one or more
+	 * records.  Each record is bracketed by beginRecord() and endRecord()
+	 * and the whole group is made durable by commitTransaction().  While a
+	 * transaction is open, insertFieldBatch() and replaceRecordData() join
+	 * it instead of committing on their own, and any failed statement
+	 * marks the current record as failed.</p>
+	 * 
+	 * <p>Ids freed by replaceRecordData() are not written to 
+	 * recycled_fields inside the transaction, where the uncommitted rows
+	 * would block IdAllocator's claim on its own connection.  They are 
+	 * handed to the allocator once the transaction commits.</p>
+	 *
+	 * @return		true if the transaction was started
+	 */
+	public boolean beginTransaction() {
+		if (inTransaction) {
 			return true;
+		}
+		this.openConnection();
+		try {
+			conn.setAutoCommit(false);
 		} catch (SQLException ex) {
+		    System.out.println("SQLException SqlModel.java beginTransaction: " + ex.getMessage());
+		    System.out.println("SQLState: " + ex.getSQLState());
+		    System.out.println("VendorError: " + ex.getErrorCode());
 			return false;
 		}
-		
-		
+		inTransaction = true;
+		transactionFailed = false;
+		recordsInTransaction = 0;
+		return true;
+	}
+	
+	/**
+	 * <p>Marks the start of a record.  Inside a transaction that already 
+	 * holds other records a savepoint is set so that this record alone can
+	 * be rolled back.  The first record needs none, so one transaction per
+	 * record costs no extra round trips.</p>
+	 *
+	 * @return		true if the record was started
+	 */
+	public boolean beginRecord() {
+		recordFailed = false;
+		recordSavepoint = null;
+		if (inTransaction && recordsInTransaction > 0) {
+			try {
+				recordSavepoint = conn.setSavepoint();
+			} catch (SQLException ex) {
+			    System.out.println("SQLException SqlModel.java beginRecord: " + ex.getMessage());
+			    System.out.println("SQLState: " + ex.getSQLState());
+			    System.out.println("VendorError: " + ex.getErrorCode());
+				recordFailed = true;
+				transactionFailed = true;
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>Marks the end of a record.  The record is kept if the caller asks
+	 * for it and none of its statements failed; otherwise its writes are 
+	 * rolled back and the ids it was given are returned to the 
+	 * allocator, leaving the rest of the transaction in place.</p>
+	 *
+	 * @param  	keep	false to roll the record back regardless
+	 * @return			true if the record was kept
+	 */
+	public boolean endRecord(boolean keep) {
+		boolean kept = keep && !recordFailed;
+		if (inTransaction) {
+			if (kept) {
+				moveIds(recordClaimed, chunkClaimed);
+				moveIds(recordFreed, chunkFreed);
+				recordsInTransaction++;
+			} else {
+				try {
+					if (recordSavepoint != null) {
+						conn.rollback(recordSavepoint);
+					} else if (recordsInTransaction == 0) {
+						conn.rollback();
+					} else {
+						transactionFailed = true;
+					}
+				} catch (SQLException ex) {
+				    System.out.println("SQLException SqlModel.java endRecord: " + ex.getMessage());
+				    System.out.println("SQLState: " + ex.getSQLState());
+				    System.out.println("VendorError: " + ex.getErrorCode());
+					transactionFailed = true;
+				}
+				giveBackIds(recordClaimed);
+				clearIds(recordFreed);
+			}
+		}
+		recordSavepoint = null;
+		recordFailed = false;
+		return kept;
+	}
+	
+	/**
+	 * <p>Commits the open transaction and hands the ids freed in it to the
+	 * allocator.  If the commit fails, or an earlier rollback to a 
+	 * savepoint failed, the whole transaction is rolled back instead.</p>
+	 *
+	 * @return		true if every kept record is now durable
+	 */
+	public boolean commitTransaction() {
+		if (!inTransaction) {
+			return true;
+		}
+		boolean success = false;
+		if (!transactionFailed) {
+			try {
+				conn.commit();
+				success = true;
+			} catch (SQLException ex) {
+			    System.out.println("SQLException SqlModel.java commitTransaction: " + ex.getMessage());
+			    System.out.println("SQLState: " + ex.getSQLState());
+			    System.out.println("VendorError: " + ex.getErrorCode());
+			}
+		}
+		if (success) {
+			moveIds(recordFreed, chunkFreed);
+			for (int type = IdAllocator.RECORD; type <= IdAllocator.SUBFIELD; type++) {
+				if (chunkFreed.get(type).size() > 0) {
+					idAllocator().giveBack(type, chunkFreed.get(type));
+				}
+			}
+			clearIds(chunkFreed);
+			clearIds(chunkClaimed);
+			clearIds(recordClaimed);
+			endTransaction();
+		} else {
+			rollbackTransaction();
+		}
+		return success;
+	}
+	
+	/**
+	 * <p>Rolls back the open transaction and returns the ids it was given
+	 * to the allocator.</p>
+	 */
+	public void rollbackTransaction() {
+		if (!inTransaction) {
+			return;
+		}
+		try {
+			conn.rollback();
+		} catch (SQLException rbEx) { } // ignore
+		giveBackIds(recordClaimed);
+		giveBackIds(chunkClaimed);
+		clearIds(recordFreed);
+		clearIds(chunkFreed);
+		endTransaction();
+	}
+	
+	/**
+	 * <p>Returns the connection to autocommit.</p>
+	 */
+	private void endTransaction() {
+		inTransaction = false;
+		transactionFailed = false;
+		recordsInTransaction = 0;
+		recordSavepoint = null;
+		try {
+			conn.setAutoCommit(true);
+		} catch (SQLException sqlEx) { } // ignore
+	}
+	
+	/**
+	 * <p>Takes a recycled id from the allocator, remembering it while a
+	 * transaction is open so that it can be given back on rollback.</p>
+	 */
+	private int claimId(int type) {
+		int id = idAllocator().next(type);
+		if (id > 0 && inTransaction) {
+			recordClaimed.get(type).add(id);
+		}
+		return id;
+	}
+	
+	/**
+	 * <p>Takes up to count recycled ids from the allocator, remembering 
+	 * them while a transaction is open.</p>
+	 */
+	private ArrayList<Integer> claimIds(int type, int count) {
+		ArrayList<Integer> claimed = idAllocator().next(type, count);
+		if (inTransaction) {
+			recordClaimed.get(type).addAll(claimed);
+		}
+		return claimed;
+	}
+	
+	private void giveBackIds(ArrayList<ArrayList<Integer>> lists) {
+		for (int type = IdAllocator.RECORD; type <= IdAllocator.SUBFIELD; type++) {
+			if (lists.get(type).size() > 0) {
+				idAllocator().giveBack(type, lists.get(type));
+				lists.get(type).clear();
+			}
+		}
+	}
+	
+	private static void moveIds(ArrayList<ArrayList<Integer>> from, ArrayList<ArrayList<Integer>> to) {
+		for (int type = IdAllocator.RECORD; type <= IdAllocator.SUBFIELD; type++) {
+			to.get(type).addAll(from.get(type));
+			from.get(type).clear();
+		}
+	}
+	
+	private static void clearIds(ArrayList<ArrayList<Integer>> lists) {
+		for (int i=0; i < lists.size(); i++) {
+			lists.get(i).clear();
+		}
+	}
+	
+	private static ArrayList<ArrayList<Integer>> idLists() {
+		ArrayList<ArrayList<Integer>> lists = new ArrayList<ArrayList<Integer>>();
+		for (int type = 0; type <= IdAllocator.SUBFIELD; type++) {
+			lists.add(new ArrayList<Integer>());
+		}
+		return lists;
 	}
 	
 /////////////////////////
@@ -140,8 +437,8 @@ public class SqlModel {
 	 * @return				A file_types ID from the db.  Returns 0 if not found.
 	 */
 	public int selectFileTypeID(String suffix) {
-		String strSql = "SELECT file_type_id FROM file_type_suffixes WHERE suffix LIKE '" + suffix + "'";
-		int fileTypeID = qSelectInt(strSql);
+		String strSql = "SELECT file_type_id FROM file_type_suffixes WHERE suffix LIKE ?";
+		int fileTypeID = qSelectInt(strSql, suffix);
 		return fileTypeID;
 	}
 	
@@ -159,10 +456,10 @@ public class SqlModel {
 	 */
 	public int selectFileRecordStrict(String currCode, String fileName, long modDate) {
 		String strSql = "SELECT id FROM files" +
-				" WHERE institution_code LIKE '" + currCode +
-				"' AND filename LIKE '" + fileName + 
-				"' AND modification_date >= " + String.valueOf(modDate) + ";";
-		int recordId = qSelectInt(strSql);	
+				" WHERE institution_code LIKE ?" +
+				" AND filename LIKE ?" + 
+				" AND modification_date >= ?";
+		int recordId = qSelectInt(strSql, currCode, fileName, modDate);	
 		return recordId;
 	}
 	
@@ -174,8 +471,8 @@ public class SqlModel {
 	 */
 	public String selectImageRecord(int record_id) {
 		String strSql = "SELECT image_old_path FROM records_has_images" +
-				" WHERE records_id = " + record_id + ";";
-		String recordId = qSelectString(strSql);	
+				" WHERE records_id = ?";
+		String recordId = qSelectString(strSql, record_id);	
 		return recordId;
 	}
 	
@@ -186,9 +483,7 @@ public class SqlModel {
 	 * @return				a vector of values
 	 */
 	public String selectSubjectID(String subjectLiteral) {
-		String strSql = "SELECT id FROM estc_subject_terms" +
-				" WHERE term LIKE \"" + subjectLiteral + "\";";
-		String recordId = qSelectString(strSql);	
+		String recordId = qSelectString(SQL_SUBJECT_BY_TERM, subjectLiteral);	
 		if (recordId != null && recordId.length() > 0) {
 			return recordId;
 		} else {
@@ -196,8 +491,8 @@ public class SqlModel {
 			String strInsertSql = "INSERT INTO estc_subject_terms " +
 					"(term)" +
 					" VALUES" + 
-					" (\"" + subjectLiteral + "\");";
-			retRecordID  = qInsert(strInsertSql);
+					" (?)";
+			retRecordID  = qInsert(strInsertSql, subjectLiteral);
 			recordId = String.valueOf(retRecordID);
 			return recordId;
 		}
@@ -210,9 +505,7 @@ public class SqlModel {
 	 * @return				a vector of values
 	 */
 	public String selectAgentID(String agentLiteral) {
-		String strSql = "SELECT id FROM estc_agents" +
-				" WHERE local_label LIKE \"" + agentLiteral + "\";";
-		String recordId = qSelectString(strSql);	
+		String recordId = qSelectString(SQL_AGENT_BY_LABEL, agentLiteral);	
 		if (recordId != null && recordId.length() > 0) {
 			return recordId;
 		} else {
@@ -220,8 +513,8 @@ public class SqlModel {
 			String strInsertSql = "INSERT INTO estc_agents " +
 					"(local_label)" +
 					" VALUES" + 
-					" (\"" + agentLiteral + "\");";
-			retRecordID  = qInsert(strInsertSql);
+					" (?)";
+			retRecordID  = qInsert(strInsertSql, agentLiteral);
 			recordId = String.valueOf(retRecordID);
 			return recordId;
 		}
@@ -239,9 +532,9 @@ public class SqlModel {
 	 */
 	public int selectFileRecord(String currCode, String fileName) {
 		String strSql = "SELECT id FROM files" +
-				" WHERE institution_code LIKE '" + currCode +
-				"' AND filename LIKE '" + fileName + "';";
-		int recordId = qSelectInt(strSql);	
+				" WHERE institution_code LIKE ?" +
+				" AND filename LIKE ?";
+		int recordId = qSelectInt(strSql, currCode, fileName);	
 		return recordId;
 	}
 	
@@ -255,8 +548,8 @@ public class SqlModel {
 	 */
 	public ArrayList<HashMap<String,String>> selectFileInfoById(int fileId) {
 		String strSql = "SELECT institution_code, filename FROM files" +
-				" WHERE id = " + fileId;
-		ArrayList<HashMap<String,String>> tableResults = qSelectGeneric(strSql);
+				" WHERE id = ?";
+		ArrayList<HashMap<String,String>> tableResults = qSelectGeneric(strSql, fileId);
 		return tableResults;
 	}	
 	
@@ -270,15 +563,39 @@ public class SqlModel {
 	 * @return						A record id.  Returns 0 if no match found.
 	 */
 	public int selectRecordRecord(String currCode, int recType, String controlIdentifier) {
-		String strSql = "SELECT records.id FROM records" +
-				" JOIN files ON files.id = records.file_id" +
-				" WHERE files.institution_code LIKE '" + currCode +
-				"' AND records.control_identifier LIKE '" + controlIdentifier + 
-				"' AND records.type LIKE '" + String.valueOf(recType) + "';";
-		int recordId = qSelectInt(strSql);		
+		int recordId = qSelectInt(SQL_RECORD_BY_CONTROL, currCode, controlIdentifier, recType);		
 		return recordId;
 	}
 	
+	/**
+	 * <p>Selects the checkpoint saved for a file by an import that has not 
+	 * yet finished.</p>
+	 *
+	 * @param  	fileId		the id of the file
+	 * @return				the file modification date the checkpoint was 
+	 * 						taken against, the byte offset to resume from, and
+	 * 						the number of records before that offset, or null
+	 * 						if the file has no checkpoint
+	 */
+	public long[] selectFileCheckpoint(int fileId) {
+		String strSql = "SELECT modification_date, byte_offset, record_ordinal FROM file_checkpoints" +
+				" WHERE file_id = ?";
+		ResultSet resultSet = null;
+		long[] checkpoint = null;
+		try {
+			PreparedStatement stmt = prepared(strSql, false, new Object[] {fileId});
+			resultSet = stmt.executeQuery();
+			if (resultSet.next()) {
+				checkpoint = new long[] {resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3)};
+			}
+		} catch (SQLException ex) {
+			reportError("selectFileCheckpoint", strSql, false, ex);
+		} finally {
+			closeResults(resultSet);
+		}
+		return checkpoint;
+	}
+	
 	/**
 	 * <p>Selects holding records associated with a bib records.</p>
 	 *
@@ -289,9 +606,9 @@ public class SqlModel {
 		String strSql = "SELECT records.id FROM records " +
 							"JOIN records_has_fields ON records_has_fields.record_id = records.id " +
 							"WHERE records.type = 2 AND records_has_fields.field LIKE \"001\" " +
-							"AND records_has_fields.shortval LIKE \"" + estcID + "\"";
+							"AND records_has_fields.shortval LIKE ?";
 		//System.out.println("strsql: " + strSql);
-		ArrayList<HashMap<String,String>> tableResults = qSelectGeneric(strSql);
+		ArrayList<HashMap<String,String>> tableResults = qSelectGeneric(strSql, estcID);
 		return tableResults;
 	}
 	
@@ -308,13 +625,28 @@ public class SqlModel {
 								"(SELECT `records_has_fields`.`record_id` " +
 								"FROM `records_has_fields` " +
 								"WHERE `records_has_fields`.`field` LIKE \"001\" " +
-								"AND `records_has_fields`.`value` LIKE \"" + estcID + "\") " +
+								"AND `records_has_fields`.`value` LIKE ?) " +
 							"AND `records_has_fields`.`record_id` IN " +
 								"(SELECT `records_has_fields`.`record_id` " +
 								"FROM `records_has_fields` " +
 								"WHERE `records_has_fields`.`field` LIKE \"852\")";
 		//System.out.println("strsql: " + strSql);
-		ArrayList<HashMap<String,String>> tableResults = qSelectGeneric(strSql);
+		ArrayList<HashMap<String,String>> tableResults = qSelectGeneric(strSql, estcID);
+		return tableResults;
+	}
+	
+	/**
+	 * <p>Selects the 852 fields of every record whose 001 matches an ESTC
+	 * ID from the record_links table, which is keyed on the control 
+	 * identifier.  Rows are ordered by record id and then field id so that
+	 * all of one record's fields arrive together.</p>
+	 *
+	 * @param  	estcID		the ESTC ID to match
+	 * @return				rows holding the record_id and 852 field_id
+	 */
+	public ArrayList<HashMap<String,String>> selectHoldingLinks(String estcID) {
+		String strSql = SQL_HOLDING_LINKS;
+		ArrayList<HashMap<String,String>> tableResults = qSelectGenericMultiRow(strSql, estcID);
 		return tableResults;
 	}
 	
@@ -326,8 +658,8 @@ public class SqlModel {
 	 */
 	public ArrayList<HashMap<String,String>> selectSubFields(int feildID) {
 		String strSql = "SELECT fields_has_subfields.* FROM fields_has_subfields" + 
-							" WHERE fields_has_subfields.field_id = " + feildID;
-		ArrayList<HashMap<String,String>> tableResults = qSelectGeneric(strSql);
+							" WHERE fields_has_subfields.field_id = ?";
+		ArrayList<HashMap<String,String>> tableResults = qSelectGeneric(strSql, feildID);
 		return tableResults;
 	}
 	
@@ -348,10 +680,10 @@ public class SqlModel {
 		
 		// define query
 		String strSql = "SELECT fields_has_subfields.* FROM fields_has_subfields" + 
-							" WHERE fields_has_subfields.field_id = " + feildID;
+							" WHERE fields_has_subfields.field_id = ?";
 		
 		// run query and process results
-		resultSet = qSelectGenericMultiRow(strSql);
+		resultSet = qSelectGenericMultiRow(strSql, feildID);
 		
 		for (int i=0; i < resultSet.size(); i++) {
     		recordRows.add(resultSet.get(i));
@@ -370,8 +702,8 @@ public class SqlModel {
 	public String selectRecordControlId(int recordId) {
 		String controlId = "";
 		String strSql = "SELECT control_identifier FROM records" +
-				" WHERE id = " + recordId;
-		controlId = qSelectString(strSql);		
+				" WHERE id = ?";
+		controlId = qSelectString(strSql, recordId);		
 		return controlId;
 	}
 	
@@ -384,8 +716,8 @@ public class SqlModel {
 	public int selectRecordFileId(int recordId) {
 		int fileId = 0;
 		String strSql = "SELECT file_id FROM records" +
-				" WHERE id = " + recordId;
-		fileId = qSelectInt(strSql);		
+				" WHERE id = ?";
+		fileId = qSelectInt(strSql, recordId);		
 		return fileId;
 	}
 	
@@ -398,12 +730,70 @@ public class SqlModel {
 	 */
 	public double selectRecordMod(int recordId) {
 		String strSql = "SELECT moddate FROM records" +
-				" WHERE id = " + recordId + ";";
+				" WHERE id = ?";
 		
-		double stamp = qSelectDouble(strSql);		
+		double stamp = qSelectDouble(strSql, recordId);		
 		return stamp;
 	}	
 	
+	/**
+	 * <p>Selects the content hash stored for a record.</p>
+	 *
+	 * @param  	recordId	The record id	
+	 * @return				The 16 byte hash, or null if the record has none
+	 */
+	public byte[] selectRecordHash(int recordId) {
+		String strSql = "SELECT content_hash FROM records" +
+				" WHERE id = ?";
+		return qSelectBytes(strSql, recordId);
+	}
+	
+	/**
+	 * <p>Adds every bib and holding record to a DedupIndex with the 
+	 * institution code of its file.  The rows are streamed from the 
+	 * server one at a time rather than buffered, so this uses a plain 
+	 * forward only statement.</p>
+	 *
+	 * @param  	index		the index to fill
+	 * @return				true on success, false on failure
+	 */
+	public boolean selectRecordKeys(DedupIndex index) {
+		this.openConnection();
+		String strSql = "SELECT files.institution_code, records.control_identifier, records.type, records.id, records.moddate, records.content_hash" +
+				" FROM records" +
+				" JOIN files ON files.id = records.file_id" +
+				" WHERE records.type IN (1, 2)" +
+				" ORDER BY records.id";
+		Statement stmt = null;
+		ResultSet resultSet = null;
+		boolean loaded = false;
+		try {
+			stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(Integer.MIN_VALUE);
+			resultSet = stmt.executeQuery(strSql);
+			while (resultSet.next()) {
+				String code = resultSet.getString(1);
+				String control = resultSet.getString(2);
+				if (code != null && control != null) {
+					index.add(code, control, resultSet.getInt(3), resultSet.getInt(4), resultSet.getDouble(5), resultSet.getBytes(6));
+				}
+			}
+			loaded = true;
+		} catch (SQLException ex) {
+		    System.out.println("SQLException SqlModel.java selectRecordKeys: " + ex.getMessage());
+		    System.out.println("SQLState: " + ex.getSQLState());
+		    System.out.println("VendorError: " + ex.getErrorCode());
+		} finally {
+			closeResults(resultSet);
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException sqlEx) { } // ignore
+			}
+		}
+		return loaded;
+	}
+	
 	/**
 	 * <p>Selects the field type for a field record in the
 	 * records_has_fields table</p>
@@ -413,8 +803,8 @@ public class SqlModel {
 	 */
 	public String selectFieldType(int recordHasFieldsId) {
 		String strSql = "SELECT field FROM records_has_fields" +
-				" WHERE id = " + recordHasFieldsId + ";";
-		String type = qSelectString(strSql);		
+				" WHERE id = ?";
+		String type = qSelectString(strSql, recordHasFieldsId);		
 		return type;
 	}
 	
@@ -433,10 +823,10 @@ public class SqlModel {
 		
 		// define query
 		String strSql = "SELECT id FROM records_has_fields" +
-				" WHERE record_id = " + recordId;
+				" WHERE record_id = ?";
 		
 		// run query and process results
-		resultSet = qSelectGeneric(strSql);
+		resultSet = qSelectGeneric(strSql, recordId);
 		
 		for (int i=0; i < resultSet.size(); i++) {
 			HashMap<String,String> thisRecord = new HashMap<String,String>();
@@ -467,11 +857,11 @@ public class SqlModel {
 		
 		// define query
 		String strSql = "SELECT records_has_fields.* FROM records_has_fields" +
-				" WHERE records_has_fields.record_id = " + recordId +
+				" WHERE records_has_fields.record_id = ?" +
 				" ORDER BY records_has_fields.field";
 		
 		// run query and process results
-		resultSet = qSelectGeneric(strSql);
+		resultSet = qSelectGeneric(strSql, recordId);
 		
 		for (int i=0; i < resultSet.size(); i++) {
 			HashMap<String,String> thisRecord = new HashMap<String,String>();
@@ -501,12 +891,12 @@ public class SqlModel {
 		
 		// define query
 		String strSql = "SELECT id FROM records_has_fields" +
-				" WHERE records_has_fields.record_id = " + recordId + ";";
+				" WHERE records_has_fields.record_id = ?";
 		
 		//System.out.println("Dup Assoc Field SQL: [" + strSql + "]");
 		
 		// run query and process results
-		resultSet = qSelectGeneric(strSql);
+		resultSet = qSelectGeneric(strSql, recordId);
 		
 		for (int i=0; i < resultSet.size(); i++) {
 			HashMap<String,String> thisRecord = new HashMap<String,String>();
@@ -533,11 +923,11 @@ public class SqlModel {
 		
 		// define query
 		String strSql = "SELECT records_has_fields.id FROM records_has_fields" +
-							" WHERE records_has_fields.record_id = " +  recordId +
+							" WHERE records_has_fields.record_id = ?" +
 							" AND records_has_fields.field LIKE \"852\"";
 		
 		// run query and process results
-		resultSet = qSelectGeneric(strSql);
+		resultSet = qSelectGeneric(strSql, recordId);
 		
 		for (int i=0; i < resultSet.size(); i++) {
 			HashMap<String,String> thisRecord = new HashMap<String,String>();
@@ -566,43 +956,8 @@ public class SqlModel {
 				" WHERE records.scoped = 0" +
 				" ORDER BY records.id ASC";
 		
-		if (!connOpen) {
-			this.openConnection();
-		}
-		
-		// initialize required objects
-		Statement stmt = null;
-		ResultSet resultSet = null;
-	
 		// run query
-		try {
-			stmt = conn.createStatement();
-	        resultSet = stmt.executeQuery(strSql);
-
-	        while (resultSet.next()) {
-	        		resultSetList.add(resultSet.getInt(1));
-	        }
-
-	        try {
-	        	resultSet.close();
-	        } catch (SQLException sqlEx) { } // ignore
-		    
-		
-		} catch (SQLException ex){
-		    // handle any errors
-		    System.out.println("SQLException SqlModel.java qSelectString: " + ex.getMessage());
-		    System.out.println("SQLState: " + ex.getSQLState());
-		    System.out.println("VendorError: " + ex.getErrorCode());
-		} finally {
-		    try {
-		    	stmt.close();
-		    } catch (SQLException sqlEx) { } // ignore
-
-		}
-		
-		if (connOpen) {
-			this.closeConnection();
-		}
+		resultSetList = qSelectIntList(strSql);
 
         // return result
 		return resultSetList;
@@ -626,43 +981,8 @@ public class SqlModel {
 				" AND records.type = 1" +
 				" ORDER BY records.id ASC";
 		
-		if (!connOpen) {
-			this.openConnection();
-		}
-		
-		// initialize required objects
-		Statement stmt = null;
-		ResultSet resultSet = null;
-	
 		// run query
-		try {
-			stmt = conn.createStatement();
-	        resultSet = stmt.executeQuery(strSql);
-
-	        while (resultSet.next()) {
-	        		resultSetList.add(resultSet.getInt(1));
-	        }
-
-	        try {
-	        	resultSet.close();
-	        } catch (SQLException sqlEx) { } // ignore
-		    
-		
-		} catch (SQLException ex){
-		    // handle any errors
-		    System.out.println("SQLException SqlModel.java qSelectString: " + ex.getMessage());
-		    System.out.println("SQLState: " + ex.getSQLState());
-		    System.out.println("VendorError: " + ex.getErrorCode());
-		} finally {
-		    try {
-		    	stmt.close();
-		    } catch (SQLException sqlEx) { } // ignore
-
-		}
-		
-		if (connOpen) {
-			this.closeConnection();
-		}
+		resultSetList = qSelectIntList(strSql);
 
         // return result
 		return resultSetList;
@@ -693,46 +1013,68 @@ public class SqlModel {
 //				" AND records.type = 3" +
 //				" ORDER BY records.id ASC";
 		
-		if (!connOpen) {
-			this.openConnection();
-		}
-		
-		// initialize required objects
-		Statement stmt = null;
-		ResultSet resultSet = null;
-	
 		// run query
-		try {
-			stmt = conn.createStatement();
-	        resultSet = stmt.executeQuery(strSql);
-
-	        while (resultSet.next()) {
-	        		resultSetList.add(resultSet.getInt(1));
-	        }
+		resultSetList = qSelectIntList(strSql);
 
-	        try {
-	        	resultSet.close();
-	        } catch (SQLException sqlEx) { } // ignore
-		    
+        // return result
+		return resultSetList;
+	}
+	
+	/**
+	 * <p>Selects the next page of record ids for a RecordCursor, using
+	 * keyset pagination on the primary key so that every page costs the
+	 * same no matter how far into the table the cursor has moved.</p>
+	 *
+	 * @param  	source		RecordCursor.TO_SCOPE, UNPROCESSED_BIBS, or UNEXPORTED_BIBS
+	 * @param  	afterId		the last id returned by the previous page, 0 for the first page
+	 * @param  	limit		the most ids to return
+	 * @return				the record ids in ascending order
+	 */
+	public int[] selectRecordIdPage(int source, int afterId, int limit) {
 		
-		} catch (SQLException ex){
-		    // handle any errors
-		    System.out.println("SQLException SqlModel.java qSelectString: " + ex.getMessage());
-		    System.out.println("SQLState: " + ex.getSQLState());
-		    System.out.println("VendorError: " + ex.getErrorCode());
-		} finally {
-		    try {
-		    	stmt.close();
-		    } catch (SQLException sqlEx) { } // ignore
-
+		// define query
+		String strSql;
+		if (source == RecordCursor.TO_SCOPE) {
+			strSql = "SELECT records.id FROM records" +
+					" WHERE records.scoped = 0" +
+					" AND records.id > ?" +
+					" ORDER BY records.id ASC LIMIT ?";
+		} else if (source == RecordCursor.UNPROCESSED_BIBS) {
+			strSql = "SELECT records.id FROM records" +
+					" WHERE records.processed = 0" +
+					" AND records.type = 1" +
+					" AND records.id > ?" +
+					" ORDER BY records.id ASC LIMIT ?";
+		} else {
+			strSql = SQL_UNEXPORTED_PAGE;
 		}
 		
-		if (connOpen) {
-			this.closeConnection();
+		// run query
+		return qSelectIntArray(strSql, limit, afterId, limit);
+	}
+	
+	/**
+	 * <p>Counts the records waiting in one of the RecordCursor work 
+	 * sources, so that progress reports can estimate the time left.</p>
+	 *
+	 * @param  	source		RecordCursor.TO_SCOPE, UNPROCESSED_BIBS, or UNEXPORTED_BIBS
+	 * @return				the number of waiting records
+	 */
+	public int selectRecordCount(int source) {
+		String strSql;
+		if (source == RecordCursor.TO_SCOPE) {
+			strSql = "SELECT COUNT(*) FROM records" +
+					" WHERE records.scoped = 0";
+		} else if (source == RecordCursor.UNPROCESSED_BIBS) {
+			strSql = "SELECT COUNT(*) FROM records" +
+					" WHERE records.processed = 0" +
+					" AND records.type = 1";
+		} else {
+			strSql = "SELECT COUNT(*) FROM records" +
+					" WHERE records.exported = 0" +
+					" AND records.type IN (1,3)";
 		}
-
-        // return result
-		return resultSetList;
+		return qSelectInt(strSql);
 	}
 	
 	/**
@@ -759,8 +1101,8 @@ public class SqlModel {
 	 */	
 	public String getZeroZeroEight(int intRecordId) {
 		String retString = "";
-		String strSQL = "SELECT value FROM records_has_fields WHERE record_id = " + intRecordId + " AND field LIKE '008'";
-		retString = qSelectString(strSQL);
+		String strSQL = "SELECT value FROM records_has_fields WHERE record_id = ? AND field LIKE '008'";
+		retString = qSelectString(strSQL, intRecordId);
 		return retString;
 	}
 	
@@ -775,8 +1117,7 @@ public class SqlModel {
 	 */	
 	public String getFieldByNumber(int intRecordId, String fieldID) {
 		String retString = "";
-		String strSQL = "SELECT value FROM records_has_fields WHERE record_id = " + intRecordId + " AND field LIKE '" + fieldID + "'";
-		retString = qSelectString(strSQL);
+		retString = qSelectString(SQL_FIELD_BY_NUMBER, intRecordId, fieldID);
 		return retString;
 	}
 
@@ -789,8 +1130,8 @@ public class SqlModel {
 	 * @return	a String containing the value of the identifies field field
 	 */	
 	public ArrayList<HashMap<String,String>> getFieldInfo(int intRecordId, String fieldID) {
-		String strSQL = "SELECT id, value FROM records_has_fields WHERE record_id = " + intRecordId + " AND field LIKE '" + fieldID + "'";
-		ArrayList<HashMap<String,String>> tableResults = qSelectGenericMultiRow(strSQL);
+		String strSQL = "SELECT id, value FROM records_has_fields WHERE record_id = ? AND field LIKE ?";
+		ArrayList<HashMap<String,String>> tableResults = qSelectGenericMultiRow(strSQL, intRecordId, fieldID);
 		return tableResults;
 	}
 	
@@ -805,8 +1146,8 @@ public class SqlModel {
 	 */	
 	public String getFieldByID(int fieldID) {
 		String retString = "";
-		String strSQL = "SELECT value FROM records_has_fields WHERE id = " + fieldID;
-		retString = qSelectString(strSQL);
+		String strSQL = "SELECT value FROM records_has_fields WHERE id = ?";
+		retString = qSelectString(strSQL, fieldID);
 		return retString;
 	}
 	
@@ -829,22 +1170,18 @@ public class SqlModel {
 		
 		// define query
 		String strSql = "SELECT id FROM records_has_fields" +
-				" WHERE record_id = " + recordId + " AND field LIKE '" + fieldNumber + "'";
+				" WHERE record_id = ? AND field LIKE ?";
 		
 		// run query and process results
-		fieldResultSet = qSelectIntList(strSql);
+		fieldResultSet = qSelectIntList(strSql, recordId, fieldNumber);
 		
 		// for each matching field result
 		for (Integer fid : fieldResultSet) {
 			// now pull the value of the subfield I need and
 			// put it in the return array
 			
-			// define the sub-field query
-			String strSubSql = "SELECT value FROM fields_has_subfields" +
-					" WHERE field_id = " + fid + " AND subfield LIKE '" + subField + "'";
-			
-			// run query and process results
-			subValues.addAll(qSelectStringList(strSubSql));
+			// run the sub-field query and process results
+			subValues.addAll(qSelectStringList(SQL_SUBFIELDS_BY_FIELD, fid, subField));
 		}
 
         // return results
@@ -866,9 +1203,7 @@ public class SqlModel {
 		// initialize required objects
 		ArrayList<String> subValues = new ArrayList<String>();
 
-		String strSubSql = "SELECT value FROM fields_has_subfields" +
-				" WHERE field_id = " + fieldNumber + " AND subfield LIKE '" + subField + "'";
-		subValues.addAll(qSelectStringList(strSubSql));
+		subValues.addAll(qSelectStringList(SQL_SUBFIELDS_BY_FIELD, fieldNumber, subField));
 
         // return results
 		return subValues;
@@ -883,57 +1218,202 @@ public class SqlModel {
 	 */	
 	public int getRecordType(int intRecordId) {
 		int retInt = 0;
-		String strSQL = "SELECT type FROM records WHERE id = " + intRecordId;
-		retInt = qSelectInt(strSQL);
+		String strSQL = "SELECT type FROM records WHERE id = ?";
+		retInt = qSelectInt(strSQL, intRecordId);
 		return retInt;
 	}	
 	
 	/**
-	 * <p>A genreic object for querying the db for a single numeric
-	 * value such as an id field, etc.  Field select list must
-	 * contain only a single field.</p>
+	 * <p>Loads a record together with all of its fields and subfields in a
+	 * single round trip.  Fields are returned in id order and subfields in
+	 * id order within their field, the order they were written in.</p>
 	 *
-	 * @param  	strSql	A well formed SQL SELECT query with a single SELECT field of type INTEGER
-	 * @return			The integer value of the return column
-	 */	
-	private int qSelectInt(String strSql) {
+	 * @param	recordId	the records.id of the record to load
+	 * @return				the hydrated record, or null if it does not exist
+	 */
+	public MarcRecordModel selectRecordModel(int recordId) {
 		
-		if (!connOpen) {
-			this.openConnection();
+		// define query
+		String strSql = RECORD_MODEL_SELECT +
+				" WHERE r.id = ?" +
+				" ORDER BY f.id, s.id";
+		
+		// run query
+		ArrayList<MarcRecordModel> models = qSelectRecordModels("selectRecordModel", strSql, new Object[] {recordId});
+		if (models.isEmpty()) {
+			return null;
 		}
+		return models.get(0);
+	}
+	
+	/**
+	 * <p>Loads a block of records, with all of their fields and subfields,
+	 * in as few round trips as possible.  Ids are sent RECORD_BLOCK_SIZE 
+	 * at a time in an IN list that is always padded to the same length, 
+	 * so every query has the same shape and reuses one cached prepared 
+	 * statement.  The pad value 0 never matches a record.</p>
+	 *
+	 * @param	recordIds	the records.id(s) to load
+	 * @return				the hydrated records in ascending id order; ids
+	 * 						with no record are left out
+	 */
+	public ArrayList<MarcRecordModel> selectRecordModels(int[] recordIds) {
+		ArrayList<MarcRecordModel> models = new ArrayList<MarcRecordModel>();
 		
-		// initialize required objects
-		Statement stmt = null;
-		ResultSet resultSet = null;
-		int retId = 0;
-
+		// define query
+		StringBuilder inList = new StringBuilder();
+		for (int i=0; i < RECORD_BLOCK_SIZE; i++) {
+			inList.append(i == 0 ? "?" : ",?");
+		}
+		String strSql = RECORD_MODEL_SELECT +
+				" WHERE r.id IN (" + inList + ")" +
+				" ORDER BY r.id, f.id, s.id";
+		
+		// run one query per block of ids
+		for (int start=0; start < recordIds.length; start += RECORD_BLOCK_SIZE) {
+			Object[] params = new Object[RECORD_BLOCK_SIZE];
+			for (int i=0; i < RECORD_BLOCK_SIZE; i++) {
+				params[i] = (start + i < recordIds.length) ? recordIds[start + i] : 0;
+			}
+			models.addAll(qSelectRecordModels("selectRecordModels", strSql, params));
+		}
+		
+		return models;
+	}
+	
+	/**
+	 * <p>Selects the compressed ISO 2709 copy of a record saved by 
+	 * saveRawRecord().</p>
+	 *
+	 * @param	recordId	the records.id of the record
+	 * @return				the compressed record, or null if none was saved
+	 */
+	public byte[] selectRawRecord(int recordId) {
+		String strSql = "SELECT raw FROM records_raw" +
+				" WHERE record_id = ?";
+		return qSelectBytes(strSql, recordId);
+	}
+	
+	/**
+	 * <p>Runs a record hydration query and folds the joined rows into one
+	 * MarcRecordModel per record.  Rows must be ordered by record id, then
+	 * field id, then subfield id.</p>
+	 *
+	 * @param	method		the calling method, for error reporting
+	 * @param  	strSql		a query selecting the RECORD_MODEL_SELECT columns
+	 * @param	params		values for each ? placeholder in the query
+	 * @return				the records in the order returned
+	 */
+	private ArrayList<MarcRecordModel> qSelectRecordModels(String method, String strSql, Object[] params) {
+		
+		// initialize required objects
+		ResultSet resultSet = null;
+		ArrayList<MarcRecordModel> models = new ArrayList<MarcRecordModel>();
+		MarcRecordModel.Builder builder = null;
 		
 		// run query
 		try {
-			stmt = conn.createStatement();
-	        resultSet = stmt.executeQuery(strSql);
+			PreparedStatement stmt = prepared(strSql, false, params);
+	        resultSet = stmt.executeQuery();
+        	while (resultSet.next()) {
+        		int rowRecordId = resultSet.getInt(1);
+        		if (builder == null || builder.recordId != rowRecordId) {
+        			if (builder != null) {
+        				models.add(builder.build());
+        			}
+        			builder = new MarcRecordModel.Builder(rowRecordId, resultSet.getInt(2), 
+        					resultSet.getInt(4), resultSet.getString(3), resultSet.getLong(5));
+        		}
+        		builder.addRow(resultSet.getInt(6), resultSet.getString(7), resultSet.getString(8),
+        				resultSet.getInt(9), resultSet.getString(10), resultSet.getString(11));
+        	}
+        	if (builder != null) {
+        		models.add(builder.build());
+        	}
+		} catch (SQLException ex){
+		    reportError(method, strSql, false, ex);
+		    models.clear();
+		} finally {
+			closeResults(resultSet);
+		}
+		
+		return models;
+	}
+	
+	/**
+	 * <p>Binds positional parameters to a prepared statement.  Values are
+	 * sent to the server separately from the SQL, so no escaping of
+	 * quotes is needed anywhere in the model.</p>
+	 *
+	 * @param  	stmt	a prepared statement with one ? per parameter
+	 * @param  	params	the values to bind, in order
+	 */
+	private void bindParams(PreparedStatement stmt, Object[] params) throws SQLException {
+		for (int i=0; i < params.length; i++) {
+			if (params[i] == null) {
+				stmt.setNull(i + 1, Types.VARCHAR);
+			} else {
+				stmt.setObject(i + 1, params[i]);
+			}
+		}
+	}
+	
+	/**
+	 * <p>Fetches the cached prepared statement for a query shape on this
+	 * thread's connection and binds its parameters.</p>
+	 *
+	 * @param  	strSql		SQL with ? placeholders
+	 * @param  	returnKeys	whether generated keys are needed
+	 * @param  	params		the values to bind, in order
+	 * @return				a ready to execute statement owned by the cache
+	 */
+	private PreparedStatement prepared(String strSql, boolean returnKeys, Object[] params) throws SQLException {
+		this.openConnection();
+		PreparedStatement stmt = pool.prepare(strSql, returnKeys);
+		bindParams(stmt, params);
+		return stmt;
+	}
+	
+	/**
+	 * <p>Prints a SQL error in the standard format and drops the failed
+	 * statement from the cache.</p>
+	 */
+	private void reportError(String method, String strSql, boolean returnKeys, SQLException ex) {
+	    System.out.println("SQLException SqlModel.java " + method + ": " + ex.getMessage());
+	    System.out.println("SQLState: " + ex.getSQLState());
+	    System.out.println("VendorError: " + ex.getErrorCode());
+	    pool.evict(strSql, returnKeys);
+	    if (inTransaction) {
+	    	recordFailed = true;
+	    }
+	}
+	
+	/**
+	 * <p>A genreic object for querying the db for a single numeric
+	 * value such as an id field, etc.  Field select list must
+	 * contain only a single field.</p>
+	 *
+	 * @param  	strSql	A well formed SQL SELECT query with a single SELECT field of type INTEGER
+	 * @param	params	values for each ? placeholder in the query
+	 * @return			The integer value of the return column
+	 */	
+	private int qSelectInt(String strSql, Object... params) {
+		
+		// initialize required objects
+		ResultSet resultSet = null;
+		int retId = 0;
+		
+		// run query
+		try {
+			PreparedStatement stmt = prepared(strSql, false, params);
+	        resultSet = stmt.executeQuery();
 	        if (resultSet.next()) {
 	        	retId = resultSet.getInt(1);
 	        }
-	        try {
-	        	resultSet.close();
-	        } catch (SQLException sqlEx) { 
-			    // handle any errors
-			    System.out.println("SQLException SqlModel.java qSelectInt-A: " + sqlEx.getMessage());
-			    System.out.println("SQLState: " + sqlEx.getSQLState());
-			    System.out.println("VendorError: " + sqlEx.getErrorCode());	        	
-	        } 
-		    
-		
 		} catch (SQLException ex){
-		    // handle any errors
-		    System.out.println("SQLException SqlModel.java qSelectInt: " + ex.getMessage());
-		    System.out.println("SQLState: " + ex.getSQLState());
-		    System.out.println("VendorError: " + ex.getErrorCode());
-		}	
-		
-		if (connOpen) {
-			this.closeConnection();
+		    reportError("qSelectInt", strSql, false, ex);
+		} finally {
+			closeResults(resultSet);
 		}
 		
 		return retId;
@@ -945,46 +1425,26 @@ public class SqlModel {
 	 * contain only a single field.</p>
 	 *
 	 * @param  	strSql	A well formed SQL SELECT query with a single SELECT field of type INTEGER
+	 * @param	params	values for each ? placeholder in the query
 	 * @return			The integer value of the return column
 	 */	
-	private double qSelectDouble(String strSql) {
-		
-		if (!connOpen) {
-			this.openConnection();
-		}
+	private double qSelectDouble(String strSql, Object... params) {
 		
 		// initialize required objects
-		Statement stmt = null;
 		ResultSet resultSet = null;
 		double retVal = 0;
-
 		
 		// run query
 		try {
-			stmt = conn.createStatement();
-	        resultSet = stmt.executeQuery(strSql);
+			PreparedStatement stmt = prepared(strSql, false, params);
+	        resultSet = stmt.executeQuery();
 	        if (resultSet.next()) {
 	        	retVal = resultSet.getLong(1);
 	        }
-	        try {
-	        	resultSet.close();
-	        } catch (SQLException sqlEx) { } // ignore
-		    
-		
 		} catch (SQLException ex){
-		    // handle any errors
-		    System.out.println("SQLException SqlModel.java qSelectLong: " + ex.getMessage());
-		    System.out.println("SQLState: " + ex.getSQLState());
-		    System.out.println("VendorError: " + ex.getErrorCode());
+		    reportError("qSelectLong", strSql, false, ex);
 		} finally {
-		    try {
-		    	stmt.close();
-		    } catch (SQLException sqlEx) { } // ignore
-
-		}
-		
-		if (connOpen) {
-			this.closeConnection();
+			closeResults(resultSet);
 		}
 		
 		return retVal;
@@ -996,101 +1456,125 @@ public class SqlModel {
 	 * contain only a single field.</p>
 	 *
 	 * @param  	strSql	A well formed SQL SELECT query with a single SELECT field of type INTEGER
+	 * @param	params	values for each ? placeholder in the query
 	 * @return			The returned list of integers
 	 */	
-	private ArrayList<Integer> qSelectIntList(String strSql) {
-		
-		if (!connOpen) {
-			this.openConnection();
-		}
+	private ArrayList<Integer> qSelectIntList(String strSql, Object... params) {
 		
 		// initialize required objects
-		Statement stmt = null;
 		ResultSet resultSet = null;
 		ArrayList<Integer> retId = new ArrayList<Integer>();
-
 		
 		// run query
 		try {
-			stmt = conn.createStatement();
-	        resultSet = stmt.executeQuery(strSql);
+			PreparedStatement stmt = prepared(strSql, false, params);
+	        resultSet = stmt.executeQuery();
         	while (resultSet.next()) {
         		retId.add(resultSet.getInt(1));
         	}
-	        try {
-	        	resultSet.close();
-	        } catch (SQLException sqlEx) { 
-			    // handle any errors
-			    System.out.println("SQLException SqlModel.java qSelectInt-A: " + sqlEx.getMessage());
-			    System.out.println("SQLState: " + sqlEx.getSQLState());
-			    System.out.println("VendorError: " + sqlEx.getErrorCode());	        	
-	        } 
-		    
-		
 		} catch (SQLException ex){
-		    // handle any errors
-		    System.out.println("SQLException SqlModel.java qSelectInt: " + ex.getMessage());
-		    System.out.println("SQLState: " + ex.getSQLState());
-		    System.out.println("VendorError: " + ex.getErrorCode());
-		}	
-		
-		if (connOpen) {
-			this.closeConnection();
+		    reportError("qSelectIntList", strSql, false, ex);
+		} finally {
+			closeResults(resultSet);
 		}
 		
 		return retId;
 	}
-		
 	
+	/**
+	 * <p>A generic object for querying the db for a list of integer
+	 * values returned as a primitive array, avoiding a boxed Integer 
+	 * per row.  Field select list must contain only a single field.</p>
+	 *
+	 * @param  	strSql		A well formed SQL SELECT query with a single SELECT field of type INTEGER
+	 * @param	expected	the expected number of rows, used to size the array
+	 * @param	params		values for each ? placeholder in the query
+	 * @return				the values in the order returned
+	 */
+	private int[] qSelectIntArray(String strSql, int expected, Object... params) {
+		
+		// initialize required objects
+		ResultSet resultSet = null;
+		int[] retIds = new int[Math.max(expected, 16)];
+		int count = 0;
+		
+		// run query
+		try {
+			PreparedStatement stmt = prepared(strSql, false, params);
+	        resultSet = stmt.executeQuery();
+        	while (resultSet.next()) {
+        		if (count == retIds.length) {
+        			retIds = Arrays.copyOf(retIds, count * 2);
+        		}
+        		retIds[count++] = resultSet.getInt(1);
+        	}
+		} catch (SQLException ex){
+		    reportError("qSelectIntArray", strSql, false, ex);
+		} finally {
+			closeResults(resultSet);
+		}
+		
+		return Arrays.copyOf(retIds, count);
+	}
 	
 	/**
 	 * <p>A genreic object for querying the db for a single String
 	 * value. Field select list must contain only a single field.</p>
 	 *
 	 * @param  	strSql	A well formed SQL SELECT query with a single SELECT field of type STRING
+	 * @param	params	values for each ? placeholder in the query
 	 * @return			The string value of the return column
 	 */		
-	private String qSelectString(String strSql) {
-		
-		if (!connOpen) {
-			this.openConnection();
-		}
+	private String qSelectString(String strSql, Object... params) {
 		
 		// initialize required objects
-		Statement stmt = null;
 		ResultSet resultSet = null;
 		String retString = "";
-
 		
 		// run query
 		try {
-			stmt = conn.createStatement();
-	        resultSet = stmt.executeQuery(strSql);
+			PreparedStatement stmt = prepared(strSql, false, params);
+	        resultSet = stmt.executeQuery();
 	        if (resultSet.next()) {
 	        	retString = resultSet.getString(1);
 	        }
-	        try {
-	        	resultSet.close();
-	        } catch (SQLException sqlEx) { } // ignore
-		    
-		
 		} catch (SQLException ex){
-		    // handle any errors
-		    System.out.println("SQLException SqlModel.java qSelectString: " + ex.getMessage());
-		    System.out.println("SQLState: " + ex.getSQLState());
-		    System.out.println("VendorError: " + ex.getErrorCode());
+		    reportError("qSelectString", strSql, false, ex);
 		} finally {
-		    try {
-		    	stmt.close();
-		    } catch (SQLException sqlEx) { } // ignore
-
+			closeResults(resultSet);
 		}
 		
-		if (connOpen) {
-			this.closeConnection();
+		return retString;
+	}
+	
+	/**
+	 * <p>A generic object for querying the db for a single binary
+	 * value.  Field select list must contain only a single field.</p>
+	 *
+	 * @param  	strSql	A well formed SQL SELECT query with a single SELECT field of a BLOB type
+	 * @param	params	values for each ? placeholder in the query
+	 * @return			The returned bytes, or null if no row matched
+	 */	
+	private byte[] qSelectBytes(String strSql, Object... params) {
+		
+		// initialize required objects
+		ResultSet resultSet = null;
+		byte[] retBytes = null;
+		
+		// run query
+		try {
+			PreparedStatement stmt = prepared(strSql, false, params);
+	        resultSet = stmt.executeQuery();
+	        if (resultSet.next()) {
+	        	retBytes = resultSet.getBytes(1);
+	        }
+		} catch (SQLException ex){
+		    reportError("qSelectBytes", strSql, false, ex);
+		} finally {
+			closeResults(resultSet);
 		}
 		
-		return retString;
+		return retBytes;
 	}
 	
 	/**
@@ -1099,46 +1583,26 @@ public class SqlModel {
 	 * contain only a single field.</p>
 	 *
 	 * @param  	strSql	A well formed SQL SELECT query with a single SELECT field of type String
+	 * @param	params	values for each ? placeholder in the query
 	 * @return			The returned list of String values
 	 */	
-	private ArrayList<String> qSelectStringList(String strSql) {
-		
-		if (!connOpen) {
-			this.openConnection();
-		}
+	private ArrayList<String> qSelectStringList(String strSql, Object... params) {
 		
 		// initialize required objects
-		Statement stmt = null;
 		ResultSet resultSet = null;
 		ArrayList<String> retString = new ArrayList<String>();
-
 		
 		// run query
 		try {
-			stmt = conn.createStatement();
-	        resultSet = stmt.executeQuery(strSql);
+			PreparedStatement stmt = prepared(strSql, false, params);
+	        resultSet = stmt.executeQuery();
         	while (resultSet.next()) {
         		retString.add(resultSet.getString(1));
         	}
-	        try {
-	        	resultSet.close();
-	        } catch (SQLException sqlEx) { 
-			    // handle any errors
-			    System.out.println("SQLException SqlModel.java qSelectInt-A: " + sqlEx.getMessage());
-			    System.out.println("SQLState: " + sqlEx.getSQLState());
-			    System.out.println("VendorError: " + sqlEx.getErrorCode());	        	
-	        } 
-		    
-		
 		} catch (SQLException ex){
-		    // handle any errors
-		    System.out.println("SQLException SqlModel.java qSelectInt: " + ex.getMessage());
-		    System.out.println("SQLState: " + ex.getSQLState());
-		    System.out.println("VendorError: " + ex.getErrorCode());
-		}	
-		
-		if (connOpen) {
-			this.closeConnection();
+		    reportError("qSelectStringList", strSql, false, ex);
+		} finally {
+			closeResults(resultSet);
 		}
 		
 		return retString;
@@ -1151,27 +1615,21 @@ public class SqlModel {
 	 * the returned record.</p>
 	 *
 	 * @param  	strSql	A well formed SQL SELECT query
+	 * @param	params	values for each ? placeholder in the query
 	 * @return			A resultSet object containing the result of the query
 	 */	
-	private ArrayList<HashMap<String,String>> qSelectGeneric(String strSql) {
-		
+	private ArrayList<HashMap<String,String>> qSelectGeneric(String strSql, Object... params) {
 		
 		ArrayList<HashMap<String,String>> retList = new ArrayList<HashMap<String,String>>();
 		
-		if (!connOpen) {
-			this.openConnection();
-		}
-		
 		// initialize required objects
-		Statement stmt = null;
 		ResultSet resultSet = null;
 		ResultSetMetaData rsmd = null;
-
 		
 		// run query
 		try {
-			stmt = conn.createStatement();
-	        resultSet = stmt.executeQuery(strSql);	
+			PreparedStatement stmt = prepared(strSql, false, params);
+	        resultSet = stmt.executeQuery();	
 	        rsmd = resultSet.getMetaData();
 	        int colCount = rsmd.getColumnCount();
         	while (resultSet.next()) {
@@ -1181,55 +1639,36 @@ public class SqlModel {
 		            retList.add(fieldHash);
 		        }
         	}
-	        try {
-	        	resultSet.close();
-	        } catch (SQLException sqlEx) { } // ignore
 		} catch (SQLException ex){
-		    // handle any errors
-		    System.out.println("SQLException SqlModel.java qSelectGeneric: " + ex.getMessage());
-		    System.out.println("SQLState: " + ex.getSQLState());
-		    System.out.println("VendorError: " + ex.getErrorCode());
-		}	
-		
-		if (connOpen) {
-			this.closeConnection();
+		    reportError("qSelectGeneric", strSql, false, ex);
+		} finally {
+			closeResults(resultSet);
 		}
 		
 		return retList;
 	}
 	
-	
-	
-	
 	/**
 	 * <p>A generic object for executing a SELECT querying 
 	 * against the db that returns multiple fields from 
 	 * multiple rows.  Basically mimics a resultSet</p>
 	 *
 	 * @param  	strSql	A well formed SQL SELECT query
+	 * @param	params	values for each ? placeholder in the query
 	 * @return			A resultSet object containing the result of the query
 	 */	
-	private ArrayList<HashMap<String,String>> qSelectGenericMultiRow(String strSql) {
+	private ArrayList<HashMap<String,String>> qSelectGenericMultiRow(String strSql, Object... params) {
 		
-		
-		// ArrayList<ArrayList<HashMap<String,String>>> retList = new ArrayList<ArrayList<HashMap<String,String>>>();
 		ArrayList<HashMap<String,String>> retList = new ArrayList<HashMap<String,String>>();
 		
-		
-		if (!connOpen) {
-			this.openConnection();
-		}
-		
 		// initialize required objects
-		Statement stmt = null;
 		ResultSet resultSet = null;
 		ResultSetMetaData rsmd = null;
-
 		
 		// run query
 		try {
-			stmt = conn.createStatement();
-	        resultSet = stmt.executeQuery(strSql);	
+			PreparedStatement stmt = prepared(strSql, false, params);
+	        resultSet = stmt.executeQuery();	
 	        rsmd = resultSet.getMetaData();
 	        int colCount = rsmd.getColumnCount();
         	while (resultSet.next()) {
@@ -1239,83 +1678,50 @@ public class SqlModel {
 		        }
 		        retList.add(fieldHash);
         	}
-	        try {
-	        	resultSet.close();
-	        } catch (SQLException sqlEx) { } // ignore
 		} catch (SQLException ex){
-		    // handle any errors
-		    System.out.println("SQLException SqlModel.java qSelectGeneric: " + ex.getMessage());
-		    System.out.println("SQLState: " + ex.getSQLState());
-		    System.out.println("VendorError: " + ex.getErrorCode());
-		}	
-		
-		if (connOpen) {
-			this.closeConnection();
+		    reportError("qSelectGenericMultiRow", strSql, false, ex);
+		} finally {
+			closeResults(resultSet);
 		}
 		
 		return retList;
 	}
 	
-	
 	/**
-	 * <p>A generic object for executing a SELECT querying 
-	 * against the db that returns multiple fields from 
-	 * multiple rows.  Basically mimics a resultSet</p>
-	 *
-	 * @param  	strSql	A well formed SQL SELECT query
-	 * @return			A resultSet object containing the result of the query
-	 */	
-	private ArrayList<HashMap<String,String>> qSelectGenericMultiRowTwo(String strSql) {
-		
-		
-		// ArrayList<ArrayList<HashMap<String,String>>> retList = new ArrayList<ArrayList<HashMap<String,String>>>();
-		ArrayList<HashMap<String,String>> retList = new ArrayList<HashMap<String,String>>();
-		
-		
-		if (!connOpen) {
-			this.openConnection();
-		}
-		
-		// initialize required objects
-		Statement stmt = null;
-		ResultSet resultSet = null;
-		ResultSetMetaData rsmd = null;
-
-		
-		// run query
-		try {
-			stmt = conn.createStatement();
-	        resultSet = stmt.executeQuery(strSql);	
-	        rsmd = resultSet.getMetaData();
-	        int colCount = rsmd.getColumnCount();
-        	while (resultSet.next()) {
-        		System.out.println("Processing Row");
-        		HashMap<String, String> fieldHash = new HashMap<String, String>();
-		        for (int i=1; i < (colCount + 1); i++) {
-		        	System.out.println("Adding column " + rsmd.getColumnName(i) + " to has");
-		            fieldHash.put(rsmd.getColumnName(i), resultSet.getString(i));
-		        }
-		        System.out.println("Adding Hash to ArrayList");
-		        retList.add(fieldHash);
-		        System.out.println("ArrayList Size: " + retList.size());
-        	}
+	 * <p>Closes a result set without closing the cached statement
+	 * that produced it.</p>
+	 */
+	private void closeResults(ResultSet resultSet) {
+		if (resultSet != null) {
 	        try {
 	        	resultSet.close();
 	        } catch (SQLException sqlEx) { } // ignore
-		} catch (SQLException ex){
-		    // handle any errors
-		    System.out.println("SQLException SqlModel.java qSelectGeneric: " + ex.getMessage());
-		    System.out.println("SQLState: " + ex.getSQLState());
-		    System.out.println("VendorError: " + ex.getErrorCode());
-		}	
-		
-		if (connOpen) {
-			this.closeConnection();
 		}
-		
-		return retList;
 	}
 	
+	/**
+	 * <p>Closes a statement that was prepared outside of the cache.</p>
+	 */
+	private void closeStatement(PreparedStatement stmt) {
+		if (stmt != null) {
+	        try {
+	        	stmt.close();
+	        } catch (SQLException sqlEx) { } // ignore
+		}
+	}
+	
+	/**
+	 * <p>Returns the shared IdAllocator, looking it up the first time 
+	 * this SqlModel inserts a row.</p>
+	 */
+	private IdAllocator idAllocator() {
+		if (ids == null) {
+			ids = IdAllocator.getAllocator(config);
+		}
+		return ids;
+	}
+
+	
 	
 	/////////////////////////////////////////////////////////////////
 	//                   INSERT FUNCTIONS                          //
@@ -1335,70 +1741,99 @@ public class SqlModel {
 		String strSql = "INSERT INTO files " +
 				"(institution_code, filename, modification_date, type)" +
 				" VALUES" + 
-				" ('" + currCode + "', '" + fileName + "', " + modDate + ", " + fileType + ");";
-		int recordId = qInsert(strSql);
+				" (?, ?, ?, ?)";
+		int recordId = qInsert(strSql, currCode, fileName, modDate, fileType);
 		return recordId;
 	}
 	
+	/**
+	 * <p>Saves the point an import of a file has safely reached, replacing
+	 * any earlier checkpoint for the file.</p>
+	 *
+	 * @param  	fileId		the id of the file
+	 * @param	modDate		the system last modified time stamp of the file
+	 * @param	offset		the byte offset of the first record not yet committed
+	 * @param	ordinal		the number of records before that offset
+	 * @return				true on success, false on failure
+	 */
+	public boolean saveFileCheckpoint(int fileId, long modDate, long offset, int ordinal) {
+		String strSql = "REPLACE INTO file_checkpoints (file_id, modification_date, byte_offset, record_ordinal)" +
+				" VALUES (?, ?, ?, ?)";
+		return qUpdate(strSql, fileId, modDate, offset, ordinal);
+	}
+	
 	/**
 	 * <p>Inserts a marc-record record entry into the records table.</p>
 	 *
 	 * @param  	fileId				the id from the files table for the file that the marc record was read from
 	 * @param  	recType  			the type of record.  1 = bib, 2 = holding
 	 * @param	controlIdentifier	the record control identifier
+	 * @param	moddate				the record's 005 timestamp
+	 * @param	contentHash			the hash from MarcFieldBatch.contentHash(), or null
 	 * @return						The record if of the inserted record.  Returns 0 on failure.
 	 */
-	public int insertRecordRecord(int fileId, int recType, String controlIdentifier, double moddate) {
+	public int insertRecordRecord(int fileId, int recType, String controlIdentifier, double moddate, byte[] contentHash) {
 		String strSql;
-		// first check to see if there is a recycled record ID available
-		String recycleSql = "SELECT foreign_key FROM recycled_fields WHERE type = 1";
-		int useId = qSelectInt(recycleSql);	
+		int recordId;
+		// use a recycled ID if the allocator has one
+		int useId = claimId(IdAllocator.RECORD);
 		if (useId > 0) {
 			strSql = "INSERT INTO records " +
-					"(id, file_id, control_identifier, type, moddate)" +
+					"(id, file_id, control_identifier, type, moddate, content_hash)" +
 					" VALUES" + 
-					" (" + useId + ", " + fileId + ", '" + controlIdentifier + "', " + recType + ", " + moddate + ");";
-			String strDeleteRecycleSql = "DELETE from recycled_fields WHERE type = 1 AND foreign_key = " + useId + ";";
-			qUpdate(strDeleteRecycleSql);
+					" (?, ?, ?, ?, ?, ?)";
+			recordId = qInsert(strSql, useId, fileId, controlIdentifier, recType, moddate, contentHash);
 		} else {
 			strSql = "INSERT INTO records " +
-					"(file_id, control_identifier, type, moddate)" +
+					"(file_id, control_identifier, type, moddate, content_hash)" +
 					" VALUES" + 
-					" (" + fileId + ", '" + controlIdentifier + "', " + recType + ", " + moddate + ");";
+					" (?, ?, ?, ?, ?)";
+			recordId = qInsert(strSql, fileId, controlIdentifier, recType, moddate, contentHash);
 		}
-		int recordId = qInsert(strSql);
 		return recordId;
 	}
 	
 	/**
-	 * <p>Insert a field associated with a record into the records_has_fields table.</p>
+	 * <p>Saves the compressed ISO 2709 copy of a record, replacing any
+	 * copy saved by an earlier load.</p>
 	 *
-	 * @param  	recordId	the id of the associated record
-	 * @param  	fieldVal	the marc tag for the field
-	 * @param  	valueVal	the data contained in the field as string
+	 * @param  	recordId	the id of the record
+	 * @param  	raw			the record as written by RawRecordReader.encode()
+	 * @return				true on success, false on failure
+	 */
+	public boolean saveRawRecord(int recordId, byte[] raw) {
+		String strSql = "REPLACE INTO records_raw (record_id, raw)" +
+				" VALUES (?, ?)";
+		return qUpdate(strSql, recordId, raw);
+	}
+	
+	/**
+	 * <p>Insert a field associated with a record into the records_has_fields table.</p>
+	 *
+	 * @param  	recordId	the id of the associated record
+	 * @param  	fieldVal	the marc tag for the field
+	 * @param  	valueVal	the data contained in the field as string
 	 * @param  	fieldType	an id from the field_typeds table indicated whether a control or data field.  1 = control, 2 = data.
 	 * @return				the id of the inserted field
 	 */
 	public int insertFieldRecord(int recordId, String fieldVal, String valueVal, int fieldType) {
-		valueVal = valueVal.replace("'", "''");
 		String strSql;
-		// first check to see if there is a recycled record ID available
-		String recycleSql = "SELECT foreign_key FROM recycled_fields WHERE type = 2";
-		int useId = qSelectInt(recycleSql);	
+		int insertId;
+		// use a recycled ID if the allocator has one
+		int useId = claimId(IdAllocator.FIELD);
 		if (useId > 0) {
 			strSql = "INSERT INTO records_has_fields " +
 					"(id, record_id, field, value, type)" +
 					" VALUES" + 
-					" (" + useId + ", " + recordId + ", '" + fieldVal + "', '" + valueVal + "', " + fieldType + ");";
-			String strDeleteRecycleSql = "DELETE from recycled_fields WHERE type = 2 AND foreign_key = " + useId + ";";
-			qUpdate(strDeleteRecycleSql);
+					" (?, ?, ?, ?, ?)";
+			insertId = qInsert(strSql, useId, recordId, fieldVal, valueVal, fieldType);
 		} else {
 			strSql = "INSERT INTO records_has_fields " +
 					"(record_id, field, value, type)" +
 					" VALUES" + 
-					" (" + recordId + ", '" + fieldVal + "', '" + valueVal + "', " + fieldType + ");";
+					" (?, ?, ?, ?)";
+			insertId = qInsert(strSql, recordId, fieldVal, valueVal, fieldType);
 		}
-		int insertId = qInsert(strSql);
 		return insertId;
 	}
 	
@@ -1411,81 +1846,323 @@ public class SqlModel {
 	 * @return					the id of the inserted sub-field
 	 */
 	public int insertSubfieldRecord(int fieldId, String subfieldTag, String subfieldVal) {
-		subfieldVal = subfieldVal.replace("'", "''");
 		String strSql;
-		// first check to see if there is a recycled record ID available
-		String recycleSql = "SELECT foreign_key FROM recycled_fields WHERE type = 3";
-		int useId = qSelectInt(recycleSql);	
+		int insertId;
+		// use a recycled ID if the allocator has one
+		int useId = claimId(IdAllocator.SUBFIELD);
 		if (useId > 0) {
 			strSql = "INSERT INTO fields_has_subfields " +
 					"(id, field_id, subfield, value)" +
 					" VALUES" + 
-					" (" + useId + ", " + fieldId + ", '" + subfieldTag + "', '" + subfieldVal + "');";
-			String strDeleteRecycleSql = "DELETE from recycled_fields WHERE type = 3 AND foreign_key = " + useId + ";";
-			qUpdate(strDeleteRecycleSql);
+					" (?, ?, ?, ?)";
+			insertId = qInsert(strSql, useId, fieldId, subfieldTag, subfieldVal);
 		} else {
 			strSql = "INSERT INTO fields_has_subfields " +
 					"(field_id, subfield, value)" +
 					" VALUES" + 
-					" (" + fieldId + ", '" + subfieldTag + "', '" + subfieldVal + "');";
+					" (?, ?, ?)";
+			insertId = qInsert(strSql, fieldId, subfieldTag, subfieldVal);
 		}
-		int insertId = qInsert(strSql);
 		return insertId;
 	}
 	
+	/**
+	 * <p>Writes every field and subfield held in a MarcFieldBatch in a single
+	 * transaction.  Rows are sent with JDBC batching and the generated field
+	 * ids are read back in bulk so that each subfield can be linked to its
+	 * parent field.  Recycled ids are taken from the IdAllocator for as
+	 * many rows as it can supply.  If anything fails the whole batch is 
+	 * rolled back, no ids are assigned, and the recycled ids are handed 
+	 * back to the allocator.</p>
+	 *
+	 * @param  	batch	the pending field and subfield rows
+	 * @return			true on success, false on failure
+	 */
+	public boolean insertFieldBatch(MarcFieldBatch batch) {
+		
+		if (batch.fieldCount() == 0) {
+			return true;
+		}
+		
+		this.openConnection();
+		boolean success = false;
+		ArrayList<Integer> fieldIds = claimIds(IdAllocator.FIELD, batch.fieldCount());
+		ArrayList<Integer> subfieldIds = claimIds(IdAllocator.SUBFIELD, batch.subfieldCount());
+		
+		// inside an import transaction the rows join it and are rolled
+		// back with the record by endRecord()
+		boolean ownTransaction = !inTransaction;
+		try {
+			if (ownTransaction) {
+				conn.setAutoCommit(false);
+			}
+			writeFieldRows(batch, fieldIds);
+			writeLinkRows(batch);
+			writeSubfieldRows(batch, subfieldIds);
+			if (ownTransaction) {
+				conn.commit();
+			}
+			success = true;
+		} catch (SQLException ex) {
+		    System.out.println("SQLException SqlModel.java insertFieldBatch: " + ex.getMessage());
+		    System.out.println("SQLState: " + ex.getSQLState());
+		    System.out.println("VendorError: " + ex.getErrorCode());
+			for (MarcFieldBatch.FieldRow row : batch.fields) {
+				row.id = 0;
+			}
+			if (ownTransaction) {
+				try {
+					conn.rollback();
+				} catch (SQLException rbEx) { } // ignore
+				idAllocator().giveBack(IdAllocator.FIELD, fieldIds);
+				idAllocator().giveBack(IdAllocator.SUBFIELD, subfieldIds);
+			} else {
+				recordFailed = true;
+			}
+		} finally {
+			if (ownTransaction) {
+				try {
+					conn.setAutoCommit(true);
+				} catch (SQLException sqlEx) { } // ignore
+			}
+		}
+		
+		return success;
+	}
+	
+	/**
+	 * <p>Claims up to the requested number of ids of one type from the
+	 * recycle bin, removing them from recycled_fields and committing on 
+	 * the passed connection.  Called by IdAllocator with its own 
+	 * connection so that the claim is never tied to a writer's 
+	 * transaction.</p>
+	 *
+	 * @param  	dedicated	a connection that is not leased from the pool
+	 * @param  	type		1 = record, 2 = field, 3 = subfield
+	 * @param  	count		the most ids wanted
+	 * @return				the claimed ids, possibly none
+	 */
+	public ArrayList<Integer> claimRecycledIds(Connection dedicated, int type, int count) throws SQLException {
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		PreparedStatement select = null;
+		PreparedStatement delete = null;
+		ResultSet rs = null;
+		try {
+			dedicated.setAutoCommit(false);
+			select = dedicated.prepareStatement(SQL_CLAIM_RECYCLED);
+			select.setInt(1, type);
+			select.setInt(2, count);
+			rs = select.executeQuery();
+			while (rs.next()) {
+				ids.add(rs.getInt(1));
+			}
+			if (ids.size() > 0) {
+				delete = dedicated.prepareStatement("DELETE FROM recycled_fields WHERE type = ? AND foreign_key = ?");
+				for (Integer id : ids) {
+					delete.setInt(1, type);
+					delete.setInt(2, id);
+					delete.addBatch();
+				}
+				delete.executeBatch();
+			}
+			dedicated.commit();
+		} catch (SQLException ex) {
+			try {
+				dedicated.rollback();
+			} catch (SQLException rbEx) { } // ignore
+			throw ex;
+		} finally {
+			closeResults(rs);
+			closeStatement(select);
+			closeStatement(delete);
+		}
+		return ids;
+	}
+	
+	/**
+	 * <p>Adds ids of one type to the recycle bin in a single batch and 
+	 * commits on the passed connection.  Used by IdAllocator to return 
+	 * unused ids at shutdown.</p>
+	 *
+	 * @param  	dedicated	a connection that is not leased from the pool
+	 * @param  	type		1 = record, 2 = field, 3 = subfield
+	 * @param  	ids			the ids to return
+	 */
+	public void storeRecycledIds(Connection dedicated, int type, List<Integer> ids) throws SQLException {
+		if (ids.size() == 0) {
+			return;
+		}
+		PreparedStatement insert = null;
+		try {
+			dedicated.setAutoCommit(false);
+			insert = dedicated.prepareStatement("INSERT INTO recycled_fields (foreign_key, type) VALUES (?, ?)");
+			for (Integer id : ids) {
+				insert.setInt(1, id);
+				insert.setInt(2, type);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+			dedicated.commit();
+		} catch (SQLException ex) {
+			try {
+				dedicated.rollback();
+			} catch (SQLException rbEx) { } // ignore
+			throw ex;
+		} finally {
+			closeStatement(insert);
+		}
+	}
+	
+	/**
+	 * <p>Inserts the field rows of a batch.  Rows that were given a recycled
+	 * id are sent in one batch, the rest are sent in a second batch whose
+	 * auto-increment keys are read back and assigned to the rows.</p>
+	 */
+	private void writeFieldRows(MarcFieldBatch batch, ArrayList<Integer> recycledIds) throws SQLException {
+		PreparedStatement withId = pool.prepare("INSERT INTO records_has_fields " +
+				"(id, record_id, field, value, type, content_hash) VALUES (?, ?, ?, ?, ?, ?)", false);
+		PreparedStatement newId = pool.prepare("INSERT INTO records_has_fields " +
+				"(record_id, field, value, type, content_hash) VALUES (?, ?, ?, ?, ?)", true);
+		withId.clearBatch();
+		newId.clearBatch();
+		ArrayList<MarcFieldBatch.FieldRow> awaitingKeys = new ArrayList<MarcFieldBatch.FieldRow>();
+		int nextRecycled = 0;
+		for (MarcFieldBatch.FieldRow row : batch.fields) {
+			if (nextRecycled < recycledIds.size()) {
+				row.id = recycledIds.get(nextRecycled++);
+				bindParams(withId, new Object[] {row.id, row.recordId, row.tag, row.value, row.type, row.hash});
+				withId.addBatch();
+			} else {
+				bindParams(newId, new Object[] {row.recordId, row.tag, row.value, row.type, row.hash});
+				newId.addBatch();
+				awaitingKeys.add(row);
+			}
+		}
+		if (nextRecycled > 0) {
+			withId.executeBatch();
+		}
+		if (awaitingKeys.size() > 0) {
+			newId.executeBatch();
+			ResultSet keys = newId.getGeneratedKeys();
+			try {
+				int i = 0;
+				while (keys.next() && i < awaitingKeys.size()) {
+					awaitingKeys.get(i++).id = keys.getInt(1);
+				}
+				if (i != awaitingKeys.size()) {
+					throw new SQLException("Expected " + awaitingKeys.size() + " generated field ids but received " + i);
+				}
+			} finally {
+				closeResults(keys);
+			}
+		}
+	}
+	
+	/**
+	 * <p>Adds a record_links row for each 852 field of a record that has a
+	 * 001, once the field ids are known.  The control identifier is cut to
+	 * the width of the record_links column.</p>
+	 */
+	private void writeLinkRows(MarcFieldBatch batch) throws SQLException {
+		String control = null;
+		for (MarcFieldBatch.FieldRow row : batch.fields) {
+			if (row.tag.equals("001") && row.value != null) {
+				control = row.value;
+				break;
+			}
+		}
+		if (control == null || control.length() == 0) {
+			return;
+		}
+		if (control.length() > 255) {
+			control = control.substring(0, 255);
+		}
+		PreparedStatement stmt = pool.prepare("INSERT IGNORE INTO record_links " +
+				"(control_identifier, record_id, field_id) VALUES (?, ?, ?)", false);
+		stmt.clearBatch();
+		int links = 0;
+		for (MarcFieldBatch.FieldRow row : batch.fields) {
+			if (row.tag.equals("852")) {
+				bindParams(stmt, new Object[] {control, row.recordId, row.id});
+				stmt.addBatch();
+				links++;
+			}
+		}
+		if (links > 0) {
+			stmt.executeBatch();
+		}
+	}
+	
+	/**
+	 * <p>Inserts the subfield rows of a batch using the ids already
+	 * assigned to their parent fields.</p>
+	 */
+	private void writeSubfieldRows(MarcFieldBatch batch, ArrayList<Integer> recycledIds) throws SQLException {
+		if (batch.subfieldCount() == 0) {
+			return;
+		}
+		PreparedStatement withId = pool.prepare("INSERT INTO fields_has_subfields " +
+				"(id, field_id, subfield, value) VALUES (?, ?, ?, ?)", false);
+		PreparedStatement newId = pool.prepare("INSERT INTO fields_has_subfields " +
+				"(field_id, subfield, value) VALUES (?, ?, ?)", false);
+		withId.clearBatch();
+		newId.clearBatch();
+		int nextRecycled = 0;
+		int autoRows = 0;
+		for (MarcFieldBatch.FieldRow row : batch.fields) {
+			for (int i=0; i < row.subfieldCodes.size(); i++) {
+				if (nextRecycled < recycledIds.size()) {
+					bindParams(withId, new Object[] {recycledIds.get(nextRecycled++), row.id, row.subfieldCodes.get(i), row.subfieldValues.get(i)});
+					withId.addBatch();
+				} else {
+					bindParams(newId, new Object[] {row.id, row.subfieldCodes.get(i), row.subfieldValues.get(i)});
+					newId.addBatch();
+					autoRows++;
+				}
+			}
+		}
+		if (nextRecycled > 0) {
+			withId.executeBatch();
+		}
+		if (autoRows > 0) {
+			newId.executeBatch();
+		}
+	}
+
+	
 	/**
 	 * <p>A generic object for executing an INSERT 
 	 * against the db.</p>
 	 *
-	 * @param  	strSql	A well formed SQL SELECT query
-	 * @return			A boolean value indicating success or failure
+	 * @param  	strSql	A well formed SQL INSERT query
+	 * @param	params	values for each ? placeholder in the query
+	 * @return			The generated id of the inserted row, 0 on failure
 	 */
-	private int qInsert(String strSql) {
+	private int qInsert(String strSql, Object... params) {
 		
 		// initialize required objects
-		Statement stmt = null;
 		ResultSet rs = null;
 		int insertId = 0;
-		
-		if (!connOpen) {
-			this.openConnection();
-		}
 
 		try {
-
-		    stmt = conn.createStatement();
-		    stmt.executeUpdate(strSql);
-		    rs = stmt.executeQuery("SELECT LAST_INSERT_ID()");
+			PreparedStatement stmt = prepared(strSql, true, params);
+		    stmt.executeUpdate();
+		    rs = stmt.getGeneratedKeys();
 		    if (rs.next()) {
 		    	insertId = rs.getInt(1);
 		    }
-		    rs.close();
-		    
 		} catch (SQLException ex){
 			    // handle any errors
-			    System.out.println("SQLException SqlModel.java qInsert: " + ex.getMessage());
-			    System.out.println("SQLState: " + ex.getSQLState());
-			    System.out.println("VendorError: " + ex.getErrorCode());
+			    reportError("qInsert", strSql, true, ex);
 			    System.out.println("SQL Statement: " + strSql);
-
 		} finally {
-
-		    if (stmt != null) {
-		        try {
-		            stmt.close();
-		        } catch (SQLException ex) {
-		            // ignore
-		        }
-		    }
-		}
-		
-		if (connOpen) {
-			this.closeConnection();
+			closeResults(rs);
 		}
 		
 		return insertId;
 	}
 
+
 	/////////////////////////////////////////////////////////////////
 	//                   UPDATE FUNCTIONS                          //
 	/////////////////////////////////////////////////////////////////
@@ -1499,9 +2176,9 @@ public class SqlModel {
 	 */
 	public boolean updateFileModDate(int intFileId, long fileModDate) {
 		String strSql = "UPDATE files " +
-				"SET modification_date = " + fileModDate +
-				" WHERE id = " + intFileId+ ";";
-		boolean retFlag = qUpdate(strSql);
+				"SET modification_date = ?" +
+				" WHERE id = ?";
+		boolean retFlag = qUpdate(strSql, fileModDate, intFileId);
 		return retFlag;
 	}
 	
@@ -1514,9 +2191,9 @@ public class SqlModel {
 	 */
 	public boolean updateRecordRecordModdate(int recordId, double moddate) {
 		String strSql = "UPDATE records" +
-				" SET moddate = " + String.valueOf(moddate) +
-				" WHERE id = " + String.valueOf(recordId);
-		boolean marked = qUpdate(strSql);
+				" SET moddate = ?" +
+				" WHERE id = ?";
+		boolean marked = qUpdate(strSql, moddate, recordId);
 		return marked;
 	}
 	
@@ -1530,61 +2207,124 @@ public class SqlModel {
 	 */
 	public boolean updateExported(int recordID) {
 		String strSql = "UPDATE records " +
-				"SET exported = 1 WHERE id = " + recordID+ ";";
-		boolean retFlag = qUpdate(strSql);
+				"SET exported = 1 WHERE id = ?";
+		boolean retFlag = qUpdate(strSql, recordID);
 		return retFlag;
 	}
 	
+	/**
+	 * <p>Sets one of the exported, processed, or scoped flags to the same
+	 * value for many records.  Ids are sent RECORD_BLOCK_SIZE at a time in
+	 * an IN list padded with 0 to a fixed length, so every UPDATE for a 
+	 * flag reuses one cached prepared statement.  Used by FlagBuffer.</p>
+	 *
+	 * @param  	column		exported, processed, or scoped
+	 * @param  	value		the new flag value, 0 or 1
+	 * @param  	recordIds	the records.id(s) to update
+	 * @return				true on success, false on failure
+	 */
+	public boolean updateRecordFlag(String column, int value, List<Integer> recordIds) {
+		if (!column.equals("exported") && !column.equals("processed") && !column.equals("scoped")) {
+			throw new IllegalArgumentException("Unknown record flag " + column);
+		}
+		StringBuilder inList = new StringBuilder();
+		for (int i=0; i < RECORD_BLOCK_SIZE; i++) {
+			inList.append(i == 0 ? "?" : ",?");
+		}
+		String strSql = "UPDATE records" +
+				" SET " + column + " = ?" +
+				" WHERE id IN (" + inList + ")";
+		
+		boolean success = true;
+		for (int start=0; start < recordIds.size(); start += RECORD_BLOCK_SIZE) {
+			Object[] params = new Object[RECORD_BLOCK_SIZE + 1];
+			params[0] = value;
+			for (int i=0; i < RECORD_BLOCK_SIZE; i++) {
+				params[i + 1] = (start + i < recordIds.size()) ? recordIds.get(start + i) : 0;
+			}
+			if (!qUpdate(strSql, params)) {
+				success = false;
+			}
+		}
+		return success;
+	}
+	
 	/**
 	 * <p>A generic object for executing an UPDATE 
 	 * against the db.</p>
 	 *
-	 * @param  	strSql	A well formed SQL SELECT query
+	 * @param  	strSql	A well formed SQL UPDATE or DELETE query
+	 * @param	params	values for each ? placeholder in the query
 	 * @return			A boolean value indicating success or failure
 	 */		
-	private boolean qUpdate(String strSql) {
-		
-		if (!connOpen) {
-			this.openConnection();
-		}
+	private boolean qUpdate(String strSql, Object... params) {
 		
 		// initialize required objects
 		boolean success = false;
-		Statement stmt = null;
 		
 		try {
-
-		    stmt = conn.createStatement();
-		    stmt.executeUpdate(strSql);
+			PreparedStatement stmt = prepared(strSql, false, params);
+		    stmt.executeUpdate();
 		    success = true;   
 		} catch (SQLException ex){
 			    // handle any errors
-			    System.out.println("SQLException SqlModel.java qUpdate: " + ex.getMessage());
-			    System.out.println("SQLState: " + ex.getSQLState());
-			    System.out.println("VendorError: " + ex.getErrorCode());
-
-		} finally {
-
-		    if (stmt != null) {
-		        try {
-		            stmt.close();
-		        } catch (SQLException ex) {
-		            // ignore
-		        }
-		    }
-		}
-		
-		if (connOpen) {
-			this.closeConnection();
+			    reportError("qUpdate", strSql, false, ex);
 		}
 		
 		return success;
 	}
 
+
 	/////////////////////////////////////////////////////////////////
 	//                   DELETE FUNCTIONS                          //
 	/////////////////////////////////////////////////////////////////
 	
+	/**
+	 * <p>Adds ids of one type to the recycle bin as a single batched insert
+	 * on the calling thread's connection, so the ids only become free if 
+	 * the surrounding delete commits.  The IdAllocator is told that new 
+	 * ids are available.</p>
+	 *
+	 * @param  	type	1 = record, 2 = field, 3 = subfield
+	 * @param  	idList	the ids to recycle
+	 * @return			true on success, false on failure
+	 */
+	private boolean recycleIds(int type, List<Integer> idList) {
+		if (idList.size() == 0) {
+			return true;
+		}
+		this.openConnection();
+		String strSql = "INSERT INTO recycled_fields (foreign_key, type) VALUES (?, ?)";
+		boolean success = false;
+		try {
+			PreparedStatement stmt = pool.prepare(strSql, false);
+			stmt.clearBatch();
+			for (Integer id : idList) {
+				stmt.setInt(1, id);
+				stmt.setInt(2, type);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			success = true;
+		} catch (SQLException ex) {
+			reportError("recycleIds", strSql, false, ex);
+		}
+		idAllocator().recycled(type);
+		return success;
+	}
+	
+	/**
+	 * <p>Deletes the checkpoint of a file whose import has finished.</p>
+	 *
+	 * @param  	fileId		the id of the file
+	 * @return				true on success, false on failure
+	 */
+	public boolean deleteFileCheckpoint(int fileId) {
+		String strSql = "DELETE FROM file_checkpoints" +
+				" WHERE file_id = ?";
+		return qUpdate(strSql, fileId);
+	}
+	
 	/**
 	 * <p>Deletes a record</p>
 	 *
@@ -1593,13 +2333,19 @@ public class SqlModel {
 	 */
 	public boolean deleteRecordRecord(int recordId) {
 		// first add the record id to the recycle bin
-		String recycleSql = "INSERT into recycled_fields (foreign_key, type) VALUES (" + recordId + ", 1)";
-		qInsert(recycleSql);
+		ArrayList<Integer> recycle = new ArrayList<Integer>();
+		recycle.add(recordId);
+		recycleIds(IdAllocator.RECORD, recycle);
+		
+        // drop the saved raw copy
+		String strRawSql = "DELETE FROM records_raw" +
+				" WHERE record_id = ?";
+		qUpdate(strRawSql, recordId);
 		
         // now delete the fields
 		String strSql = "DELETE FROM records" +
-				" WHERE id = " + recordId;
-		boolean success = qUpdate(strSql);
+				" WHERE id = ?";
+		boolean success = qUpdate(strSql, recordId);
 		return success;
 	}		
 	
@@ -1611,26 +2357,22 @@ public class SqlModel {
 	 */
 	public boolean deleteRecordFields(int recordId) {
 		
-		// initialize needed objects
-		ArrayList<HashMap<String,String>> resultSet = new ArrayList<HashMap<String,String>>();
-	
 		// first add all field ids to the recycle bin
 		String strSqlFields = "SELECT id FROM records_has_fields" +
-				" WHERE record_id = " + recordId;
+				" WHERE record_id = ?";
 		
-		resultSet = qSelectGeneric(strSqlFields);
+		ArrayList<Integer> fieldIds = qSelectIntList(strSqlFields, recordId);
+		recycleIds(IdAllocator.FIELD, fieldIds);
 
-		for (int i=0; i < resultSet.size(); i++) {
-			HashMap<String,String> thisRecord = new HashMap<String,String>();
-			thisRecord = resultSet.get(i);
-			String recycleSql = "INSERT into recycled_fields (foreign_key, type) VALUES (" + thisRecord.get("id") + ", 2)";
-			qInsert(recycleSql);
-		}	
+        // drop the record's holding links
+		String strLinkSql = "DELETE FROM record_links" +
+				" WHERE record_id = ?";
+		qUpdate(strLinkSql, recordId);
 
         // now delete the fields
 		String strSql = "DELETE FROM records_has_fields" +
-				" WHERE record_id = " + recordId;
-		boolean success = qUpdate(strSql);
+				" WHERE record_id = ?";
+		boolean success = qUpdate(strSql, recordId);
 		return success;
 	}
 
@@ -1644,40 +2386,23 @@ public class SqlModel {
 	public boolean deleteSubFields(int fieldId) {
 		
 		// initialize objects
-		ArrayList<HashMap<String,String>> resultSet = new ArrayList<HashMap<String,String>>();
 		boolean success = false;
 		
 		// first add all subfield ids to the recycle bin
 		String strSqlFields = "SELECT id FROM fields_has_subfields" +
-				" WHERE field_id = " + fieldId;
-		
-		//System.out.println("Getting Subfields");
-		resultSet = qSelectGeneric(strSqlFields);
-		//System.out.println("Got Subfields");
-		
-		if (resultSet.size() > 0) {
-		
-			for (int i=0; i < resultSet.size(); i++) {
-				HashMap<String,String> thisRecord = new HashMap<String,String>();
-				thisRecord = resultSet.get(i);
-				// System.out.println("Adding Subfield with ID " + thisRecord.get("id") + " to the recycle bin");
-				String recycleSql = "INSERT into recycled_fields (foreign_key, type) VALUES (" + thisRecord.get("id") + ", 3)";
-				// System.out.println("DebugRecycleSQL: " + recycleSql);
-				qInsert(recycleSql);
-				//if (intRecycle > 0) {
-				//	System.out.println("Successfuylly Added Subfield " + thisRecord.get("id") + " to recycle bin with id " + intRecycle);
-				//} else {
-				//	System.out.println("Failed to add subfield " + thisRecord.get("id") + " to recycle bin.");
-				//}
-			}
-			
-			
+				" WHERE field_id = ?";
+		
+		ArrayList<Integer> subfieldIds = qSelectIntList(strSqlFields, fieldId);
+		
+		if (subfieldIds.size() > 0) {
+		
+			recycleIds(IdAllocator.SUBFIELD, subfieldIds);
 			
 			// now delete the subfield
 			String strSql = "DELETE FROM fields_has_subfields" +
-					" WHERE field_id = " + fieldId;
+					" WHERE field_id = ?";
 			//System.out.println("Deleting all Subfields");
-			success = qUpdate(strSql);
+			success = qUpdate(strSql, fieldId);
 			//if (success) {
 			//	System.out.println("Subfields Deleted");
 			//} else {
@@ -1692,6 +2417,748 @@ public class SqlModel {
 		return success;
 	}
 	
+	/**
+	 * <p>Clears out the stored data of a record that is about to be 
+	 * replaced by a newer version.  In a single transaction every field and
+	 * subfield id of the record is copied to the recycle bin with 
+	 * INSERT ... SELECT, the fields and subfields are removed with one 
+	 * multi-table DELETE, the record's holding links and raw copy are 
+	 * dropped, and the record's moddate and processed, scoped, and 
+	 * exported flags are reset with one UPDATE.  Nothing changes if any
+	 * step fails.  Inside an import transaction the steps join it instead,
+	 * see replaceRecordDataInTransaction().</p>
+	 *
+	 * @param  	recordId	the id of the record being replaced
+	 * @param  	moddate		the moddate of the incoming version
+	 * @return				true on success, false on failure
+	 */
+	public boolean replaceRecordData(int recordId, double moddate) {
+		
+		if (inTransaction) {
+			return replaceRecordDataInTransaction(recordId, moddate);
+		}
+		
+		String[] strSql = new String[] {
+			"INSERT INTO recycled_fields (foreign_key, type)" +
+				" SELECT s.id, " + IdAllocator.SUBFIELD + " FROM fields_has_subfields s" +
+				" JOIN records_has_fields f ON s.field_id = f.id" +
+				" WHERE f.record_id = ?",
+			"INSERT INTO recycled_fields (foreign_key, type)" +
+				" SELECT id, " + IdAllocator.FIELD + " FROM records_has_fields" +
+				" WHERE record_id = ?",
+			"DELETE f, s FROM records_has_fields f" +
+				" LEFT JOIN fields_has_subfields s ON s.field_id = f.id" +
+				" WHERE f.record_id = ?",
+			"DELETE FROM record_links" +
+				" WHERE record_id = ?",
+			"DELETE FROM records_raw" +
+				" WHERE record_id = ?",
+			"UPDATE records" +
+				" SET moddate = ?, processed = 0, scoped = 0, exported = 0" +
+				" WHERE id = ?"
+		};
+		Object[][] params = new Object[][] {
+			{recordId},
+			{recordId},
+			{recordId},
+			{recordId},
+			{recordId},
+			{moddate, recordId}
+		};
+		
+		this.openConnection();
+		boolean success = false;
+		int step = 0;
+		try {
+			conn.setAutoCommit(false);
+			for (step=0; step < strSql.length; step++) {
+				prepared(strSql[step], false, params[step]).executeUpdate();
+			}
+			conn.commit();
+			success = true;
+		} catch (SQLException ex) {
+			reportError("replaceRecordData", strSql[step], false, ex);
+			try {
+				conn.rollback();
+			} catch (SQLException rbEx) { } // ignore
+		} finally {
+			try {
+				conn.setAutoCommit(true);
+			} catch (SQLException sqlEx) { } // ignore
+		}
+		
+		if (success) {
+			idAllocator().recycled(IdAllocator.FIELD);
+			idAllocator().recycled(IdAllocator.SUBFIELD);
+		}
+		return success;
+	}
+	
+	/**
+	 * <p>Clears out the stored data of a record inside an open import
+	 * transaction.  The field and subfield ids are read instead of being
+	 * copied to the recycle bin and are handed to the allocator once the 
+	 * transaction commits.  A failed step fails the current record, which
+	 * endRecord() then rolls back.</p>
+	 *
+	 * @param  	recordId	the id of the record being replaced
+	 * @param  	moddate		the moddate of the incoming version
+	 * @return				true on success, false on failure
+	 */
+	private boolean replaceRecordDataInTransaction(int recordId, double moddate) {
+		
+		ArrayList<Integer> subfieldIds = qSelectIntList("SELECT s.id FROM fields_has_subfields s" +
+				" JOIN records_has_fields f ON s.field_id = f.id" +
+				" WHERE f.record_id = ?", recordId);
+		ArrayList<Integer> fieldIds = qSelectIntList("SELECT id FROM records_has_fields" +
+				" WHERE record_id = ?", recordId);
+		boolean success = !recordFailed 
+				&& qUpdate("DELETE f, s FROM records_has_fields f" +
+					" LEFT JOIN fields_has_subfields s ON s.field_id = f.id" +
+					" WHERE f.record_id = ?", recordId)
+				&& qUpdate("DELETE FROM record_links" +
+					" WHERE record_id = ?", recordId)
+				&& qUpdate("DELETE FROM records_raw" +
+					" WHERE record_id = ?", recordId)
+				&& qUpdate("UPDATE records" +
+					" SET moddate = ?, processed = 0, scoped = 0, exported = 0" +
+					" WHERE id = ?", moddate, recordId);
+		
+		if (success) {
+			recordFreed.get(IdAllocator.FIELD).addAll(fieldIds);
+			recordFreed.get(IdAllocator.SUBFIELD).addAll(subfieldIds);
+		}
+		return success;
+	}
+	
+	/**
+	 * <p>Brings the stored fields of a record in line with a newer version
+	 * without clearing them out.  The record's fields are read back with
+	 * their content hashes and matched against the batch by 
+	 * MarcFieldBatch.matchStoredFields().  Unchanged fields are left 
+	 * alone, changed fields are updated in place and have their subfields
+	 * replaced, new fields are inserted, and fields that are gone are 
+	 * deleted with their subfields and holding links.  The record's 
+	 * moddate, content hash, and flags are then reset and any new 852 is
+	 * linked.  Inside an import transaction the writes join it and the 
+	 * freed ids are handed to the allocator once it commits, as with
+	 * replaceRecordDataInTransaction().</p>
+	 *
+	 * @param  	recordId	the id of the record being updated
+	 * @param  	moddate		the moddate of the incoming version
+	 * @param  	batch		the field rows of the incoming version
+	 * @return				true on success, false on failure
+	 */
+	public boolean updateRecordData(int recordId, double moddate, MarcFieldBatch batch) {
+		
+		batch.setRecordId(recordId);
+		byte[] recordHash = batch.contentHash();
+		
+		this.openConnection();
+		boolean success = false;
+		boolean ownTransaction = !inTransaction;
+		ArrayList<Integer> fieldIds = new ArrayList<Integer>();
+		ArrayList<Integer> subfieldIds = new ArrayList<Integer>();
+		ArrayList<Integer> freedFields = new ArrayList<Integer>();
+		ArrayList<Integer> freedSubfields = new ArrayList<Integer>();
+		try {
+			if (ownTransaction) {
+				conn.setAutoCommit(false);
+			}
+			
+			ArrayList<Integer> dropped = batch.matchStoredFields(selectStoredFields(recordId));
+			MarcFieldBatch rewritten = batch.changedRows(true);
+			MarcFieldBatch added = batch.changedRows(false);
+			
+			// changed and dropped fields lose their subfields
+			HashSet<Integer> cleared = new HashSet<Integer>(dropped);
+			for (MarcFieldBatch.FieldRow row : rewritten.fields) {
+				cleared.add(row.id);
+			}
+			if (cleared.size() > 0) {
+				freedSubfields = selectSubfieldIds(recordId, cleared);
+				ArrayList<Object[]> rows = new ArrayList<Object[]>();
+				for (Integer fieldId : cleared) {
+					rows.add(new Object[] {fieldId});
+				}
+				qBatch("DELETE FROM fields_has_subfields WHERE field_id = ?", rows);
+			}
+			if (dropped.size() > 0) {
+				ArrayList<Object[]> links = new ArrayList<Object[]>();
+				ArrayList<Object[]> rows = new ArrayList<Object[]>();
+				for (Integer fieldId : dropped) {
+					links.add(new Object[] {recordId, fieldId});
+					rows.add(new Object[] {fieldId});
+				}
+				qBatch("DELETE FROM record_links WHERE record_id = ? AND field_id = ?", links);
+				qBatch("DELETE FROM records_has_fields WHERE id = ?", rows);
+				freedFields.addAll(dropped);
+			}
+			if (rewritten.fieldCount() > 0) {
+				ArrayList<Object[]> rows = new ArrayList<Object[]>();
+				for (MarcFieldBatch.FieldRow row : rewritten.fields) {
+					rows.add(new Object[] {row.value, row.type, row.hash, row.id});
+				}
+				qBatch("UPDATE records_has_fields SET value = ?, type = ?, content_hash = ? WHERE id = ?", rows);
+			}
+			
+			// new fields, then the subfields of every changed field
+			if (added.fieldCount() > 0) {
+				fieldIds = claimIds(IdAllocator.FIELD, added.fieldCount());
+				writeFieldRows(added, fieldIds);
+			}
+			MarcFieldBatch changed = batch.changedRows();
+			if (changed.subfieldCount() > 0) {
+				subfieldIds = claimIds(IdAllocator.SUBFIELD, changed.subfieldCount());
+				writeSubfieldRows(changed, subfieldIds);
+			}
+			if (added.fieldCount() > 0) {
+				writeLinkRows(batch);
+			}
+			prepared("UPDATE records" +
+					" SET moddate = ?, content_hash = ?, processed = 0, scoped = 0, exported = 0" +
+					" WHERE id = ?", false, new Object[] {moddate, recordHash, recordId}).executeUpdate();
+			
+			if (ownTransaction) {
+				conn.commit();
+			}
+			success = true;
+		} catch (SQLException ex) {
+		    System.out.println("SQLException SqlModel.java updateRecordData: " + ex.getMessage());
+		    System.out.println("SQLState: " + ex.getSQLState());
+		    System.out.println("VendorError: " + ex.getErrorCode());
+			if (ownTransaction) {
+				try {
+					conn.rollback();
+				} catch (SQLException rbEx) { } // ignore
+				idAllocator().giveBack(IdAllocator.FIELD, fieldIds);
+				idAllocator().giveBack(IdAllocator.SUBFIELD, subfieldIds);
+			} else {
+				recordFailed = true;
+			}
+		} finally {
+			if (ownTransaction) {
+				try {
+					conn.setAutoCommit(true);
+				} catch (SQLException sqlEx) { } // ignore
+			}
+		}
+		
+		if (success) {
+			if (ownTransaction) {
+				idAllocator().giveBack(IdAllocator.FIELD, freedFields);
+				idAllocator().giveBack(IdAllocator.SUBFIELD, freedSubfields);
+			} else {
+				recordFreed.get(IdAllocator.FIELD).addAll(freedFields);
+				recordFreed.get(IdAllocator.SUBFIELD).addAll(freedSubfields);
+			}
+		}
+		return success;
+	}
+	
+	/**
+	 * <p>Brings a record whose content has not changed up to the newer 
+	 * version's time stamp.  The 005 field row is rewritten, the moddate
+	 * advanced, and the raw copy replaced, leaving the other fields and 
+	 * the record's flags alone.  Inside an import transaction the writes 
+	 * join it.  Nothing changes if the record does not have exactly one 
+	 * stored 005, so that the caller can fall back to updateRecordData().</p>
+	 *
+	 * @param  	recordId	the id of the record being updated
+	 * @param  	moddate		the moddate of the incoming version
+	 * @param  	batch		the field rows of the incoming version
+	 * @param  	raw			the raw copy of the incoming version, or null
+	 * @return				true on success, false on failure
+	 */
+	public boolean updateRecordTimestamp(int recordId, double moddate, MarcFieldBatch batch, byte[] raw) {
+		
+		batch.contentHash();
+		MarcFieldBatch.FieldRow stamp = batch.timestampRow();
+		if (stamp == null) {
+			return false;
+		}
+		
+		this.openConnection();
+		boolean success = false;
+		boolean ownTransaction = !inTransaction;
+		try {
+			if (ownTransaction) {
+				conn.setAutoCommit(false);
+			}
+			int stamped = prepared("UPDATE records_has_fields" +
+					" SET value = ?, content_hash = ?" +
+					" WHERE record_id = ? AND field = '005'", false, new Object[] {stamp.value, stamp.hash, recordId}).executeUpdate();
+			if (stamped == 1) {
+				prepared("UPDATE records" +
+						" SET moddate = ?" +
+						" WHERE id = ?", false, new Object[] {moddate, recordId}).executeUpdate();
+				if (raw != null) {
+					prepared("REPLACE INTO records_raw (record_id, raw)" +
+							" VALUES (?, ?)", false, new Object[] {recordId, raw}).executeUpdate();
+				}
+				success = true;
+			}
+			if (ownTransaction) {
+				if (success) {
+					conn.commit();
+				} else {
+					conn.rollback();
+				}
+			}
+		} catch (SQLException ex) {
+		    System.out.println("SQLException SqlModel.java updateRecordTimestamp: " + ex.getMessage());
+		    System.out.println("SQLState: " + ex.getSQLState());
+		    System.out.println("VendorError: " + ex.getErrorCode());
+			if (ownTransaction) {
+				try {
+					conn.rollback();
+				} catch (SQLException rbEx) { } // ignore
+			} else {
+				recordFailed = true;
+			}
+		} finally {
+			if (ownTransaction) {
+				try {
+					conn.setAutoCommit(true);
+				} catch (SQLException sqlEx) { } // ignore
+			}
+		}
+		return success;
+	}
+	
+	/**
+	 * <p>Reads the id, tag, and content hash of every field of a record, in
+	 * id order, for MarcFieldBatch.matchStoredFields().</p>
+	 */
+	private ArrayList<MarcFieldBatch.StoredRow> selectStoredFields(int recordId) throws SQLException {
+		ArrayList<MarcFieldBatch.StoredRow> stored = new ArrayList<MarcFieldBatch.StoredRow>();
+		ResultSet resultSet = null;
+		try {
+			resultSet = prepared("SELECT id, field, content_hash FROM records_has_fields" +
+					" WHERE record_id = ?" +
+					" ORDER BY id", false, new Object[] {recordId}).executeQuery();
+			while (resultSet.next()) {
+				stored.add(new MarcFieldBatch.StoredRow(resultSet.getInt(1), resultSet.getString(2), resultSet.getBytes(3)));
+			}
+		} finally {
+			closeResults(resultSet);
+		}
+		return stored;
+	}
+	
+	/**
+	 * <p>Reads the ids of the subfields of a record that belong to the 
+	 * passed fields.</p>
+	 */
+	private ArrayList<Integer> selectSubfieldIds(int recordId, HashSet<Integer> fieldIds) throws SQLException {
+		ArrayList<Integer> subfieldIds = new ArrayList<Integer>();
+		ResultSet resultSet = null;
+		try {
+			resultSet = prepared("SELECT s.id, s.field_id FROM fields_has_subfields s" +
+					" JOIN records_has_fields f ON s.field_id = f.id" +
+					" WHERE f.record_id = ?", false, new Object[] {recordId}).executeQuery();
+			while (resultSet.next()) {
+				if (fieldIds.contains(resultSet.getInt(2))) {
+					subfieldIds.add(resultSet.getInt(1));
+				}
+			}
+		} finally {
+			closeResults(resultSet);
+		}
+		return subfieldIds;
+	}
+	
+	/**
+	 * <p>Runs one statement shape for every row of parameters as a single
+	 * JDBC batch.</p>
+	 */
+	private void qBatch(String strSql, List<Object[]> rows) throws SQLException {
+		PreparedStatement stmt = pool.prepare(strSql, false);
+		stmt.clearBatch();
+		for (Object[] params : rows) {
+			bindParams(stmt, params);
+			stmt.addBatch();
+		}
+		stmt.executeBatch();
+	}
+	
+////////////////////////
+// Bulk Load methods //
+////////////////////////
+	
+	/**
+	 * <p>Checks whether the records, records_has_fields, and 
+	 * fields_has_subfields tables are all empty, as they are after 
+	 * emptydb.sql has been run.</p>
+	 *
+	 * @return				true if none of the tables contain rows
+	 */
+	public boolean workingTablesEmpty() {
+		String strSql = "SELECT EXISTS(SELECT 1 FROM records)" +
+				" + EXISTS(SELECT 1 FROM records_has_fields)" +
+				" + EXISTS(SELECT 1 FROM fields_has_subfields)";
+		int populated = qSelectInt(strSql);
+		return populated == 0;
+	}
+	
+	/**
+	 * <p>Empties the records, records_has_fields, and fields_has_subfields
+	 * tables after a bulk load that failed part way, so that the staged 
+	 * files can be imported again.  Only called while the bulk loader 
+	 * owns the otherwise empty tables.</p>
+	 *
+	 * @return				true on success, false on failure
+	 */
+	public boolean clearStagedTables() {
+		return qUpdate("DELETE FROM fields_has_subfields") 
+				&& qUpdate("DELETE FROM records_has_fields") 
+				&& qUpdate("DELETE FROM records");
+	}
+	
+	/**
+	 * <p>Turns the unique and foreign key checks for this thread's 
+	 * connection off while staged files are loaded and back on 
+	 * afterwards.</p>
+	 *
+	 * @param  	enabled		true to restore the checks, false to skip them
+	 * @return				true on success, false on failure
+	 */
+	public boolean setBulkLoadChecks(boolean enabled) {
+		int flag = 0;
+		if (enabled) {
+			flag = 1;
+		}
+		String strSql = "SET unique_checks = ?, foreign_key_checks = ?";
+		return qUpdate(strSql, flag, flag);
+	}
+	
+	/**
+	 * <p>Loads a tab separated staging file of records rows.</p>
+	 *
+	 * @param  	filePath	the full path to the staging file
+	 * @return				the number of rows loaded, or -1 on failure
+	 */
+	public int loadStagedRecords(String filePath) {
+		return qLoadLocalFile(filePath, "records", "(id, file_id, control_identifier, type, moddate)");
+	}
+	
+	/**
+	 * <p>Loads a tab separated staging file of records_has_fields rows.</p>
+	 *
+	 * @param  	filePath	the full path to the staging file
+	 * @return				the number of rows loaded, or -1 on failure
+	 */
+	public int loadStagedFields(String filePath) {
+		return qLoadLocalFile(filePath, "records_has_fields", "(id, record_id, field, value, type)");
+	}
+	
+	/**
+	 * <p>Loads a tab separated staging file of fields_has_subfields rows.</p>
+	 *
+	 * @param  	filePath	the full path to the staging file
+	 * @return				the number of rows loaded, or -1 on failure
+	 */
+	public int loadStagedSubfields(String filePath) {
+		return qLoadLocalFile(filePath, "fields_has_subfields", "(id, field_id, subfield, value)");
+	}
+	
+	/**
+	 * <p>Recycles and deletes a contiguous range of field ids.  Used by 
+	 * the bulk loader to drop the fields of a record that was replaced by 
+	 * a newer copy later in the same load.</p>
+	 *
+	 * @param  	firstId		the first field id in the range
+	 * @param  	lastId		the last field id in the range
+	 * @return				true on success, false on failure
+	 */
+	public boolean discardFieldRange(int firstId, int lastId) {
+		String strRecycleSql = "INSERT INTO recycled_fields (foreign_key, type)" +
+				" SELECT id, 2 FROM records_has_fields WHERE id BETWEEN ? AND ?";
+		String strSql = "DELETE FROM records_has_fields WHERE id BETWEEN ? AND ?";
+		boolean success = qUpdate(strRecycleSql, firstId, lastId) && qUpdate(strSql, firstId, lastId);
+		idAllocator().recycled(IdAllocator.FIELD);
+		return success;
+	}
+	
+	/**
+	 * <p>Recycles and deletes a contiguous range of subfield ids.</p>
+	 *
+	 * @param  	firstId		the first subfield id in the range
+	 * @param  	lastId		the last subfield id in the range
+	 * @return				true on success, false on failure
+	 */
+	public boolean discardSubfieldRange(int firstId, int lastId) {
+		String strRecycleSql = "INSERT INTO recycled_fields (foreign_key, type)" +
+				" SELECT id, 3 FROM fields_has_subfields WHERE id BETWEEN ? AND ?";
+		String strSql = "DELETE FROM fields_has_subfields WHERE id BETWEEN ? AND ?";
+		boolean success = qUpdate(strRecycleSql, firstId, lastId) && qUpdate(strSql, firstId, lastId);
+		idAllocator().recycled(IdAllocator.SUBFIELD);
+		return success;
+	}
+	
+	/**
+	 * <p>Runs a LOAD DATA LOCAL INFILE for a staging file written with 
+	 * tab separated columns, backslash escapes, and newline terminated
+	 * rows.  LOAD DATA cannot be prepared on the server, so this uses a
+	 * plain statement.</p>
+	 */
+	private int qLoadLocalFile(String filePath, String table, String columns) {
+		this.openConnection();
+		String escapedPath = filePath.replace("\\", "\\\\").replace("'", "\\'");
+		String strSql = "LOAD DATA LOCAL INFILE '" + escapedPath + "'" +
+				" INTO TABLE " + table +
+				" CHARACTER SET utf8" +
+				" FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\'" +
+				" LINES TERMINATED BY '\\n' " + columns;
+		Statement stmt = null;
+		int loaded = -1;
+		try {
+			stmt = conn.createStatement();
+			loaded = stmt.executeUpdate(strSql);
+		} catch (SQLException ex) {
+		    System.out.println("SQLException SqlModel.java qLoadLocalFile: " + ex.getMessage());
+		    System.out.println("SQLState: " + ex.getSQLState());
+		    System.out.println("VendorError: " + ex.getErrorCode());
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException sqlEx) { } // ignore
+			}
+		}
+		return loaded;
+	}
+	
+
+////////////////////
+// Schema methods //
+////////////////////
+	
+	/**
+	 * <p>Creates the schema_version table used by SchemaMigrator if it
+	 * does not already exist.</p>
+	 *
+	 * @return				true on success, false on failure
+	 */
+	public boolean createSchemaVersionTable() {
+		String strSql = "CREATE TABLE IF NOT EXISTS schema_version (" +
+				" version INT NOT NULL PRIMARY KEY," +
+				" description VARCHAR(255) NOT NULL," +
+				" applied_at DATETIME NOT NULL)";
+		return qExecuteDdl(strSql);
+	}
+	
+	/**
+	 * <p>Selects the highest schema version that has been applied.</p>
+	 *
+	 * @return				the current schema version, 0 if none has been applied
+	 */
+	public int selectSchemaVersion() {
+		String strSql = "SELECT COALESCE(MAX(version), 0) FROM schema_version";
+		return qSelectInt(strSql);
+	}
+	
+	/**
+	 * <p>Records that a schema version has been applied.</p>
+	 *
+	 * @param  	version		the version number
+	 * @param  	description	a short description of the change
+	 * @return				true on success, false on failure
+	 */
+	public boolean insertSchemaVersion(int version, String description) {
+		String strSql = "INSERT INTO schema_version (version, description, applied_at)" +
+				" VALUES (?, ?, NOW())";
+		return qUpdate(strSql, version, description);
+	}
+	
+	/**
+	 * <p>Creates the record_links table, which maps the 001 control 
+	 * identifier of every record with 852 fields to the record and its 852
+	 * field ids, if it does not already exist.</p>
+	 *
+	 * @return				true on success, false on failure
+	 */
+	public boolean createRecordLinksTable() {
+		String strSql = "CREATE TABLE IF NOT EXISTS record_links (" +
+				" control_identifier VARCHAR(255) NOT NULL," +
+				" record_id INT NOT NULL," +
+				" field_id INT NOT NULL," +
+				" PRIMARY KEY (control_identifier, record_id, field_id)," +
+				" KEY idx_links_record (record_id))";
+		return qExecuteDdl(strSql);
+	}
+	
+	/**
+	 * <p>Creates the records_raw table, which holds a compressed ISO 2709
+	 * copy of every record keyed by record id, if it does not already 
+	 * exist.</p>
+	 *
+	 * @return				true on success, false on failure
+	 */
+	public boolean createRecordsRawTable() {
+		String strSql = "CREATE TABLE IF NOT EXISTS records_raw (" +
+				" record_id INT NOT NULL," +
+				" raw MEDIUMBLOB NOT NULL," +
+				" PRIMARY KEY (record_id))";
+		return qExecuteDdl(strSql);
+	}
+	
+	/**
+	 * <p>Creates the file_checkpoints table, which holds how far an 
+	 * unfinished import of each file has committed, if it does not already
+	 * exist.</p>
+	 *
+	 * @return				true on success, false on failure
+	 */
+	public boolean createFileCheckpointsTable() {
+		String strSql = "CREATE TABLE IF NOT EXISTS file_checkpoints (" +
+				" file_id INT NOT NULL," +
+				" modification_date BIGINT NOT NULL," +
+				" byte_offset BIGINT NOT NULL," +
+				" record_ordinal INT NOT NULL," +
+				" PRIMARY KEY (file_id))";
+		return qExecuteDdl(strSql);
+	}
+	
+	/**
+	 * <p>Rebuilds record_links from the 001 and 852 rows in 
+	 * records_has_fields.  Used to backfill the table when it is first
+	 * created and after a bulk load, which bypasses insertFieldBatch().</p>
+	 *
+	 * @return				true on success, false on failure
+	 */
+	public boolean rebuildRecordLinks() {
+		String strDeleteSql = "DELETE FROM record_links";
+		String strSql = "INSERT IGNORE INTO record_links (control_identifier, record_id, field_id)" +
+				" SELECT LEFT(c.value, 255), h.record_id, h.id" +
+				" FROM records_has_fields h" +
+				" JOIN records_has_fields c ON c.record_id = h.record_id AND c.field = '001'" +
+				" WHERE h.field = '852'";
+		return qUpdate(strDeleteSql) && qUpdate(strSql);
+	}
+	
+	/**
+	 * <p>Checks information_schema for an index on a table in the working
+	 * database.</p>
+	 *
+	 * @param  	table		the table name
+	 * @param  	indexName	the index name
+	 * @return				true if the index exists
+	 */
+	public boolean indexExists(String table, String indexName) {
+		String strSql = "SELECT COUNT(*) FROM information_schema.statistics" +
+				" WHERE table_schema = DATABASE()" +
+				" AND table_name = ?" +
+				" AND index_name = ?";
+		return qSelectInt(strSql, table, indexName) > 0;
+	}
+	
+	/**
+	 * <p>Selects the data type of a column in the working database.</p>
+	 *
+	 * @param  	table		the table name
+	 * @param  	column		the column name
+	 * @return				the lower case data type, such as varchar or text,
+	 * 						or an empty string if there is no such column
+	 */
+	public String selectColumnType(String table, String column) {
+		String strSql = "SELECT LOWER(data_type) FROM information_schema.columns" +
+				" WHERE table_schema = DATABASE()" +
+				" AND table_name = ?" +
+				" AND column_name = ?";
+		String type = qSelectString(strSql, table, column);
+		if (type == null) {
+			type = "";
+		}
+		return type;
+	}
+	
+	/**
+	 * <p>Adds a secondary index to a table.  Identifiers cannot be bound
+	 * as parameters, so callers must only pass fixed names.</p>
+	 *
+	 * @param  	table		the table name
+	 * @param  	indexName	the index name
+	 * @param  	columns		the comma separated column list, with any prefix lengths
+	 * @return				true on success, false on failure
+	 */
+	public boolean createIndex(String table, String indexName, String columns) {
+		String strSql = "ALTER TABLE `" + table + "` ADD INDEX `" + indexName + "` (" + columns + ")";
+		return qExecuteDdl(strSql);
+	}
+	
+	/**
+	 * <p>Adds a column to a table.  Identifiers cannot be bound as 
+	 * parameters, so callers must only pass fixed names and 
+	 * definitions.</p>
+	 *
+	 * @param  	table		the table name
+	 * @param  	column		the column name
+	 * @param  	definition	the column type and options
+	 * @return				true on success, false on failure
+	 */
+	public boolean createColumn(String table, String column, String definition) {
+		String strSql = "ALTER TABLE `" + table + "` ADD COLUMN `" + column + "` " + definition;
+		return qExecuteDdl(strSql);
+	}
+	
+	/**
+	 * <p>Returns the hot query shapes, each with sample parameters, that 
+	 * SchemaMigrator checks with EXPLAIN after migrating.</p>
+	 *
+	 * @return				query text mapped to sample parameters, in a fixed order
+	 */
+	public LinkedHashMap<String,Object[]> hotQueries() {
+		LinkedHashMap<String,Object[]> queries = new LinkedHashMap<String,Object[]>();
+		queries.put(SQL_FIELD_BY_NUMBER, new Object[] {1, "008"});
+		queries.put(SQL_SUBFIELDS_BY_FIELD, new Object[] {1, "a"});
+		queries.put(SQL_UNEXPORTED_PAGE, new Object[] {0, RECORD_BLOCK_SIZE});
+		queries.put(SQL_RECORD_BY_CONTROL, new Object[] {"x", "x", 1});
+		queries.put(SQL_CLAIM_RECYCLED, new Object[] {IdAllocator.FIELD, 500});
+		queries.put(SQL_SUBJECT_BY_TERM, new Object[] {"x"});
+		queries.put(SQL_AGENT_BY_LABEL, new Object[] {"x"});
+		queries.put(SQL_HOLDING_LINKS, new Object[] {"x"});
+		queries.put(RECORD_MODEL_SELECT + " WHERE r.id = ? ORDER BY f.id, s.id", new Object[] {1});
+		return queries;
+	}
+	
+	/**
+	 * <p>Runs EXPLAIN for a query with the passed parameters bound.</p>
+	 *
+	 * @param  	strSql		the query to explain
+	 * @param	params		values for each ? placeholder in the query
+	 * @return				one row per table in the plan, keyed by EXPLAIN column name
+	 */
+	public ArrayList<HashMap<String,String>> explainQuery(String strSql, Object... params) {
+		return qSelectGenericMultiRow("EXPLAIN " + strSql, params);
+	}
+	
+	/**
+	 * <p>Runs a DDL statement with a plain statement, since DDL is not
+	 * worth a slot in the prepared statement cache.</p>
+	 */
+	private boolean qExecuteDdl(String strSql) {
+		this.openConnection();
+		Statement stmt = null;
+		boolean success = false;
+		try {
+			stmt = conn.createStatement();
+			stmt.executeUpdate(strSql);
+			success = true;
+		} catch (SQLException ex) {
+		    System.out.println("SQLException SqlModel.java qExecuteDdl: " + ex.getMessage());
+		    System.out.println("SQLState: " + ex.getSQLState());
+		    System.out.println("VendorError: " + ex.getErrorCode());
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException sqlEx) { } // ignore
+			}
+		}
+		return success;
+	}
+	
 
 //////////////////////
 // Logging  methods //
@@ -1709,11 +3176,39 @@ public class SqlModel {
 		String strSql = "INSERT INTO runlog " +
 				"(type, file, line, message)" +
 				" VALUES" + 
-				" (" + messageType + ", '" + fileName + "', " + lineNumber + ", '" + messageText + "');";
-		int insertId = qInsert(strSql);
+				" (?, ?, ?, ?)";
+		int insertId = qInsert(strSql, messageType, fileName, lineNumber, messageText);
 		return insertId;
 	}
 	
+	/**
+	 * <p>Writes a batch of log messages to the runlog table with one 
+	 * JDBC batch, which the driver rewrites into multi-row inserts.</p>
+	 *
+	 * @param  	entries		the messages to write, in order
+	 * @return				true on success, false on failure
+	 */
+	public boolean insertLogMessages(List<AsyncLogWriter.LogEntry> entries) {
+		String strSql = "INSERT INTO runlog " +
+				"(type, file, line, message)" +
+				" VALUES" + 
+				" (?, ?, ?, ?)";
+		try {
+			this.openConnection();
+			PreparedStatement stmt = pool.prepare(strSql, false);
+			stmt.clearBatch();
+			for (AsyncLogWriter.LogEntry entry : entries) {
+				bindParams(stmt, new Object[] {entry.type, entry.file, entry.line, entry.message});
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		} catch (SQLException ex) {
+			reportError("insertLogMessages", strSql, false, ex);
+			return false;
+		}
+		return true;
+	}
+	
 				
 	/////////////////////////////////////////////////////////////////
 	//                   SET FLAGS FUNCTIONS                       //
@@ -1731,8 +3226,8 @@ public class SqlModel {
 	public boolean setRecordRecordProcessed(int recordId) {
 		String strSql = "UPDATE records" +
 				" SET processed = 1" +
-				" WHERE id = " + recordId;
-		boolean marked = qUpdate(strSql);
+				" WHERE id = ?";
+		boolean marked = qUpdate(strSql, recordId);
 		return marked;
 	}	
 	
@@ -1749,8 +3244,8 @@ public class SqlModel {
 	public boolean setRecordRecordUnProcessed(int recordId) {
 		String strSql = "UPDATE records" +
 				" SET processed = 0" +
-				" WHERE id = " + recordId;
-		boolean marked = qUpdate(strSql);
+				" WHERE id = ?";
+		boolean marked = qUpdate(strSql, recordId);
 		return marked;
 	}
 	
@@ -1764,8 +3259,8 @@ public class SqlModel {
 	public boolean setRecordRecordScoped(int recordId) {
 		String strSql = "UPDATE records" +
 				" SET scoped = 1" +
-				" WHERE id = " + recordId;
-		boolean marked = qUpdate(strSql);
+				" WHERE id = ?";
+		boolean marked = qUpdate(strSql, recordId);
 		return marked;
 	}	
 	
@@ -1780,8 +3275,8 @@ public class SqlModel {
 	public boolean setRecordRecordUnScoped(int recordId) {
 		String strSql = "UPDATE records" +
 				" SET scoped = 0" +
-				" WHERE id = " + recordId;
-		boolean marked = qUpdate(strSql);
+				" WHERE id = ?";
+		boolean marked = qUpdate(strSql, recordId);
 		return marked;
 	}
 	
@@ -1794,8 +3289,8 @@ public class SqlModel {
 	public boolean setRecordRecordExported(int recordId) {
 		String strSql = "UPDATE records" +
 				" SET exported = 1" +
-				" WHERE id = " + recordId;
-		boolean marked = qUpdate(strSql);
+				" WHERE id = ?";
+		boolean marked = qUpdate(strSql, recordId);
 		return marked;
 	}	
 	
@@ -1809,8 +3304,8 @@ public class SqlModel {
 	public boolean setRecordRecordNotExported(int recordId) {
 		String strSql = "UPDATE records" +
 				" SET exported = 0" +
-				" WHERE id = " + recordId;
-		boolean marked = qUpdate(strSql);
+				" WHERE id = ?";
+		boolean marked = qUpdate(strSql, recordId);
 		return marked;
 	}
 	